@@ -13,6 +13,7 @@ import java.util.HashMap;
 import rajawali.animation.mesh.VertexAnimationObject3D;
 import rajawali.bounds.BoundingBox;
 import rajawali.bounds.BoundingSphere;
+import rajawali.renderer.AssetLoader;
 import rajawali.renderer.RajawaliRenderer;
 import rajawali.util.RajLog;
 import android.opengl.GLES20;
@@ -93,6 +94,15 @@ public abstract class AGeometry3D {
 	 * The bounding sphere for this geometry. This is used for collision detection.
 	 */
 	protected BoundingSphere mBoundingSphere;
+	/**
+	 * Scales and moves quantized positions back into place, null when positions are floats.
+	 */
+	protected float[] mDequantizeMatrix;
+	/**
+	 * The vertex arrays recorded for this geometry, one for every program it was rendered with.
+	 * @see VertexArrayCache
+	 */
+	VertexArrayCache.VertexArray mVertexArrays;
 	public enum BufferType {
 		FLOAT_BUFFER,
 		INT_BUFFER,
@@ -120,7 +130,8 @@ public abstract class AGeometry3D {
 	public void createBuffers() {
 		boolean supportsUIntBuffers = RajawaliRenderer.supportsUIntBuffers;
 		if(mIndicesInt != null && !mOnlyShortBufferSupported && supportsUIntBuffers) {
-			mIndicesInt.compact().position(0);
+			// -- adopted views can be larger than the indices they hold
+			mIndicesInt.position(0).limit(mNumIndices);
 			createBuffer(mIndexBufferInfo, BufferType.INT_BUFFER, mIndicesInt, GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
 		}
 		
@@ -147,7 +158,7 @@ public abstract class AGeometry3D {
 				mIndicesInt = null;
 			}
 			if(mIndicesShort != null) {
-				mIndicesShort.compact().position(0);
+				mIndicesShort.position(0).limit(mNumIndices);
 				createBuffer(mIndexBufferInfo, BufferType.SHORT_BUFFER, mIndicesShort, GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
 			}
 		}
@@ -217,16 +228,21 @@ public abstract class AGeometry3D {
 	 *            If interleaved vertex data, size of vertex for setting stride, else 0
 	 */
 	public void createBuffer(BufferInfo bufferInfo, BufferType type, Buffer buffer, int target, int usage, int attributeSize, int attributeOffset, int vertexSize) {
-		int buff[] = new int[1];
-		GLES20.glGenBuffers(1, buff, 0);
-		int handle = buff[0];
+		int handle = 0;
 		int byteSize = FLOAT_SIZE_BYTES;
 		if(type == BufferType.SHORT_BUFFER)
 			byteSize = SHORT_SIZE_BYTES;
 		
-		GLES20.glBindBuffer(target, handle);
-		GLES20.glBufferData(target, buffer.limit() * byteSize, buffer, usage);
-		GLES20.glBindBuffer(target, 0);
+		// -- buffers created on a loader thread are uploaded later by uploadPendingBuffers()
+		if(!AssetLoader.isLoaderThread()) {
+			int buff[] = new int[1];
+			GLES20.glGenBuffers(1, buff, 0);
+			handle = buff[0];
+			
+			GLES20.glBindBuffer(target, handle);
+			GLES20.glBufferData(target, buffer.limit() * byteSize, buffer, usage);
+			GLES20.glBindBuffer(target, 0);
+		}
 		
 		bufferInfo.buffer = buffer;
 		bufferInfo.bufferHandle = handle;
@@ -245,6 +261,40 @@ public abstract class AGeometry3D {
 	
 	abstract public void validateBuffers();
 	
+	/**
+	 * Returns the size in bytes of the buffers that haven't been uploaded yet. This is
+	 * the case for geometries that were created on an asset loader thread.
+	 * 
+	 * @return
+	 * @see AssetLoader
+	 */
+	public int getPendingUploadSize() {
+		int size = 0;
+		for (BufferInfo bufferInfo : mVertexBufferInfos) {
+			if (bufferInfo != null && bufferInfo.bufferHandle == 0 && bufferInfo.buffer != null)
+				size += bufferInfo.buffer.limit() * bufferInfo.byteSize;
+		}
+		if (mIndexBufferInfo != null && mIndexBufferInfo.bufferHandle == 0 && mIndexBufferInfo.buffer != null)
+			size += mIndexBufferInfo.buffer.limit() * mIndexBufferInfo.byteSize;
+		return size;
+	}
+	
+	/**
+	 * Uploads the buffers that haven't been uploaded yet. Buffer info objects are updated in place
+	 * so geometries that share them (like vertex animation frames) see the new handles.
+	 * Must be called on the OpenGL thread.
+	 * 
+	 * @see AssetLoader
+	 */
+	public void uploadPendingBuffers() {
+		for (BufferInfo bufferInfo : mVertexBufferInfos) {
+			if (bufferInfo != null && bufferInfo.bufferHandle == 0 && bufferInfo.buffer != null)
+				createBuffer(bufferInfo);
+		}
+		if (mIndexBufferInfo != null && mIndexBufferInfo.bufferHandle == 0 && mIndexBufferInfo.buffer != null)
+			createBuffer(mIndexBufferInfo);
+	}
+	
 	/**
 	 * Specifies the expected usage pattern of the data store. The symbolic constant must be GLES20.GL_STREAM_DRAW, GLES20.GL_STREAM_READ, GLES20.GL_STREAM_COPY, GLES20.GL_STATIC_DRAW, GLES20.GL_STATIC_READ, GLES20.GL_STATIC_COPY, GLES20.GL_DYNAMIC_DRAW, GLES20.GL_DYNAMIC_READ, or GLES20.GL_DYNAMIC_COPY.
 	 * 
@@ -341,6 +391,31 @@ public abstract class AGeometry3D {
 		}
 	}
 	
+	/**
+	 * Uses an index buffer as it is, without copying it. Short buffers hold unsigned indices
+	 * and make the geometry use short indices on every device.
+	 * 
+	 * @param indices A direct ShortBuffer or IntBuffer in native byte order, or null
+	 */
+	public void setIndices(Buffer indices) {
+		if (indices == null) {
+			mNumIndices = 0;
+			return;
+		}
+		if (indices instanceof ShortBuffer) {
+			mIndicesShort = (ShortBuffer) indices;
+			mIndicesInt = null;
+			mOnlyShortBufferSupported = true;
+		} else if (indices instanceof IntBuffer) {
+			mIndicesInt = (IntBuffer) indices;
+			mIndicesShort = null;
+			mOnlyShortBufferSupported = false;
+		} else {
+			throw new IllegalArgumentException("Indices must be a ShortBuffer or an IntBuffer");
+		}
+		mNumIndices = indices.limit();
+	}
+	
 	public Buffer getIndices() {
 		if(mIndicesInt == null && mOriginalGeometry != null)
 			return mOriginalGeometry.getIndices();
@@ -376,6 +451,7 @@ public abstract class AGeometry3D {
 	}
 	
 	public void destroy() {
+		VertexArrayCache.getInstance().release(this);
 		int i = 0;
 		int[] buffers;
 	    if(mIndexBufferInfo != null) {
@@ -406,6 +482,16 @@ public abstract class AGeometry3D {
 	    if(mOriginalGeometry != null) { mOriginalGeometry.destroy(); mOriginalGeometry = null; }
 	}
 	
+	/**
+	 * Returns the matrix that turns quantized positions into model space positions. Objects
+	 * multiply it into the matrices they pass to the shaders.
+	 * 
+	 * @return A 4x4 matrix, or null when the positions aren't quantized
+	 */
+	public float[] getDequantizeMatrix() {
+		return mDequantizeMatrix;
+	}
+	
 	public boolean hasBoundingBox() {
 		return mBoundingBox != null;
 	}
@@ -4,7 +4,9 @@ import java.util.ArrayList;
 import java.util.Stack;
 
 import rajawali.bounds.BoundingBox;
+import rajawali.bounds.BoundingSphere;
 import rajawali.lights.ALight;
+import rajawali.materials.AAdvancedMaterial;
 import rajawali.materials.AMaterial;
 import rajawali.materials.ColorPickerMaterial;
 import rajawali.materials.TextureInfo;
@@ -38,9 +40,20 @@ public class BaseObject3D extends ATransformable3D implements Comparable<BaseObj
 	protected float[] mRotateMatrix = new float[16];
 	protected float[] mRotateMatrixTmp = new float[16];
 	protected float[] mTmpMatrix = new float[16];
+	/**
+	 * The matrices the shaders get for geometries with quantized positions
+	 */
+	protected float[] mDequantizeMVPMatrix;
+	protected float[] mDequantizeMMatrix;
 
 	protected AMaterial mMaterial;
 	protected Stack<ALight> mLights;
+	/**
+	 * The maximum number of lights the material gets for this object, 0 for all lights.
+	 */
+	protected int mMaxLights;
+	protected Stack<ALight> mSelectedLights;
+	private float[] mLightInfluences;
 
 	protected AGeometry3D mGeometry;
 	protected ArrayList<BaseObject3D> mChildren;
@@ -287,6 +300,7 @@ public class BaseObject3D extends ATransformable3D implements Comparable<BaseObj
 		}
 
 		if (!mIsContainerOnly && mIsInFrustum) {
+			boolean vertexArrayBound = false;
 			mProjMatrix = projMatrix;
 			if (!mDoubleSided)
 				GLES20.glEnable(GLES20.GL_CULL_FACE);
@@ -317,17 +331,26 @@ public class BaseObject3D extends ATransformable3D implements Comparable<BaseObj
 						throw new RuntimeException(
 								"This object can't renderer because there's no material attached to it.");
 					}
+					if (mMaxLights > 0)
+						selectLights();
 					mMaterial.useProgram();
 					setShaderParams(camera);
 					mMaterial.bindTextures();
 					mMaterial.setCamera(camera);
-					for (BufferInfo bufferInfo : mGeometry.getVertexBufferInfos()) {
-						if (bufferInfo != null) {
-							if (bufferInfo.attributeName == AMaterial.ATTR_COLOR) {
-//								if (mMaterial.getUseColor())
-									mMaterial.setBuffer(bufferInfo);
-							} else {
-								mMaterial.setBuffer(bufferInfo);
+					// -- batches share the attributes of their parent and vertex animation sets its own
+					if (!mRenderChildrenAsBatch && !mMaterial.isVertexAnimationEnabled())
+						vertexArrayBound = VertexArrayCache.getInstance().bind(mGeometry, mMaterial);
+					if (!vertexArrayBound) {
+						// -- interleaved attributes share a buffer, it's only bound once
+						int boundBufferHandle = -1;
+						for (BufferInfo bufferInfo : mGeometry.getVertexBufferInfos()) {
+							if (bufferInfo != null) {
+								if (bufferInfo.attributeName == AMaterial.ATTR_COLOR) {
+//									if (mMaterial.getUseColor())
+										boundBufferHandle = mMaterial.setBuffer(bufferInfo, boundBufferHandle);
+								} else {
+									boundBufferHandle = mMaterial.setBuffer(bufferInfo, boundBufferHandle);
+								}
 							}
 						}
 					}
@@ -343,13 +366,35 @@ public class BaseObject3D extends ATransformable3D implements Comparable<BaseObj
 
 			// if parent of a render batch, don't draw self just draw children
 			if (!mRenderChildrenAsBatch) {
+				float[] mvpMatrix = mMVPMatrix;
+				float[] modelMatrix = mMMatrix;
+				float[] dequantize = mGeometry.getDequantizeMatrix();
+				if (dequantize != null) {
+					// -- quantized positions are moved into place by the matrices the shaders get
+					if (mDequantizeMVPMatrix == null) {
+						mDequantizeMVPMatrix = new float[16];
+						mDequantizeMMatrix = new float[16];
+					}
+					Matrix.multiplyMM(mDequantizeMVPMatrix, 0, mMVPMatrix, 0, dequantize, 0);
+					Matrix.multiplyMM(mDequantizeMMatrix, 0, mMMatrix, 0, dequantize, 0);
+					mvpMatrix = mDequantizeMVPMatrix;
+					modelMatrix = mDequantizeMMatrix;
+				}
 				if (pickerInfo == null) {
 	
-					mMaterial.setMVPMatrix(mMVPMatrix);
-					mMaterial.setModelMatrix(mMMatrix);
+					mMaterial.setMVPMatrix(mvpMatrix);
+					mMaterial.setModelMatrix(modelMatrix);
 					mMaterial.setViewMatrix(vMatrix);
 	
-					if (mGeometry.getNumIndices() > 0 && mGeometry.getIndexBufferInfo() != null) {
+					if (vertexArrayBound) {
+						// -- the index buffer is bound by the vertex array
+						if (mGeometry.getNumIndices() > 0 && mGeometry.getIndexBufferInfo() != null)
+							fix.android.opengl.GLES20.glDrawElements(mDrawingMode, mGeometry.getNumIndices(), mElementsBufferType,
+									0);
+						else
+							GLES20.glDrawArrays(mDrawingMode, 0, mGeometry.getNumVertices());
+						VertexArrayCache.getInstance().unbind();
+					} else if (mGeometry.getNumIndices() > 0 && mGeometry.getIndexBufferInfo() != null) {
 						GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mGeometry.getIndexBufferInfo().bufferHandle);
 						fix.android.opengl.GLES20.glDrawElements(mDrawingMode, mGeometry.getNumIndices(), mElementsBufferType,
 								0);
@@ -362,8 +407,8 @@ public class BaseObject3D extends ATransformable3D implements Comparable<BaseObj
 					}
 				} else if (pickerInfo != null && mIsPickingEnabled) {
 					ColorPickerMaterial pickerMat = pickerInfo.getPicker().getMaterial();
-					pickerMat.setMVPMatrix(mMVPMatrix);
-					pickerMat.setModelMatrix(mMMatrix);
+					pickerMat.setMVPMatrix(mvpMatrix);
+					pickerMat.setModelMatrix(modelMatrix);
 					pickerMat.setViewMatrix(vMatrix);
 					
 					if (mGeometry.getNumIndices() > 0 && mGeometry.getIndexBufferInfo() != null) {
@@ -560,6 +605,78 @@ public class BaseObject3D extends ATransformable3D implements Comparable<BaseObj
 			mMaterial.setLights(mLights);
 	}
 
+	/**
+	 * Limits the number of lights the material gets for this object. The lights are scored by
+	 * their influence on the object's bounding sphere every frame and only the most important
+	 * ones are passed on. Lights that don't reach the object are left out, but at least one
+	 * light is kept. Advanced materials compile a program for every light setup up front, so
+	 * selecting different lights never compiles while rendering.
+	 * 
+	 * @param maxLights
+	 *            The maximum number of lights per object, 0 passes on all lights
+	 * @see ALight#getInfluence(float, float, float, float)
+	 */
+	public void setMaxLights(int maxLights) {
+		mMaxLights = maxLights;
+		for (int i = 0; i < mChildren.size(); ++i)
+			mChildren.get(i).setMaxLights(maxLights);
+		if (maxLights == 0 && mMaterial != null)
+			mMaterial.setLights(mLights);
+	}
+
+	public int getMaxLights() {
+		return mMaxLights;
+	}
+
+	protected void selectLights() {
+		int numLights = mLights.size();
+		if (numLights == 0)
+			return;
+		if (mSelectedLights == null)
+			mSelectedLights = new Stack<ALight>();
+		if (mLightInfluences == null || mLightInfluences.length < numLights)
+			mLightInfluences = new float[numLights];
+
+		float x = mMMatrix[12], y = mMMatrix[13], z = mMMatrix[14], radius = 0;
+		BufferInfo positions = mGeometry.getBuffer(AMaterial.ATTR_POSITION);
+		if (positions != null && (mGeometry.hasBoundingSphere() || positions.buffer != null)) {
+			BoundingSphere sphere = mGeometry.getBoundingSphere();
+			sphere.transform(mMMatrix);
+			radius = sphere.getRadius() * sphere.getScale();
+		}
+		for (int i = 0; i < numLights; ++i)
+			mLightInfluences[i] = mLights.get(i).getInfluence(x, y, z, radius);
+
+		// -- pick the strongest lights, there are only a few so a partial selection is enough
+		mSelectedLights.clear();
+		int numSelected = Math.min(mMaxLights, numLights);
+		for (int n = 0; n < numSelected; ++n) {
+			int best = -1;
+			for (int i = 0; i < numLights; ++i) {
+				if (mLightInfluences[i] != Float.NEGATIVE_INFINITY && (best == -1 || mLightInfluences[i] > mLightInfluences[best]))
+					best = i;
+			}
+			if (mLightInfluences[best] <= 0 && n > 0)
+				break;
+			mSelectedLights.add(mLights.get(best));
+			mLightInfluences[best] = Float.NEGATIVE_INFINITY;
+		}
+
+		// -- directional lights first, the order the material's programs were compiled for
+		int numDirectional = 0;
+		for (int i = 0; i < mSelectedLights.size(); ++i) {
+			ALight light = mSelectedLights.get(i);
+			if (light.getLightType() == ALight.DIRECTIONAL_LIGHT) {
+				mSelectedLights.remove(i);
+				mSelectedLights.add(numDirectional++, light);
+			}
+		}
+
+		if (mMaterial instanceof AAdvancedMaterial)
+			((AAdvancedMaterial) mMaterial).precompileLightVariants(mMaxLights);
+		mMaterial.setLights(mSelectedLights);
+	}
+
 	/**
 	 * Adds a light to this object.
 	 * 
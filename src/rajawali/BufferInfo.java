@@ -7,6 +7,11 @@ import android.opengl.GLES20;
 import rajawali.AGeometry3D.BufferType;
 
 public class BufferInfo {
+	/**
+	 * The component type of half float attributes, from the OES_vertex_half_float extension
+	 */
+	public static final int GL_HALF_FLOAT_OES = 0x8D61;
+
 	public String attributeName;
 	public int bufferHandle = -1;
 	public BufferType bufferType;
@@ -18,6 +23,15 @@ public class BufferInfo {
 	public int attributeOffset;
 	public int vertexSize;
 	public boolean packed = false;
+	/**
+	 * The type of the components in the buffer. Quantized attributes are stored as
+	 * bytes, shorts or half floats.
+	 */
+	public int dataType = GLES20.GL_FLOAT;
+	/**
+	 * Whether integer components are mapped to [0, 1], or [-1, 1] when they are signed
+	 */
+	public boolean normalized = false;
 	
 	public BufferInfo() {
 		this.usage = GLES20.GL_STATIC_DRAW;
@@ -59,6 +73,7 @@ public class BufferInfo {
 			.append(" usage: ").append(usage)
 			.append(" attributeSize: ").append(attributeSize)
 			.append(" attributeOffset: ").append(attributeOffset)
+			.append(" dataType: ").append(dataType)
 			.append(" vertexSize: ").append(vertexSize);
 		return sb.toString();
 	}
@@ -0,0 +1,34 @@
+package rajawali;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+/**
+ * Calls the core OpenGL ES 3 vertex array functions through the GLES30 bindings. The bindings
+ * only exist from API level 18 on, so this class must only be loaded on these devices. The core
+ * entry points are only there on OpenGL ES 3 drivers, drivers that only advertise
+ * OES_vertex_array_object can't be reached without native code.
+ */
+public class GLES30VertexArrayAccess implements IVertexArrayAccess {
+	private final int[] mHandles = new int[1];
+
+	public boolean isSupported() {
+		String version = GLES20.glGetString(GLES20.GL_VERSION);
+		return version != null && version.startsWith("OpenGL ES 3");
+	}
+
+	public int genVertexArray() {
+		mHandles[0] = 0;
+		GLES30.glGenVertexArrays(1, mHandles, 0);
+		return mHandles[0];
+	}
+
+	public void bindVertexArray(int handle) {
+		GLES30.glBindVertexArray(handle);
+	}
+
+	public void deleteVertexArray(int handle) {
+		mHandles[0] = handle;
+		GLES30.glDeleteVertexArrays(1, mHandles, 0);
+	}
+}
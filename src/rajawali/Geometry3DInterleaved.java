@@ -1,10 +1,13 @@
 package rajawali;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
 import rajawali.animation.mesh.VertexAnimationObject3D;
+import rajawali.bounds.BoundingBox;
+import rajawali.bounds.BoundingSphere;
 import rajawali.materials.AMaterial;
 import rajawali.renderer.RajawaliRenderer;
 import rajawali.util.BufferUtil;
@@ -82,6 +85,12 @@ public class Geometry3DInterleaved extends AGeometry3D {
 		this.mVertexBufferInfos = g.getVertexBufferInfos();
 		this.mIndexBufferInfo = g.getIndexBufferInfo();
 		this.mOriginalGeometry = g;
+		// -- quantized positions can't be read back, the bounds come from the original
+		this.mDequantizeMatrix = g.getDequantizeMatrix();
+		if(mDequantizeMatrix != null) {
+			this.mBoundingBox = new BoundingBox(g.getBoundingBox());
+			this.mBoundingSphere = new BoundingSphere(g.getBoundingSphere());
+		}
 	}
 	
 	/**
@@ -177,6 +186,31 @@ public class Geometry3DInterleaved extends AGeometry3D {
 		createBuffers();
 	}
 
+	/**
+	 * Sets the data from a buffer that is used as it is, without copying it. This lets parsers
+	 * hand over interleaved vertex data straight from a memory mapped file. The buffer must be
+	 * direct and in native byte order.
+	 * <p>
+	 * The attribute offsets of the buffer info objects are used as they are, in bytes. Buffer
+	 * info objects that bring a tightly packed buffer of their own, like a color for every
+	 * vertex, are uploaded separately.
+	 *
+	 * @param vertices
+	 * @param vertexSize Size of each vertex in bytes
+	 * @param indices A ShortBuffer, an IntBuffer or null
+	 * @param bufferInfos
+	 * @see AGeometry3D#setIndices(Buffer)
+	 */
+	public void setData(FloatBuffer vertices, int vertexSize, Buffer indices, BufferInfo... bufferInfos) {
+		for (int i = 0; i < bufferInfos.length; i++)
+			registerBuffer(bufferInfos[i]);
+		mVertexSize = vertexSize;
+		mVertices = vertices;
+		mNumVertices = (vertices.limit() * FLOAT_SIZE_BYTES + vertexSize - 1) / vertexSize;
+		setIndices(indices);
+		createBuffers();
+	}
+
 	/**
 	 * Replace vertex data. Object must already be setup and vertex array must be the same size.
 	 * If intending to replace vertex data, BufferInfo.usage should have been defined as DYNAMIC.
@@ -186,7 +220,7 @@ public class Geometry3DInterleaved extends AGeometry3D {
 	 */
 	public void replaceData( float[] vertices ) {
 		setVertices(vertices);
-		mVertices.compact().position(0);
+		mVertices.clear();
 
 		// all buffers share the same handle and data store, so grab the first buffer and upload data to GPU
 		BufferInfo bufferInfo = mVertexBufferInfos.iterator().next();
@@ -205,12 +239,17 @@ public class Geometry3DInterleaved extends AGeometry3D {
 		if(mVertices != null) {
 
 			// create a base buffer info object to upload data to GPU
-			mVertices.compact().position(0);
+			mVertices.clear();
 			BufferInfo baseBufferInfo = new BufferInfo();
 			createBuffer(baseBufferInfo, BufferType.FLOAT_BUFFER, mVertices, GLES20.GL_ARRAY_BUFFER, 0);
 
 			// populate attribute BufferInfo objects with base BufferInfo object data
 			for (BufferInfo bufferInfo : mVertexBufferInfos) {
+				if (bufferInfo.buffer != null && bufferInfo.vertexSize == 0) {
+					// -- a tightly packed buffer of its own
+					createBuffer(bufferInfo);
+					continue;
+				}
 				bufferInfo.buffer = baseBufferInfo.buffer;
 				bufferInfo.bufferHandle = baseBufferInfo.bufferHandle;
 				bufferInfo.byteSize = baseBufferInfo.byteSize;
@@ -240,7 +279,7 @@ public class Geometry3DInterleaved extends AGeometry3D {
 	@Override
 	public void createVertexAndNormalBuffersOnly() {
 
-		mVertices.compact().position(0);
+		mVertices.clear();
 
 		BufferInfo bufferInfo = new BufferInfo();
 		createBuffer(bufferInfo, BufferType.FLOAT_BUFFER, mVertices, GLES20.GL_ARRAY_BUFFER, 3);
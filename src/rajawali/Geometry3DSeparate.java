@@ -1,5 +1,6 @@
 package rajawali;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -7,12 +8,16 @@ import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
 
 import rajawali.animation.mesh.VertexAnimationObject3D;
+import rajawali.bounds.BoundingBox;
+import rajawali.bounds.BoundingSphere;
 import rajawali.materials.AMaterial;
+import rajawali.math.Number3D;
 import rajawali.renderer.RajawaliRenderer;
 import rajawali.util.BufferUtil;
 import rajawali.util.RajLog;
 import android.graphics.Color;
 import android.opengl.GLES20;
+import android.opengl.Matrix;
 
 /**
  * This is where the vertex, normal, texture coordinate, color and index data is stored.
@@ -43,6 +48,18 @@ import android.opengl.GLES20;
  *
  */
 public class Geometry3DSeparate extends AGeometry3D {
+	/**
+	 * Quantization flags for {@link #interleave(int, String...)}
+	 */
+	public static final int QUANTIZE_NORMALS = 1;
+	public static final int QUANTIZE_TEXTURE_COORDS = 2;
+	public static final int QUANTIZE_COLORS = 4;
+	public static final int QUANTIZE_POSITIONS = 8;
+	/**
+	 * Everything but the positions, which needs no help from the objects or the shaders
+	 */
+	public static final int QUANTIZE_ATTRIBUTES = QUANTIZE_NORMALS | QUANTIZE_TEXTURE_COORDS | QUANTIZE_COLORS;
+
 	/**
 	 * FloatBuffer containing vertex data (x, y, z)
 	 */
@@ -209,7 +226,43 @@ public class Geometry3DSeparate extends AGeometry3D {
 	}
 
 	/**
-	 * Creates the actual Buffer objects. 
+	 * Sets the data from buffers that are used as they are, without copying them. This lets
+	 * parsers hand over views into a memory mapped file. The buffers must be direct and in
+	 * native byte order.
+	 *
+	 * @param vertices
+	 * @param normals
+	 * @param textureCoords Texture coordinates or null
+	 * @param sizeTexCoords
+	 * @param colors Colors (r, g, b, a) or null for a random color
+	 * @param indices A ShortBuffer, an IntBuffer or null
+	 * @see AGeometry3D#setIndices(Buffer)
+	 */
+	public void setData(FloatBuffer vertices, FloatBuffer normals, FloatBuffer textureCoords, int sizeTexCoords,
+			FloatBuffer colors, Buffer indices) {
+		mVertices = vertices;
+		mNormals = normals;
+		mNumVertices = vertices.limit() / 3;
+		mSizeTextureCoords = sizeTexCoords;
+		mTextureCoords = textureCoords;
+		if(mTextureCoords == null)
+			mTextureCoords = ByteBuffer.allocateDirect(mNumVertices * sizeTexCoords * FLOAT_SIZE_BYTES)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		mColors = colors;
+		if(mColors == null)
+			setColors(0xff000000 + (int)(Math.random() * 0xffffff));
+		setIndices(indices);
+
+		registerBuffer(new BufferInfo(AMaterial.ATTR_POSITION, 0, GLES20.GL_STATIC_DRAW));
+		registerBuffer(new BufferInfo(AMaterial.ATTR_NORMAL, 0, GLES20.GL_STATIC_DRAW));
+		registerBuffer(new BufferInfo(AMaterial.ATTR_TEXTURECOORD, 0, GLES20.GL_STATIC_DRAW));
+		registerBuffer(new BufferInfo(AMaterial.ATTR_COLOR, 0, GLES20.GL_STATIC_DRAW));
+
+		createBuffers();
+	}
+
+	/**
+	 * Creates the actual Buffer objects.
 	 */
 	@Override
 	public void createBuffers() {
@@ -219,7 +272,7 @@ public class Geometry3DSeparate extends AGeometry3D {
 
 		BufferInfo bufferInfo;
 		if(mVertices != null) {
-			mVertices.compact().position(0);
+			mVertices.clear();
 			bufferInfo = getBuffer(AMaterial.ATTR_POSITION);
 			if ( bufferInfo == null ) {
 				bufferInfo = new BufferInfo(AMaterial.ATTR_POSITION, 0, GLES20.GL_STATIC_DRAW);
@@ -228,7 +281,7 @@ public class Geometry3DSeparate extends AGeometry3D {
 			createBuffer(bufferInfo, BufferType.FLOAT_BUFFER, mVertices, GLES20.GL_ARRAY_BUFFER, 3);
 		}
 		if(mNormals != null) {
-			mNormals.compact().position(0);
+			mNormals.clear();
 			bufferInfo = getBuffer(AMaterial.ATTR_NORMAL);
 			if ( bufferInfo == null ) {
 				bufferInfo = new BufferInfo(AMaterial.ATTR_NORMAL, 0, GLES20.GL_STATIC_DRAW);
@@ -237,7 +290,7 @@ public class Geometry3DSeparate extends AGeometry3D {
 			createBuffer(bufferInfo, BufferType.FLOAT_BUFFER, mNormals, GLES20.GL_ARRAY_BUFFER, 3);
 		}
 		if(mTextureCoords != null) {
-			mTextureCoords.compact().position(0);
+			mTextureCoords.clear();
 			bufferInfo = getBuffer(AMaterial.ATTR_TEXTURECOORD);
 			if ( bufferInfo == null ) {
 				bufferInfo = new BufferInfo(AMaterial.ATTR_TEXTURECOORD, 0, GLES20.GL_STATIC_DRAW);
@@ -246,7 +299,7 @@ public class Geometry3DSeparate extends AGeometry3D {
 			createBuffer(bufferInfo, BufferType.FLOAT_BUFFER, mTextureCoords, GLES20.GL_ARRAY_BUFFER, mSizeTextureCoords);
 		}
 		if(mColors != null) {
-			mColors.compact().position(0);
+			mColors.clear();
 			bufferInfo = getBuffer(AMaterial.ATTR_COLOR);
 			if ( bufferInfo == null ) {
 				bufferInfo = new BufferInfo(AMaterial.ATTR_COLOR, 0, GLES20.GL_STATIC_DRAW);
@@ -254,6 +307,18 @@ public class Geometry3DSeparate extends AGeometry3D {
 			}
 			createBuffer(bufferInfo, BufferType.FLOAT_BUFFER, mColors, GLES20.GL_ARRAY_BUFFER, 4);
 		}
+
+		// -- buffers that were added with addBuffer(), like skinning weights. Clones use the
+		//    original's buffers.
+		if (mOriginalGeometry != null)
+			return;
+		for (BufferInfo extraBufferInfo : mVertexBufferInfos) {
+			String name = extraBufferInfo.attributeName;
+			if (extraBufferInfo.buffer == null || AMaterial.ATTR_POSITION.equals(name) || AMaterial.ATTR_NORMAL.equals(name)
+					|| AMaterial.ATTR_TEXTURECOORD.equals(name) || AMaterial.ATTR_COLOR.equals(name))
+				continue;
+			createBuffer(extraBufferInfo);
+		}
 	}
 	
 	/**
@@ -276,8 +341,8 @@ public class Geometry3DSeparate extends AGeometry3D {
 	@Override
 	public void createVertexAndNormalBuffersOnly() {
 
-		mVertices.compact().position(0);
-		mNormals.compact().position(0);
+		mVertices.clear();
+		mNormals.clear();
 
 		BufferInfo bufferInfo = new BufferInfo();
 		createBuffer(bufferInfo, BufferType.FLOAT_BUFFER, mVertices, GLES20.GL_ARRAY_BUFFER, 3);
@@ -433,7 +498,7 @@ public class Geometry3DSeparate extends AGeometry3D {
 			createBuffer(bufferInfo, BufferType.FLOAT_BUFFER, mColors, GLES20.GL_ARRAY_BUFFER, 4);
 			bufferInfo.attributeName = AMaterial.ATTR_COLOR;
 			registerBuffer(bufferInfo);
-		} else {
+		} else if(bufferInfo.bufferHandle != 0) {
 			GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferInfo.bufferHandle);
 			GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mColors.limit() * FLOAT_SIZE_BYTES, mColors, GLES20.GL_STATIC_DRAW);
 		}
@@ -465,6 +530,209 @@ public class Geometry3DSeparate extends AGeometry3D {
 	    mColors=null;
 	}
 
+	/**
+	 * Copies attributes into a single interleaved vertex buffer, in the given order. Attributes
+	 * this geometry doesn't have are left out. The new geometry uses the same index buffer.
+	 * <p>
+	 * Only static float attributes with an element for every vertex can be interleaved.
+	 * Clones share the buffers of their original and aren't interleaved either.
+	 *
+	 * @param attributeNames
+	 * @return The interleaved geometry, or null when this geometry can't be interleaved
+	 */
+	public Geometry3DInterleaved interleave(String... attributeNames) {
+		return interleave(0, attributeNames);
+	}
+
+	/**
+	 * Copies attributes into a single interleaved vertex buffer and stores them in fewer bits.
+	 * Every attribute starts at a multiple of four bytes.
+	 * <p>
+	 * <ul>
+	 * <li>{@link #QUANTIZE_NORMALS} stores normals as normalized bytes.</li>
+	 * <li>{@link #QUANTIZE_TEXTURE_COORDS} stores texture coordinates as normalized unsigned
+	 * shorts when they are all between 0 and 1, else as half floats when the device supports
+	 * them.</li>
+	 * <li>{@link #QUANTIZE_COLORS} stores colors as normalized unsigned bytes.</li>
+	 * <li>{@link #QUANTIZE_POSITIONS} stores positions as normalized shorts relative to the
+	 * bounding box. The same scale is used for every axis, so the matrix that moves them back into
+	 * place doesn't change the direction of the normals. The shaders can't tell the difference,
+	 * except when they change the position in model space, like skinning does.</li>
+	 * </ul>
+	 *
+	 * @param quantization
+	 *            The attributes to quantize, a combination of the QUANTIZE_* flags
+	 * @param attributeNames
+	 * @return The interleaved geometry, or null when this geometry can't be interleaved
+	 * @see AGeometry3D#getDequantizeMatrix()
+	 */
+	public Geometry3DInterleaved interleave(int quantization, String... attributeNames) {
+		if(mOriginalGeometry != null || mNumVertices == 0)
+			return null;
+
+		BufferInfo[] sources = new BufferInfo[attributeNames.length];
+		BufferInfo[] bufferInfos = new BufferInfo[attributeNames.length];
+		int numAttributes = 0;
+		int vertexSize = 0;
+		for (String name : attributeNames) {
+			BufferInfo source = getBuffer(name);
+			if(source == null || source.buffer == null)
+				continue;
+			if(source.bufferType != BufferType.FLOAT_BUFFER || source.packed || source.attributeSize < 1
+					|| source.usage == GLES20.GL_DYNAMIC_DRAW || source.usage == GLES20.GL_STREAM_DRAW
+					|| source.buffer.limit() < mNumVertices * source.attributeSize)
+				return null;
+			BufferInfo bufferInfo = new BufferInfo(name, source.attributeSize);
+			setEncoding(bufferInfo, (FloatBuffer) source.buffer, quantization);
+			bufferInfo.attributeOffset = vertexSize;
+			// -- padded to four bytes
+			vertexSize += (getComponentSize(bufferInfo.dataType) * source.attributeSize + 3) & ~3;
+			sources[numAttributes] = source;
+			bufferInfos[numAttributes++] = bufferInfo;
+		}
+		if(numAttributes == 0)
+			return null;
+
+		float[] dequantize = null;
+		BufferInfo positions = getBuffer(AMaterial.ATTR_POSITION);
+		if(positions != null && positions.buffer != null && (quantization & QUANTIZE_POSITIONS) != 0)
+			dequantize = createDequantizeMatrix(getBoundingBox());
+
+		ByteBuffer vertices = ByteBuffer.allocateDirect(mNumVertices * vertexSize).order(ByteOrder.nativeOrder());
+		for (int a = 0; a < numAttributes; ++a) {
+			BufferInfo bufferInfo = bufferInfos[a];
+			FloatBuffer source = (FloatBuffer) sources[a].buffer;
+			int size = bufferInfo.attributeSize;
+			boolean isPosition = dequantize != null && AMaterial.ATTR_POSITION.equals(bufferInfo.attributeName);
+			// -- attribute by attribute, so every source is read front to back
+			for (int i = 0, s = 0, d = bufferInfo.attributeOffset; i < mNumVertices; ++i, d += vertexSize) {
+				for (int c = 0; c < size; ++c) {
+					float value = source.get(s++);
+					if(isPosition)
+						value = (value - dequantize[12 + c]) / dequantize[0];
+					putComponent(vertices, d, c, bufferInfo.dataType, value);
+				}
+			}
+		}
+
+		BufferInfo[] interleaved = new BufferInfo[numAttributes];
+		System.arraycopy(bufferInfos, 0, interleaved, 0, numAttributes);
+		Geometry3DInterleaved geometry = new Geometry3DInterleaved();
+		if(dequantize != null) {
+			// -- the positions can't be read back, so the bounds are taken along
+			geometry.mDequantizeMatrix = dequantize;
+			geometry.mBoundingBox = new BoundingBox(getBoundingBox());
+			geometry.mBoundingSphere = new BoundingSphere(getBoundingSphere());
+		}
+		geometry.setData(vertices.asFloatBuffer(), vertexSize, getIndices(), interleaved);
+		return geometry;
+	}
+
+	/**
+	 * Picks the component type of an attribute.
+	 */
+	private static void setEncoding(BufferInfo bufferInfo, FloatBuffer data, int quantization) {
+		String name = bufferInfo.attributeName;
+		if(AMaterial.ATTR_POSITION.equals(name) && (quantization & QUANTIZE_POSITIONS) != 0) {
+			// -- relative to the bounding box
+			bufferInfo.dataType = GLES20.GL_SHORT;
+			bufferInfo.normalized = true;
+		} else if(AMaterial.ATTR_NORMAL.equals(name) && (quantization & QUANTIZE_NORMALS) != 0) {
+			bufferInfo.dataType = GLES20.GL_BYTE;
+			bufferInfo.normalized = true;
+		} else if(AMaterial.ATTR_COLOR.equals(name) && (quantization & QUANTIZE_COLORS) != 0) {
+			bufferInfo.dataType = GLES20.GL_UNSIGNED_BYTE;
+			bufferInfo.normalized = true;
+		} else if(AMaterial.ATTR_TEXTURECOORD.equals(name) && (quantization & QUANTIZE_TEXTURE_COORDS) != 0) {
+			boolean isNormalized = true;
+			for (int i = 0, n = data.limit(); i < n && isNormalized; ++i)
+				isNormalized = data.get(i) >= 0 && data.get(i) <= 1;
+			if(isNormalized) {
+				bufferInfo.dataType = GLES20.GL_UNSIGNED_SHORT;
+				bufferInfo.normalized = true;
+			} else if(RajawaliRenderer.supportsHalfFloatVertices) {
+				bufferInfo.dataType = BufferInfo.GL_HALF_FLOAT_OES;
+			}
+		}
+	}
+
+	private static int getComponentSize(int dataType) {
+		switch (dataType) {
+		case GLES20.GL_BYTE:
+		case GLES20.GL_UNSIGNED_BYTE:
+			return 1;
+		case GLES20.GL_SHORT:
+		case GLES20.GL_UNSIGNED_SHORT:
+		case BufferInfo.GL_HALF_FLOAT_OES:
+			return SHORT_SIZE_BYTES;
+		default:
+			return FLOAT_SIZE_BYTES;
+		}
+	}
+
+	private static void putComponent(ByteBuffer vertices, int vertexOffset, int component, int dataType, float value) {
+		switch (dataType) {
+		case GLES20.GL_BYTE:
+			vertices.put(vertexOffset + component, (byte) Math.round(Math.max(-1, Math.min(1, value)) * 127));
+			break;
+		case GLES20.GL_UNSIGNED_BYTE:
+			vertices.put(vertexOffset + component, (byte) Math.round(Math.max(0, Math.min(1, value)) * 255));
+			break;
+		case GLES20.GL_SHORT:
+			vertices.putShort(vertexOffset + component * SHORT_SIZE_BYTES,
+					(short) Math.round(Math.max(-1, Math.min(1, value)) * 32767));
+			break;
+		case GLES20.GL_UNSIGNED_SHORT:
+			vertices.putShort(vertexOffset + component * SHORT_SIZE_BYTES,
+					(short) Math.round(Math.max(0, Math.min(1, value)) * 65535));
+			break;
+		case BufferInfo.GL_HALF_FLOAT_OES:
+			vertices.putShort(vertexOffset + component * SHORT_SIZE_BYTES, toHalfFloat(value));
+			break;
+		default:
+			vertices.putFloat(vertexOffset + component * FLOAT_SIZE_BYTES, value);
+		}
+	}
+
+	/**
+	 * Rounds a float to the nearest half float. Values that are too large become infinite.
+	 */
+	private static short toHalfFloat(float value) {
+		int bits = Float.floatToIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+		int mantissa = bits & 0x7fffff;
+		if(exponent >= 31)
+			return (short) (sign | 0x7c00);
+		if(exponent <= 0) {
+			// -- denormalized, or zero when even that is too small
+			if(exponent < -10)
+				return (short) sign;
+			mantissa |= 0x800000;
+			return (short) (sign | ((mantissa >> (14 - exponent)) + ((mantissa >> (13 - exponent)) & 1)));
+		}
+		// -- a carry out of the mantissa correctly rounds up to the next exponent
+		return (short) (sign | ((exponent << 10 | mantissa >> 13) + ((mantissa >> 12) & 1)));
+	}
+
+	/**
+	 * Maps [-1, 1] onto the bounding box, with the scale of its largest side on every axis.
+	 */
+	private static float[] createDequantizeMatrix(BoundingBox boundingBox) {
+		Number3D min = boundingBox.getMin();
+		Number3D max = boundingBox.getMax();
+		float scale = 0.5f * Math.max(max.x - min.x, Math.max(max.y - min.y, max.z - min.z));
+		if(scale <= 0)
+			scale = 1;
+		float[] matrix = new float[16];
+		Matrix.setIdentityM(matrix, 0);
+		matrix[0] = matrix[5] = matrix[10] = scale;
+		matrix[12] = 0.5f * (min.x + max.x);
+		matrix[13] = 0.5f * (min.y + max.y);
+		matrix[14] = 0.5f * (min.z + max.z);
+		return matrix;
+	}
+
 	@Override
 	public int getNumTriangles() {
 		return mVertices != null ? mVertices.limit() / 9 : 0;
@@ -0,0 +1,25 @@
+package rajawali;
+
+/**
+ * Creates, binds and deletes vertex array objects. The vertex array cache only uses vertex
+ * arrays through this interface, so a stand-in that doesn't need a GL context can be plugged in.
+ *
+ * @see VertexArrayCache#setVertexArrayAccess(IVertexArrayAccess)
+ */
+public interface IVertexArrayAccess {
+	/**
+	 * Called on the GL thread once for every new context.
+	 *
+	 * @return true when the current context supports vertex arrays
+	 */
+	public boolean isSupported();
+
+	/**
+	 * @return The handle of a new vertex array or 0 when it couldn't be created
+	 */
+	public int genVertexArray();
+
+	public void bindVertexArray(int handle);
+
+	public void deleteVertexArray(int handle);
+}
@@ -0,0 +1,302 @@
+package rajawali;
+
+import rajawali.materials.AMaterial;
+import rajawali.materials.ShaderProgramCache.ShaderProgram;
+import android.opengl.GLES20;
+import android.os.Build;
+
+/**
+ * Records the attribute bindings of a geometry and program pair in a vertex array object, so
+ * they can be restored with a single glBindVertexArray() call instead of a glBindBuffer(),
+ * glEnableVertexAttribArray() and glVertexAttribPointer() call for every attribute.
+ * <p>
+ * The Java bindings for vertex array objects only exist from API level 18 on and call the core
+ * OpenGL ES 3 entry points, so vertex arrays are only used on OpenGL ES 3 drivers of these
+ * devices, see {@link GLES30VertexArrayAccess}. Everywhere else
+ * {@link #bind(AGeometry3D, AMaterial)} returns false and the attributes are set the usual way.
+ * <p>
+ * A vertex array is recorded again when one of the geometry's buffers got a new handle, and
+ * all vertex arrays are forgotten when the OpenGL context is recreated.
+ * <p>
+ * Vertex array names belong to one OpenGL context, so every renderer has its own cache. The
+ * renderer makes its cache current on its GL thread, {@link #getInstance()} returns the cache
+ * of the renderer that draws on the calling thread.
+ *
+ * @see rajawali.renderer.RajawaliRenderer#getVertexArrayCache()
+ */
+public class VertexArrayCache {
+	private static final ThreadLocal<VertexArrayCache> sCurrent = new ThreadLocal<VertexArrayCache>();
+
+	/**
+	 * A recorded vertex array. Geometries keep a list of these, one for every program they're
+	 * rendered with.
+	 */
+	static class VertexArray {
+		ShaderProgram mProgram;
+		int mHandle;
+		int mGeneration;
+		int[] mBufferHandles;
+		int mIndexBufferHandle;
+		/**
+		 * The number of calls it takes to set the attributes without the vertex array
+		 */
+		int mNumCalls;
+		VertexArray mNext;
+	}
+
+	private IVertexArrayAccess mAccess;
+	private boolean mEnabled = true;
+	private boolean mSupportChecked;
+	private boolean mSupported;
+	private int mGeneration;
+	private int mCurrentVertexArray;
+	private int mNumBinds;
+	private int mNumRecords;
+	private int mNumCallsSaved;
+	private int mLastFrameBinds;
+	private int mLastFrameRecords;
+	private int mLastFrameCallsSaved;
+
+	/**
+	 * Returns the cache of the renderer that draws on the calling thread. A thread that doesn't
+	 * belong to a renderer gets a cache of its own.
+	 *
+	 * @return
+	 */
+	public static VertexArrayCache getInstance() {
+		VertexArrayCache cache = sCurrent.get();
+		if (cache == null) {
+			cache = new VertexArrayCache();
+			sCurrent.set(cache);
+		}
+		return cache;
+	}
+
+	public VertexArrayCache() {
+		// -- the GLES30 class can't be loaded before API level 18
+		if (Build.VERSION.SDK_INT >= 18)
+			mAccess = new GLES30VertexArrayAccess();
+	}
+
+	/**
+	 * Makes this the cache that {@link #getInstance()} returns on the calling thread. Called by
+	 * the renderer on its GL thread.
+	 */
+	public void makeCurrent() {
+		sCurrent.set(this);
+	}
+
+	/**
+	 * Replaces the way vertex arrays are created and bound. The default uses the GLES30 bindings
+	 * where they exist.
+	 *
+	 * @param access
+	 *            The vertex array functions or null to never use vertex arrays
+	 */
+	public void setVertexArrayAccess(IVertexArrayAccess access) {
+		mAccess = access;
+		mSupportChecked = false;
+	}
+
+	/**
+	 * Binds the vertex array for a geometry and the program of a material, recording it first
+	 * when needed. Must be followed by {@link #unbind()} after drawing.
+	 *
+	 * @param geometry
+	 * @param material
+	 * @return false when vertex arrays can't be used, the attributes have to be set with
+	 *         {@link AMaterial#setBuffer(BufferInfo)}
+	 */
+	public boolean bind(AGeometry3D geometry, AMaterial material) {
+		ShaderProgram program = material.getShaderProgram();
+		if (program == null || !isSupported())
+			return false;
+
+		VertexArray vertexArray = geometry.mVertexArrays;
+		while (vertexArray != null && vertexArray.mProgram != program)
+			vertexArray = vertexArray.mNext;
+
+		if (vertexArray != null && vertexArray.mGeneration == mGeneration && matches(vertexArray, geometry)) {
+			bindVertexArray(vertexArray.mHandle);
+			mNumBinds++;
+			// -- the attributes, the index buffer bind and unbind
+			mNumCallsSaved += vertexArray.mNumCalls + (vertexArray.mIndexBufferHandle != 0 ? 2 : 0) - 2;
+			return true;
+		}
+
+		if (vertexArray == null) {
+			vertexArray = new VertexArray();
+			vertexArray.mProgram = program;
+			vertexArray.mNext = geometry.mVertexArrays;
+			geometry.mVertexArrays = vertexArray;
+		}
+		// -- a recorded vertex array keeps its attributes enabled, so a changed one starts over.
+		// -- vertex arrays from before a context loss died with the context.
+		if (vertexArray.mGeneration == mGeneration && vertexArray.mHandle != 0)
+			deleteVertexArray(vertexArray.mHandle);
+		int handle = mAccess.genVertexArray();
+		if (handle == 0) {
+			vertexArray.mHandle = 0;
+			return false;
+		}
+		vertexArray.mHandle = handle;
+		vertexArray.mGeneration = mGeneration;
+		record(vertexArray, geometry, material);
+		mNumRecords++;
+		return true;
+	}
+
+	/**
+	 * Restores the default vertex array so attributes and index buffers that are set the usual
+	 * way don't end up in a recorded vertex array.
+	 */
+	public void unbind() {
+		if (mCurrentVertexArray != 0)
+			bindVertexArray(0);
+	}
+
+	/**
+	 * Deletes the vertex arrays of a geometry.
+	 *
+	 * @param geometry
+	 */
+	public void release(AGeometry3D geometry) {
+		for (VertexArray vertexArray = geometry.mVertexArrays; vertexArray != null; vertexArray = vertexArray.mNext) {
+			if (vertexArray.mGeneration != mGeneration || vertexArray.mHandle == 0)
+				continue;
+			deleteVertexArray(vertexArray.mHandle);
+		}
+		geometry.mVertexArrays = null;
+	}
+
+	private void deleteVertexArray(int handle) {
+		if (mCurrentVertexArray == handle)
+			unbind();
+		mAccess.deleteVertexArray(handle);
+	}
+
+	/**
+	 * Forgets all vertex arrays. Must be called when a new OpenGL context is created.
+	 */
+	public void clear() {
+		mGeneration++;
+		mCurrentVertexArray = 0;
+		mSupportChecked = false;
+	}
+
+	/**
+	 * Starts counting for a new frame.
+	 */
+	public void nextFrame() {
+		mLastFrameBinds = mNumBinds;
+		mLastFrameRecords = mNumRecords;
+		mLastFrameCallsSaved = mNumCallsSaved;
+		mNumBinds = 0;
+		mNumRecords = 0;
+		mNumCallsSaved = 0;
+	}
+
+	/**
+	 * Turns the vertex array path on or off. It is on by default.
+	 *
+	 * @param enabled
+	 */
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+		mSupportChecked = false;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * Returns true when vertex arrays are used for the current context.
+	 *
+	 * @return
+	 */
+	public boolean isSupported() {
+		if (!mSupportChecked) {
+			mSupportChecked = true;
+			mSupported = mEnabled && mAccess != null && mAccess.isSupported();
+		}
+		return mSupported;
+	}
+
+	/**
+	 * Returns the number of objects that were drawn with a recorded vertex array in the last
+	 * frame.
+	 *
+	 * @return
+	 */
+	public int getNumBinds() {
+		return mLastFrameBinds;
+	}
+
+	/**
+	 * Returns the number of vertex arrays that were recorded in the last frame.
+	 *
+	 * @return
+	 */
+	public int getNumRecords() {
+		return mLastFrameRecords;
+	}
+
+	/**
+	 * Returns the number of GL calls the vertex arrays saved in the last frame.
+	 *
+	 * @return
+	 */
+	public int getNumCallsSaved() {
+		return mLastFrameCallsSaved;
+	}
+
+	private void record(VertexArray vertexArray, AGeometry3D geometry, AMaterial material) {
+		bindVertexArray(vertexArray.mHandle);
+		int numBuffers = 0;
+		for (BufferInfo bufferInfo : geometry.getVertexBufferInfos()) {
+			if (bufferInfo != null)
+				numBuffers++;
+		}
+		if (vertexArray.mBufferHandles == null || vertexArray.mBufferHandles.length != numBuffers)
+			vertexArray.mBufferHandles = new int[numBuffers];
+
+		int i = 0;
+		int boundBufferHandle = -1;
+		// -- an enable and pointer call per attribute, a bind per buffer
+		vertexArray.mNumCalls = 0;
+		for (BufferInfo bufferInfo : geometry.getVertexBufferInfos()) {
+			if (bufferInfo == null)
+				continue;
+			if (bufferInfo.bufferHandle != boundBufferHandle)
+				vertexArray.mNumCalls++;
+			boundBufferHandle = material.setBuffer(bufferInfo, boundBufferHandle);
+			vertexArray.mNumCalls += 2;
+			vertexArray.mBufferHandles[i++] = bufferInfo.bufferHandle;
+		}
+
+		// -- the index buffer binding is part of the vertex array
+		BufferInfo indexBufferInfo = geometry.getIndexBufferInfo();
+		vertexArray.mIndexBufferHandle = indexBufferInfo != null ? indexBufferInfo.bufferHandle : 0;
+		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, vertexArray.mIndexBufferHandle);
+	}
+
+	private boolean matches(VertexArray vertexArray, AGeometry3D geometry) {
+		int i = 0;
+		int[] handles = vertexArray.mBufferHandles;
+		for (BufferInfo bufferInfo : geometry.getVertexBufferInfos()) {
+			if (bufferInfo == null)
+				continue;
+			if (i == handles.length || handles[i++] != bufferInfo.bufferHandle)
+				return false;
+		}
+		BufferInfo indexBufferInfo = geometry.getIndexBufferInfo();
+		return i == handles.length
+				&& vertexArray.mIndexBufferHandle == (indexBufferInfo != null ? indexBufferInfo.bufferHandle : 0);
+	}
+
+	private void bindVertexArray(int handle) {
+		mAccess.bindVertexArray(handle);
+		mCurrentVertexArray = handle;
+	}
+}
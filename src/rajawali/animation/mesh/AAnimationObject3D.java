@@ -5,7 +5,12 @@ import java.util.Stack;
 import android.os.SystemClock;
 
 import rajawali.BaseObject3D;
+import rajawali.Camera;
 import rajawali.SerializedObject3D;
+import rajawali.bounds.BoundingBox;
+import rajawali.math.Number3D;
+import rajawali.renderer.RajawaliRenderer.RayPickInfo;
+import rajawali.util.ObjectColorPicker.ColorPickerInfo;
 import rajawali.util.RajLog;
 
 public abstract class AAnimationObject3D extends BaseObject3D {
@@ -21,6 +26,14 @@ public abstract class AAnimationObject3D extends BaseObject3D {
 	protected int mEndFrameIndex = -1;
 	protected boolean mLoop = false;
 	protected int mFps = 30;
+	/**
+	 * The projected size from which the animation updates every frame, 0 when LOD is off
+	 */
+	protected float mLODFullRateSize;
+	protected int mLODMaxInterval = 1;
+	private int mFramesSinceUpdate;
+	private int mLastDrawnFrame = -2;
+	private int mLastCulledFrame = -1;
 
 	public AAnimationObject3D() {
 		super();
@@ -32,6 +45,91 @@ public abstract class AAnimationObject3D extends BaseObject3D {
 		mFrames = new Stack<IAnimationFrame>();
 	}
 
+	public void render(Camera camera, float[] projMatrix, float[] vMatrix, final float[] parentMatrix,
+			ColorPickerInfo pickerInfo, RayPickInfo rayPickInfo) {
+		super.render(camera, projMatrix, vMatrix, parentMatrix, pickerInfo, rayPickInfo);
+		// -- hidden objects don't update, the clock catches up when they're drawn again
+		if (mIsPlaying && !mIsContainerOnly && (!mIsVisible || !mIsInFrustum)) {
+			AnimationUpdateStats stats = AnimationUpdateStats.getCurrent();
+			if (mLastCulledFrame != stats.getFrame()) {
+				mLastCulledFrame = stats.getFrame();
+				stats.mNumCulled++;
+			}
+		}
+	}
+
+	/**
+	 * Lowers the update rate of the animation when the object is small on screen. Below the
+	 * full rate size the animation updates every size / fullRateSize frames, at most every
+	 * maxInterval frames. The animation clock keeps running, so skipped updates don't slow it
+	 * down. Objects that aren't drawn don't update at all.
+	 * 
+	 * @param fullRateSize
+	 *            The projected size, as a fraction of the viewport height, from which the
+	 *            animation updates every frame. 0 turns LOD off.
+	 * @param maxInterval
+	 *            The largest number of frames between updates
+	 */
+	public void setAnimationLOD(float fullRateSize, int maxInterval) {
+		mLODFullRateSize = fullRateSize;
+		mLODMaxInterval = Math.max(1, maxInterval);
+	}
+
+	/**
+	 * Returns true when the animation should be updated in this frame. Must be called every time
+	 * the object is drawn while it is playing. Objects that are drawn in several passes, like
+	 * picking or post processing, update in the first pass only.
+	 * 
+	 * @return
+	 * @see AnimationUpdateStats
+	 */
+	protected boolean isAnimationUpdateDue() {
+		AnimationUpdateStats stats = AnimationUpdateStats.getCurrent();
+		int frame = stats.getFrame();
+		if (mLastDrawnFrame == frame)
+			return false;
+		boolean returning = mLastDrawnFrame != frame - 1;
+		mLastDrawnFrame = frame;
+		int interval = 1;
+		if (mLODFullRateSize > 0 && !returning) {
+			float size = getProjectedSize();
+			if (size < mLODFullRateSize)
+				interval = size > 0 ? Math.min(mLODMaxInterval, Math.round(mLODFullRateSize / size)) : mLODMaxInterval;
+		}
+		if (++mFramesSinceUpdate < interval) {
+			stats.mNumThrottled++;
+			return false;
+		}
+		mFramesSinceUpdate = 0;
+		stats.mNumUpdates++;
+		return true;
+	}
+
+	/**
+	 * Returns the height of the bounding box's sphere on screen as a fraction of the viewport
+	 * height, as of the last time the object was drawn.
+	 * 
+	 * @return The size or a large value when the camera is inside the sphere
+	 */
+	public float getProjectedSize() {
+		if (mProjMatrix == null)
+			return Float.MAX_VALUE;
+		BoundingBox bbox = mGeometry.getBoundingBox();
+		Number3D min = bbox.getMin(), max = bbox.getMax();
+		Number3D center = bbox.getCenter();
+		float[] m = mMVPMatrix;
+		float w = m[3] * center.x + m[7] * center.y + m[11] * center.z + m[15];
+		// -- the largest scale of the model matrix
+		float[] mm = mMMatrix;
+		float scale = Math.max(mm[0] * mm[0] + mm[1] * mm[1] + mm[2] * mm[2],
+				Math.max(mm[4] * mm[4] + mm[5] * mm[5] + mm[6] * mm[6], mm[8] * mm[8] + mm[9] * mm[9] + mm[10] * mm[10]));
+		float dx = max.x - min.x, dy = max.y - min.y, dz = max.z - min.z;
+		float radius = .5f * (float) Math.sqrt((dx * dx + dy * dy + dz * dz) * scale);
+		if (w <= radius)
+			return Float.MAX_VALUE;
+		return radius * mProjMatrix[5] / w;
+	}
+
 	public void setCurrentFrame(int frame) {
 		mCurrentFrameIndex = frame;
 	}
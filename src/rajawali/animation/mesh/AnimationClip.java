@@ -0,0 +1,393 @@
+package rajawali.animation.mesh;
+
+import rajawali.math.Number3D;
+import rajawali.math.Quaternion;
+import rajawali.util.RajLog;
+
+/**
+ * A compact skeletal animation. Every joint has a rotation and a translation track that only
+ * keeps the keyframes that can't be interpolated from their neighbours within a tolerance.
+ * <p>
+ * Rotations are stored as smallest-three quaternions: the largest component is dropped and the
+ * other three are quantized to 15 bits, with the index of the dropped one in the spare bits.
+ * Translations are quantized to 16 bits within the range of their track. Both take 6 bytes a
+ * key, all tracks share flat arrays.
+ * <p>
+ * Poses are evaluated with an {@link AnimationClipSampler}.
+ */
+public class AnimationClip {
+	/**
+	 * The default rotation tolerance in radians
+	 */
+	public static final float DEFAULT_ROTATION_TOLERANCE = .002f;
+	/**
+	 * The default translation tolerance in model units
+	 */
+	public static final float DEFAULT_TRANSLATION_TOLERANCE = .005f;
+
+	private static final float SQRT2 = (float) Math.sqrt(2);
+	private static final int MAX_QUANTIZED = 0x7fff;
+	private static final int MAX_QUANTIZED_TRANSLATION = 0xffff;
+	// -- rough object sizes on Dalvik, used to estimate the size of a BoneAnimationSequence
+	private static final int OBJECT_HEADER = 8;
+	private static final int ARRAY_HEADER = 12;
+	private static final int REFERENCE = 4;
+
+	private String mName;
+	final int mNumJoints;
+	final int mNumFrames;
+	private int mFrameRate;
+	final int[] mParentIndices;
+
+	/**
+	 * The first rotation key of every joint, the last entry is the number of keys
+	 */
+	final int[] mRotationKeyStart;
+	final char[] mRotationFrames;
+	final short[] mRotations;
+
+	/**
+	 * The first translation key of every joint, the last entry is the number of keys
+	 */
+	final int[] mTranslationKeyStart;
+	final char[] mTranslationFrames;
+	final short[] mTranslations;
+	final float[] mTranslationMin;
+	final float[] mTranslationScale;
+
+	private AnimationClip(int numJoints, int numFrames, int numRotationKeys, int numTranslationKeys) {
+		mNumJoints = numJoints;
+		mNumFrames = numFrames;
+		mParentIndices = new int[numJoints];
+		mRotationKeyStart = new int[numJoints + 1];
+		mRotationFrames = new char[numRotationKeys];
+		mRotations = new short[numRotationKeys * 3];
+		mTranslationKeyStart = new int[numJoints + 1];
+		mTranslationFrames = new char[numTranslationKeys];
+		mTranslations = new short[numTranslationKeys * 3];
+		mTranslationMin = new float[numJoints * 3];
+		mTranslationScale = new float[numJoints * 3];
+	}
+
+	/**
+	 * Compresses a sequence with the default tolerances.
+	 *
+	 * @param sequence
+	 * @return
+	 */
+	public static AnimationClip create(BoneAnimationSequence sequence) {
+		return create(sequence, DEFAULT_ROTATION_TOLERANCE, DEFAULT_TRANSLATION_TOLERANCE);
+	}
+
+	/**
+	 * Compresses a sequence. Keyframes are dropped as long as interpolating between the
+	 * remaining ones stays within the tolerances.
+	 *
+	 * @param sequence
+	 * @param rotationTolerance
+	 *            The largest rotation error in radians
+	 * @param translationTolerance
+	 *            The largest translation error in model units
+	 * @return
+	 */
+	public static AnimationClip create(BoneAnimationSequence sequence, float rotationTolerance,
+			float translationTolerance) {
+		BoneAnimationFrame[] frames = sequence.getFrames();
+		int numFrames = frames.length;
+		if (numFrames > Character.MAX_VALUE)
+			throw new IllegalArgumentException("A clip can hold at most " + (int) Character.MAX_VALUE + " frames.");
+		int numJoints = frames[0].getSkeleton().getJoints().length;
+
+		float[] rotations = new float[numFrames * 4];
+		float[] translations = new float[numFrames * 3];
+		int[][] rotationKeys = new int[numJoints][];
+		int[][] translationKeys = new int[numJoints][];
+		int[] keys = new int[numFrames];
+		int numRotationKeys = 0, numTranslationKeys = 0;
+
+		for (int j = 0; j < numJoints; ++j) {
+			readTrack(frames, j, rotations, translations);
+			int count = reduce(rotations, 4, numFrames, rotationTolerance, keys);
+			rotationKeys[j] = copyOf(keys, count);
+			numRotationKeys += count;
+			count = reduce(translations, 3, numFrames, translationTolerance, keys);
+			translationKeys[j] = copyOf(keys, count);
+			numTranslationKeys += count;
+		}
+
+		AnimationClip clip = new AnimationClip(numJoints, numFrames, numRotationKeys, numTranslationKeys);
+		clip.mName = sequence.getName();
+		clip.mFrameRate = sequence.getFrameRate();
+		int rotationKey = 0, translationKey = 0;
+
+		for (int j = 0; j < numJoints; ++j) {
+			clip.mParentIndices[j] = frames[0].getSkeleton().getJoint(j).getParentIndex();
+			readTrack(frames, j, rotations, translations);
+
+			clip.mRotationKeyStart[j] = rotationKey;
+			int[] jointKeys = rotationKeys[j];
+			for (int k = 0; k < jointKeys.length; ++k, ++rotationKey) {
+				int frame = jointKeys[k];
+				clip.mRotationFrames[rotationKey] = (char) frame;
+				encodeRotation(rotations, frame * 4, clip.mRotations, rotationKey * 3);
+			}
+
+			clip.mTranslationKeyStart[j] = translationKey;
+			jointKeys = translationKeys[j];
+			for (int c = 0; c < 3; ++c) {
+				float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+				for (int k = 0; k < jointKeys.length; ++k) {
+					float value = translations[jointKeys[k] * 3 + c];
+					min = Math.min(min, value);
+					max = Math.max(max, value);
+				}
+				clip.mTranslationMin[j * 3 + c] = min;
+				clip.mTranslationScale[j * 3 + c] = (max - min) / MAX_QUANTIZED_TRANSLATION;
+			}
+			for (int k = 0; k < jointKeys.length; ++k, ++translationKey) {
+				int frame = jointKeys[k];
+				clip.mTranslationFrames[translationKey] = (char) frame;
+				for (int c = 0; c < 3; ++c) {
+					float scale = clip.mTranslationScale[j * 3 + c];
+					float value = translations[frame * 3 + c] - clip.mTranslationMin[j * 3 + c];
+					int quantized = scale == 0 ? 0 : Math.round(value / scale);
+					clip.mTranslations[translationKey * 3 + c] = (short) Math.min(MAX_QUANTIZED_TRANSLATION,
+							Math.max(0, quantized));
+				}
+			}
+		}
+		clip.mRotationKeyStart[numJoints] = rotationKey;
+		clip.mTranslationKeyStart[numJoints] = translationKey;
+
+		RajLog.i("[" + AnimationClip.class.getName() + "] " + clip.mName + ": kept " + (numRotationKeys + numTranslationKeys)
+				+ " of " + (numJoints * numFrames * 2) + " keys, " + getSizeInBytes(sequence) + " bytes as frames, "
+				+ clip.getSizeInBytes() + " bytes compressed.");
+		return clip;
+	}
+
+	/**
+	 * Returns the approximate size of the clip in bytes.
+	 *
+	 * @return
+	 */
+	public int getSizeInBytes() {
+		// -- the clip with its name and ten arrays
+		int size = OBJECT_HEADER + 11 * REFERENCE + 3 * 4 + 10 * ARRAY_HEADER;
+		size += mParentIndices.length * 4 + (mRotationKeyStart.length + mTranslationKeyStart.length) * 4;
+		size += (mRotationFrames.length + mRotations.length + mTranslationFrames.length + mTranslations.length) * 2;
+		size += (mTranslationMin.length + mTranslationScale.length) * 4;
+		return size;
+	}
+
+	/**
+	 * Estimates the size of a sequence that keeps a {@link Skeleton} for every frame.
+	 *
+	 * @param sequence
+	 * @return
+	 */
+	public static int getSizeInBytes(BoneAnimationSequence sequence) {
+		BoneAnimationFrame[] frames = sequence.getFrames();
+		if (frames == null)
+			return 0;
+		// -- a joint with its name reference, four ints and three references, a Number3D and a Quaternion
+		int jointSize = OBJECT_HEADER + 4 * REFERENCE + 4 * 4 + (OBJECT_HEADER + 3 * 4) + (OBJECT_HEADER + 4 * 4);
+		int size = ARRAY_HEADER + frames.length * REFERENCE;
+		for (int i = 0; i < frames.length; ++i) {
+			SkeletonJoint[] joints = frames[i].getSkeleton().getJoints();
+			int numJoints = joints != null ? joints.length : 0;
+			// -- the frame, its bounding box and skeleton, and the joint array
+			size += OBJECT_HEADER + 4 * REFERENCE + OBJECT_HEADER * 2 + ARRAY_HEADER + numJoints * REFERENCE;
+			for (int j = 0; j < numJoints; ++j) {
+				size += jointSize;
+				if (joints[j].getMatrix() != null)
+					size += ARRAY_HEADER + 16 * 4;
+			}
+		}
+		return size;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	public int getNumJoints() {
+		return mNumJoints;
+	}
+
+	public int getNumFrames() {
+		return mNumFrames;
+	}
+
+	public int getFrameRate() {
+		return mFrameRate;
+	}
+
+	public int getParentIndex(int joint) {
+		return mParentIndices[joint];
+	}
+
+	/**
+	 * Returns the number of rotation and translation keys that were kept.
+	 *
+	 * @return
+	 */
+	public int getNumKeys() {
+		return mRotationFrames.length + mTranslationFrames.length;
+	}
+
+	/**
+	 * Decodes a rotation key into x, y, z and w.
+	 */
+	void getRotation(int key, float[] out, int offset) {
+		int s0 = mRotations[key * 3] & 0xffff;
+		int s1 = mRotations[key * 3 + 1] & 0xffff;
+		int s2 = mRotations[key * 3 + 2] & 0xffff;
+		int largest = (s0 >> 15) | ((s1 >> 15) << 1);
+		float a = dequantize(s0 & MAX_QUANTIZED);
+		float b = dequantize(s1 & MAX_QUANTIZED);
+		float c = dequantize(s2);
+		float d = (float) Math.sqrt(Math.max(0, 1 - a * a - b * b - c * c));
+
+		switch (largest) {
+		case 0:
+			out[offset] = d; out[offset + 1] = a; out[offset + 2] = b; out[offset + 3] = c;
+			break;
+		case 1:
+			out[offset] = a; out[offset + 1] = d; out[offset + 2] = b; out[offset + 3] = c;
+			break;
+		case 2:
+			out[offset] = a; out[offset + 1] = b; out[offset + 2] = d; out[offset + 3] = c;
+			break;
+		default:
+			out[offset] = a; out[offset + 1] = b; out[offset + 2] = c; out[offset + 3] = d;
+		}
+	}
+
+	/**
+	 * Decodes a translation key of a joint into x, y and z.
+	 */
+	void getTranslation(int joint, int key, float[] out, int offset) {
+		int o = joint * 3;
+		out[offset] = mTranslationMin[o] + (mTranslations[key * 3] & 0xffff) * mTranslationScale[o];
+		out[offset + 1] = mTranslationMin[o + 1] + (mTranslations[key * 3 + 1] & 0xffff) * mTranslationScale[o + 1];
+		out[offset + 2] = mTranslationMin[o + 2] + (mTranslations[key * 3 + 2] & 0xffff) * mTranslationScale[o + 2];
+	}
+
+	private static float dequantize(int value) {
+		return (value * (2f / MAX_QUANTIZED) - 1) / SQRT2;
+	}
+
+	private static void encodeRotation(float[] rotations, int offset, short[] out, int outOffset) {
+		int largest = 0;
+		for (int i = 1; i < 4; ++i) {
+			if (Math.abs(rotations[offset + i]) > Math.abs(rotations[offset + largest]))
+				largest = i;
+		}
+		// -- q and -q are the same rotation, the dropped component is made positive
+		float sign = rotations[offset + largest] < 0 ? -1 : 1;
+		int[] quantized = new int[3];
+		for (int i = 0, n = 0; i < 4; ++i) {
+			if (i == largest)
+				continue;
+			float value = rotations[offset + i] * sign * SQRT2;
+			quantized[n++] = Math.min(MAX_QUANTIZED, Math.max(0, Math.round((value + 1) * .5f * MAX_QUANTIZED)));
+		}
+		out[outOffset] = (short) (quantized[0] | ((largest & 1) << 15));
+		out[outOffset + 1] = (short) (quantized[1] | ((largest >> 1) << 15));
+		out[outOffset + 2] = (short) quantized[2];
+	}
+
+	/**
+	 * Reads the track of a joint, rotations as x, y, z and w in one hemisphere.
+	 */
+	private static void readTrack(BoneAnimationFrame[] frames, int joint, float[] rotations, float[] translations) {
+		for (int i = 0; i < frames.length; ++i) {
+			SkeletonJoint skeletonJoint = frames[i].getSkeleton().getJoint(joint);
+			Quaternion q = skeletonJoint.getOrientation();
+			Number3D t = skeletonJoint.getPosition();
+			float sign = 1;
+			if (i > 0) {
+				int p = (i - 1) * 4;
+				float dot = rotations[p] * q.x + rotations[p + 1] * q.y + rotations[p + 2] * q.z + rotations[p + 3] * q.w;
+				if (dot < 0)
+					sign = -1;
+			}
+			rotations[i * 4] = q.x * sign;
+			rotations[i * 4 + 1] = q.y * sign;
+			rotations[i * 4 + 2] = q.z * sign;
+			rotations[i * 4 + 3] = q.w * sign;
+			translations[i * 3] = t.x;
+			translations[i * 3 + 1] = t.y;
+			translations[i * 3 + 2] = t.z;
+		}
+	}
+
+	/**
+	 * Picks the keyframes of a track, greedily extending every segment while the frames it
+	 * skips stay within the tolerance. The first and last frame are always kept.
+	 *
+	 * @param values
+	 *            size values per frame, four values are a rotation
+	 * @return The number of keys
+	 */
+	private static int reduce(float[] values, int size, int numFrames, float tolerance, int[] keys) {
+		int count = 0;
+		keys[count++] = 0;
+		int start = 0;
+		while (start < numFrames - 1) {
+			int end = start + 1;
+			while (end + 1 < numFrames && fits(values, size, start, end + 1, tolerance))
+				end++;
+			keys[count++] = end;
+			start = end;
+		}
+		// -- a constant track only needs one key
+		if (count == 2 && isConstant(values, size, numFrames, tolerance))
+			count = 1;
+		return count;
+	}
+
+	private static boolean fits(float[] values, int size, int start, int end, float tolerance) {
+		for (int i = start + 1; i < end; ++i) {
+			float t = (float) (i - start) / (end - start);
+			if (error(values, size, start, end, t, i) > tolerance)
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isConstant(float[] values, int size, int numFrames, float tolerance) {
+		for (int i = 1; i < numFrames; ++i) {
+			if (error(values, size, 0, 0, 0, i) > tolerance)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the error of frame i when it is interpolated between two keys, the way
+	 * {@link AnimationClipSampler} does.
+	 */
+	private static float error(float[] values, int size, int start, int end, float t, int i) {
+		int a = start * size, b = end * size, f = i * size;
+		if (size == 3) {
+			float dx = values[a] + (values[b] - values[a]) * t - values[f];
+			float dy = values[a + 1] + (values[b + 1] - values[a + 1]) * t - values[f + 1];
+			float dz = values[a + 2] + (values[b + 2] - values[a + 2]) * t - values[f + 2];
+			return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+		}
+		float x = values[a] + (values[b] - values[a]) * t;
+		float y = values[a + 1] + (values[b + 1] - values[a + 1]) * t;
+		float z = values[a + 2] + (values[b + 2] - values[a + 2]) * t;
+		float w = values[a + 3] + (values[b + 3] - values[a + 3]) * t;
+		float length = (float) Math.sqrt(x * x + y * y + z * z + w * w);
+		float dot = Math.abs(x * values[f] + y * values[f + 1] + z * values[f + 2] + w * values[f + 3]) / length;
+		return 2 * (float) Math.acos(Math.min(1, dot));
+	}
+
+	private static int[] copyOf(int[] values, int count) {
+		int[] copy = new int[count];
+		System.arraycopy(values, 0, copy, 0, count);
+		return copy;
+	}
+}
@@ -0,0 +1,133 @@
+package rajawali.animation.mesh;
+
+/**
+ * Evaluates the poses of an {@link AnimationClip}. Every joint takes {@link #POSE_STRIDE}
+ * floats in the pose: the position followed by the orientation as x, y, z and w.
+ * <p>
+ * Rotations are interpolated with a normalized lerp along the shortest path, the same way the
+ * keys were reduced. The sampler remembers the last key of every track, so playing forward
+ * doesn't search. Sampling doesn't allocate.
+ */
+public class AnimationClipSampler {
+	public static final int POSE_STRIDE = 7;
+
+	private final AnimationClip mClip;
+	private final float[] mPose;
+	private final int[] mRotationCursors;
+	private final int[] mTranslationCursors;
+	private final float[] mFrom = new float[4];
+	private final float[] mTo = new float[4];
+
+	public AnimationClipSampler(AnimationClip clip) {
+		mClip = clip;
+		mPose = new float[clip.mNumJoints * POSE_STRIDE];
+		mRotationCursors = new int[clip.mNumJoints];
+		mTranslationCursors = new int[clip.mNumJoints];
+		for (int i = 0; i < clip.mNumJoints; ++i) {
+			mRotationCursors[i] = clip.mRotationKeyStart[i];
+			mTranslationCursors[i] = clip.mTranslationKeyStart[i];
+		}
+	}
+
+	/**
+	 * Evaluates the pose at a frame. Past the last frame the clip loops back to the first one.
+	 *
+	 * @param frame
+	 *            The frame, fractions interpolate
+	 * @return The pose, which is reused by the next call
+	 */
+	public float[] sample(float frame) {
+		AnimationClip clip = mClip;
+		int numFrames = clip.mNumFrames;
+		frame %= numFrames;
+		if (frame < 0)
+			frame += numFrames;
+
+		for (int j = 0; j < clip.mNumJoints; ++j) {
+			int o = j * POSE_STRIDE;
+
+			int start = clip.mRotationKeyStart[j], end = clip.mRotationKeyStart[j + 1];
+			int key = findKey(clip.mRotationFrames, start, end, mRotationCursors[j], frame);
+			mRotationCursors[j] = key;
+			clip.getRotation(key, mFrom, 0);
+			if (end - start == 1) {
+				System.arraycopy(mFrom, 0, mPose, o + 3, 4);
+			} else {
+				int next = key + 1 < end ? key + 1 : start;
+				clip.getRotation(next, mTo, 0);
+				nlerp(mFrom, mTo, interpolation(clip.mRotationFrames, key, next, numFrames, frame), mPose, o + 3);
+			}
+
+			start = clip.mTranslationKeyStart[j];
+			end = clip.mTranslationKeyStart[j + 1];
+			key = findKey(clip.mTranslationFrames, start, end, mTranslationCursors[j], frame);
+			mTranslationCursors[j] = key;
+			clip.getTranslation(j, key, mPose, o);
+			if (end - start > 1) {
+				int next = key + 1 < end ? key + 1 : start;
+				clip.getTranslation(j, next, mTo, 0);
+				float t = interpolation(clip.mTranslationFrames, key, next, numFrames, frame);
+				mPose[o] += (mTo[0] - mPose[o]) * t;
+				mPose[o + 1] += (mTo[1] - mPose[o + 1]) * t;
+				mPose[o + 2] += (mTo[2] - mPose[o + 2]) * t;
+			}
+		}
+		return mPose;
+	}
+
+	/**
+	 * Copies the last sampled pose into the joints of a skeleton.
+	 *
+	 * @param joints
+	 */
+	public void applyTo(SkeletonJoint[] joints) {
+		for (int j = 0; j < mClip.mNumJoints; ++j) {
+			int o = j * POSE_STRIDE;
+			SkeletonJoint joint = joints[j];
+			joint.setParentIndex(mClip.mParentIndices[j]);
+			joint.setPosition(mPose[o], mPose[o + 1], mPose[o + 2]);
+			joint.setOrientation(mPose[o + 6], mPose[o + 3], mPose[o + 4], mPose[o + 5]);
+		}
+	}
+
+	public float[] getPose() {
+		return mPose;
+	}
+
+	public AnimationClip getClip() {
+		return mClip;
+	}
+
+	/**
+	 * Returns the last key at or before the frame, searching forward from the cursor when
+	 * possible.
+	 */
+	private static int findKey(char[] frames, int start, int end, int cursor, float frame) {
+		if (frames[cursor] > frame)
+			cursor = start;
+		while (cursor + 1 < end && frames[cursor + 1] <= frame)
+			cursor++;
+		return cursor;
+	}
+
+	private static float interpolation(char[] frames, int key, int next, int numFrames, float frame) {
+		float from = frames[key];
+		// -- after the last key the track wraps around to its first key
+		float to = next > key ? frames[next] : frames[next] + numFrames;
+		return (frame - from) / (to - from);
+	}
+
+	private static void nlerp(float[] from, float[] to, float t, float[] out, int offset) {
+		float dot = from[0] * to[0] + from[1] * to[1] + from[2] * to[2] + from[3] * to[3];
+		float s = dot < 0 ? -t : t;
+		float x = from[0] * (1 - t) + to[0] * s;
+		float y = from[1] * (1 - t) + to[1] * s;
+		float z = from[2] * (1 - t) + to[2] * s;
+		float w = from[3] * (1 - t) + to[3] * s;
+		float invLength = 1 / (float) Math.sqrt(x * x + y * y + z * z + w * w);
+		out[offset] = x * invLength;
+		out[offset + 1] = y * invLength;
+		out[offset + 2] = z * invLength;
+		out[offset + 3] = w * invLength;
+	}
+}
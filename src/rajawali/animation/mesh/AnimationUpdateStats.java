@@ -0,0 +1,86 @@
+package rajawali.animation.mesh;
+
+/**
+ * Counts the animation updates of one renderer. The renderer starts every frame with
+ * {@link #nextFrame()} on its OpenGL thread, animated objects that are drawn on that thread
+ * count into it and use its frame number to update at most once per frame.
+ *
+ * @see AAnimationObject3D#setAnimationLOD(float, int)
+ */
+public class AnimationUpdateStats {
+	private static final ThreadLocal<AnimationUpdateStats> sCurrent = new ThreadLocal<AnimationUpdateStats>();
+
+	private int mFrame;
+	int mNumUpdates;
+	int mNumThrottled;
+	int mNumCulled;
+	private int mLastFrameUpdates;
+	private int mLastFrameThrottled;
+	private int mLastFrameCulled;
+
+	/**
+	 * Returns the statistics of the renderer that draws on the calling thread.
+	 *
+	 * @return
+	 */
+	static AnimationUpdateStats getCurrent() {
+		AnimationUpdateStats stats = sCurrent.get();
+		if (stats == null) {
+			stats = new AnimationUpdateStats();
+			sCurrent.set(stats);
+		}
+		return stats;
+	}
+
+	/**
+	 * Starts counting animation updates for a new frame. Must be called on the OpenGL thread.
+	 */
+	public void nextFrame() {
+		sCurrent.set(this);
+		mFrame++;
+		mLastFrameUpdates = mNumUpdates;
+		mLastFrameThrottled = mNumThrottled;
+		mLastFrameCulled = mNumCulled;
+		mNumUpdates = 0;
+		mNumThrottled = 0;
+		mNumCulled = 0;
+	}
+
+	/**
+	 * The number of the current frame.
+	 *
+	 * @return
+	 */
+	public int getFrame() {
+		return mFrame;
+	}
+
+	/**
+	 * Returns the number of animation updates in the last frame.
+	 *
+	 * @return
+	 */
+	public int getNumUpdates() {
+		return mLastFrameUpdates;
+	}
+
+	/**
+	 * Returns the number of animation updates that were skipped in the last frame because the
+	 * objects were small on screen.
+	 *
+	 * @return
+	 */
+	public int getNumThrottledUpdates() {
+		return mLastFrameThrottled;
+	}
+
+	/**
+	 * Returns the number of animation updates that were skipped in the last frame because the
+	 * objects weren't drawn.
+	 *
+	 * @return
+	 */
+	public int getNumCulledUpdates() {
+		return mLastFrameCulled;
+	}
+}
@@ -6,11 +6,8 @@ import rajawali.BaseObject3D;
 import rajawali.BufferInfo;
 import rajawali.Camera;
 import rajawali.materials.AMaterial;
-import rajawali.math.Number3D;
 import rajawali.math.Quaternion;
 import rajawali.parser.md5.MD5MeshParser.MD5Mesh;
-import rajawali.parser.md5.MD5MeshParser.MD5Vert;
-import rajawali.parser.md5.MD5MeshParser.MD5Weight;
 import rajawali.util.RajLog;
 import android.os.SystemClock;
 
@@ -19,6 +16,25 @@ public class BoneAnimationObject3D extends AAnimationObject3D {
 	private Skeleton mSkeleton;
 	private MD5Mesh mMesh;
 	private BoneAnimationSequence mSequence;
+	private AnimationClipSampler mClipSampler;
+	/**
+	 * The skeleton joint of every palette entry, null when the mesh is skinned on the CPU
+	 */
+	private int[] mPaletteJoints;
+	private float[] mInverseBindPose;
+	private float[] mPalette;
+	private CPUSkinner mSkinner;
+	private boolean mSharedPose;
+	/**
+	 * The joints the skeleton had before it took poses from the cache
+	 */
+	private SkeletonJoint[] mOwnJoints;
+	/**
+	 * The frame of the shared pose the skeleton holds, -1 when it holds its own joints
+	 */
+	private float mSharedFrame = -1;
+	private int mNumPhases;
+	private int mPhase = -1;
 	
 	public BoneAnimationObject3D() {
 		super();
@@ -28,92 +44,103 @@ public class BoneAnimationObject3D extends AAnimationObject3D {
 	public void setShaderParams(Camera camera) {
 		super.setShaderParams(camera);
 
-		if(!mIsPlaying || mIsContainerOnly) return;
+		if(mIsContainerOnly) return;
 		
+		if(mIsPlaying && isAnimationUpdateDue())
+			updatePose();
+		else if(mSharedFrame >= 0)
+			// -- keeps the shared pose from being recycled while the animation is paused or throttled
+			mSkeleton.setJoints(getSharedPose(mSharedFrame));
+		
+		// -- the palette is program state, every object that shares the program uploads its own
+		if(mPaletteJoints != null) {
+			SkinningPalette.build(mSkeleton.getJoints(), mInverseBindPose, mPaletteJoints, mPalette);
+			mMaterial.setJointPalette(mPalette, mPaletteJoints.length);
+		}
+	}
+	
+	private void updatePose() {
 		long mCurrentTime = SystemClock.uptimeMillis();
 		
+		if(mNumPhases > 0) {
+			snapToPhase();
+		} else {
+			// -- the time since the last update, which spans several frames when updates were skipped
+			mInterpolation += (float) mFps * (mCurrentTime - mStartTime) / 1000.f;
+			if(mInterpolation >= 1) {
+				mCurrentFrameIndex = (mCurrentFrameIndex + (int) mInterpolation) % mNumFrames;
+				mInterpolation -= (int) mInterpolation;
+			}
+		}
+		
+		if(mSharedPose) {
+			mSharedFrame = mCurrentFrameIndex + mInterpolation;
+			mSkeleton.setJoints(getSharedPose(mSharedFrame));
+		} else if(mClipSampler != null) {
+			mClipSampler.sample(mCurrentFrameIndex + mInterpolation);
+			mClipSampler.applyTo(mSkeleton.getJoints());
+		} else {
+			updateSequencePose();
+		}
+		
+		if(mPaletteJoints == null)
+			prepareMesh();
+		
+		mStartTime = mCurrentTime;
+	}
+	
+	/**
+	 * Plays by the clock of the pose cache, offset by the phase that was closest when snapping
+	 * started, so all objects at a phase show exactly the same pose.
+	 */
+	private void snapToPhase() {
+		float clockFrame = PoseCache.getInstance().getTime() * mFps / 1000.f;
+		float phaseLength = (float) mNumFrames / mNumPhases;
+		if(mPhase < 0) {
+			float offset = (mCurrentFrameIndex + mInterpolation - clockFrame) % mNumFrames;
+			if(offset < 0)
+				offset += mNumFrames;
+			mPhase = Math.round(offset / phaseLength) % mNumPhases;
+		}
+		float frame = (clockFrame + mPhase * phaseLength) % mNumFrames;
+		mCurrentFrameIndex = (int) frame;
+		mInterpolation = frame - mCurrentFrameIndex;
+	}
+	
+	private SkeletonJoint[] getSharedPose(float frame) {
+		if(mClipSampler != null)
+			return PoseCache.getInstance().getPose(mClipSampler.getClip(), frame, this);
+		return PoseCache.getInstance().getPose(mSequence, frame, this);
+	}
+	
+	private void updateSequencePose() {
 		BoneAnimationFrame currentFrame = (BoneAnimationFrame)mSequence.getFrame(mCurrentFrameIndex);
 		BoneAnimationFrame nextFrame = (BoneAnimationFrame)mSequence.getFrame((mCurrentFrameIndex + 1) % mNumFrames);
 
-		mInterpolation += (float) mFps * (mCurrentTime - mStartTime) / 1000.f;
-		
 		for(int i=0; i<mNumJoints; ++i) {
 			SkeletonJoint joint = mSkeleton.getJoint(i);
 			SkeletonJoint fromJoint = currentFrame.getSkeleton().getJoint(i);
 			SkeletonJoint toJoint = nextFrame.getSkeleton().getJoint(i);
 			joint.setParentIndex(fromJoint.getParentIndex());
 			joint.getPosition().lerpSelf(fromJoint.getPosition(), toJoint.getPosition(), mInterpolation);
-			joint.getOrientation().setAllFrom(Quaternion.slerp(mInterpolation, fromJoint.getOrientation(), toJoint.getOrientation(), false));
+			Quaternion.slerp(mInterpolation, fromJoint.getOrientation(), toJoint.getOrientation(), false, joint.getOrientation());
 		}
-		
-		prepareMesh();
-		
-		if (mInterpolation >= 1) {
-			mInterpolation = 0;
-			mCurrentFrameIndex++;
-
-			if (mCurrentFrameIndex >= mNumFrames)
-				mCurrentFrameIndex = 0;
-		}
-		
-		mStartTime = mCurrentTime;
 	}
 	
 	private void prepareMesh()
 	{
-		Number3D position = new Number3D();
-		Number3D normal = new Number3D();
-		Number3D rotPos = new Number3D();
-		int index = 0;
+		if(mSkinner == null)
+			mSkinner = new CPUSkinner(mMesh);
 		
 		BufferInfo vBufferInfo = mGeometry.getBuffer(AMaterial.ATTR_POSITION);
 		BufferInfo nBufferInfo = mGeometry.getBuffer(AMaterial.ATTR_NORMAL);
 		FloatBuffer vBuff = (FloatBuffer)vBufferInfo.buffer;
 		FloatBuffer nBuff = (FloatBuffer)nBufferInfo.buffer;
-		vBuff.clear();
-		nBuff.clear();
-		vBuff.position(0);
-		nBuff.position(0);
 		
-	    for(int i = 0; i<mMesh.numVerts; ++i)
-	    {
-	        MD5Vert vert = mMesh.verts[i];
-	        index = i * 3;
-	        
-	        position.setAll(0, 0, 0);
-	        normal.setAll(0, 0, 0);
-	 
-	        for ( int j = 0; j < vert.weightElem; ++j )
-	        {
-	            MD5Weight weight = mMesh.weights[vert.weightIndex + j];
-	            SkeletonJoint joint = mSkeleton.getJoint(weight.jointIndex);
-
-	            joint.getOrientation().multiply(weight.position, rotPos);
-	            
-				Number3D pos = Number3D.tmp();
-				Number3D.add(joint.getPosition(), rotPos, pos);
-				pos.multiply(weight.weightValue);
-				position.add(pos);
-				
-				joint.getOrientation().multiply(vert.normal, rotPos);
-				rotPos.multiply(weight.weightValue);
-	            normal.add(rotPos);
-	        }
-	        
-	        vBuff.put(index, position.x);
-	        vBuff.put(index+1, position.y);
-	        vBuff.put(index+2, position.z);
-	        
-	        nBuff.put(index, normal.x);
-	        nBuff.put(index+1, normal.y);
-	        nBuff.put(index+2, normal.z);
-	    }
-	    
-	    vBuff.position(0);
-	    nBuff.position(0);
-
-	    mGeometry.changeBufferData(vBufferInfo, vBuff, 0);
-	   mGeometry.changeBufferData(nBufferInfo, nBuff, 0);
+		mSkinner.skin(mSkeleton.getJoints(), vBuff, nBuff);
+		
+		mGeometry.changeBufferData(vBufferInfo, vBuff, 0);
+		mGeometry.changeBufferData(nBufferInfo, nBuff, 0);
 	}
 	
 	public void setNumJoints(int numJoints) {
@@ -130,12 +157,35 @@ public class BoneAnimationObject3D extends AAnimationObject3D {
 	
 	public void setMD5Mesh(MD5Mesh mesh) {
 		mMesh = mesh;
+		mSkinner = null;
+	}
+	
+	/**
+	 * Skins this mesh on the GPU. The geometry holds the bind pose with the joint indices and
+	 * weights as attributes and the material must be created with
+	 * {@link AMaterial#SKELETAL_ANIMATION}. Only the pose is evaluated on the CPU.
+	 * 
+	 * @param joints
+	 *            The skeleton joint of every palette entry, at most
+	 *            {@link AMaterial#MAX_PALETTE_JOINTS}
+	 * @param inverseBindPose
+	 *            The inverse bind pose of the whole skeleton, can be shared by all meshes
+	 * @see SkinningPalette
+	 */
+	public void setJointPalette(int[] joints, float[] inverseBindPose) {
+		mPaletteJoints = joints;
+		mInverseBindPose = inverseBindPose;
+		mPalette = joints != null ? new float[joints.length * SkinningPalette.JOINT_SIZE] : null;
+	}
+	
+	public boolean isGPUSkinned() {
+		return mPaletteJoints != null;
 	}
 	
 	public void play() {
-		if(mSequence == null)
+		if(mSequence == null && mClipSampler == null)
 		{
-			RajLog.e("[BoneAnimationObject3D.play()] Cannot play animation. No sequence was set.");
+			RajLog.e("[BoneAnimationObject3D.play()] Cannot play animation. No sequence or clip was set.");
 			return;
 		}
 		super.play();
@@ -162,9 +212,90 @@ public class BoneAnimationObject3D extends AAnimationObject3D {
 		return mSequence;
 	}
 	
+	/**
+	 * Plays a compressed clip instead of the animation sequence. Every object gets its own
+	 * sampler, the clip itself can be shared.
+	 * 
+	 * @param clip
+	 *            The clip, or null to play the animation sequence again
+	 */
+	public void setAnimationClip(AnimationClip clip)
+	{
+		mClipSampler = clip != null ? new AnimationClipSampler(clip) : null;
+		if(clip != null)
+			mNumFrames = clip.getNumFrames();
+		else if(mSequence != null && mSequence.getFrames() != null)
+			mNumFrames = mSequence.getFrames().length;
+		
+		for(BaseObject3D child : mChildren) 
+			if(child instanceof BoneAnimationObject3D)
+				((BoneAnimationObject3D)child).setAnimationClip(clip);
+	}
+	
+	public AnimationClip getAnimationClip()
+	{
+		return mClipSampler != null ? mClipSampler.getClip() : null;
+	}
+	
+	/**
+	 * Takes the poses from the {@link PoseCache}, so objects that play the same animation at
+	 * the same time share one evaluated pose. Also applies to the children.
+	 * 
+	 * @param sharedPose
+	 */
+	public void setSharedPose(boolean sharedPose)
+	{
+		if(sharedPose != mSharedPose) {
+			if(sharedPose) {
+				mOwnJoints = mSkeleton.getJoints();
+			} else {
+				mSkeleton.setJoints(mOwnJoints);
+				mOwnJoints = null;
+				mSharedFrame = -1;
+			}
+			mSharedPose = sharedPose;
+		}
+		
+		for(BaseObject3D child : mChildren) 
+			if(child instanceof BoneAnimationObject3D)
+				((BoneAnimationObject3D)child).setSharedPose(sharedPose);
+	}
+	
+	public boolean isSharedPose()
+	{
+		return mSharedPose;
+	}
+	
+	/**
+	 * Snaps the animation to one of a number of evenly spaced phases, played by the clock of
+	 * the {@link PoseCache}. Objects at the same phase show the same pose, which makes shared
+	 * poses hit the cache every time. The phase closest to the current frame is picked.
+	 * Also applies to the children.
+	 * 
+	 * @param numPhases
+	 *            The number of phases, 0 to play freely
+	 */
+	public void setPhaseSnapping(int numPhases)
+	{
+		mNumPhases = Math.max(0, numPhases);
+		mPhase = -1;
+		
+		for(BaseObject3D child : mChildren) 
+			if(child instanceof BoneAnimationObject3D)
+				((BoneAnimationObject3D)child).setPhaseSnapping(numPhases);
+	}
+	
+	public int getPhaseSnapping()
+	{
+		return mNumPhases;
+	}
+	
 	public void setJoints(SkeletonJoint[] joints)
 	{
-		mSkeleton.setJoints(joints);
+		if(mSharedPose)
+			mOwnJoints = joints;
+		else
+			mSkeleton.setJoints(joints);
 	}
 	
 	public Skeleton getSkeleton()
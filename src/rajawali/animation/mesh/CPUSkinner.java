@@ -0,0 +1,214 @@
+package rajawali.animation.mesh;
+
+import java.nio.FloatBuffer;
+
+import rajawali.math.Number3D;
+import rajawali.math.Quaternion;
+import rajawali.parser.md5.MD5MeshParser.MD5Mesh;
+import rajawali.parser.md5.MD5MeshParser.MD5Vert;
+import rajawali.parser.md5.MD5MeshParser.MD5Weight;
+import rajawali.util.RajLog;
+import rajawali.util.WorkerPool;
+
+/**
+ * Skins an MD5 mesh on the CPU, for devices and materials that can't skin on the GPU.
+ * <p>
+ * The weights are flattened into arrays once, with the weight positions already multiplied by
+ * their weights. Every frame the joints are turned into 3x4 matrices and the vertices are
+ * skinned in a loop that doesn't allocate, straight into the direct buffers of the geometry.
+ * Large meshes are split over the shared {@link WorkerPool}, the calling thread skins the last
+ * part itself.
+ *
+ * @see SkinningPalette for skinning on the GPU
+ */
+public class CPUSkinner {
+	/**
+	 * Meshes with fewer vertices are skinned on the calling thread only
+	 */
+	public static final int MIN_PARALLEL_VERTICES = 2048;
+
+	private final int mNumVertices;
+	/**
+	 * The first weight of every vertex, the last entry is the number of weights
+	 */
+	private final int[] mWeightStart;
+	private final int[] mWeightJoint;
+	private final float[] mWeightValue;
+	/**
+	 * Joint space positions multiplied by their weight, three floats per weight
+	 */
+	private final float[] mWeightPosition;
+	private final float[] mNormals;
+	private float[] mJointMatrices = new float[0];
+
+	private final SkinTask[] mTasks;
+	private int mPendingTasks;
+	private FloatBuffer mVertexBuffer;
+	private FloatBuffer mNormalBuffer;
+
+	private class SkinTask implements Runnable {
+		int mStart, mEnd;
+
+		public void run() {
+			try {
+				skin(mStart, mEnd);
+			} catch (Throwable t) {
+				RajLog.e("[" + CPUSkinner.class.getName() + "] Skinning failed: " + t.getMessage());
+			} finally {
+				taskDone();
+			}
+		}
+	}
+
+	public CPUSkinner(MD5Mesh mesh) {
+		mNumVertices = mesh.numVerts;
+		mWeightStart = new int[mNumVertices + 1];
+		mWeightJoint = new int[mesh.numWeightElems];
+		mWeightValue = new float[mesh.numWeightElems];
+		mWeightPosition = new float[mesh.numWeightElems * 3];
+		mNormals = new float[mNumVertices * 3];
+
+		int weight = 0;
+		for (int i = 0; i < mNumVertices; ++i) {
+			MD5Vert vert = mesh.verts[i];
+			mWeightStart[i] = weight;
+			for (int j = 0; j < vert.weightElem; ++j, ++weight) {
+				MD5Weight md5Weight = mesh.weights[vert.weightIndex + j];
+				mWeightJoint[weight] = md5Weight.jointIndex;
+				mWeightValue[weight] = md5Weight.weightValue;
+				mWeightPosition[weight * 3] = md5Weight.position.x * md5Weight.weightValue;
+				mWeightPosition[weight * 3 + 1] = md5Weight.position.y * md5Weight.weightValue;
+				mWeightPosition[weight * 3 + 2] = md5Weight.position.z * md5Weight.weightValue;
+			}
+			mNormals[i * 3] = vert.normal.x;
+			mNormals[i * 3 + 1] = vert.normal.y;
+			mNormals[i * 3 + 2] = vert.normal.z;
+		}
+		mWeightStart[mNumVertices] = weight;
+
+		int numTasks = mNumVertices >= MIN_PARALLEL_VERTICES ? WorkerPool.getNumWorkers() : 0;
+		mTasks = new SkinTask[numTasks];
+		for (int i = 0; i < numTasks; ++i)
+			mTasks[i] = new SkinTask();
+	}
+
+	/**
+	 * Skins the mesh with the given pose. The buffers are written with absolute puts, their
+	 * positions don't change.
+	 *
+	 * @param pose
+	 * @param vertices
+	 * @param normals
+	 */
+	public void skin(SkeletonJoint[] pose, FloatBuffer vertices, FloatBuffer normals) {
+		updateJointMatrices(pose);
+		mVertexBuffer = vertices;
+		mNormalBuffer = normals;
+
+		int numParts = mTasks.length + 1;
+		if (numParts == 1) {
+			skin(0, mNumVertices);
+			return;
+		}
+
+		int partSize = (mNumVertices + numParts - 1) / numParts;
+		synchronized (this) {
+			mPendingTasks = mTasks.length;
+		}
+		for (int i = 0; i < mTasks.length; ++i) {
+			SkinTask task = mTasks[i];
+			task.mStart = i * partSize;
+			task.mEnd = Math.min(mNumVertices, task.mStart + partSize);
+			WorkerPool.execute(task);
+		}
+		skin(mTasks.length * partSize, mNumVertices);
+
+		synchronized (this) {
+			while (mPendingTasks > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	public int getNumVertices() {
+		return mNumVertices;
+	}
+
+	private synchronized void taskDone() {
+		if (--mPendingTasks == 0)
+			notifyAll();
+	}
+
+	private void updateJointMatrices(SkeletonJoint[] pose) {
+		if (mJointMatrices.length != pose.length * 12)
+			mJointMatrices = new float[pose.length * 12];
+		float[] m = mJointMatrices;
+		for (int i = 0; i < pose.length; ++i) {
+			Quaternion q = pose[i].getOrientation();
+			Number3D t = pose[i].getPosition();
+			float x2 = q.x * q.x, y2 = q.y * q.y, z2 = q.z * q.z;
+			float xy = q.x * q.y, xz = q.x * q.z, yz = q.y * q.z;
+			float wx = q.w * q.x, wy = q.w * q.y, wz = q.w * q.z;
+			int o = i * 12;
+			// -- the rotation Quaternion.multiply(Number3D, Number3D) applies
+			m[o] = 1 - 2 * (y2 + z2);
+			m[o + 1] = 2 * (xy + wz);
+			m[o + 2] = 2 * (xz - wy);
+			m[o + 3] = t.x;
+			m[o + 4] = 2 * (xy - wz);
+			m[o + 5] = 1 - 2 * (x2 + z2);
+			m[o + 6] = 2 * (yz + wx);
+			m[o + 7] = t.y;
+			m[o + 8] = 2 * (xz + wy);
+			m[o + 9] = 2 * (yz - wx);
+			m[o + 10] = 1 - 2 * (x2 + y2);
+			m[o + 11] = t.z;
+		}
+	}
+
+	private void skin(int start, int end) {
+		final float[] m = mJointMatrices;
+		final int[] weightStart = mWeightStart;
+		final int[] weightJoint = mWeightJoint;
+		final float[] weightValue = mWeightValue;
+		final float[] weightPosition = mWeightPosition;
+		final float[] normals = mNormals;
+		final FloatBuffer vertexBuffer = mVertexBuffer;
+		final FloatBuffer normalBuffer = mNormalBuffer;
+
+		for (int i = start; i < end; ++i) {
+			float px = 0, py = 0, pz = 0;
+			float nx = 0, ny = 0, nz = 0;
+			int index = i * 3;
+			float vnx = normals[index], vny = normals[index + 1], vnz = normals[index + 2];
+
+			for (int w = weightStart[i], last = weightStart[i + 1]; w < last; ++w) {
+				int o = weightJoint[w] * 12;
+				float weight = weightValue[w];
+				int p = w * 3;
+				float wx = weightPosition[p], wy = weightPosition[p + 1], wz = weightPosition[p + 2];
+
+				// -- the positions are premultiplied, the translation is weighted here
+				px += m[o] * wx + m[o + 1] * wy + m[o + 2] * wz + m[o + 3] * weight;
+				py += m[o + 4] * wx + m[o + 5] * wy + m[o + 6] * wz + m[o + 7] * weight;
+				pz += m[o + 8] * wx + m[o + 9] * wy + m[o + 10] * wz + m[o + 11] * weight;
+
+				nx += (m[o] * vnx + m[o + 1] * vny + m[o + 2] * vnz) * weight;
+				ny += (m[o + 4] * vnx + m[o + 5] * vny + m[o + 6] * vnz) * weight;
+				nz += (m[o + 8] * vnx + m[o + 9] * vny + m[o + 10] * vnz) * weight;
+			}
+
+			vertexBuffer.put(index, px);
+			vertexBuffer.put(index + 1, py);
+			vertexBuffer.put(index + 2, pz);
+			normalBuffer.put(index, nx);
+			normalBuffer.put(index + 1, ny);
+			normalBuffer.put(index + 2, nz);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package rajawali.animation.mesh;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import rajawali.BufferInfo;
+import rajawali.materials.AMaterial;
+import rajawali.renderer.AssetLoader;
+import android.opengl.GLES20;
+
+/**
+ * Keeps all frames of a vertex animation in a single buffer. Every vertex takes
+ * {@link #VERTEX_SIZE} bytes: the position as three unsigned bytes within the bounds of its
+ * frame and the normal as two octahedral encoded unsigned bytes. The shader dequantizes them,
+ * selecting a frame only changes the attribute offsets.
+ * <p>
+ * The buffer is uploaded on first use, so frames can be packed on a loader thread, and again
+ * after the OpenGL context was lost.
+ *
+ * @see AMaterial#PACKED_VERTEX_ANIMATION
+ */
+public class PackedVertexAnimation {
+	public static final int VERTEX_SIZE = 8;
+	private static final int NORMAL_OFFSET = 4;
+	private static final int DEQUANTIZE_SIZE = 6;
+
+	private final int mNumFrames;
+	private final int mNumVertices;
+	private final ByteBuffer mData;
+	/**
+	 * The scale and offset of every frame
+	 */
+	private final float[] mDequantize;
+	private final float[] mFramePair = new float[DEQUANTIZE_SIZE * 2];
+	private int mBufferHandle;
+	private final BufferInfo mPosition;
+	private final BufferInfo mNormal;
+	private final BufferInfo mNextPosition;
+	private final BufferInfo mNextNormal;
+
+	public PackedVertexAnimation(int numFrames, int numVertices) {
+		mNumFrames = numFrames;
+		mNumVertices = numVertices;
+		mData = ByteBuffer.allocateDirect(numFrames * numVertices * VERTEX_SIZE).order(ByteOrder.nativeOrder());
+		mDequantize = new float[numFrames * DEQUANTIZE_SIZE];
+		mPosition = createBufferInfo(AMaterial.ATTR_POSITION, 3);
+		mNormal = createBufferInfo(AMaterial.ATTR_NORMAL, 2);
+		mNextPosition = createBufferInfo(AMaterial.ATTR_NEXT_FRAME_POSITION, 3);
+		mNextNormal = createBufferInfo(AMaterial.ATTR_NEXT_FRAME_NORMAL, 2);
+	}
+
+	/**
+	 * Quantizes a frame into the buffer.
+	 *
+	 * @param frame
+	 * @param vertices
+	 *            Three floats per vertex
+	 * @param normals
+	 *            Three floats per vertex, unit length
+	 */
+	public void setFrame(int frame, float[] vertices, float[] normals) {
+		int d = frame * DEQUANTIZE_SIZE;
+		for (int c = 0; c < 3; ++c) {
+			float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+			for (int i = c; i < mNumVertices * 3; i += 3) {
+				min = Math.min(min, vertices[i]);
+				max = Math.max(max, vertices[i]);
+			}
+			mDequantize[d + c] = (max - min) / 255;
+			mDequantize[d + 3 + c] = min;
+		}
+
+		int offset = frame * mNumVertices * VERTEX_SIZE;
+		for (int i = 0; i < mNumVertices; ++i) {
+			int o = offset + i * VERTEX_SIZE;
+			for (int c = 0; c < 3; ++c) {
+				float scale = mDequantize[d + c];
+				int quantized = scale == 0 ? 0 : Math.round((vertices[i * 3 + c] - mDequantize[d + 3 + c]) / scale);
+				mData.put(o + c, (byte) Math.min(255, Math.max(0, quantized)));
+			}
+			mData.put(o + 3, (byte) 0);
+
+			// -- octahedral encoding, the lower hemisphere is folded over the diagonals
+			float x = normals[i * 3], y = normals[i * 3 + 1], z = normals[i * 3 + 2];
+			float length = Math.abs(x) + Math.abs(y) + Math.abs(z);
+			float u = length > 0 ? x / length : 0, v = length > 0 ? y / length : 0;
+			if (z < 0) {
+				float fu = (1 - Math.abs(v)) * (u >= 0 ? 1 : -1);
+				v = (1 - Math.abs(u)) * (v >= 0 ? 1 : -1);
+				u = fu;
+			}
+			mData.put(o + NORMAL_OFFSET, (byte) Math.round((u * .5f + .5f) * 255));
+			mData.put(o + NORMAL_OFFSET + 1, (byte) Math.round((v * .5f + .5f) * 255));
+			mData.put(o + NORMAL_OFFSET + 2, (byte) 0);
+			mData.put(o + NORMAL_OFFSET + 3, (byte) 0);
+		}
+	}
+
+	/**
+	 * Sets the attributes and the dequantize uniform for a pair of frames. Must be called after
+	 * the geometry's buffers were bound, it replaces the position and normal attributes.
+	 *
+	 * @param material
+	 *            A material created with {@link AMaterial#PACKED_VERTEX_ANIMATION}
+	 * @param frame
+	 * @param nextFrame
+	 */
+	public void bind(AMaterial material, int frame, int nextFrame) {
+		if (mBufferHandle == 0)
+			createBuffer();
+
+		int offset = frame * mNumVertices * VERTEX_SIZE;
+		int nextOffset = nextFrame * mNumVertices * VERTEX_SIZE;
+		mPosition.attributeOffset = offset;
+		mNormal.attributeOffset = offset + NORMAL_OFFSET;
+		mNextPosition.attributeOffset = nextOffset;
+		mNextNormal.attributeOffset = nextOffset + NORMAL_OFFSET;
+		material.setBuffer(mPosition);
+		material.setBuffer(mNormal);
+		material.setBuffer(mNextPosition);
+		material.setBuffer(mNextNormal);
+
+		System.arraycopy(mDequantize, frame * DEQUANTIZE_SIZE, mFramePair, 0, DEQUANTIZE_SIZE);
+		System.arraycopy(mDequantize, nextFrame * DEQUANTIZE_SIZE, mFramePair, DEQUANTIZE_SIZE, DEQUANTIZE_SIZE);
+		material.setFrameDequantize(mFramePair);
+	}
+
+	/**
+	 * Forgets the buffer handle, the buffer is uploaded again on next use. Must be called when
+	 * a new OpenGL context is created.
+	 */
+	public void reload() {
+		setBufferHandle(0);
+	}
+
+	/**
+	 * Deletes the buffer.
+	 */
+	public void destroy() {
+		if (mBufferHandle != 0)
+			GLES20.glDeleteBuffers(1, new int[] { mBufferHandle }, 0);
+		setBufferHandle(0);
+	}
+
+	public int getNumFrames() {
+		return mNumFrames;
+	}
+
+	public int getNumVertices() {
+		return mNumVertices;
+	}
+
+	/**
+	 * Returns the size of the buffer in bytes.
+	 *
+	 * @return
+	 */
+	public int getSizeInBytes() {
+		return mData.capacity();
+	}
+
+	private void createBuffer() {
+		if (AssetLoader.isLoaderThread())
+			return;
+		int[] handles = new int[1];
+		GLES20.glGenBuffers(1, handles, 0);
+		mData.position(0);
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, handles[0]);
+		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mData.capacity(), mData, GLES20.GL_STATIC_DRAW);
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+		setBufferHandle(handles[0]);
+	}
+
+	private void setBufferHandle(int handle) {
+		mBufferHandle = handle;
+		mPosition.bufferHandle = handle;
+		mNormal.bufferHandle = handle;
+		mNextPosition.bufferHandle = handle;
+		mNextNormal.bufferHandle = handle;
+	}
+
+	private static BufferInfo createBufferInfo(String attributeName, int attributeSize) {
+		BufferInfo bufferInfo = new BufferInfo(attributeName, attributeSize, true);
+		bufferInfo.target = GLES20.GL_ARRAY_BUFFER;
+		bufferInfo.vertexSize = VERTEX_SIZE;
+		return bufferInfo;
+	}
+}
@@ -0,0 +1,278 @@
+package rajawali.animation.mesh;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import rajawali.math.Quaternion;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+/**
+ * Shares evaluated poses between skeletons that play the same animation. Times are rounded to
+ * {@link #getStepsPerFrame()} steps per animation frame, every pose is evaluated once per step
+ * and handed to all objects at that step.
+ * <p>
+ * The cached joints are shared, they must not be changed. Poses that weren't asked for in the
+ * last few frames are recycled, together with the sequences and clips that have no poses left.
+ * <p>
+ * Every renderer has its own cache, so poses, counters and the frame clock aren't shared between
+ * GL threads. The renderer starts every frame with {@link #nextFrame()} on its OpenGL thread,
+ * animated objects drawn on that thread take their poses from it.
+ *
+ * @see BoneAnimationObject3D#setSharedPose(boolean)
+ * @see rajawali.renderer.RajawaliRenderer#getPoseCache()
+ */
+public class PoseCache {
+	public static final int DEFAULT_STEPS_PER_FRAME = 4;
+	/**
+	 * Poses that weren't used for this many frames are recycled
+	 */
+	private static final int MAX_UNUSED_FRAMES = 2;
+
+	private static final ThreadLocal<PoseCache> sCurrent = new ThreadLocal<PoseCache>();
+
+	static class Pose {
+		SkeletonJoint[] mJoints;
+		int mLastUsed;
+		/**
+		 * The object the pose was evaluated for
+		 */
+		Object mEvaluatedBy;
+		Pose mNext;
+	}
+
+	private final HashMap<Object, SparseArray<Pose>> mPoses;
+	private final HashMap<AnimationClip, AnimationClipSampler> mSamplers;
+	private Pose mFreePoses;
+	private int mStepsPerFrame = DEFAULT_STEPS_PER_FRAME;
+	private int mFrame;
+	private long mTime;
+	private int mNumHits;
+	private int mNumEvaluations;
+	private int mLastFrameHits;
+	private int mLastFrameEvaluations;
+
+	/**
+	 * Returns the cache of the renderer that draws on the calling thread. A thread that doesn't
+	 * belong to a renderer gets a cache of its own.
+	 *
+	 * @return
+	 */
+	public static PoseCache getInstance() {
+		PoseCache cache = sCurrent.get();
+		if (cache == null) {
+			cache = new PoseCache();
+			sCurrent.set(cache);
+		}
+		return cache;
+	}
+
+	public PoseCache() {
+		mPoses = new HashMap<Object, SparseArray<Pose>>();
+		mSamplers = new HashMap<AnimationClip, AnimationClipSampler>();
+	}
+
+	/**
+	 * Returns the pose of a sequence at a frame.
+	 *
+	 * @param sequence
+	 * @param frame
+	 *            The frame, fractions are rounded to the nearest step
+	 * @param consumer
+	 *            The object that asks for the pose, only poses evaluated for other objects
+	 *            count as shared
+	 * @return The shared joints, which must not be changed
+	 */
+	public SkeletonJoint[] getPose(BoneAnimationSequence sequence, float frame, Object consumer) {
+		BoneAnimationFrame[] frames = sequence.getFrames();
+		int step = toStep(frame, frames.length);
+		SparseArray<Pose> poses = getPoses(sequence);
+		Pose pose = poses.get(step);
+		if (pose != null)
+			return hit(pose, consumer);
+
+		int numJoints = frames[0].getSkeleton().getJoints().length;
+		pose = obtainPose(numJoints);
+		int from = step / mStepsPerFrame;
+		int to = (from + 1) % frames.length;
+		float t = (float) (step % mStepsPerFrame) / mStepsPerFrame;
+		Skeleton fromSkeleton = frames[from].getSkeleton();
+		Skeleton toSkeleton = frames[to].getSkeleton();
+		for (int i = 0; i < numJoints; ++i) {
+			SkeletonJoint joint = pose.mJoints[i];
+			SkeletonJoint fromJoint = fromSkeleton.getJoint(i);
+			SkeletonJoint toJoint = toSkeleton.getJoint(i);
+			joint.setParentIndex(fromJoint.getParentIndex());
+			joint.getPosition().lerpSelf(fromJoint.getPosition(), toJoint.getPosition(), t);
+			Quaternion.slerp(t, fromJoint.getOrientation(), toJoint.getOrientation(), false, joint.getOrientation());
+		}
+		return store(poses, step, pose, consumer);
+	}
+
+	/**
+	 * Returns the pose of a clip at a frame.
+	 *
+	 * @param clip
+	 * @param frame
+	 *            The frame, fractions are rounded to the nearest step
+	 * @param consumer
+	 *            The object that asks for the pose, only poses evaluated for other objects
+	 *            count as shared
+	 * @return The shared joints, which must not be changed
+	 */
+	public SkeletonJoint[] getPose(AnimationClip clip, float frame, Object consumer) {
+		int step = toStep(frame, clip.getNumFrames());
+		SparseArray<Pose> poses = getPoses(clip);
+		Pose pose = poses.get(step);
+		if (pose != null)
+			return hit(pose, consumer);
+
+		AnimationClipSampler sampler = mSamplers.get(clip);
+		if (sampler == null) {
+			sampler = new AnimationClipSampler(clip);
+			mSamplers.put(clip, sampler);
+		}
+		pose = obtainPose(clip.getNumJoints());
+		sampler.sample((float) step / mStepsPerFrame);
+		sampler.applyTo(pose.mJoints);
+		return store(poses, step, pose, consumer);
+	}
+
+	/**
+	 * Starts a new frame: counts, moves the shared clock and recycles poses that weren't used.
+	 * Sequences and clips without poses are forgotten, so unloaded animations aren't kept alive.
+	 * Must be called on the OpenGL thread, it makes this the cache of the calling thread.
+	 */
+	public void nextFrame() {
+		sCurrent.set(this);
+		mLastFrameHits = mNumHits;
+		mLastFrameEvaluations = mNumEvaluations;
+		mNumHits = 0;
+		mNumEvaluations = 0;
+		mFrame++;
+		mTime = SystemClock.uptimeMillis();
+
+		Iterator<Map.Entry<Object, SparseArray<Pose>>> entries = mPoses.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Object, SparseArray<Pose>> entry = entries.next();
+			SparseArray<Pose> poses = entry.getValue();
+			for (int i = poses.size() - 1; i >= 0; --i) {
+				Pose pose = poses.valueAt(i);
+				if (mFrame - pose.mLastUsed <= MAX_UNUSED_FRAMES)
+					continue;
+				poses.removeAt(i);
+				pose.mEvaluatedBy = null;
+				pose.mNext = mFreePoses;
+				mFreePoses = pose;
+			}
+			if (poses.size() == 0) {
+				entries.remove();
+				mSamplers.remove(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Forgets all poses, for instance when the sequences are released.
+	 */
+	public void clear() {
+		mPoses.clear();
+		mSamplers.clear();
+		mFreePoses = null;
+	}
+
+	/**
+	 * Sets the number of poses per animation frame. More steps are smoother, fewer steps are
+	 * shared more often. Clears the cache, so it must be called on the OpenGL thread, for
+	 * instance from {@link rajawali.renderer.RajawaliRenderer#onSurfaceCreated}.
+	 *
+	 * @param stepsPerFrame
+	 */
+	public void setStepsPerFrame(int stepsPerFrame) {
+		mStepsPerFrame = Math.max(1, stepsPerFrame);
+		clear();
+	}
+
+	public int getStepsPerFrame() {
+		return mStepsPerFrame;
+	}
+
+	/**
+	 * Returns the time at the start of the current frame, the clock that objects snapped to a
+	 * phase play by.
+	 *
+	 * @return
+	 */
+	public long getTime() {
+		return mTime;
+	}
+
+	/**
+	 * Returns the number of poses that were shared in the last frame. Objects that ask for a pose
+	 * that was evaluated for themselves, like paused objects, aren't counted.
+	 *
+	 * @return
+	 */
+	public int getNumHits() {
+		return mLastFrameHits;
+	}
+
+	/**
+	 * Returns the number of poses that were evaluated in the last frame.
+	 *
+	 * @return
+	 */
+	public int getNumEvaluations() {
+		return mLastFrameEvaluations;
+	}
+
+	private int toStep(float frame, int numFrames) {
+		int numSteps = numFrames * mStepsPerFrame;
+		int step = Math.round(frame * mStepsPerFrame) % numSteps;
+		return step < 0 ? step + numSteps : step;
+	}
+
+	private SparseArray<Pose> getPoses(Object source) {
+		SparseArray<Pose> poses = mPoses.get(source);
+		if (poses == null) {
+			poses = new SparseArray<Pose>();
+			mPoses.put(source, poses);
+		}
+		return poses;
+	}
+
+	private SkeletonJoint[] hit(Pose pose, Object consumer) {
+		pose.mLastUsed = mFrame;
+		if (pose.mEvaluatedBy != consumer)
+			mNumHits++;
+		return pose.mJoints;
+	}
+
+	private SkeletonJoint[] store(SparseArray<Pose> poses, int step, Pose pose, Object consumer) {
+		pose.mLastUsed = mFrame;
+		pose.mEvaluatedBy = consumer;
+		poses.put(step, pose);
+		mNumEvaluations++;
+		return pose.mJoints;
+	}
+
+	private Pose obtainPose(int numJoints) {
+		Pose previous = null;
+		for (Pose pose = mFreePoses; pose != null; previous = pose, pose = pose.mNext) {
+			if (pose.mJoints.length != numJoints)
+				continue;
+			if (previous == null)
+				mFreePoses = pose.mNext;
+			else
+				previous.mNext = pose.mNext;
+			pose.mNext = null;
+			return pose;
+		}
+		Pose pose = new Pose();
+		pose.mJoints = new SkeletonJoint[numJoints];
+		for (int i = 0; i < numJoints; ++i)
+			pose.mJoints[i] = new SkeletonJoint();
+		return pose;
+	}
+}
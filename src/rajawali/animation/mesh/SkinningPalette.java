@@ -0,0 +1,243 @@
+package rajawali.animation.mesh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import rajawali.math.Number3D;
+import rajawali.math.Quaternion;
+
+/**
+ * Builds the joint palettes for skinning on the GPU. Every joint of a palette is stored as the
+ * top three rows of its skinning matrix, the transform from the bind pose to the current pose.
+ * <p>
+ * A vertex shader can only hold a limited number of joints, so meshes that are influenced by
+ * more joints are split into partitions that each get their own palette.
+ *
+ * @see rajawali.materials.AMaterial#SKELETAL_ANIMATION
+ */
+public class SkinningPalette {
+	/**
+	 * Floats per joint in a palette
+	 */
+	public static final int JOINT_SIZE = 12;
+	/**
+	 * Joints per vertex
+	 */
+	public static final int MAX_INFLUENCES = 4;
+
+	/**
+	 * A part of a mesh that is influenced by a limited number of joints.
+	 */
+	public static class Partition {
+		/**
+		 * The skeleton joint of every palette entry
+		 */
+		public int[] joints;
+		/**
+		 * The original index of every vertex of the partition
+		 */
+		public int[] vertices;
+		/**
+		 * The triangles, indexing the partition's vertices
+		 */
+		public int[] indices;
+		/**
+		 * The palette entries of every vertex, {@link SkinningPalette#MAX_INFLUENCES} per vertex
+		 */
+		public float[] jointIndices;
+		/**
+		 * The weights of every vertex, {@link SkinningPalette#MAX_INFLUENCES} per vertex
+		 */
+		public float[] jointWeights;
+	}
+
+	/**
+	 * Returns the inverse of every joint's bind pose transform.
+	 *
+	 * @param joints
+	 *            The joints in bind pose
+	 * @return {@link #JOINT_SIZE} floats per joint
+	 */
+	public static float[] createInverseBindPose(SkeletonJoint[] joints) {
+		float[] inverseBindPose = new float[joints.length * JOINT_SIZE];
+		float[] rotation = new float[9];
+		for (int i = 0; i < joints.length; ++i) {
+			toRotation(joints[i].getOrientation(), rotation);
+			Number3D t = joints[i].getPosition();
+			int offset = i * JOINT_SIZE;
+			// -- the inverse rotation is the transpose, the translation is rotated back
+			for (int row = 0; row < 3; ++row) {
+				int o = offset + row * 4;
+				inverseBindPose[o] = rotation[row];
+				inverseBindPose[o + 1] = rotation[3 + row];
+				inverseBindPose[o + 2] = rotation[6 + row];
+				inverseBindPose[o + 3] = -(rotation[row] * t.x + rotation[3 + row] * t.y + rotation[6 + row] * t.z);
+			}
+		}
+		return inverseBindPose;
+	}
+
+	/**
+	 * Fills a palette with the skinning matrices for the current pose. Doesn't allocate.
+	 *
+	 * @param pose
+	 *            The joints in the current pose
+	 * @param inverseBindPose
+	 *            From {@link #createInverseBindPose(SkeletonJoint[])}
+	 * @param joints
+	 *            The skeleton joint of every palette entry
+	 * @param palette
+	 *            Receives {@link #JOINT_SIZE} floats per palette entry
+	 */
+	public static void build(SkeletonJoint[] pose, float[] inverseBindPose, int[] joints, float[] palette) {
+		for (int i = 0; i < joints.length; ++i) {
+			SkeletonJoint joint = pose[joints[i]];
+			Quaternion q = joint.getOrientation();
+			Number3D t = joint.getPosition();
+			float x2 = q.x * q.x, y2 = q.y * q.y, z2 = q.z * q.z;
+			float xy = q.x * q.y, xz = q.x * q.z, yz = q.y * q.z;
+			float wx = q.w * q.x, wy = q.w * q.y, wz = q.w * q.z;
+			// -- the rotation Quaternion.multiply(Number3D, Number3D) applies
+			float r00 = 1 - 2 * (y2 + z2), r01 = 2 * (xy + wz), r02 = 2 * (xz - wy);
+			float r10 = 2 * (xy - wz), r11 = 1 - 2 * (x2 + z2), r12 = 2 * (yz + wx);
+			float r20 = 2 * (xz + wy), r21 = 2 * (yz - wx), r22 = 1 - 2 * (x2 + y2);
+
+			int b = joints[i] * JOINT_SIZE;
+			float b00 = inverseBindPose[b], b01 = inverseBindPose[b + 1], b02 = inverseBindPose[b + 2], b03 = inverseBindPose[b + 3];
+			float b10 = inverseBindPose[b + 4], b11 = inverseBindPose[b + 5], b12 = inverseBindPose[b + 6], b13 = inverseBindPose[b + 7];
+			float b20 = inverseBindPose[b + 8], b21 = inverseBindPose[b + 9], b22 = inverseBindPose[b + 10], b23 = inverseBindPose[b + 11];
+
+			int p = i * JOINT_SIZE;
+			palette[p] = r00 * b00 + r01 * b10 + r02 * b20;
+			palette[p + 1] = r00 * b01 + r01 * b11 + r02 * b21;
+			palette[p + 2] = r00 * b02 + r01 * b12 + r02 * b22;
+			palette[p + 3] = r00 * b03 + r01 * b13 + r02 * b23 + t.x;
+			palette[p + 4] = r10 * b00 + r11 * b10 + r12 * b20;
+			palette[p + 5] = r10 * b01 + r11 * b11 + r12 * b21;
+			palette[p + 6] = r10 * b02 + r11 * b12 + r12 * b22;
+			palette[p + 7] = r10 * b03 + r11 * b13 + r12 * b23 + t.y;
+			palette[p + 8] = r20 * b00 + r21 * b10 + r22 * b20;
+			palette[p + 9] = r20 * b01 + r21 * b11 + r22 * b21;
+			palette[p + 10] = r20 * b02 + r21 * b12 + r22 * b22;
+			palette[p + 11] = r20 * b03 + r21 * b13 + r22 * b23 + t.z;
+		}
+	}
+
+	/**
+	 * Splits a mesh into partitions that are each influenced by at most maxJoints joints.
+	 * Triangles are added in order until the next one doesn't fit anymore, vertices that are
+	 * used by several partitions are duplicated.
+	 *
+	 * @param indices
+	 *            The triangles
+	 * @param numVertices
+	 * @param vertexJoints
+	 *            The skeleton joints of every vertex, {@link #MAX_INFLUENCES} per vertex
+	 * @param vertexWeights
+	 *            The weights of every vertex, {@link #MAX_INFLUENCES} per vertex. Joints with a
+	 *            weight of 0 are ignored.
+	 * @param maxJoints
+	 *            Must be at least 3 * {@link #MAX_INFLUENCES}
+	 * @return
+	 */
+	public static ArrayList<Partition> partition(int[] indices, int numVertices, int[] vertexJoints, float[] vertexWeights,
+			int maxJoints) {
+		ArrayList<Partition> partitions = new ArrayList<Partition>();
+		int[] vertexMap = new int[numVertices];
+		int[] jointMap = new int[maxJoints(vertexJoints) + 1];
+		int[] vertices = new int[numVertices];
+		int[] partitionIndices = new int[indices.length];
+		int[] joints = new int[maxJoints];
+		int[] newJoints = new int[3 * MAX_INFLUENCES];
+
+		int triangle = 0;
+		int numTriangles = indices.length / 3;
+		while (triangle < numTriangles) {
+			Arrays.fill(vertexMap, -1);
+			Arrays.fill(jointMap, -1);
+			int numVerticesUsed = 0, numIndices = 0, numJoints = 0;
+
+			for (; triangle < numTriangles; ++triangle) {
+				// -- the joints this triangle would add
+				int numNew = 0;
+				for (int k = 0; k < 3; ++k) {
+					int vertex = indices[triangle * 3 + k];
+					for (int n = 0; n < MAX_INFLUENCES; ++n) {
+						int influence = vertex * MAX_INFLUENCES + n;
+						int joint = vertexJoints[influence];
+						if (vertexWeights[influence] == 0 || jointMap[joint] != -1 || contains(newJoints, numNew, joint))
+							continue;
+						newJoints[numNew++] = joint;
+					}
+				}
+				if (numJoints + numNew > maxJoints)
+					break;
+				for (int n = 0; n < numNew; ++n) {
+					jointMap[newJoints[n]] = numJoints;
+					joints[numJoints++] = newJoints[n];
+				}
+				for (int k = 0; k < 3; ++k) {
+					int vertex = indices[triangle * 3 + k];
+					if (vertexMap[vertex] == -1) {
+						vertexMap[vertex] = numVerticesUsed;
+						vertices[numVerticesUsed++] = vertex;
+					}
+					partitionIndices[numIndices++] = vertexMap[vertex];
+				}
+			}
+
+			Partition partition = new Partition();
+			partition.joints = new int[numJoints];
+			System.arraycopy(joints, 0, partition.joints, 0, numJoints);
+			partition.vertices = new int[numVerticesUsed];
+			System.arraycopy(vertices, 0, partition.vertices, 0, numVerticesUsed);
+			partition.indices = new int[numIndices];
+			System.arraycopy(partitionIndices, 0, partition.indices, 0, numIndices);
+			partition.jointIndices = new float[numVerticesUsed * MAX_INFLUENCES];
+			partition.jointWeights = new float[numVerticesUsed * MAX_INFLUENCES];
+			for (int i = 0; i < numVerticesUsed; ++i) {
+				for (int n = 0; n < MAX_INFLUENCES; ++n) {
+					int influence = vertices[i] * MAX_INFLUENCES + n;
+					float weight = vertexWeights[influence];
+					partition.jointIndices[i * MAX_INFLUENCES + n] = weight == 0 ? 0 : jointMap[vertexJoints[influence]];
+					partition.jointWeights[i * MAX_INFLUENCES + n] = weight;
+				}
+			}
+			partitions.add(partition);
+		}
+		return partitions;
+	}
+
+	private static int maxJoints(int[] vertexJoints) {
+		int max = 0;
+		for (int i = 0; i < vertexJoints.length; ++i)
+			max = Math.max(max, vertexJoints[i]);
+		return max;
+	}
+
+	private static boolean contains(int[] values, int count, int value) {
+		for (int i = 0; i < count; ++i) {
+			if (values[i] == value)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The rotation {@link Quaternion#multiply(Number3D, Number3D)} applies, row major.
+	 */
+	private static void toRotation(Quaternion q, float[] m) {
+		float x2 = q.x * q.x, y2 = q.y * q.y, z2 = q.z * q.z;
+		float xy = q.x * q.y, xz = q.x * q.z, yz = q.y * q.z;
+		float wx = q.w * q.x, wy = q.w * q.y, wz = q.w * q.z;
+		m[0] = 1 - 2 * (y2 + z2);
+		m[1] = 2 * (xy + wz);
+		m[2] = 2 * (xz - wy);
+		m[3] = 2 * (xy - wz);
+		m[4] = 1 - 2 * (x2 + z2);
+		m[5] = 2 * (yz + wx);
+		m[6] = 2 * (xz + wy);
+		m[7] = 2 * (yz - wx);
+		m[8] = 1 - 2 * (x2 + y2);
+	}
+}
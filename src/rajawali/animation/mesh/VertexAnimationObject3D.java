@@ -8,6 +8,9 @@ import rajawali.SerializedObject3D;
 import rajawali.materials.AMaterial;
 
 public class VertexAnimationObject3D extends AAnimationObject3D {
+	private PackedVertexAnimation mPackedFrames;
+	private int mPackedFrameIndex;
+	private int mPackedNextFrameIndex;
 
 	public VertexAnimationObject3D() {
 		super();
@@ -36,8 +39,9 @@ public class VertexAnimationObject3D extends AAnimationObject3D {
 
 		long now = SystemClock.uptimeMillis();
 
-		// Calculate interpolation and frame delta (if playing)
-		if (isPlaying()) {
+		// Calculate interpolation and frame delta (if playing and not throttled)
+		boolean update = isPlaying() && isAnimationUpdateDue();
+		if (update) {
 			mInterpolation += (float) (now - mStartTime) * mFps / 1000;
 			mCurrentFrameIndex += (int) mInterpolation; // advance frame if interpolation >= 1
 			if (mCurrentFrameIndex > mEndFrameIndex) {
@@ -53,6 +57,16 @@ public class VertexAnimationObject3D extends AAnimationObject3D {
 			mInterpolation -= (int) mInterpolation; // clamp to [0, 1)
 		}
 
+		if (mPackedFrames != null) {
+			// -- the frames are selected by offset in setInstanceShaderParams(), after the buffers are bound
+			mPackedFrameIndex = mCurrentFrameIndex;
+			mPackedNextFrameIndex = getNextFrameIndex();
+			mMaterial.setInterpolation(mInterpolation);
+			if (update || !isPlaying())
+				mStartTime = now;
+			return;
+		}
+
 		// Update geometry (if current frame is different from before)
 		AGeometry3D currentGeometry = ((VertexAnimationFrame) mFrames.get(mCurrentFrameIndex)).getGeometry();
 		if (mGeometry.getBuffer(AMaterial.ATTR_POSITION) != currentGeometry.getBuffer(AMaterial.ATTR_POSITION)) {
@@ -62,6 +76,28 @@ public class VertexAnimationObject3D extends AAnimationObject3D {
 
 		// Find geometry for next frame in sequence
 		AGeometry3D nextGeometry = currentGeometry;
+		int nextFrame = getNextFrameIndex();
+		if (nextFrame >= 0 && nextFrame < mNumFrames) {
+			nextGeometry = ((VertexAnimationFrame) mFrames.get(nextFrame)).getGeometry();
+		}
+
+		// Set shader parameters
+		mMaterial.setInterpolation(mInterpolation);
+		mMaterial.setNextFrameVertices(nextGeometry.getBuffer(AMaterial.ATTR_POSITION).bufferHandle);
+		mMaterial.setNextFrameNormals(nextGeometry.getBuffer(AMaterial.ATTR_NORMAL).bufferHandle);
+
+		// -- a skipped update leaves the clock alone, the next one catches up
+		if (update || !isPlaying())
+			mStartTime = now;
+	}
+
+	protected void setInstanceShaderParams(Camera camera) {
+		super.setInstanceShaderParams(camera);
+		if (mPackedFrames != null && !mIsContainerOnly)
+			mPackedFrames.bind(mMaterial, mPackedFrameIndex, mPackedNextFrameIndex);
+	}
+
+	private int getNextFrameIndex() {
 		int nextFrame = mCurrentFrameIndex + 1;
 		if (nextFrame > mEndFrameIndex) {
 			if (mLoop) {
@@ -70,19 +106,30 @@ public class VertexAnimationObject3D extends AAnimationObject3D {
 				nextFrame = mEndFrameIndex;
 			}
 		}
-		if (nextFrame >= 0 && nextFrame < mNumFrames) {
-			nextGeometry = ((VertexAnimationFrame) mFrames.get(nextFrame)).getGeometry();
-		}
+		// -- nothing played yet, the range isn't known
+		if (nextFrame < 0 || nextFrame >= mNumFrames)
+			nextFrame = mCurrentFrameIndex;
+		return nextFrame;
+	}
 
-		// Set shader parameters
-		mMaterial.setInterpolation(mInterpolation);
-		mMaterial.setNextFrameVertices(nextGeometry.getBuffer(AMaterial.ATTR_POSITION).bufferHandle);
-		mMaterial.setNextFrameNormals(nextGeometry.getBuffer(AMaterial.ATTR_NORMAL).bufferHandle);
+	/**
+	 * Plays the frames from a single packed buffer instead of a buffer pair per frame. The
+	 * material must be created with {@link AMaterial#PACKED_VERTEX_ANIMATION}. The frames are
+	 * still needed for their names.
+	 * 
+	 * @param packedFrames
+	 */
+	public void setPackedFrames(PackedVertexAnimation packedFrames) {
+		mPackedFrames = packedFrames;
+	}
 
-		mStartTime = now;
+	public PackedVertexAnimation getPackedFrames() {
+		return mPackedFrames;
 	}
 
 	public void reload() {
+		if (mPackedFrames != null)
+			mPackedFrames.reload();
 		for (int i = 0; i < mNumFrames; i++) {
 			mFrames.get(i).getGeometry().reload();
 		}
@@ -99,6 +146,7 @@ public class VertexAnimationObject3D extends AAnimationObject3D {
 			clone.addFrame(getFrame(i));
 		}
 		clone.setFps(mFps);
+		clone.setPackedFrames(mPackedFrames);
 		return clone;
 	}
 
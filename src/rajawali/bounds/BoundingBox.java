@@ -97,6 +97,22 @@ public class BoundingBox implements IBoundingVolume {
 		calculateBounds(mGeometry);
 	}
 	
+	/**
+	 * Copies the bounds of another box, for geometries whose positions can't be read back
+	 * because they are quantized.
+	 * 
+	 * @param other
+	 */
+	public BoundingBox(BoundingBox other) {
+		this();
+		mGeometry = other.mGeometry;
+		mMin.setAllFrom(other.mMin);
+		mMax.setAllFrom(other.mMax);
+		mCenter.setAllFrom(other.mCenter);
+		for(int i=0; i<8; ++i)
+			mPoints[i].setAllFrom(other.mPoints[i]);
+	}
+	
 	public BaseObject3D getVisual() {
 		return mVisualBox;
 	}
@@ -105,15 +121,18 @@ public class BoundingBox implements IBoundingVolume {
 		BufferInfo bufferInfo = geometry.getBuffer(AMaterial.ATTR_POSITION);
 		FloatBuffer vertices = (FloatBuffer)bufferInfo.buffer;
 		vertices.rewind();
-		vertices.position(bufferInfo.attributeOffset);
+		// -- interleaved geometries store the position at a byte offset in every vertex
+		int skip = 0;
+		if (bufferInfo.vertexSize > 0) {
+			vertices.position(bufferInfo.attributeOffset / AGeometry3D.FLOAT_SIZE_BYTES);
+			skip = bufferInfo.vertexSize / AGeometry3D.FLOAT_SIZE_BYTES - 3;
+		}
 		
 		mMin = new Number3D(Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
 		mMax = new Number3D(-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
-		
-		int stride = bufferInfo.vertexSize;
 
 		Number3D vertex = new Number3D();
-		while(vertices.hasRemaining()) {
+		while(vertices.remaining() >= 3) {
 			vertex.x = vertices.get();
 			vertex.y = vertices.get();
 			vertex.z = vertices.get();
@@ -125,7 +144,7 @@ public class BoundingBox implements IBoundingVolume {
 			if(vertex.y > mMax.y) mMax.y = vertex.y;
 			if(vertex.z > mMax.z) mMax.z = vertex.z;
 
-			if (stride > 0) vertices.position(Math.min(vertices.position()+stride, vertices.limit()));
+			if (skip > 0) vertices.position(Math.min(vertices.position()+skip, vertices.limit()));
 		}
 		mCenter.setAll(0.5f * (mMin.x + mMax.x), 0.5f * (mMin.y + mMax.y), 0.5f * (mMin.z + mMax.z));
 		
@@ -36,6 +36,18 @@ public class BoundingSphere implements IBoundingVolume {
 		calculateBounds(mGeometry);
 	}
 	
+	/**
+	 * Copies the radius of another sphere, for geometries whose positions can't be read back
+	 * because they are quantized.
+	 * 
+	 * @param other
+	 */
+	public BoundingSphere(BoundingSphere other) {
+		this();
+		mGeometry = other.mGeometry;
+		mRadius = other.mRadius;
+	}
+	
 	public BaseObject3D getVisual() {
 		return mVisualSphere;
 	}
@@ -76,11 +88,14 @@ public class BoundingSphere implements IBoundingVolume {
 		BufferInfo bufferInfo = geometry.getBuffer(AMaterial.ATTR_POSITION);
 		FloatBuffer vertices = (FloatBuffer)bufferInfo.buffer;
 		vertices.rewind();		
-		vertices.position(bufferInfo.attributeOffset);
-		
-		int stride = bufferInfo.vertexSize;
+		// -- interleaved geometries store the position at a byte offset in every vertex
+		int skip = 0;
+		if (bufferInfo.vertexSize > 0) {
+			vertices.position(bufferInfo.attributeOffset / AGeometry3D.FLOAT_SIZE_BYTES);
+			skip = bufferInfo.vertexSize / AGeometry3D.FLOAT_SIZE_BYTES - 3;
+		}
 
-		while(vertices.hasRemaining()) {
+		while(vertices.remaining() >= 3) {
 			vertex.x = vertices.get();
 			vertex.y = vertices.get();
 			vertex.z = vertices.get();
@@ -88,7 +103,7 @@ public class BoundingSphere implements IBoundingVolume {
 			radius = vertex.length();
 			if(radius > maxRadius) maxRadius = radius;
 
-			if (stride > 0) vertices.position(Math.min(vertices.position()+stride, vertices.limit()));
+			if (skip > 0) vertices.position(Math.min(vertices.position()+skip, vertices.limit()));
 		}
 		mRadius = maxRadius;
 	}
@@ -72,4 +72,25 @@ public abstract class ALight extends ATransformable3D {
 		mPositionArray[2] = mPosition.z;
 		return mPositionArray;
 	}
+
+	/**
+	 * Estimates how much this light contributes to an object, used to pick the most important
+	 * lights when the number of lights per object is limited. A directional light reaches every
+	 * object with its full power.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 *            The center of the object's bounding sphere in world space
+	 * @param radius
+	 *            The radius of the object's bounding sphere in world space
+	 * @return
+	 */
+	public float getInfluence(float x, float y, float z, float radius) {
+		return mPower * getLuminance();
+	}
+
+	protected float getLuminance() {
+		return .299f * mColor[0] + .587f * mColor[1] + .114f * mColor[2];
+	}
 }
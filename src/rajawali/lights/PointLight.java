@@ -19,4 +19,22 @@ public class PointLight extends ALight {
 	public float[] getAttenuation() {
 		return mAttenuation;
 	}
+
+	/**
+	 * Evaluates the attenuation the shader uses at the point of the bounding sphere that is
+	 * closest to the light. Objects beyond the light's range aren't lit.
+	 */
+	@Override
+	public float getInfluence(float x, float y, float z, float radius) {
+		// -- the same position the shader gets
+		float[] position = getPositionArray();
+		float dx = position[0] - x;
+		float dy = position[1] - y;
+		float dz = position[2] - z;
+		float distance = Math.max(0, (float) Math.sqrt(dx * dx + dy * dy + dz * dz) - radius);
+		if (distance > mAttenuation[0])
+			return 0;
+		float attenuation = mAttenuation[1] + mAttenuation[2] * distance + mAttenuation[3] * distance * distance;
+		return attenuation > 0 ? mPower * getLuminance() / attenuation : mPower * getLuminance();
+	}
 }
@@ -1,15 +1,18 @@
 package rajawali.materials;
 
+import java.util.Arrays;
 import java.util.Stack;
 
 import rajawali.Camera;
 import rajawali.lights.ALight;
 import rajawali.lights.DirectionalLight;
 import rajawali.lights.PointLight;
+import rajawali.materials.ShaderProgramCache.ShaderProgram;
 import rajawali.math.Number3D;
 import rajawali.renderer.RajawaliRenderer;
 import android.graphics.Color;
 import android.opengl.GLES20;
+import android.util.SparseArray;
 
 public abstract class AAdvancedMaterial extends AMaterial {
 	protected static final int MAX_LIGHTS = RajawaliRenderer.getMaxLights(); 
@@ -74,6 +77,27 @@ public abstract class AAdvancedMaterial extends AMaterial {
 	protected float mFogNear, mFogFar;
 	protected boolean mFogEnabled;
 	
+	private int mNormalMatrixSlot = -1;
+	private int mAmbientColorSlot = -1;
+	private int mAmbientIntensitySlot = -1;
+	private int mFogColorSlot = -1;
+	private int mFogNearSlot = -1;
+	private int mFogFarSlot = -1;
+	private int mFogEnabledSlot = -1;
+	/**
+	 * The color, power, position, direction and attenuation slots of every light.
+	 */
+	private int[][] mLightSlots = new int[0][];
+	/**
+	 * The programs for the light setups this material was used with, keyed by the light types.
+	 * Switching between them doesn't compile anything.
+	 * 
+	 * @see #getLightSignature(Stack)
+	 */
+	private final SparseArray<ShaderProgram> mLightVariants = new SparseArray<ShaderProgram>();
+	private int mLightSignature = -1;
+	private int mPrecompiledLights;
+	
 	protected android.graphics.Matrix mTmpNormalMatrix = new android.graphics.Matrix();
 	protected android.graphics.Matrix mTmpMvMatrix = new android.graphics.Matrix();
 
@@ -104,49 +128,125 @@ public abstract class AAdvancedMaterial extends AMaterial {
 	
 	@Override
 	public void setLights(Stack<ALight> lights) {
-		if(lights.size() != mLights.size() && lights.size() != 0) {
-			super.setLights(lights);
+		if(lights == null || lights.size() == 0)
+			return;
+		// -- called for every object when lights are selected per object, this mustn't allocate
+		int signature = getLightSignature(lights);
+		mLights.clear();
+		for(int i=0; i<lights.size(); ++i)
+			mLights.add(lights.get(i));
+		if(signature == mLightSignature)
+			return;
+
+		// -- the shader only depends on the light types, other lights of the same types reuse it
+		ShaderProgram variant = mLightVariants.get(signature);
+		if(variant != null && mShaderProgram != null) {
+			setShaderProgram(variant);
+			mLightSignature = signature;
+		} else {
 			setShaders(mUntouchedVertexShader, mUntouchedFragmentShader);
-		} else if(lights.size() != 0) {
-			boolean same = true;
-			for(int i=0; i<lights.size(); ++i)
-				if(lights.get(i) != mLights.get(i))
-					same = false;
-			if(!same)
-			{
-				super.setLights(lights);
-				setShaders(mUntouchedVertexShader, mUntouchedFragmentShader);
+		}
+	}
+
+	/**
+	 * Compiles the programs for every light setup of up to the given number of lights, so
+	 * objects that limit their lights never compile while rendering. Directional lights come
+	 * first, so there are (maxLights + 1) * (maxLights + 2) / 2 - 1 setups.
+	 * 
+	 * @param maxLights
+	 * @see rajawali.BaseObject3D#setMaxLights(int)
+	 */
+	public void precompileLightVariants(int maxLights) {
+		if(maxLights <= mPrecompiledLights || mShaderProgram == null)
+			return;
+		mPrecompiledLights = maxLights;
+		Stack<ALight> lights = new Stack<ALight>();
+		lights.addAll(mLights);
+		int signature = mLightSignature;
+		Stack<ALight> setup = new Stack<ALight>();
+		for(int numLights = 1; numLights <= maxLights; ++numLights) {
+			for(int numDirectional = numLights; numDirectional >= 0; --numDirectional) {
+				setup.clear();
+				for(int i=0; i<numLights; ++i)
+					setup.add(i < numDirectional ? new DirectionalLight() : new PointLight());
+				setLights(setup);
 			}
-		} else {
-			super.setLights(lights);
 		}
+
+		mLights.clear();
+		mLights.addAll(lights);
+		ShaderProgram program = mLightVariants.get(signature);
+		if(program != null) {
+			setShaderProgram(program);
+			mLightSignature = signature;
+		}
+	}
+
+	/**
+	 * Returns a key that is the same for all light stacks that result in the same shader. The
+	 * highest bit marks the number of lights, the bits below it are set for point lights.
+	 * 
+	 * @param lights
+	 * @return
+	 */
+	protected int getLightSignature(Stack<ALight> lights) {
+		int numLights = lights.size();
+		int signature = 1 << numLights;
+		for(int i=0; i<numLights; ++i) {
+			if(lights.get(i).getLightType() != ALight.DIRECTIONAL_LIGHT)
+				signature |= 1 << i;
+		}
+		return signature;
+	}
+
+	private void releaseLightVariants() {
+		ShaderProgramCache cache = ShaderProgramCache.getInstance();
+		for(int i=0; i<mLightVariants.size(); ++i)
+			cache.release(mLightVariants.valueAt(i));
+		mLightVariants.clear();
+		mLightSignature = -1;
+		mPrecompiledLights = 0;
+	}
+
+	@Override
+	public void reload() {
+		releaseLightVariants();
+		super.reload();
+	}
+
+	@Override
+	public void unload() {
+		super.unload();
+		releaseLightVariants();
 	}
 	
 	@Override
 	public void setLightParams() {
-		int uni;
-		for(int i=0; i<mLights.size(); ++i) {
+		// -- lights rarely change during a frame, the program keeps the values of the previous object
+		int numLights = mLights.size();
+		for(int i=0; i<numLights; ++i) {
 			ALight light = mLights.get(i);
-			uni = getUniformHandle(UNI_LIGHT_COLOR+i);
-			if (uni > -1)
-				GLES20.glUniform3fv(uni, 1, light.getColor(), 0);
-			uni = getUniformHandle(UNI_LIGHT_POWER+i);
-			if (uni > -1)
-				GLES20.glUniform1f(uni, light.getPower());
-			uni = getUniformHandle(UNI_LIGHT_POSITION+i);
-			if (uni > -1)
-				GLES20.glUniform3fv(uni, 1, light.getPositionArray(), 0);
-			if(light.getLightType() == ALight.DIRECTIONAL_LIGHT) {
-				uni = getUniformHandle(UNI_LIGHT_DIRECTION+i);
-				if (uni > -1)
-					GLES20.glUniform3fv(uni, 1, ((DirectionalLight)light).getDirection(), 0);
-			} else {
-				uni = getUniformHandle(UNI_LIGHT_ATTENUATION+i);
-				if (uni > -1)
-					GLES20.glUniform4fv(uni, 1, ((PointLight)light).getAttenuation(), 0);
-			}
+			int[] slots = getLightSlots(i);
+			setUniform3fv(slots[0], light.getColor());
+			setUniform1f(slots[1], light.getPower());
+			setUniform3fv(slots[2], light.getPositionArray());
+			if(light.getLightType() == ALight.DIRECTIONAL_LIGHT)
+				setUniform3fv(slots[3], ((DirectionalLight)light).getDirection());
+			else
+				setUniform4fv(slots[4], ((PointLight)light).getAttenuation());
 		}
 	}
+
+	private int[] getLightSlots(int index) {
+		if(index >= mLightSlots.length)
+			mLightSlots = Arrays.copyOf(mLightSlots, index + 1);
+		if(mLightSlots[index] == null) {
+			mLightSlots[index] = new int[] { getUniformSlot(UNI_LIGHT_COLOR+index), getUniformSlot(UNI_LIGHT_POWER+index),
+					getUniformSlot(UNI_LIGHT_POSITION+index), getUniformSlot(UNI_LIGHT_DIRECTION+index),
+					getUniformSlot(UNI_LIGHT_ATTENUATION+index) };
+		}
+		return mLightSlots[index];
+	}
 	
 	public void setAmbientColor(float[] color) {
 		mAmbientColor = color;
@@ -201,29 +301,14 @@ public abstract class AAdvancedMaterial extends AMaterial {
 	public void useProgram() {
 		super.useProgram();
 
-		int uni = getUniformHandle(UNI_AMBIENT_COLOR);
-		if (uni > -1)
-			GLES20.glUniform4fv(uni, 1, mAmbientColor, 0);
-		uni = getUniformHandle(UNI_AMBIENT_INTENSITY);
-		if (uni > -1)
-			GLES20.glUniform4fv(uni, 1, mAmbientIntensity, 0);
+		setUniform4fv(mAmbientColorSlot, mAmbientColor);
+		setUniform4fv(mAmbientIntensitySlot, mAmbientIntensity);
 
 		if(mFogEnabled) {
-			uni = getUniformHandle(UNI_FOG_COLOR);
-			if (uni > -1)
-				GLES20.glUniform3fv(uni, 1, mFogColor, 0);
-
-			uni = getUniformHandle(UNI_FOG_NEAR);
-			if (uni > -1)
-				GLES20.glUniform1f(uni, mFogNear);
-
-			uni = getUniformHandle(UNI_FOG_FAR);
-			if (uni > -1)
-				GLES20.glUniform1f(uni, mFogFar);
-
-			uni = getUniformHandle(UNI_FOG_ENABLED);
-			if (uni > -1)
-				GLES20.glUniform1i(uni, mFogEnabled == true ? GLES20.GL_TRUE : GLES20.GL_FALSE);
+			setUniform3fv(mFogColorSlot, mFogColor);
+			setUniform1f(mFogNearSlot, mFogNear);
+			setUniform1f(mFogFarSlot, mFogFar);
+			setUniform1i(mFogEnabledSlot, mFogEnabled == true ? GLES20.GL_TRUE : GLES20.GL_FALSE);
 		}
 	}
 	
@@ -263,13 +348,27 @@ System.out.println(fragmentShader);
 		super.setShaders(vertexShader, fragmentShader);
 
 		registerUniforms(UNI_NORMAL_MATRIX, UNI_AMBIENT_COLOR, UNI_AMBIENT_INTENSITY);
-		
-		for(int i=0; i<mLights.size(); ++i) {
+		mNormalMatrixSlot = getUniformSlot(UNI_NORMAL_MATRIX);
+		mAmbientColorSlot = getUniformSlot(UNI_AMBIENT_COLOR);
+		mAmbientIntensitySlot = getUniformSlot(UNI_AMBIENT_INTENSITY);
+
+		for(int i=0; i<numLights; ++i)
 			registerUniforms(UNI_LIGHT_COLOR+i, UNI_LIGHT_POWER+i, UNI_LIGHT_POSITION+i, UNI_LIGHT_DIRECTION+i, UNI_LIGHT_ATTENUATION+i);
+
+		if(mShaderProgram != null) {
+			mLightSignature = getLightSignature(mLights);
+			if(mLightVariants.get(mLightSignature) == null) {
+				mShaderProgram.getCache().retain(mShaderProgram);
+				mLightVariants.put(mLightSignature, mShaderProgram);
+			}
 		}
 		
 		if(RajawaliRenderer.isFogEnabled()) {
 			registerUniforms(UNI_FOG_COLOR, UNI_FOG_NEAR, UNI_FOG_FAR, UNI_FOG_ENABLED);
+			mFogColorSlot = getUniformSlot(UNI_FOG_COLOR);
+			mFogNearSlot = getUniformSlot(UNI_FOG_NEAR);
+			mFogFarSlot = getUniformSlot(UNI_FOG_FAR);
+			mFogEnabledSlot = getUniformSlot(UNI_FOG_ENABLED);
 		}
 	}
 	
@@ -293,9 +392,7 @@ System.out.println(fragmentShader);
 		mTmpNormalMatrix.setValues(mTmp2);
 		mTmpNormalMatrix.getValues(mNormalMatrix);
 
-		int uni = getUniformHandle(UNI_NORMAL_MATRIX);
-		if (uni > -1)
-			GLES20.glUniformMatrix3fv(uni, 1, false, mNormalMatrix, 0);
+		setUniformMatrix3fv(mNormalMatrixSlot, mNormalMatrix);
 	}
 	
 	public void destroy() {
@@ -2,13 +2,19 @@ package rajawali.materials;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Stack;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import rajawali.BufferInfo;
 import rajawali.Camera;
 import rajawali.lights.ALight;
+import rajawali.materials.ShaderProgramCache.ShaderProgram;
 import rajawali.materials.TextureManager.TextureType;
 import rajawali.math.Number3D;
+import rajawali.renderer.AssetLoader;
 import rajawali.renderer.RajawaliRenderer;
 import rajawali.util.RajLog;
 import rajawali.wallpaper.Wallpaper;
@@ -18,6 +24,21 @@ import android.util.Log;
 public abstract class AMaterial {
 	public static final int NONE				= 0;
 	public static final int VERTEX_ANIMATION 	= 1 << 0;
+	public static final int SKELETAL_ANIMATION	= 1 << 1;
+	/**
+	 * Vertex animation with all frames quantized in one buffer, implies
+	 * {@link #VERTEX_ANIMATION}. The positions are unsigned bytes that are scaled per frame, the
+	 * normals are octahedral encoded in two unsigned bytes.
+	 * 
+	 * @see rajawali.animation.mesh.PackedVertexAnimation
+	 */
+	public static final int PACKED_VERTEX_ANIMATION = 1 << 2;
+
+	/**
+	 * The number of joints in a skinning palette. Every joint takes three uniform vectors, a
+	 * mesh that is influenced by more joints is split into several palettes.
+	 */
+	public static final int MAX_PALETTE_JOINTS	= 24;
 
 	public static final String ATTR_POSITION			= "aPosition";
 	public static final String ATTR_NORMAL				= "aNormal";
@@ -25,12 +46,16 @@ public abstract class AMaterial {
 	public static final String ATTR_COLOR				= "aColor";
 	public static final String ATTR_NEXT_FRAME_POSITION	= "aNextFramePosition";
 	public static final String ATTR_NEXT_FRAME_NORMAL	= "aNextFrameNormal";
+	public static final String ATTR_JOINT_INDEX			= "aJointIndex";
+	public static final String ATTR_JOINT_WEIGHT		= "aJointWeight";
 
 	public static final String UNI_CAMERA_POSITION	= "uCameraPosition";
 	public static final String UNI_MVP_MATRIX		= "uMVPMatrix";
 	public static final String UNI_MODEL_MATRIX		= "uMMatrix";
 	public static final String UNI_VIEW_MATRIX		= "uVMatrix";
 	public static final String UNI_INTERPOATION		= "uInterpolation";
+	public static final String UNI_JOINT_PALETTE	= "uJointPalette";
+	public static final String UNI_FRAME_DEQUANTIZE	= "uFrameDequantize";
 
 	public static final String UNI_DIFFUSE_TEX		= "uDiffuseTexture";
 	public static final String UNI_NORMAL_TEX		= "uNormalTexture";
@@ -40,17 +65,97 @@ public abstract class AMaterial {
 	public static final String UNI_CUBEMAP_TEX		= "uCubeMapTexture";
 	public static final String UNI_SPHEREMAP_TEX	= "uSphereMapTexture";
 
+	/**
+	 * Vertex shader declarations for skinning, see {@link #M_SKINNING_VERTEX_POSITION}.
+	 */
+	public static final String M_SKINNING_VERTEX_VARS =
+			"\n#ifdef SKELETAL_ANIM\n" +
+			"attribute vec4 " + ATTR_JOINT_INDEX + ";\n" +
+			"attribute vec4 " + ATTR_JOINT_WEIGHT + ";\n" +
+			"uniform vec4 " + UNI_JOINT_PALETTE + "[" + MAX_PALETTE_JOINTS * 3 + "];\n" +
+			"#endif\n";
+	/**
+	 * Skins the local position and normal variables with up to four joints. Every joint of the
+	 * palette is the top three rows of its skinning matrix.
+	 */
+	public static final String M_SKINNING_VERTEX_POSITION =
+			"	#ifdef SKELETAL_ANIM\n" +
+			"	vec3 skinnedPosition = vec3(0.0);\n" +
+			"	vec3 skinnedNormal = vec3(0.0);\n" +
+			"	for(int i = 0; i < 4; i++) {\n" +
+			"		int row = int(" + ATTR_JOINT_INDEX + "[i]) * 3;\n" +
+			"		vec4 row0 = " + UNI_JOINT_PALETTE + "[row];\n" +
+			"		vec4 row1 = " + UNI_JOINT_PALETTE + "[row + 1];\n" +
+			"		vec4 row2 = " + UNI_JOINT_PALETTE + "[row + 2];\n" +
+			"		skinnedPosition += " + ATTR_JOINT_WEIGHT + "[i] * vec3(dot(row0, position), dot(row1, position), dot(row2, position));\n" +
+			"		skinnedNormal += " + ATTR_JOINT_WEIGHT + "[i] * vec3(dot(row0.xyz, normal), dot(row1.xyz, normal), dot(row2.xyz, normal));\n" +
+			"	}\n" +
+			"	position = vec4(skinnedPosition, 1.0);\n" +
+			"	normal = skinnedNormal;\n" +
+			"	#endif\n";
+
+	/**
+	 * Vertex shader declarations for packed vertex animation, see
+	 * {@link #M_PACKED_VERTEX_ANIM_POSITION}.
+	 */
+	public static final String M_PACKED_VERTEX_ANIM_VARS =
+			"\n#ifdef PACKED_VERTEX_ANIM\n" +
+			"uniform vec3 " + UNI_FRAME_DEQUANTIZE + "[4];\n" +
+			"vec3 octDecode(vec2 e) {\n" +
+			"	e = e * (2.0 / 255.0) - 1.0;\n" +
+			"	vec3 n = vec3(e, 1.0 - abs(e.x) - abs(e.y));\n" +
+			"	if(n.z < 0.0)\n" +
+			"		n.xy = (1.0 - abs(n.yx)) * vec2(n.x >= 0.0 ? 1.0 : -1.0, n.y >= 0.0 ? 1.0 : -1.0);\n" +
+			"	return normalize(n);\n" +
+			"}\n" +
+			"#endif\n";
+	/**
+	 * Decodes the current and next frame of packed vertex animation into the local position and
+	 * normal variables. The dequantize uniform holds the scale and offset of both frames.
+	 */
+	public static final String M_PACKED_VERTEX_ANIM_POSITION =
+			"	#ifdef PACKED_VERTEX_ANIM\n" +
+			"	position = vec4(mix(" + ATTR_POSITION + ".xyz * " + UNI_FRAME_DEQUANTIZE + "[0] + " + UNI_FRAME_DEQUANTIZE + "[1], " +
+					ATTR_NEXT_FRAME_POSITION + ".xyz * " + UNI_FRAME_DEQUANTIZE + "[2] + " + UNI_FRAME_DEQUANTIZE + "[3], " + UNI_INTERPOATION + "), 1.0);\n" +
+			"	normal = mix(octDecode(" + ATTR_NORMAL + ".xy), octDecode(" + ATTR_NEXT_FRAME_NORMAL + ".xy), " + UNI_INTERPOATION + ");\n" +
+			"	#endif\n";
+
+	/**
+	 * Matches an attribute declaration and captures the declared names
+	 */
+	private static final Pattern ATTRIBUTE_DECLARATION = Pattern.compile("^\\s*attribute\\s+(?:(?:lowp|mediump|highp)\\s+)?\\w+\\s+([^;]+);", Pattern.MULTILINE);
+
 	protected String mUntouchedVertexShader;
 	protected String mUntouchedFragmentShader;
 	protected String mVertexShader;
 	protected String mFragmentShader;
+	private String mDeclaredAttributesSource;
+	private HashSet<String> mDeclaredAttributes;
 
 	protected int mProgram;
+	/**
+	 * The shared program, mProgram is its handle.
+	 * 
+	 * @see ShaderProgramCache
+	 */
+	protected ShaderProgram mShaderProgram;
 	protected int mVShaderHandle;
 	protected int mFShaderHandle;
 
 	protected final HashMap<String, Integer> mAttributes = new HashMap<String, Integer>();
 	protected final HashMap<String, Integer> mUniforms = new HashMap<String, Integer>();
+	/**
+	 * Uniform slots of the uniforms that are set for every object.
+	 * 
+	 * @see ShaderProgramCache#getUniformSlot(String)
+	 */
+	private int mMVPMatrixSlot = -1;
+	private int mModelMatrixSlot = -1;
+	private int mViewMatrixSlot = -1;
+	private int mCameraPositionSlot = -1;
+	private int mInterpolationSlot = -1;
+	private int mJointPaletteSlot = -1;
+	private int mFrameDequantizeSlot = -1;
 
 	protected Stack<ALight> mLights;
 	protected boolean mUseColor = false;
@@ -69,6 +174,8 @@ public abstract class AMaterial {
 	private boolean mProgramCreated = false;
 	
 	protected boolean mVertexAnimationEnabled;
+	protected boolean mSkeletalAnimationEnabled;
+	protected boolean mPackedVertexAnimationEnabled;
 	
 	public AMaterial() {
 		mTextureInfoList = new ArrayList<TextureInfo>();
@@ -85,15 +192,22 @@ public abstract class AMaterial {
 		this();
 		mUntouchedVertexShader = vertexShader;
 		mUntouchedFragmentShader = fragmentShader;
-		mVertexAnimationEnabled = (parameters & VERTEX_ANIMATION) != 0;
+		mVertexAnimationEnabled = (parameters & (VERTEX_ANIMATION | PACKED_VERTEX_ANIMATION)) != 0;
+		mPackedVertexAnimationEnabled = (parameters & PACKED_VERTEX_ANIMATION) != 0;
+		mSkeletalAnimationEnabled = (parameters & SKELETAL_ANIMATION) != 0;
 	}
 	
 	public AMaterial(int parameters) {
 		this();
-		mVertexAnimationEnabled = (parameters & VERTEX_ANIMATION) != 0;
+		mVertexAnimationEnabled = (parameters & (VERTEX_ANIMATION | PACKED_VERTEX_ANIMATION)) != 0;
+		mPackedVertexAnimationEnabled = (parameters & PACKED_VERTEX_ANIMATION) != 0;
+		mSkeletalAnimationEnabled = (parameters & SKELETAL_ANIMATION) != 0;
 	}
 	
 	protected int queryMaxTextures() {
+		// -- queried again when the program is created on the OpenGL thread
+		if(AssetLoader.isLoaderThread())
+			return 0;
 		int numTexUnits[] = new int[1];
 		GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_IMAGE_UNITS, numTexUnits, 0);
 		return numTexUnits[0];
@@ -114,8 +228,44 @@ public abstract class AMaterial {
 		setShaders(mUntouchedVertexShader, mUntouchedFragmentShader);
 	}
 	
+	/**
+	 * Compiles a single shader. Programs are compiled by the {@link ShaderProgramCache}, so
+	 * overriding this doesn't change how materials compile their shaders anymore.
+	 * 
+	 * @deprecated Use {@link #createProgram(String, String)}
+	 */
+	@Deprecated
+	protected int loadShader(int shaderType, String source) {
+		return ShaderProgramCache.getInstance().loadShader(shaderType, source);
+	}
+
+	/**
+	 * Gets the program for the given shader source from the {@link ShaderProgramCache}.
+	 * Materials with the same final shader source share their program. The previous program
+	 * of this material is released.
+	 * 
+	 * @param vertexSource
+	 * @param fragmentSource
+	 * @return The program handle, 0 when the shaders couldn't be compiled
+	 */
+	protected int createProgram(String vertexSource, String fragmentSource) {
+		ShaderProgram program = ShaderProgramCache.getInstance().acquire(vertexSource, fragmentSource);
+		releaseProgram();
+		if (program == null)
+			return 0;
+		mShaderProgram = program;
+		mVShaderHandle = program.getVertexShaderHandle();
+		mFShaderHandle = program.getFragmentShaderHandle();
+		return program.getHandle();
+	}
+	
 	public void setShaders(String vertexShader, String fragmentShader) {
+		// -- materials created on a loader thread create their program on first use
+		if(AssetLoader.isLoaderThread())
+			return;
 		mVertexShader = mVertexAnimationEnabled ? "#define VERTEX_ANIM\n" + vertexShader : vertexShader;
+		mVertexShader = mPackedVertexAnimationEnabled ? "#define PACKED_VERTEX_ANIM\n" + mVertexShader : mVertexShader;
+		mVertexShader = mSkeletalAnimationEnabled ? "#define SKELETAL_ANIM\n" + mVertexShader : mVertexShader;
 		mVertexShader = mUseColor ? mVertexShader : "#define TEXTURED\n" + mVertexShader;
 		mFragmentShader = mUseColor ? fragmentShader : "#define TEXTURED\n" + fragmentShader;
 
@@ -132,9 +282,26 @@ public abstract class AMaterial {
 		registerAttributes(ATTR_POSITION, ATTR_NORMAL, ATTR_TEXTURECOORD, ATTR_COLOR);
 		registerUniforms(UNI_CAMERA_POSITION, UNI_MVP_MATRIX, UNI_MODEL_MATRIX, UNI_VIEW_MATRIX);
 		
+		mMVPMatrixSlot = getUniformSlot(UNI_MVP_MATRIX);
+		mModelMatrixSlot = getUniformSlot(UNI_MODEL_MATRIX);
+		mViewMatrixSlot = getUniformSlot(UNI_VIEW_MATRIX);
+		mCameraPositionSlot = getUniformSlot(UNI_CAMERA_POSITION);
+		
 		if(mVertexAnimationEnabled == true) {
 			registerAttributes(ATTR_NEXT_FRAME_POSITION, ATTR_NEXT_FRAME_NORMAL);
 			registerUniforms(UNI_INTERPOATION);
+			mInterpolationSlot = getUniformSlot(UNI_INTERPOATION);
+		}
+		
+		if(mPackedVertexAnimationEnabled == true) {
+			registerUniforms(UNI_FRAME_DEQUANTIZE);
+			mFrameDequantizeSlot = getUniformSlot(UNI_FRAME_DEQUANTIZE);
+		}
+		
+		if(mSkeletalAnimationEnabled == true) {
+			registerAttributes(ATTR_JOINT_INDEX, ATTR_JOINT_WEIGHT);
+			registerUniforms(UNI_JOINT_PALETTE);
+			mJointPaletteSlot = getUniformSlot(UNI_JOINT_PALETTE);
 		}
 		
 		mProgramCreated = true;
@@ -142,64 +309,60 @@ public abstract class AMaterial {
 		checkTextureHandles();
 	}
 
-	protected int loadShader(int shaderType, String source) {
-		int shader = GLES20.glCreateShader(shaderType);
-		if (shader != 0) {
-			GLES20.glShaderSource(shader, source);
-			GLES20.glCompileShader(shader);
-			int[] compiled = new int[1];
-			GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
-			if (compiled[0] == 0) {
-				RajLog.e("[" +getClass().getName()+ "] Could not compile " + (shaderType == GLES20.GL_FRAGMENT_SHADER ? "fragment" : "vertex") + " shader:");
-				RajLog.e("Shader log: " + GLES20.glGetShaderInfoLog(shader));
-				GLES20.glDeleteShader(shader);
-				shader = 0;
-			}
-		}
-		return shader;
+	protected int getUniformLocation(String name) {
+		if(AssetLoader.isLoaderThread() || mShaderProgram == null)
+			return -1;
+		return mShaderProgram.getUniformLocation(name);
 	}
 
-	protected int createProgram(String vertexSource, String fragmentSource) {
-		mVShaderHandle = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
-		if (mVShaderHandle == 0) {
-			return 0;
-		}
+	protected int getAttribLocation(String name) {
+		if(AssetLoader.isLoaderThread() || mShaderProgram == null)
+			return -1;
+		return mShaderProgram.getAttributeLocation(name);
+	}
+	
+	/**
+	 * Returns the slot of a uniform. Uniforms that are set through their slot aren't uploaded
+	 * again when the program already has the value. Slots are the same for every program.
+	 * 
+	 * @param name
+	 * @return
+	 * @see ShaderProgramCache#getUniformSlot(String)
+	 */
+	protected int getUniformSlot(String name) {
+		return ShaderProgramCache.getUniformSlot(name);
+	}
 
-		mFShaderHandle = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
-		if (mFShaderHandle == 0) {
-			return 0;
-		}
+	protected void setUniform1f(int slot, float value) {
+		if(slot > -1 && mShaderProgram != null)
+			mShaderProgram.setUniform1f(slot, value);
+	}
 
-		int program = GLES20.glCreateProgram();
-		if (program != 0) {
-			GLES20.glAttachShader(program, mVShaderHandle);
-			GLES20.glAttachShader(program, mFShaderHandle);
-			GLES20.glLinkProgram(program);
-
-			int[] linkStatus = new int[1];
-			GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
-			if (linkStatus[0] != GLES20.GL_TRUE) {
-				RajLog.e("Could not link program in " + getClass().getCanonicalName() +": ");
-				RajLog.e(GLES20.glGetProgramInfoLog(program));
-				RajLog.d("-=-=-= VERTEX SHADER =-=-=-");
-				RajLog.d(mVertexShader);
-				RajLog.d("-=-=-= FRAGMENT SHADER =-=-=-");
-				RajLog.d(mFragmentShader);
-				GLES20.glDeleteProgram(program);
-				program = 0;
-			}
-		}
-		return program;
+	protected void setUniform1i(int slot, int value) {
+		if(slot > -1 && mShaderProgram != null)
+			mShaderProgram.setUniform1i(slot, value);
 	}
 
-	protected int getUniformLocation(String name) {
-		return GLES20.glGetUniformLocation(mProgram, name);
+	protected void setUniform3fv(int slot, float[] values) {
+		if(slot > -1 && mShaderProgram != null)
+			mShaderProgram.setUniform3fv(slot, values);
 	}
 
-	protected int getAttribLocation(String name) {
-		return GLES20.glGetAttribLocation(mProgram, name);
+	protected void setUniform4fv(int slot, float[] values) {
+		if(slot > -1 && mShaderProgram != null)
+			mShaderProgram.setUniform4fv(slot, values);
 	}
-	
+
+	protected void setUniformMatrix3fv(int slot, float[] values) {
+		if(slot > -1 && mShaderProgram != null)
+			mShaderProgram.setUniformMatrix3fv(slot, values);
+	}
+
+	protected void setUniformMatrix4fv(int slot, float[] values) {
+		if(slot > -1 && mShaderProgram != null)
+			mShaderProgram.setUniformMatrix4fv(slot, values);
+	}
+
 	public void registerUniforms( String... uniforms) {
 		for (String name : uniforms) {
 			int handle = getUniformLocation(name);
@@ -237,37 +400,95 @@ public abstract class AMaterial {
 	}
 
 	public void unload() {
-		GLES20.glDeleteShader(mVShaderHandle);
-		GLES20.glDeleteShader(mFShaderHandle);
-		GLES20.glDeleteProgram(mProgram);
+		releaseProgram();
 	}
 	
+	/**
+	 * Drops this material's reference to its shared program. The program is deleted when no
+	 * other material uses it.
+	 */
+	protected void releaseProgram() {
+		if(mShaderProgram != null) {
+			mShaderProgram.getCache().release(mShaderProgram);
+			mShaderProgram = null;
+		}
+	}
+
+	/**
+	 * Switches to another program that was compiled from this material's shaders, without
+	 * compiling anything. The attribute and uniform handles are looked up again, values that
+	 * are set through uniform slots carry over because slots are the same for every program.
+	 *
+	 * @param program
+	 */
+	protected void setShaderProgram(ShaderProgram program) {
+		if(program == mShaderProgram)
+			return;
+		program.getCache().retain(program);
+		releaseProgram();
+		mShaderProgram = program;
+		mProgram = program.getHandle();
+		mVShaderHandle = program.getVertexShaderHandle();
+		mFShaderHandle = program.getFragmentShaderHandle();
+		for(Map.Entry<String, Integer> entry : mAttributes.entrySet())
+			entry.setValue(program.getAttributeLocation(entry.getKey()));
+		for(Map.Entry<String, Integer> entry : mUniforms.entrySet())
+			entry.setValue(program.getUniformLocation(entry.getKey()));
+		int num = mTextureInfoList.size();
+		for(int i=0; i<num; ++i) {
+			TextureInfo ti = mTextureInfoList.get(i);
+			ti.setUniformHandle(program.getUniformLocation(ti.getTextureName()));
+		}
+	}
+
 	public void destroy() {
 		mModelViewMatrix = null;
 		mViewMatrix = null;
 		mCameraPosArray = null;
 		if(mLights != null) mLights.clear();
-		if(mTextureInfoList != null) mTextureInfoList.clear();
+		if(mTextureInfoList != null) {
+			releaseSharedTextures();
+			mTextureInfoList.clear();
+		}
 		unload();
 	}
 
+	private void releaseSharedTextures() {
+		int num = mTextureInfoList.size();
+		for(int i=0; i<num; ++i) {
+			TextureInfo ti = mTextureInfoList.get(i);
+			if(ti.mRegistry != null)
+				ti.mRegistry.release(ti);
+		}
+	}
+
 	public void useProgram() {
 		if(!mProgramCreated) {
 			mMaxTextures = queryMaxTextures();
 			reload();
 		}
-		GLES20.glUseProgram(mProgram);
+		ShaderProgramCache.getInstance().useProgram(mProgram);
 	}
 
 	public void bindTextures() {
 		int num = mTextureInfoList.size();
 
+		// -- restore evicted textures before binding, uploading changes the texture binding
+		for (int i = 0; i < num; i++) {
+			TextureInfo ti = mTextureInfoList.get(i);
+			if(ti.mEvicted)
+				ti.mEvictedBy.restoreTexture(ti);
+		}
+
 		for (int i = 0; i < num; i++) {
 			TextureInfo ti = mTextureInfoList.get(i);
 			int type = ti.isCubeMap() ? GLES20.GL_TEXTURE_CUBE_MAP : GLES20.GL_TEXTURE_2D;
 			GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
 			GLES20.glBindTexture(type, ti.getTextureId());
-			GLES20.glUniform1i(ti.getUniformHandle(), i);
+			if (ti.mUniformSlot < 0)
+				ti.mUniformSlot = getUniformSlot(ti.getTextureName());
+			setUniform1i(ti.mUniformSlot, i);
+			ti.markUsed();
 		}
 	}
 
@@ -300,14 +521,15 @@ public abstract class AMaterial {
 	}
 	
 	public void removeTexture(TextureInfo textureInfo) {
-		mTextureInfoList.remove(textureInfo);
+		if(mTextureInfoList.remove(textureInfo) && textureInfo.mRegistry != null)
+			textureInfo.mRegistry.release(textureInfo);
 	}
 	
 	public void addTexture(TextureInfo textureInfo, boolean isExistingTexture, boolean reload) {
 		// -- check if this texture is already in the list
 		if(mTextureInfoList.indexOf(textureInfo) > -1 && !reload) return;		
 		
-		if(mTextureInfoList.size() > mMaxTextures) {
+		if(mMaxTextures > 0 && mTextureInfoList.size() > mMaxTextures) {
 			RajLog.e("[" +getClass().getCanonicalName()+ "] Maximum number of textures for this material has been reached. Maximum number of textures is " + mMaxTextures + ".");
 		}
 		
@@ -357,7 +579,7 @@ public abstract class AMaterial {
 			textureName = textureInfo.getTextureName();
 		
 		if(mProgramCreated) {
-			int textureHandle = GLES20.glGetUniformLocation(mProgram, textureName);
+			int textureHandle = getUniformLocation(textureName);
 			if (textureHandle == -1) {
 				RajLog.d("Could not get attrib location for "
 						+ textureName + ", " + textureInfo.getTextureType());
@@ -372,6 +594,8 @@ public abstract class AMaterial {
 		if(!isExistingTexture) {
 			mTextureInfoList.add(textureInfo);
 			mNumTextures++;
+			if(textureInfo.mRegistry != null)
+				textureInfo.mRegistry.retain(textureInfo);
 		}
 	}
 	
@@ -386,15 +610,60 @@ public abstract class AMaterial {
 	}
 	
 	public void setBuffer(final BufferInfo bufferInfo) {
+		setBuffer(bufferInfo, -1);
+	}
+
+	/**
+	 * Sets a vertex attribute without binding its buffer again when it already is bound. The
+	 * attributes of an interleaved geometry share one buffer, so it's only bound for the first.
+	 * 
+	 * @param bufferInfo
+	 * @param boundBufferHandle
+	 *            The array buffer that is bound, -1 when it isn't known
+	 * @return The array buffer that is bound now
+	 */
+	public int setBuffer(final BufferInfo bufferInfo, int boundBufferHandle) {
 		if(checkValidHandle(bufferInfo.bufferHandle, "vertex data: " + bufferInfo.attributeName)){
-			GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferInfo.bufferHandle);
+			if(bufferInfo.bufferHandle != boundBufferHandle)
+				GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferInfo.bufferHandle);
 			Integer attr = mAttributes.get( bufferInfo.attributeName );
 			if (attr == null)
 				RajLog.e("[" +getClass().getCanonicalName()+ "] Missing material attribute: "+bufferInfo.attributeName);
 			GLES20.glEnableVertexAttribArray(attr);
-			fix.android.opengl.GLES20.glVertexAttribPointer(attr, bufferInfo.attributeSize, bufferInfo.packed ? GLES20.GL_UNSIGNED_BYTE : GLES20.GL_FLOAT,
-					false, bufferInfo.vertexSize, bufferInfo.attributeOffset);
+			fix.android.opengl.GLES20.glVertexAttribPointer(attr, bufferInfo.attributeSize, bufferInfo.packed ? GLES20.GL_UNSIGNED_BYTE : bufferInfo.dataType,
+					bufferInfo.normalized, bufferInfo.vertexSize, bufferInfo.attributeOffset);
+			return bufferInfo.bufferHandle;
 		}
+		return boundBufferHandle;
+	}
+
+	/**
+	 * Returns whether the vertex shader declares an attribute. Declarations in every
+	 * preprocessor branch count, so the answer doesn't depend on the variant that is linked
+	 * now. Lights or animation that are enabled later can still use the attribute.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public boolean usesAttribute(String name) {
+		String shader = mUntouchedVertexShader != null ? mUntouchedVertexShader : mVertexShader;
+		if(shader == null)
+			return false;
+		if(shader != mDeclaredAttributesSource) {
+			HashSet<String> attributes = new HashSet<String>();
+			Matcher matcher = ATTRIBUTE_DECLARATION.matcher(shader);
+			while(matcher.find()) {
+				String[] names = matcher.group(1).split(",");
+				for(int i=0; i<names.length; ++i) {
+					String declared = names[i].trim();
+					int arrayStart = declared.indexOf('[');
+					attributes.add(arrayStart > -1 ? declared.substring(0, arrayStart).trim() : declared);
+				}
+			}
+			mDeclaredAttributes = attributes;
+			mDeclaredAttributesSource = shader;
+		}
+		return mDeclaredAttributes.contains(name);
 	}
 
 	public void setVertices(final int vertexBufferHandle) {
@@ -445,29 +714,52 @@ public abstract class AMaterial {
 	}
 
 	public void setMVPMatrix(float[] mvpMatrix) {
-		int uni = getUniformHandle( UNI_MVP_MATRIX );
-		if(checkValidHandle(uni, null))//"mvp matrix"))
-			GLES20.glUniformMatrix4fv(uni, 1, false, mvpMatrix, 0);
+		setUniformMatrix4fv(mMVPMatrixSlot, mvpMatrix);
 	}
 
 	public void setModelMatrix(float[] modelMatrix) {
 		mModelViewMatrix = modelMatrix;
-		int uni = getUniformHandle( UNI_MODEL_MATRIX );
-		if(checkValidHandle(uni, null))
-			GLES20.glUniformMatrix4fv(uni, 1, false, modelMatrix, 0);
+		setUniformMatrix4fv(mModelMatrixSlot, modelMatrix);
 	}
 
 	public void setViewMatrix(float[] viewMatrix) {
 		mViewMatrix = viewMatrix;
-		int uni = getUniformHandle( UNI_VIEW_MATRIX );
-		if(checkValidHandle(uni, null))
-			GLES20.glUniformMatrix4fv(uni, 1, false, viewMatrix, 0);
+		// -- the same for every object in a frame, only uploaded when the program doesn't have it yet
+		setUniformMatrix4fv(mViewMatrixSlot, viewMatrix);
 	}
 	
 	public void setInterpolation(float interpolation) {
-		int uni = getUniformHandle( UNI_INTERPOATION );
-		if(checkValidHandle(uni, "interpolation"))
-			GLES20.glUniform1f(uni, interpolation);
+		setUniform1f(mInterpolationSlot, interpolation);
+	}
+
+	/**
+	 * Uploads the skinning palette. The palette changes for every object, so it isn't compared
+	 * with the previous values.
+	 * 
+	 * @param palette
+	 *            Three rows of a 4x4 matrix for every joint
+	 * @param numJoints
+	 */
+	public void setJointPalette(float[] palette, int numJoints) {
+		if(mJointPaletteSlot < 0 || mShaderProgram == null)
+			return;
+		int location = mShaderProgram.getSlotLocation(mJointPaletteSlot);
+		if(location > -1)
+			GLES20.glUniform4fv(location, numJoints * 3, palette, 0);
+	}
+	
+	/**
+	 * Uploads the scale and offset of the current and the next frame of packed vertex animation.
+	 * 
+	 * @param dequantize
+	 *            The scale and offset of the current frame followed by those of the next frame
+	 */
+	public void setFrameDequantize(float[] dequantize) {
+		if(mFrameDequantizeSlot < 0 || mShaderProgram == null)
+			return;
+		int location = mShaderProgram.getSlotLocation(mFrameDequantizeSlot);
+		if(location > -1)
+			GLES20.glUniform3fv(location, 4, dequantize, 0);
 	}
 	
 	public void setNextFrameVertices(final int vertexBufferHandle) {
@@ -521,9 +813,7 @@ public abstract class AMaterial {
 		mCameraPosArray[0] = camPos.x;
 		mCameraPosArray[1] = camPos.y;
 		mCameraPosArray[2] = camPos.z;
-		int uni = getUniformHandle( UNI_CAMERA_POSITION );
-		if (uni > -1)
-			GLES20.glUniform3fv(uni, 1, mCameraPosArray, 0);
+		setUniform3fv(mCameraPositionSlot, mCameraPosArray);
 	}
 
 	public String toString() {
@@ -558,7 +848,28 @@ public abstract class AMaterial {
 		mUseColor = value;
 	}
 	
+	/**
+	 * Returns the shared program or null when it hasn't been created yet.
+	 * 
+	 * @return
+	 */
+	public ShaderProgram getShaderProgram() {
+		return mShaderProgram;
+	}
+
 	public boolean getUseColor() {
 		return mUseColor;
 	}
+	
+	public boolean isVertexAnimationEnabled() {
+		return mVertexAnimationEnabled;
+	}
+
+	public boolean isPackedVertexAnimationEnabled() {
+		return mPackedVertexAnimationEnabled;
+	}
+
+	public boolean isSkeletalAnimationEnabled() {
+		return mSkeletalAnimationEnabled;
+	}
 }
@@ -1,7 +1,6 @@
 package rajawali.materials;
 
 import rajawali.wallpaper.Wallpaper;
-import android.opengl.GLES20;
 import android.util.Log;
 
 public class ColorPickerMaterial extends AMaterial {
@@ -31,6 +30,7 @@ public class ColorPickerMaterial extends AMaterial {
 		"}\n";
 	
 	protected float[] mPickingColor;
+	private int mPickingColorSlot = -1;
 	
 	public ColorPickerMaterial() {
 		super(mVShader, mFShader, false);		
@@ -45,9 +45,7 @@ public class ColorPickerMaterial extends AMaterial {
 	@Override
 	public void useProgram() {
 		super.useProgram();
-		int uni = getUniformHandle(UNI_PICKING_COLOR);
-		if (uni > -1)
-			GLES20.glUniform4fv(uni, 1, mPickingColor, 0);
+		setUniform4fv(mPickingColorSlot, mPickingColor);
 	}
 	
 	@Override
@@ -55,6 +53,7 @@ public class ColorPickerMaterial extends AMaterial {
 	{
 		super.setShaders(vertexShader, fragmentShader);
 		registerUniforms(UNI_PICKING_COLOR);
+		mPickingColorSlot = getUniformSlot(UNI_PICKING_COLOR);
 	}
 	
 	public void setPickingColor(float[] color) {
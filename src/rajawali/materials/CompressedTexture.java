@@ -0,0 +1,83 @@
+package rajawali.materials;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compressed texture data as it is stored in a texture container. The data isn't decoded,
+ * every mip level is kept as-is so it can be passed straight to glCompressedTexImage2D.
+ * <p>
+ * This class doesn't depend on any Android or OpenGL classes.
+ *
+ * @see CompressedTextureReader
+ * @see TextureManager#addCompressedTexture(CompressedTexture)
+ */
+public class CompressedTexture {
+	/**
+	 * OES_compressed_ETC1_RGB8_texture
+	 */
+	public static final int GL_ETC1_RGB8_OES = 0x8D64;
+
+	private final int mInternalFormat;
+	private final int mWidth;
+	private final int mHeight;
+	private final ByteBuffer[] mLevels;
+
+	/**
+	 * @param internalFormat
+	 *            The OpenGL compressed format, for instance GL_ETC1_RGB8_OES
+	 * @param width
+	 *            Width of the first mip level
+	 * @param height
+	 *            Height of the first mip level
+	 * @param levels
+	 *            The data of each mip level, starting with the largest
+	 */
+	public CompressedTexture(int internalFormat, int width, int height, ByteBuffer[] levels) {
+		if (levels == null || levels.length == 0)
+			throw new IllegalArgumentException("A compressed texture needs at least one level");
+		mInternalFormat = internalFormat;
+		mWidth = width;
+		mHeight = height;
+		mLevels = levels;
+	}
+
+	public int getInternalFormat() {
+		return mInternalFormat;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public int getNumLevels() {
+		return mLevels.length;
+	}
+
+	public ByteBuffer getLevel(int level) {
+		return mLevels[level];
+	}
+
+	public int getLevelWidth(int level) {
+		return Math.max(1, mWidth >> level);
+	}
+
+	public int getLevelHeight(int level) {
+		return Math.max(1, mHeight >> level);
+	}
+
+	/**
+	 * Returns the size of all mip levels together in bytes.
+	 *
+	 * @return
+	 */
+	public int getTotalSize() {
+		int size = 0;
+		for (int i = 0; i < mLevels.length; ++i)
+			size += mLevels[i].capacity();
+		return size;
+	}
+}
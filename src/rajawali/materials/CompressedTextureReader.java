@@ -0,0 +1,200 @@
+package rajawali.materials;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads compressed texture containers without decoding the texture data. Supported are
+ * PKM (ETC1, single level) and KTX version 1 (any compressed format, including mip levels).
+ * <p>
+ * This class doesn't depend on any Android or OpenGL classes.
+ * <pre><code>
+ * CompressedTexture texture = CompressedTextureReader.read(getResources().openRawResource(R.raw.rock_ktx));
+ * TextureInfo textureInfo = mTextureManager.addCompressedTexture(texture);
+ * </code></pre>
+ *
+ * @see CompressedTexture
+ */
+public class CompressedTextureReader {
+	public static final int PKM_HEADER_SIZE = 16;
+	public static final int PKM_ETC1_RGB_NO_MIPMAPS = 0;
+	public static final byte[] PKM_MAGIC = { 'P', 'K', 'M', ' ' };
+
+	public static final int KTX_HEADER_SIZE = 64;
+	public static final int KTX_ENDIANNESS = 0x04030201;
+	public static final byte[] KTX_IDENTIFIER = {
+		(byte) 0xAB, 'K', 'T', 'X', ' ', '1', '1', (byte) 0xBB, '\r', '\n', 0x1A, '\n'
+	};
+
+	/**
+	 * Reads a PKM or KTX container. The format is detected from the file header.
+	 * The stream is closed afterwards.
+	 *
+	 * @param stream
+	 * @return
+	 * @throws IOException
+	 *             When the data isn't a valid PKM or KTX container
+	 */
+	public static CompressedTexture read(InputStream stream) throws IOException {
+		BufferedInputStream bis = new BufferedInputStream(stream);
+		try {
+			bis.mark(KTX_IDENTIFIER.length);
+			byte[] magic = new byte[KTX_IDENTIFIER.length];
+			int read = readFully(bis, magic);
+			bis.reset();
+
+			if (read >= PKM_MAGIC.length && startsWith(magic, PKM_MAGIC))
+				return readPKM(bis);
+			if (read == KTX_IDENTIFIER.length && startsWith(magic, KTX_IDENTIFIER))
+				return readKTX(bis);
+			throw new IOException("Unknown texture container format");
+		} finally {
+			bis.close();
+		}
+	}
+
+	/**
+	 * Reads a PKM container. PKM files contain a single ETC1 level.
+	 *
+	 * @param stream
+	 * @return
+	 * @throws IOException
+	 */
+	public static CompressedTexture readPKM(InputStream stream) throws IOException {
+		DataInputStream dis = new DataInputStream(stream);
+		byte[] magic = new byte[PKM_MAGIC.length];
+		dis.readFully(magic);
+		if (!startsWith(magic, PKM_MAGIC))
+			throw new IOException("Not a PKM file");
+
+		// -- version, "10" for ETC1
+		dis.readUnsignedShort();
+		int dataType = dis.readUnsignedShort();
+		if (dataType != PKM_ETC1_RGB_NO_MIPMAPS)
+			throw new IOException("Unsupported PKM data type " + dataType);
+		int extendedWidth = dis.readUnsignedShort();
+		int extendedHeight = dis.readUnsignedShort();
+		int width = dis.readUnsignedShort();
+		int height = dis.readUnsignedShort();
+
+		if (width == 0 || height == 0 || extendedWidth < width || extendedHeight < height
+				|| extendedWidth % 4 != 0 || extendedHeight % 4 != 0)
+			throw new IOException("Invalid PKM dimensions " + width + "x" + height);
+
+		int size = ETC1Codec.getEncodedSize(width, height);
+		return new CompressedTexture(CompressedTexture.GL_ETC1_RGB8_OES, width, height,
+				new ByteBuffer[] { readLevel(dis, size) });
+	}
+
+	/**
+	 * Reads a KTX version 1 container with compressed 2D data. Array textures, cube maps
+	 * and 3D textures aren't supported.
+	 *
+	 * @param stream
+	 * @return
+	 * @throws IOException
+	 */
+	public static CompressedTexture readKTX(InputStream stream) throws IOException {
+		DataInputStream dis = new DataInputStream(stream);
+		byte[] identifier = new byte[KTX_IDENTIFIER.length];
+		dis.readFully(identifier);
+		if (!startsWith(identifier, KTX_IDENTIFIER))
+			throw new IOException("Not a KTX file");
+
+		int endianness = dis.readInt();
+		boolean littleEndian;
+		if (endianness == KTX_ENDIANNESS)
+			littleEndian = false;
+		else if (endianness == Integer.reverseBytes(KTX_ENDIANNESS))
+			littleEndian = true;
+		else
+			throw new IOException("Invalid KTX endianness");
+
+		int glType = readInt(dis, littleEndian);
+		readInt(dis, littleEndian); // glTypeSize
+		int glFormat = readInt(dis, littleEndian);
+		int glInternalFormat = readInt(dis, littleEndian);
+		readInt(dis, littleEndian); // glBaseInternalFormat
+		int width = readInt(dis, littleEndian);
+		int height = readInt(dis, littleEndian);
+		int depth = readInt(dis, littleEndian);
+		int numArrayElements = readInt(dis, littleEndian);
+		int numFaces = readInt(dis, littleEndian);
+		int numLevels = readInt(dis, littleEndian);
+		int keyValueBytes = readInt(dis, littleEndian);
+
+		if (glType != 0 || glFormat != 0)
+			throw new IOException("Only compressed KTX textures are supported");
+		if (width <= 0 || height <= 0 || depth > 1 || numArrayElements > 0)
+			throw new IOException("Only 2D KTX textures are supported");
+		if (numFaces != 1)
+			throw new IOException("KTX cube maps aren't supported");
+		if (keyValueBytes < 0 || numLevels < 0)
+			throw new IOException("Invalid KTX header");
+
+		// -- compressed data can't be mipmapped at runtime, 0 levels means a single level
+		if (numLevels == 0)
+			numLevels = 1;
+
+		skipFully(dis, keyValueBytes);
+
+		ByteBuffer[] levels = new ByteBuffer[numLevels];
+		for (int i = 0; i < numLevels; ++i) {
+			int imageSize = readInt(dis, littleEndian);
+			if (imageSize < 0)
+				throw new IOException("Invalid KTX image size");
+			levels[i] = readLevel(dis, imageSize);
+			// -- mip padding
+			skipFully(dis, 3 - ((imageSize + 3) % 4));
+		}
+
+		return new CompressedTexture(glInternalFormat, width, height, levels);
+	}
+
+	private static ByteBuffer readLevel(DataInputStream dis, int size) throws IOException {
+		byte[] data = new byte[size];
+		dis.readFully(data);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+		buffer.put(data).position(0);
+		return buffer;
+	}
+
+	private static int readInt(DataInputStream dis, boolean littleEndian) throws IOException {
+		// -- DataInputStream reads big endian, KTX files are usually little endian
+		int value = dis.readInt();
+		return littleEndian ? Integer.reverseBytes(value) : value;
+	}
+
+	private static void skipFully(DataInputStream dis, int count) throws IOException {
+		while (count > 0) {
+			int skipped = dis.skipBytes(count);
+			if (skipped <= 0)
+				throw new IOException("Unexpected end of file");
+			count -= skipped;
+		}
+	}
+
+	private static int readFully(InputStream stream, byte[] buffer) throws IOException {
+		int total = 0;
+		while (total < buffer.length) {
+			int read = stream.read(buffer, total, buffer.length - total);
+			if (read == -1)
+				break;
+			total += read;
+		}
+		return total;
+	}
+
+	private static boolean startsWith(byte[] data, byte[] prefix) {
+		if (data.length < prefix.length)
+			return false;
+		for (int i = 0; i < prefix.length; ++i)
+			if (data[i] != prefix[i])
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,88 @@
+package rajawali.materials;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes compressed texture data to PKM and KTX containers. This is the counterpart of
+ * {@link CompressedTextureReader} and is used by the offline texture compressor.
+ * <p>
+ * This class doesn't depend on any Android or OpenGL classes.
+ */
+public class CompressedTextureWriter {
+	private static final int GL_RGB = 0x1907;
+
+	/**
+	 * Writes a single ETC1 level to a PKM container.
+	 *
+	 * @param stream
+	 * @param etc1Data
+	 * @param width
+	 * @param height
+	 * @throws IOException
+	 */
+	public static void writePKM(OutputStream stream, byte[] etc1Data, int width, int height) throws IOException {
+		if (etc1Data.length != ETC1Codec.getEncodedSize(width, height))
+			throw new IllegalArgumentException("ETC1 data size doesn't match the dimensions");
+
+		DataOutputStream dos = new DataOutputStream(stream);
+		dos.write(CompressedTextureReader.PKM_MAGIC);
+		dos.write('1');
+		dos.write('0');
+		dos.writeShort(CompressedTextureReader.PKM_ETC1_RGB_NO_MIPMAPS);
+		dos.writeShort((width + 3) & ~3);
+		dos.writeShort((height + 3) & ~3);
+		dos.writeShort(width);
+		dos.writeShort(height);
+		dos.write(etc1Data);
+		dos.flush();
+	}
+
+	/**
+	 * Writes ETC1 mip levels to a little endian KTX container.
+	 *
+	 * @param stream
+	 * @param levels
+	 *            The ETC1 data of each mip level, starting with the largest
+	 * @param width
+	 *            Width of the first level
+	 * @param height
+	 *            Height of the first level
+	 * @throws IOException
+	 */
+	public static void writeKTX(OutputStream stream, byte[][] levels, int width, int height) throws IOException {
+		DataOutputStream dos = new DataOutputStream(stream);
+		dos.write(CompressedTextureReader.KTX_IDENTIFIER);
+		writeInt(dos, CompressedTextureReader.KTX_ENDIANNESS);
+		writeInt(dos, 0); // glType
+		writeInt(dos, 1); // glTypeSize
+		writeInt(dos, 0); // glFormat
+		writeInt(dos, CompressedTexture.GL_ETC1_RGB8_OES);
+		writeInt(dos, GL_RGB);
+		writeInt(dos, width);
+		writeInt(dos, height);
+		writeInt(dos, 0); // pixelDepth
+		writeInt(dos, 0); // numberOfArrayElements
+		writeInt(dos, 1); // numberOfFaces
+		writeInt(dos, levels.length);
+		writeInt(dos, 0); // bytesOfKeyValueData
+
+		for (int i = 0; i < levels.length; ++i) {
+			int levelWidth = Math.max(1, width >> i);
+			int levelHeight = Math.max(1, height >> i);
+			if (levels[i].length != ETC1Codec.getEncodedSize(levelWidth, levelHeight))
+				throw new IllegalArgumentException("ETC1 data size of level " + i + " doesn't match the dimensions");
+			writeInt(dos, levels[i].length);
+			dos.write(levels[i]);
+			// -- mip padding, always 0 for ETC1 since blocks are 8 bytes
+			for (int p = levels[i].length; p % 4 != 0; ++p)
+				dos.write(0);
+		}
+		dos.flush();
+	}
+
+	private static void writeInt(DataOutputStream dos, int value) throws IOException {
+		dos.writeInt(Integer.reverseBytes(value));
+	}
+}
@@ -28,6 +28,8 @@ public class DiffuseMaterial extends AAdvancedMaterial {
 		"attribute vec3 " + ATTR_NEXT_FRAME_NORMAL + ";\n" +
 		"uniform float " + UNI_INTERPOATION + ";\n" +
 		"#endif\n\n" +
+		M_PACKED_VERTEX_ANIM_VARS +
+		M_SKINNING_VERTEX_VARS +
 		
 		"void main() {\n" +
 		"	vec4 position = " + ATTR_POSITION + ";\n" +
@@ -37,6 +39,8 @@ public class DiffuseMaterial extends AAdvancedMaterial {
 		"	position = " + ATTR_POSITION + " + " + UNI_INTERPOATION + " * (" + ATTR_NEXT_FRAME_POSITION + " - " + ATTR_POSITION + ");\n" +
 		"	normal = " + ATTR_NORMAL + " + " + UNI_INTERPOATION + " * (" + ATTR_NEXT_FRAME_NORMAL + " - " + ATTR_NORMAL + ");\n" +
 		"	#endif\n" +
+		M_PACKED_VERTEX_ANIM_POSITION +
+		M_SKINNING_VERTEX_POSITION +
 
 		"	gl_Position = " + UNI_MVP_MATRIX + " * position;\n" +
 		"	vTextureCoord = " + ATTR_TEXTURECOORD + ";\n" +
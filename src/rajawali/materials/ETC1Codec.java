@@ -0,0 +1,288 @@
+package rajawali.materials;
+
+/**
+ * Encodes and decodes ETC1 compressed image data. Every 4x4 pixel block is stored in 8 bytes,
+ * blocks are stored row by row. The encoder tries both block orientations and both the
+ * individual and the differential color mode and keeps the variant with the smallest error.
+ * ETC1 has no alpha channel, alpha is ignored.
+ * <p>
+ * This class doesn't depend on any Android or OpenGL classes. It is used by the offline
+ * texture compressor and can be used to verify compressed data without a GPU.
+ */
+public class ETC1Codec {
+	public static final int BLOCK_SIZE = 8;
+
+	private static final int[][] MODIFIERS = {
+		{ 2, 8 }, { 5, 17 }, { 9, 29 }, { 13, 42 }, { 18, 60 }, { 24, 80 }, { 33, 106 }, { 47, 183 }
+	};
+
+	/**
+	 * Returns the size of the encoded data. Dimensions are rounded up to a multiple of 4.
+	 *
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public static int getEncodedSize(int width, int height) {
+		return ((width + 3) / 4) * ((height + 3) / 4) * BLOCK_SIZE;
+	}
+
+	/**
+	 * Encodes ARGB pixels.
+	 *
+	 * @param pixels
+	 *            ARGB pixels, row by row
+	 * @param width
+	 * @param height
+	 * @return The ETC1 data
+	 */
+	public static byte[] encode(int[] pixels, int width, int height) {
+		int blocksX = (width + 3) / 4;
+		int blocksY = (height + 3) / 4;
+		byte[] out = new byte[blocksX * blocksY * BLOCK_SIZE];
+		int[] block = new int[16 * 3];
+		int[] scratch = new int[16];
+
+		for (int by = 0; by < blocksY; ++by) {
+			for (int bx = 0; bx < blocksX; ++bx) {
+				// -- pixels outside the image repeat the edge
+				for (int y = 0; y < 4; ++y) {
+					int py = Math.min(by * 4 + y, height - 1);
+					for (int x = 0; x < 4; ++x) {
+						int px = Math.min(bx * 4 + x, width - 1);
+						int color = pixels[py * width + px];
+						int i = (y * 4 + x) * 3;
+						block[i] = (color >> 16) & 0xff;
+						block[i + 1] = (color >> 8) & 0xff;
+						block[i + 2] = color & 0xff;
+					}
+				}
+				long bits = encodeBlock(block, scratch);
+				int offset = (by * blocksX + bx) * BLOCK_SIZE;
+				for (int i = 0; i < BLOCK_SIZE; ++i)
+					out[offset + i] = (byte) (bits >>> (56 - i * 8));
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Decodes ETC1 data to opaque ARGB pixels.
+	 *
+	 * @param data
+	 * @param width
+	 * @param height
+	 * @return ARGB pixels, row by row
+	 */
+	public static int[] decode(byte[] data, int width, int height) {
+		int blocksX = (width + 3) / 4;
+		int blocksY = (height + 3) / 4;
+		int[] pixels = new int[width * height];
+
+		for (int by = 0; by < blocksY; ++by) {
+			for (int bx = 0; bx < blocksX; ++bx) {
+				int offset = (by * blocksX + bx) * BLOCK_SIZE;
+				long bits = 0;
+				for (int i = 0; i < BLOCK_SIZE; ++i)
+					bits = (bits << 8) | (data[offset + i] & 0xff);
+
+				int[][] base = new int[2][3];
+				if ((bits & (1L << 33)) != 0) {
+					for (int c = 0; c < 3; ++c) {
+						int shift = 59 - c * 8;
+						int c1 = (int) (bits >>> shift) & 0x1f;
+						int delta = (int) (bits >>> (shift - 3)) & 0x7;
+						if (delta > 3)
+							delta -= 8;
+						base[0][c] = expand5(c1);
+						base[1][c] = expand5(c1 + delta);
+					}
+				} else {
+					for (int c = 0; c < 3; ++c) {
+						int shift = 60 - c * 8;
+						base[0][c] = ((int) (bits >>> shift) & 0xf) * 17;
+						base[1][c] = ((int) (bits >>> (shift - 4)) & 0xf) * 17;
+					}
+				}
+				int[] tables = { (int) (bits >>> 37) & 7, (int) (bits >>> 34) & 7 };
+				boolean flip = (bits & (1L << 32)) != 0;
+
+				for (int x = 0; x < 4; ++x) {
+					for (int y = 0; y < 4; ++y) {
+						int px = bx * 4 + x;
+						int py = by * 4 + y;
+						if (px >= width || py >= height)
+							continue;
+						int sub = flip ? (y >> 1) : (x >> 1);
+						int bit = x * 4 + y;
+						int index = (int) (((bits >>> (16 + bit)) & 1) << 1 | ((bits >>> bit) & 1));
+						int modifier = getModifier(tables[sub], index);
+						int r = clamp(base[sub][0] + modifier);
+						int g = clamp(base[sub][1] + modifier);
+						int b = clamp(base[sub][2] + modifier);
+						pixels[py * width + px] = 0xff000000 | (r << 16) | (g << 8) | b;
+					}
+				}
+			}
+		}
+		return pixels;
+	}
+
+	private static long encodeBlock(int[] block, int[] scratch) {
+		long bestBits = 0;
+		long bestError = Long.MAX_VALUE;
+		int[] avg0 = new int[3];
+		int[] avg1 = new int[3];
+		int[] c0 = new int[3];
+		int[] c1 = new int[3];
+		int[] base0 = new int[3];
+		int[] base1 = new int[3];
+		int[] indices = new int[16];
+
+		for (int flip = 0; flip < 2; ++flip) {
+			average(block, flip, 0, avg0);
+			average(block, flip, 1, avg1);
+
+			for (int diff = 1; diff >= 0; --diff) {
+				if (diff == 1) {
+					boolean fits = true;
+					for (int c = 0; c < 3; ++c) {
+						c0[c] = quantize(avg0[c], 31);
+						c1[c] = quantize(avg1[c], 31);
+						int delta = c1[c] - c0[c];
+						if (delta < -4 || delta > 3)
+							fits = false;
+						base0[c] = expand5(c0[c]);
+						base1[c] = expand5(c1[c]);
+					}
+					if (!fits)
+						continue;
+				} else {
+					for (int c = 0; c < 3; ++c) {
+						c0[c] = quantize(avg0[c], 15);
+						c1[c] = quantize(avg1[c], 15);
+						base0[c] = c0[c] * 17;
+						base1[c] = c1[c] * 17;
+					}
+				}
+
+				long fit0 = fitTable(block, flip, 0, base0, indices, scratch);
+				long fit1 = fitTable(block, flip, 1, base1, indices, scratch);
+				int table0 = (int) (fit0 & 7);
+				int table1 = (int) (fit1 & 7);
+				long error = (fit0 >> 3) + (fit1 >> 3);
+
+				if (error >= bestError)
+					continue;
+				bestError = error;
+
+				long bits = 0;
+				if (diff == 1) {
+					for (int c = 0; c < 3; ++c) {
+						bits |= (long) c0[c] << (59 - c * 8);
+						bits |= (long) ((c1[c] - c0[c]) & 7) << (56 - c * 8);
+					}
+					bits |= 1L << 33;
+				} else {
+					for (int c = 0; c < 3; ++c) {
+						bits |= (long) c0[c] << (60 - c * 8);
+						bits |= (long) c1[c] << (56 - c * 8);
+					}
+				}
+				bits |= (long) table0 << 37;
+				bits |= (long) table1 << 34;
+				bits |= (long) flip << 32;
+				for (int i = 0; i < 16; ++i) {
+					int x = i & 3;
+					int y = i >> 2;
+					int bit = x * 4 + y;
+					bits |= (long) (indices[i] >> 1) << (16 + bit);
+					bits |= (long) (indices[i] & 1) << bit;
+				}
+				bestBits = bits;
+			}
+		}
+		return bestBits;
+	}
+
+	/**
+	 * Finds the modifier table with the smallest error for a sub block and stores the
+	 * modifier index of each pixel in the sub block.
+	 *
+	 * @return The error shifted left by 3 bits, or'ed with the table index
+	 */
+	private static long fitTable(int[] block, int flip, int subBlock, int[] base, int[] indices, int[] scratch) {
+		int bestTable = 0;
+		long bestError = Long.MAX_VALUE;
+
+		for (int table = 0; table < MODIFIERS.length; ++table) {
+			long error = 0;
+			for (int i = 0; i < 16 && error < bestError; ++i) {
+				if (!isInSubBlock(i, flip, subBlock))
+					continue;
+				int bestPixelError = Integer.MAX_VALUE;
+				for (int index = 0; index < 4; ++index) {
+					int modifier = getModifier(table, index);
+					int dr = clamp(base[0] + modifier) - block[i * 3];
+					int dg = clamp(base[1] + modifier) - block[i * 3 + 1];
+					int db = clamp(base[2] + modifier) - block[i * 3 + 2];
+					int pixelError = dr * dr + dg * dg + db * db;
+					if (pixelError < bestPixelError) {
+						bestPixelError = pixelError;
+						scratch[i] = index;
+					}
+				}
+				error += bestPixelError;
+			}
+			if (error < bestError) {
+				bestError = error;
+				bestTable = table;
+				for (int i = 0; i < 16; ++i)
+					if (isInSubBlock(i, flip, subBlock))
+						indices[i] = scratch[i];
+			}
+		}
+		return (bestError << 3) | bestTable;
+	}
+
+	private static void average(int[] block, int flip, int subBlock, int[] avg) {
+		int r = 0, g = 0, b = 0;
+		for (int i = 0; i < 16; ++i) {
+			if (!isInSubBlock(i, flip, subBlock))
+				continue;
+			r += block[i * 3];
+			g += block[i * 3 + 1];
+			b += block[i * 3 + 2];
+		}
+		avg[0] = (r + 4) / 8;
+		avg[1] = (g + 4) / 8;
+		avg[2] = (b + 4) / 8;
+	}
+
+	/**
+	 * @param i
+	 *            Pixel index, row by row
+	 */
+	private static boolean isInSubBlock(int i, int flip, int subBlock) {
+		int x = i & 3;
+		int y = i >> 2;
+		return (flip == 0 ? x >> 1 : y >> 1) == subBlock;
+	}
+
+	private static int getModifier(int table, int index) {
+		int modifier = MODIFIERS[table][index & 1];
+		return (index & 2) != 0 ? -modifier : modifier;
+	}
+
+	private static int quantize(int value, int max) {
+		return Math.min(max, (value * max + 127) / 255);
+	}
+
+	private static int expand5(int value) {
+		return (value << 3) | (value >> 2);
+	}
+
+	private static int clamp(int value) {
+		return value < 0 ? 0 : (value > 255 ? 255 : value);
+	}
+}
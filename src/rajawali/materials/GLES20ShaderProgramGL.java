@@ -0,0 +1,66 @@
+package rajawali.materials;
+
+import rajawali.util.RajLog;
+import android.opengl.GLES20;
+
+/**
+ * Compiles and links programs through the GLES20 bindings. This is what the shader program
+ * cache uses on a device.
+ */
+public class GLES20ShaderProgramGL implements IShaderProgramGL {
+	public int compileShader(int shaderType, String source) {
+		int shader = GLES20.glCreateShader(shaderType);
+		if (shader != 0) {
+			GLES20.glShaderSource(shader, source);
+			GLES20.glCompileShader(shader);
+			int[] compiled = new int[1];
+			GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+			if (compiled[0] == 0) {
+				RajLog.e("[" + getClass().getName() + "] Could not compile " + (shaderType == GLES20.GL_FRAGMENT_SHADER ? "fragment" : "vertex") + " shader:");
+				RajLog.e("Shader log: " + GLES20.glGetShaderInfoLog(shader));
+				GLES20.glDeleteShader(shader);
+				shader = 0;
+			}
+		}
+		return shader;
+	}
+
+	public int linkProgram(int vertexShader, int fragmentShader) {
+		int program = GLES20.glCreateProgram();
+		if (program == 0)
+			return 0;
+		GLES20.glAttachShader(program, vertexShader);
+		GLES20.glAttachShader(program, fragmentShader);
+		GLES20.glLinkProgram(program);
+
+		int[] linkStatus = new int[1];
+		GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+		if (linkStatus[0] != GLES20.GL_TRUE) {
+			RajLog.e("[" + getClass().getName() + "] Could not link program: ");
+			RajLog.e(GLES20.glGetProgramInfoLog(program));
+			GLES20.glDeleteProgram(program);
+			return 0;
+		}
+		return program;
+	}
+
+	public void deleteShader(int shader) {
+		GLES20.glDeleteShader(shader);
+	}
+
+	public void deleteProgram(int program) {
+		GLES20.glDeleteProgram(program);
+	}
+
+	public int getUniformLocation(int program, String name) {
+		return GLES20.glGetUniformLocation(program, name);
+	}
+
+	public int getAttributeLocation(int program, String name) {
+		return GLES20.glGetAttribLocation(program, name);
+	}
+
+	public void useProgram(int program) {
+		GLES20.glUseProgram(program);
+	}
+}
@@ -0,0 +1,90 @@
+package rajawali.materials;
+
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import rajawali.util.RajLog;
+import android.opengl.GLES20;
+
+/**
+ * Reads and loads program binaries through GLES30.glGetProgramBinary() and
+ * GLES30.glProgramBinary(). The Java bindings for these functions only exist from API level 18
+ * on and are looked up at runtime. They are only used on OpenGL ES 3 drivers that advertise
+ * GL_OES_get_program_binary and at least one binary format, everywhere else the shader program
+ * cache compiles from source.
+ */
+public class GLES30ProgramBinaryAccess implements IProgramBinaryAccess {
+	public static final int GL_PROGRAM_BINARY_LENGTH_OES = 0x8741;
+	public static final int GL_NUM_PROGRAM_BINARY_FORMATS_OES = 0x87FE;
+
+	private Method mGetProgramBinary;
+	private Method mProgramBinary;
+
+	public boolean isSupported() {
+		String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+		String version = GLES20.glGetString(GLES20.GL_VERSION);
+		if (extensions == null || extensions.indexOf("GL_OES_get_program_binary") < 0)
+			return false;
+		if (version == null || !version.startsWith("OpenGL ES 3"))
+			return false;
+		int[] numFormats = new int[1];
+		GLES20.glGetIntegerv(GL_NUM_PROGRAM_BINARY_FORMATS_OES, numFormats, 0);
+		if (numFormats[0] == 0)
+			return false;
+
+		try {
+			Class<?> gles30 = Class.forName("android.opengl.GLES30");
+			mGetProgramBinary = gles30.getMethod("glGetProgramBinary", int.class, int.class, int[].class, int.class, int[].class, int.class, Buffer.class);
+			mProgramBinary = gles30.getMethod("glProgramBinary", int.class, int.class, Buffer.class, int.class);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	public String getDriverId() {
+		return GLES20.glGetString(GLES20.GL_VENDOR) + "|" + GLES20.glGetString(GLES20.GL_RENDERER) + "|"
+				+ GLES20.glGetString(GLES20.GL_VERSION);
+	}
+
+	public byte[] getProgramBinary(int program, int[] format) {
+		int[] length = new int[1];
+		GLES20.glGetProgramiv(program, GL_PROGRAM_BINARY_LENGTH_OES, length, 0);
+		if (length[0] <= 0)
+			return null;
+		ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+		try {
+			mGetProgramBinary.invoke(null, program, length[0], length, 0, format, 0, buffer);
+		} catch (Exception e) {
+			RajLog.w("[" + getClass().getName() + "] Couldn't read program binary: " + e.getMessage());
+			return null;
+		}
+		byte[] binary = new byte[length[0]];
+		buffer.get(binary);
+		return binary;
+	}
+
+	public int createProgram(int format, byte[] binary) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(binary.length).order(ByteOrder.nativeOrder());
+		buffer.put(binary).position(0);
+		int program = GLES20.glCreateProgram();
+		if (program == 0)
+			return 0;
+		try {
+			mProgramBinary.invoke(null, program, format, buffer, binary.length);
+		} catch (Exception e) {
+			GLES20.glDeleteProgram(program);
+			return 0;
+		}
+		// -- drivers reject binaries after an update without changing their version string
+		int[] linkStatus = new int[1];
+		GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+		if (linkStatus[0] != GLES20.GL_TRUE) {
+			GLES20.glDeleteProgram(program);
+			return 0;
+		}
+		return program;
+	}
+}
@@ -2,7 +2,6 @@ package rajawali.materials;
 
 import rajawali.lights.ALight;
 import android.graphics.Color;
-import android.opengl.GLES20;
 
 
 public class GouraudMaterial extends AAdvancedMaterial {
@@ -38,6 +37,8 @@ public class GouraudMaterial extends AAdvancedMaterial {
 		"attribute vec3 " + ATTR_NEXT_FRAME_NORMAL + ";\n" +
 		"uniform float " + UNI_INTERPOATION + ";\n" +
 		"#endif\n\n" +
+		M_PACKED_VERTEX_ANIM_VARS +
+		M_SKINNING_VERTEX_VARS +
 		
 		"void main() {\n" +
 		"	vSpecularIntensity = 0.0;\n" +
@@ -48,6 +49,8 @@ public class GouraudMaterial extends AAdvancedMaterial {
 		"	position = " + ATTR_POSITION + " + " + UNI_INTERPOATION + " * (" + ATTR_NEXT_FRAME_POSITION + " - " + ATTR_POSITION + ");\n" +
 		"	normal = " + ATTR_NORMAL + " + " + UNI_INTERPOATION + " * (" + ATTR_NEXT_FRAME_NORMAL + " - " + ATTR_NORMAL + ");\n" +
 		"	#endif\n" +
+		M_PACKED_VERTEX_ANIM_POSITION +
+		M_SKINNING_VERTEX_POSITION +
 		
 		"	gl_Position = " + UNI_MVP_MATRIX + " * position;\n" +
 		"	vTextureCoord = " + ATTR_TEXTURECOORD + ";\n" +
@@ -98,6 +101,8 @@ public class GouraudMaterial extends AAdvancedMaterial {
 	
 	protected float[] mSpecularColor;
 	protected float[] mSpecularIntensity;
+	private int mSpecularColorSlot = -1;
+	private int mSpecularIntensitySlot = -1;
 	
 	public GouraudMaterial() {
 		this(false);
@@ -109,6 +114,12 @@ public class GouraudMaterial extends AAdvancedMaterial {
 		mSpecularIntensity = new float[] { 1f, 1f, 1f, 1.0f };
 	}
 	
+	public GouraudMaterial(int parameters) {
+		super(mVShader, mFShader, parameters);
+		mSpecularColor = new float[] { 1.0f, 1.0f, 1.0f, 1.0f };
+		mSpecularIntensity = new float[] { 1f, 1f, 1f, 1.0f };
+	}
+	
 	public GouraudMaterial(float[] specularColor) {
 		this();
 		mSpecularColor = specularColor;
@@ -117,12 +128,8 @@ public class GouraudMaterial extends AAdvancedMaterial {
 	@Override
 	public void useProgram() {
 		super.useProgram();
-		int uni = getUniformHandle(UNI_SPECULAR_COLOR);
-		if (uni > -1)
-			GLES20.glUniform4fv(uni, 1, mSpecularColor, 0);
-		uni = getUniformHandle(UNI_SPECULAR_INTENSITY);
-		if (uni > -1)
-			GLES20.glUniform4fv(uni, 1, mSpecularIntensity, 0);
+		setUniform4fv(mSpecularColorSlot, mSpecularColor);
+		setUniform4fv(mSpecularIntensitySlot, mSpecularIntensity);
 	}
 	
 	public void setSpecularColor(float[] color) {
@@ -174,6 +181,8 @@ System.out.println("gouraud material *****************");
 		super.setShaders(vertexShader.replace("%LIGHT_CODE%", sb.toString()), fragmentShader);
 
 		registerUniforms(UNI_SPECULAR_COLOR, UNI_SPECULAR_INTENSITY);
+		mSpecularColorSlot = getUniformSlot(UNI_SPECULAR_COLOR);
+		mSpecularIntensitySlot = getUniformSlot(UNI_SPECULAR_INTENSITY);
 System.out.println("gouraud material *****************");		
 	}
 }
\ No newline at end of file
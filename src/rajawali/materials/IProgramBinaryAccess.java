@@ -0,0 +1,44 @@
+package rajawali.materials;
+
+/**
+ * Reads and loads linked program binaries. The shader program cache only uses program
+ * binaries through this interface, so a different implementation can be plugged in, for
+ * instance one backed by native code or a stand-in that doesn't need a GL context.
+ *
+ * @see ShaderProgramCache#setProgramBinaryAccess(IProgramBinaryAccess)
+ */
+public interface IProgramBinaryAccess {
+	/**
+	 * Called on the GL thread once for every new context.
+	 *
+	 * @return true when the current context can read and load program binaries
+	 */
+	public boolean isSupported();
+
+	/**
+	 * Returns a string that changes whenever binaries of the current driver can't be used
+	 * anymore.
+	 *
+	 * @return
+	 */
+	public String getDriverId();
+
+	/**
+	 * Reads the binary of a linked program.
+	 *
+	 * @param program
+	 * @param format
+	 *            Receives the binary format
+	 * @return The binary or null when it couldn't be read
+	 */
+	public byte[] getProgramBinary(int program, int[] format);
+
+	/**
+	 * Loads a binary into a new program.
+	 *
+	 * @param format
+	 * @param binary
+	 * @return The program handle or 0 when the driver rejected the binary
+	 */
+	public int createProgram(int format, byte[] binary);
+}
@@ -0,0 +1,39 @@
+package rajawali.materials;
+
+/**
+ * The OpenGL calls the shader program cache makes to compile, link, look up and delete
+ * programs. The cache only talks to OpenGL through this interface, so a stand-in that doesn't
+ * need a GL context can be plugged in, for instance to test the cache on a plain JVM.
+ *
+ * @see ShaderProgramCache#ShaderProgramCache(IShaderProgramGL)
+ */
+public interface IShaderProgramGL {
+	/**
+	 * Compiles a shader.
+	 *
+	 * @param shaderType
+	 *            GL_VERTEX_SHADER or GL_FRAGMENT_SHADER
+	 * @param source
+	 * @return The shader handle or 0 when it didn't compile
+	 */
+	public int compileShader(int shaderType, String source);
+
+	/**
+	 * Links a program from two compiled shaders.
+	 *
+	 * @param vertexShader
+	 * @param fragmentShader
+	 * @return The program handle or 0 when it didn't link
+	 */
+	public int linkProgram(int vertexShader, int fragmentShader);
+
+	public void deleteShader(int shader);
+
+	public void deleteProgram(int program);
+
+	public int getUniformLocation(int program, String name);
+
+	public int getAttributeLocation(int program, String name);
+
+	public void useProgram(int program);
+}
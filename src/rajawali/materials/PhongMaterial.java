@@ -3,7 +3,6 @@ package rajawali.materials;
 import rajawali.lights.ALight;
 import rajawali.math.Number3D;
 import android.graphics.Color;
-import android.opengl.GLES20;
 
 
 public class PhongMaterial extends AAdvancedMaterial {
@@ -37,6 +36,8 @@ public class PhongMaterial extends AAdvancedMaterial {
 		"attribute vec3 " + ATTR_NEXT_FRAME_NORMAL + ";\n" +
 		"uniform float " + UNI_INTERPOATION + ";\n" +
 		"#endif\n\n" +
+		M_PACKED_VERTEX_ANIM_VARS +
+		M_SKINNING_VERTEX_VARS +
 		
 		"void main() {\n" +
 		"	float dist = 0.0;\n" +
@@ -46,6 +47,8 @@ public class PhongMaterial extends AAdvancedMaterial {
 		"	position = " + ATTR_POSITION + " + " + UNI_INTERPOATION + " * (" + ATTR_NEXT_FRAME_POSITION + " - " + ATTR_POSITION + ");\n" +
 		"	normal = " + ATTR_NORMAL + " + " + UNI_INTERPOATION + " * (" + ATTR_NEXT_FRAME_NORMAL + " - " + ATTR_NORMAL + ");\n" +
 		"	#endif\n" +
+		M_PACKED_VERTEX_ANIM_POSITION +
+		M_SKINNING_VERTEX_POSITION +
 		"	gl_Position = " + UNI_MVP_MATRIX + " * position;\n" +
 		"	vTextureCoord = " + ATTR_TEXTURECOORD + ";\n" +
 		
@@ -102,6 +105,8 @@ public class PhongMaterial extends AAdvancedMaterial {
 	
 	protected float[] mSpecularColor;
 	protected float mShininess;
+	private int mSpecularColorSlot = -1;
+	private int mShininessSlot = -1;
 	
 	public PhongMaterial() {
 		this(false);
@@ -117,6 +122,12 @@ public class PhongMaterial extends AAdvancedMaterial {
 		mShininess = 96.0f;//
 	}
 	
+	public PhongMaterial(int parameters) {
+		super(mVShader, mFShader, parameters);
+		mSpecularColor = new float[] { 1.0f, 1.0f, 1.0f, 1.0f };
+		mShininess = 96.0f;
+	}
+	
 	public PhongMaterial(float[] specularColor, float[] ambientColor, float shininess) {
 		this();
 		mSpecularColor = specularColor;
@@ -127,12 +138,8 @@ public class PhongMaterial extends AAdvancedMaterial {
 	@Override
 	public void useProgram() {
 		super.useProgram();
-		int uni = getUniformHandle(UNI_SPECULAR_COLOR);
-		if (uni > -1)
-			GLES20.glUniform4fv(uni, 1, mSpecularColor, 0);
-		uni = getUniformHandle(UNI_SHININESS);
-		if (uni > -1)
-			GLES20.glUniform1f(uni, mShininess);
+		setUniform4fv(mSpecularColorSlot, mSpecularColor);
+		setUniform1f(mShininessSlot, mShininess);
 	}
 	
 	public void setSpecularColor(float[] color) {
@@ -154,10 +161,18 @@ public class PhongMaterial extends AAdvancedMaterial {
 		setSpecularColor(new float[] { Color.red(color), Color.green(color), Color.blue(color), Color.alpha(color) });
 	}
 	
+	public float[] getSpecularColor() {
+		return mSpecularColor;
+	}
+	
 	public void setShininess(float shininess) {
 		mShininess = shininess;
 	}
 	
+	public float getShininess() {
+		return mShininess;
+	}
+	
 	@Override
 	public void setShaders(String vertexShader, String fragmentShader)
 	{
@@ -189,6 +204,8 @@ System.out.println("phong material *******************");
 				);
 
 		registerUniforms(UNI_SPECULAR_COLOR, UNI_SHININESS);
+		mSpecularColorSlot = getUniformSlot(UNI_SPECULAR_COLOR);
+		mShininessSlot = getUniformSlot(UNI_SHININESS);
 
 System.out.println("phong material *******************");		
 	}
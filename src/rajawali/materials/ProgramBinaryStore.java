@@ -0,0 +1,253 @@
+package rajawali.materials;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Stores linked program binaries on disk so they can be loaded with glProgramBinary() instead
+ * of being compiled again. Every file holds the vertex and fragment source next to the binary.
+ * A changed shader source gets a different file, and the stored source is compared on every
+ * read. The whole store is invalidated when the driver changes, because binaries are only
+ * valid for the driver that produced them.
+ * <p>
+ * This class doesn't depend on any Android or OpenGL classes. Failures are reported through
+ * return values, damaged files are deleted and read as missing.
+ *
+ * @see ShaderProgramCache#setBinaryStore(ProgramBinaryStore)
+ */
+public class ProgramBinaryStore {
+	private static final int MAGIC = 0x524a5342; // RJSB
+	private static final int VERSION = 1;
+	private static final String DRIVER_FILE = "driver";
+	private static final String EXTENSION = ".bin";
+
+	/**
+	 * A stored program binary with the source it was linked from.
+	 */
+	public static class Entry {
+		public final String vertexSource;
+		public final String fragmentSource;
+		public final int format;
+		public final byte[] binary;
+
+		public Entry(String vertexSource, String fragmentSource, int format, byte[] binary) {
+			this.vertexSource = vertexSource;
+			this.fragmentSource = fragmentSource;
+			this.format = format;
+			this.binary = binary;
+		}
+	}
+
+	private final File mDirectory;
+	private String mDriverId;
+
+	public ProgramBinaryStore(File directory) {
+		mDirectory = directory;
+	}
+
+	/**
+	 * Prepares the store for a driver. All stored binaries are deleted when they were written by
+	 * another driver.
+	 *
+	 * @param driverId
+	 *            Identifies the driver, for instance its vendor, renderer and version strings
+	 * @return false when the directory or the driver file couldn't be written
+	 */
+	public synchronized boolean open(String driverId) {
+		if (driverId.equals(mDriverId))
+			return true;
+		mDriverId = driverId;
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+			return false;
+
+		File driverFile = new File(mDirectory, DRIVER_FILE);
+		if (driverId.equals(readString(driverFile)))
+			return true;
+		clear();
+		try {
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(driverFile));
+			try {
+				writeString(out, driverId);
+			} finally {
+				out.close();
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the binary for the given source.
+	 *
+	 * @param vertexSource
+	 * @param fragmentSource
+	 * @return The entry or null when there is no binary for this exact source
+	 */
+	public synchronized Entry read(String vertexSource, String fragmentSource) {
+		File file = getFile(vertexSource, fragmentSource);
+		if (!file.exists())
+			return null;
+		Entry entry = readEntry(file);
+		// -- different sources can end up with the same hash
+		if (entry == null || !entry.vertexSource.equals(vertexSource) || !entry.fragmentSource.equals(fragmentSource))
+			return null;
+		return entry;
+	}
+
+	/**
+	 * Reads all stored binaries. Used to warm up the program cache when the application starts.
+	 *
+	 * @return
+	 */
+	public synchronized ArrayList<Entry> readAll() {
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		File[] files = mDirectory.listFiles();
+		if (files == null)
+			return entries;
+		for (File file : files) {
+			if (!file.getName().endsWith(EXTENSION))
+				continue;
+			Entry entry = readEntry(file);
+			if (entry != null)
+				entries.add(entry);
+		}
+		return entries;
+	}
+
+	/**
+	 * Stores a binary, replacing the one for the same source.
+	 *
+	 * @param entry
+	 * @return false when the binary couldn't be written
+	 */
+	public synchronized boolean write(Entry entry) {
+		File file = getFile(entry.vertexSource, entry.fragmentSource);
+		File temp = new File(mDirectory, file.getName() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				writeString(out, entry.vertexSource);
+				writeString(out, entry.fragmentSource);
+				out.writeInt(entry.format);
+				out.writeInt(entry.binary.length);
+				out.write(entry.binary);
+			} finally {
+				out.close();
+			}
+			// -- a half written file must never be picked up
+			if (temp.renameTo(file))
+				return true;
+		} catch (IOException e) {
+		}
+		temp.delete();
+		return false;
+	}
+
+	/**
+	 * Deletes the binary for the given source. Used when the driver rejects a stored binary.
+	 *
+	 * @param vertexSource
+	 * @param fragmentSource
+	 */
+	public synchronized void remove(String vertexSource, String fragmentSource) {
+		getFile(vertexSource, fragmentSource).delete();
+	}
+
+	/**
+	 * Deletes all stored binaries.
+	 */
+	public synchronized void clear() {
+		File[] files = mDirectory.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (file.getName().endsWith(EXTENSION) || file.getName().endsWith(".tmp"))
+				file.delete();
+		}
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	private Entry readEntry(File file) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION)
+					return null;
+				String vertexSource = readString(in);
+				String fragmentSource = readString(in);
+				int format = in.readInt();
+				return new Entry(vertexSource, fragmentSource, format, readBytes(in));
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			file.delete();
+			return null;
+		}
+	}
+
+	private File getFile(String vertexSource, String fragmentSource) {
+		// -- 64 bit FNV-1a over both sources
+		long hash = 0xcbf29ce484222325L;
+		hash = hash(hash, vertexSource);
+		hash = hash(hash, "\u0000");
+		hash = hash(hash, fragmentSource);
+		return new File(mDirectory, Long.toHexString(hash) + EXTENSION);
+	}
+
+	private static long hash(long hash, String value) {
+		for (int i = 0, length = value.length(); i < length; ++i) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static String readString(File file) {
+		if (!file.exists())
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				return readString(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return new String(readBytes(in), "UTF-8");
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		// -- don't trust the length of a damaged file
+		if (length < 0 || length > in.available())
+			throw new IOException("Invalid length " + length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
@@ -0,0 +1,716 @@
+package rajawali.materials;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import rajawali.util.RajLog;
+import android.opengl.GLES20;
+
+/**
+ * Shares linked shader programs between materials. Programs are keyed by their final vertex
+ * and fragment source, after the light code, the number of lights and defines like
+ * VERTEX_ANIM and FOG_ENABLED have been added. Materials with identical shaders compile the
+ * source once and use the same reference counted program. Everything that differs between
+ * these materials is set as uniform data when the material is used.
+ * <p>
+ * Uniform and attribute locations are looked up once per program. The currently bound program
+ * is tracked so glUseProgram() is skipped when consecutive objects share a program.
+ * <p>
+ * Every program that was compiled is remembered. {@link #warmUp()} compiles all of them again
+ * when a new context is created, before the scene is reloaded, so no material has to wait for
+ * its program in the middle of a frame. With a {@link ProgramBinaryStore} the linked binaries
+ * are also kept on disk. They are loaded instead of compiled where the driver supports
+ * GL_OES_get_program_binary, and the variants from earlier runs are warmed up at start up:
+ * <pre><code>
+ * renderer.getShaderProgramCache().setBinaryStore(new ProgramBinaryStore(new File(context.getCacheDir(), "shaders")));
+ * </code></pre>
+ * Programs are compiled from source whenever a binary is missing or rejected.
+ * <p>
+ * Program handles belong to one OpenGL context, so every renderer has its own cache. The
+ * renderer makes its cache current on its GL thread, {@link #getInstance()} returns the cache
+ * of the renderer that draws on the calling thread. All OpenGL calls for compiling, linking
+ * and looking up go through an {@link IShaderProgramGL}.
+ *
+ * @see rajawali.renderer.RajawaliRenderer#getShaderProgramCache()
+ */
+public class ShaderProgramCache {
+	private static final ThreadLocal<ShaderProgramCache> sCurrent = new ThreadLocal<ShaderProgramCache>();
+	/**
+	 * Uniform names by slot. Slots are plain names without any OpenGL state, so they are the
+	 * same in every context and every cache.
+	 */
+	private static final HashMap<String, Integer> sUniformSlots = new HashMap<String, Integer>();
+	private static final ArrayList<String> sUniformSlotNames = new ArrayList<String>();
+
+	/**
+	 * A linked program with its shaders and locations.
+	 * <p>
+	 * Uniforms that are set every time the program is used are set through slots. A slot is
+	 * a global index for a uniform name, see {@link ShaderProgramCache#getUniformSlot(String)}.
+	 * Every program resolves the location of a slot the first time it is used and keeps a
+	 * shadow copy of the value that was last uploaded. The setUniform methods skip the
+	 * glUniform call when the value didn't change, or when the program doesn't use the uniform.
+	 * Uniform values are program state, so the shadow copies are shared by all materials that
+	 * use the program. They must be called while the program is bound. A program starts without
+	 * shadows when it is linked or loaded from a binary, and its shadows are dropped when its
+	 * context is lost.
+	 */
+	public static class ShaderProgram {
+		private static final int UNRESOLVED = -2;
+
+		private final ShaderProgramCache mCache;
+		private final String mKey;
+		private final int mHandle;
+		private final int mVertexShaderHandle;
+		private final int mFragmentShaderHandle;
+		private final HashMap<String, Integer> mUniformLocations = new HashMap<String, Integer>();
+		private final HashMap<String, Integer> mAttributeLocations = new HashMap<String, Integer>();
+		private int[] mSlotLocations = new int[0];
+		private float[][] mSlotValues = new float[0][];
+		private int mReferenceCount;
+
+		private ShaderProgram(ShaderProgramCache cache, String key, int handle, int vertexShaderHandle, int fragmentShaderHandle) {
+			mCache = cache;
+			mKey = key;
+			mHandle = handle;
+			mVertexShaderHandle = vertexShaderHandle;
+			mFragmentShaderHandle = fragmentShaderHandle;
+		}
+
+		public int getHandle() {
+			return mHandle;
+		}
+
+		public int getVertexShaderHandle() {
+			return mVertexShaderHandle;
+		}
+
+		public int getFragmentShaderHandle() {
+			return mFragmentShaderHandle;
+		}
+
+		public int getUniformLocation(String name) {
+			Integer location = mUniformLocations.get(name);
+			if (location == null) {
+				location = mCache.mGL.getUniformLocation(mHandle, name);
+				mUniformLocations.put(name, location);
+			}
+			return location;
+		}
+
+		public int getAttributeLocation(String name) {
+			Integer location = mAttributeLocations.get(name);
+			if (location == null) {
+				location = mCache.mGL.getAttributeLocation(mHandle, name);
+				mAttributeLocations.put(name, location);
+			}
+			return location;
+		}
+
+		/**
+		 * Returns the location of a slot's uniform in this program.
+		 *
+		 * @param slot
+		 * @return The location or -1 when the program doesn't use the uniform
+		 */
+		public int getSlotLocation(int slot) {
+			if (slot >= mSlotLocations.length) {
+				int length = Math.max(slot + 1, getNumUniformSlots());
+				int[] locations = new int[length];
+				float[][] values = new float[length][];
+				System.arraycopy(mSlotLocations, 0, locations, 0, mSlotLocations.length);
+				System.arraycopy(mSlotValues, 0, values, 0, mSlotValues.length);
+				Arrays.fill(locations, mSlotLocations.length, length, UNRESOLVED);
+				mSlotLocations = locations;
+				mSlotValues = values;
+			}
+			int location = mSlotLocations[slot];
+			if (location == UNRESOLVED)
+				location = mSlotLocations[slot] = getUniformLocation(getUniformSlotName(slot));
+			return location;
+		}
+
+		public void setUniform1f(int slot, float value) {
+			int location = getSlotLocation(slot);
+			if (location < 0)
+				return;
+			float[] shadow = mSlotValues[slot];
+			if (shadow != null && shadow[0] == value) {
+				mCache.mNumUniformSkips++;
+				return;
+			}
+			if (shadow == null)
+				shadow = mSlotValues[slot] = new float[1];
+			shadow[0] = value;
+			GLES20.glUniform1f(location, value);
+			mCache.mNumUniformUploads++;
+		}
+
+		public void setUniform1i(int slot, int value) {
+			int location = getSlotLocation(slot);
+			if (location < 0)
+				return;
+			float[] shadow = mSlotValues[slot];
+			// -- the shadow keeps the bits of the int, not every int fits in a float
+			if (shadow != null && Float.floatToRawIntBits(shadow[0]) == value) {
+				mCache.mNumUniformSkips++;
+				return;
+			}
+			if (shadow == null)
+				shadow = mSlotValues[slot] = new float[1];
+			shadow[0] = Float.intBitsToFloat(value);
+			GLES20.glUniform1i(location, value);
+			mCache.mNumUniformUploads++;
+		}
+
+		public void setUniform3fv(int slot, float[] values) {
+			if (update(slot, values, 3))
+				GLES20.glUniform3fv(mSlotLocations[slot], 1, values, 0);
+		}
+
+		public void setUniform4fv(int slot, float[] values) {
+			if (update(slot, values, 4))
+				GLES20.glUniform4fv(mSlotLocations[slot], 1, values, 0);
+		}
+
+		public void setUniformMatrix3fv(int slot, float[] values) {
+			if (update(slot, values, 9))
+				GLES20.glUniformMatrix3fv(mSlotLocations[slot], 1, false, values, 0);
+		}
+
+		public void setUniformMatrix4fv(int slot, float[] values) {
+			if (update(slot, values, 16))
+				GLES20.glUniformMatrix4fv(mSlotLocations[slot], 1, false, values, 0);
+		}
+
+		/**
+		 * Copies the values into the shadow of a slot.
+		 *
+		 * @return false when the program doesn't use the uniform or already has these values
+		 */
+		private boolean update(int slot, float[] values, int count) {
+			if (getSlotLocation(slot) < 0)
+				return false;
+			float[] shadow = mSlotValues[slot];
+			if (shadow == null) {
+				shadow = mSlotValues[slot] = new float[count];
+			} else {
+				int i = 0;
+				while (i < count && shadow[i] == values[i])
+					++i;
+				if (i == count) {
+					mCache.mNumUniformSkips++;
+					return false;
+				}
+			}
+			System.arraycopy(values, 0, shadow, 0, count);
+			mCache.mNumUniformUploads++;
+			return true;
+		}
+
+		/**
+		 * Forgets the locations and the uploaded values, which don't hold anymore when the
+		 * program's context is gone.
+		 */
+		void resetUniforms() {
+			mUniformLocations.clear();
+			mAttributeLocations.clear();
+			mSlotLocations = new int[0];
+			mSlotValues = new float[0][];
+		}
+
+		public int getReferenceCount() {
+			return mReferenceCount;
+		}
+
+		/**
+		 * Returns the cache this program belongs to.
+		 *
+		 * @return
+		 */
+		public ShaderProgramCache getCache() {
+			return mCache;
+		}
+	}
+
+	private final IShaderProgramGL mGL;
+
+	private HashMap<String, ShaderProgram> mPrograms;
+	/**
+	 * The source of every program variant that was used, for the warm up
+	 */
+	private LinkedHashMap<String, String[]> mKnownSources;
+	private ProgramBinaryStore mBinaryStore;
+	private IProgramBinaryAccess mBinaryAccess;
+	private boolean mBinaryAccessChecked;
+	private boolean mBinarySupported;
+	private boolean mStoreWarmedUp;
+	private int mCurrentProgram;
+	private int mNumCompiles;
+	private int mNumBinaryLoads;
+	private int mNumBinaryFailures;
+	private int mNumLookups;
+	private int mNumHits;
+	private long mCompileTime;
+	private long mBinaryLoadTime;
+	private long mWarmUpTime;
+	private int mNumUniformUploads;
+	private int mNumUniformSkips;
+	private int mLastFrameUniformUploads;
+	private int mLastFrameUniformSkips;
+
+	/**
+	 * Returns the cache of the renderer that draws on the calling thread. A thread that doesn't
+	 * belong to a renderer gets a cache of its own.
+	 *
+	 * @return
+	 */
+	public static ShaderProgramCache getInstance() {
+		ShaderProgramCache cache = sCurrent.get();
+		if (cache == null) {
+			cache = new ShaderProgramCache();
+			sCurrent.set(cache);
+		}
+		return cache;
+	}
+
+	public ShaderProgramCache() {
+		this(new GLES20ShaderProgramGL());
+	}
+
+	/**
+	 * @param gl
+	 *            Makes the OpenGL calls, replaced by a stand-in in tests
+	 */
+	public ShaderProgramCache(IShaderProgramGL gl) {
+		mGL = gl;
+		mPrograms = new HashMap<String, ShaderProgram>();
+		mKnownSources = new LinkedHashMap<String, String[]>();
+		mBinaryAccess = new GLES30ProgramBinaryAccess();
+	}
+
+	/**
+	 * Makes this the cache that {@link #getInstance()} returns on the calling thread. Called by
+	 * the renderer on its GL thread.
+	 */
+	public void makeCurrent() {
+		sCurrent.set(this);
+	}
+
+	/**
+	 * Returns the shared program for the given source and adds a reference to it. The program
+	 * is loaded from a stored binary or compiled when it isn't in the cache yet. Must be called
+	 * on the GL thread.
+	 *
+	 * @param vertexSource
+	 * @param fragmentSource
+	 * @return The program or null when it couldn't be compiled or linked
+	 */
+	public synchronized ShaderProgram acquire(String vertexSource, String fragmentSource) {
+		mNumLookups++;
+		String key = getKey(vertexSource, fragmentSource);
+		ShaderProgram program = mPrograms.get(key);
+		if (program != null)
+			mNumHits++;
+		else {
+			program = createProgram(key, vertexSource, fragmentSource);
+			if (program == null)
+				return null;
+		}
+		program.mReferenceCount++;
+		return program;
+	}
+
+	/**
+	 * Creates every known program variant that isn't in the cache, from stored binaries
+	 * where possible. The variants are the programs that were used since the application
+	 * started and, the first time a binary store is used, the programs stored by earlier runs.
+	 * Warmed up programs stay in the cache until a material uses and releases them, or until
+	 * {@link #trim()} is called. Must be called on the GL thread.
+	 *
+	 * @return The number of programs that were created
+	 */
+	public synchronized int warmUp() {
+		long start = System.nanoTime();
+		int numCreated = 0;
+
+		if (mBinaryStore != null && !mStoreWarmedUp && isBinarySupported()) {
+			mStoreWarmedUp = true;
+			ArrayList<ProgramBinaryStore.Entry> entries = mBinaryStore.readAll();
+			for (ProgramBinaryStore.Entry entry : entries) {
+				String key = getKey(entry.vertexSource, entry.fragmentSource);
+				if (mPrograms.containsKey(key))
+					continue;
+				mKnownSources.put(key, new String[] { entry.vertexSource, entry.fragmentSource });
+				if (loadBinary(key, entry) != null)
+					numCreated++;
+			}
+		}
+
+		for (Map.Entry<String, String[]> known : mKnownSources.entrySet()) {
+			if (mPrograms.containsKey(known.getKey()))
+				continue;
+			String[] source = known.getValue();
+			if (createProgram(known.getKey(), source[0], source[1]) != null)
+				numCreated++;
+		}
+
+		mWarmUpTime += System.nanoTime() - start;
+		if (numCreated > 0)
+			RajLog.i("[" + getClass().getName() + "] Warmed up " + numCreated + " programs in " + (System.nanoTime() - start) / 1000000 + "ms");
+		return numCreated;
+	}
+
+	/**
+	 * Deletes the programs that aren't used by any material, like warmed up programs that
+	 * weren't needed.
+	 *
+	 * @return The number of programs that were deleted
+	 */
+	public synchronized int trim() {
+		int numDeleted = 0;
+		Iterator<ShaderProgram> iterator = mPrograms.values().iterator();
+		while (iterator.hasNext()) {
+			ShaderProgram program = iterator.next();
+			if (program.mReferenceCount > 0)
+				continue;
+			iterator.remove();
+			deleteProgram(program);
+			numDeleted++;
+		}
+		return numDeleted;
+	}
+
+	/**
+	 * Adds a reference to a program, for instance when a material keeps several programs.
+	 *
+	 * @param program
+	 */
+	public synchronized void retain(ShaderProgram program) {
+		program.mReferenceCount++;
+	}
+
+	/**
+	 * Returns the slot of a uniform name. Slots are the same for all programs and all caches,
+	 * so they can be looked up once and used with any program in any context.
+	 *
+	 * @param name
+	 * @return
+	 * @see ShaderProgram#setUniform1f(int, float)
+	 */
+	public static int getUniformSlot(String name) {
+		synchronized (sUniformSlots) {
+			Integer slot = sUniformSlots.get(name);
+			if (slot == null) {
+				slot = sUniformSlotNames.size();
+				sUniformSlots.put(name, slot);
+				sUniformSlotNames.add(name);
+			}
+			return slot;
+		}
+	}
+
+	static String getUniformSlotName(int slot) {
+		synchronized (sUniformSlots) {
+			return sUniformSlotNames.get(slot);
+		}
+	}
+
+	static int getNumUniformSlots() {
+		synchronized (sUniformSlots) {
+			return sUniformSlotNames.size();
+		}
+	}
+
+	/**
+	 * Removes a reference. The program and its shaders are deleted when it isn't used anymore.
+	 *
+	 * @param program
+	 */
+	public synchronized void release(ShaderProgram program) {
+		// -- programs from before a context loss aren't in the cache anymore
+		if (mPrograms.get(program.mKey) != program || --program.mReferenceCount > 0)
+			return;
+		mPrograms.remove(program.mKey);
+		deleteProgram(program);
+	}
+
+	/**
+	 * Binds a program unless it is bound already.
+	 *
+	 * @param handle
+	 */
+	public void useProgram(int handle) {
+		if (handle == mCurrentProgram)
+			return;
+		mGL.useProgram(handle);
+		mCurrentProgram = handle;
+	}
+
+	/**
+	 * Starts counting uniform uploads for a new frame.
+	 */
+	public void nextFrame() {
+		mLastFrameUniformUploads = mNumUniformUploads;
+		mLastFrameUniformSkips = mNumUniformSkips;
+		mNumUniformUploads = 0;
+		mNumUniformSkips = 0;
+	}
+
+	/**
+	 * Forgets all programs without deleting them. Must be called when a new OpenGL context
+	 * is created, the old programs died with the old context. The known variants are kept
+	 * for the next warm up.
+	 */
+	public synchronized void clear() {
+		// -- materials that still hold a program until they are reloaded must not trust its shadows
+		for (ShaderProgram program : mPrograms.values())
+			program.resetUniforms();
+		mPrograms.clear();
+		mCurrentProgram = 0;
+		mBinaryAccessChecked = false;
+	}
+
+	/**
+	 * Keeps linked program binaries on disk. Binaries are only stored and loaded when the
+	 * driver supports them.
+	 *
+	 * @param binaryStore
+	 *            The store or null to always compile from source
+	 */
+	public synchronized void setBinaryStore(ProgramBinaryStore binaryStore) {
+		mBinaryStore = binaryStore;
+		mStoreWarmedUp = false;
+		mBinaryAccessChecked = false;
+	}
+
+	public synchronized ProgramBinaryStore getBinaryStore() {
+		return mBinaryStore;
+	}
+
+	/**
+	 * Replaces the way program binaries are read and loaded. The default uses the GLES30
+	 * bindings.
+	 *
+	 * @param binaryAccess
+	 */
+	public synchronized void setProgramBinaryAccess(IProgramBinaryAccess binaryAccess) {
+		mBinaryAccess = binaryAccess;
+		mBinaryAccessChecked = false;
+	}
+
+	/**
+	 * Returns true when program binaries are stored and loaded for the current context.
+	 *
+	 * @return
+	 */
+	public synchronized boolean isBinarySupported() {
+		if (!mBinaryAccessChecked) {
+			mBinaryAccessChecked = true;
+			mBinarySupported = mBinaryStore != null && mBinaryAccess != null && mBinaryAccess.isSupported();
+			if (mBinarySupported && !mBinaryStore.open(mBinaryAccess.getDriverId())) {
+				RajLog.w("[" + getClass().getName() + "] Couldn't open the program binary store in " + mBinaryStore.getDirectory());
+				mBinarySupported = false;
+			}
+		}
+		return mBinarySupported;
+	}
+
+	private ShaderProgram createProgram(String key, String vertexSource, String fragmentSource) {
+		mKnownSources.put(key, new String[] { vertexSource, fragmentSource });
+
+		if (isBinarySupported()) {
+			ProgramBinaryStore.Entry entry = mBinaryStore.read(vertexSource, fragmentSource);
+			if (entry != null) {
+				ShaderProgram program = loadBinary(key, entry);
+				if (program != null)
+					return program;
+			}
+		}
+
+		long start = System.nanoTime();
+		ShaderProgram program = compile(key, vertexSource, fragmentSource);
+		mCompileTime += System.nanoTime() - start;
+		if (program == null)
+			return null;
+		mNumCompiles++;
+		mPrograms.put(key, program);
+
+		if (isBinarySupported()) {
+			int[] format = new int[1];
+			byte[] binary = mBinaryAccess.getProgramBinary(program.mHandle, format);
+			if (binary != null && !mBinaryStore.write(new ProgramBinaryStore.Entry(vertexSource, fragmentSource, format[0], binary)))
+				RajLog.w("[" + getClass().getName() + "] Couldn't store the program binary in " + mBinaryStore.getDirectory());
+		}
+		return program;
+	}
+
+	private ShaderProgram loadBinary(String key, ProgramBinaryStore.Entry entry) {
+		long start = System.nanoTime();
+		int handle = mBinaryAccess.createProgram(entry.format, entry.binary);
+		mBinaryLoadTime += System.nanoTime() - start;
+		if (handle == 0) {
+			// -- fall back to the source, the new binary replaces the rejected one
+			mNumBinaryFailures++;
+			mBinaryStore.remove(entry.vertexSource, entry.fragmentSource);
+			return null;
+		}
+		mNumBinaryLoads++;
+		ShaderProgram program = new ShaderProgram(this, key, handle, 0, 0);
+		mPrograms.put(key, program);
+		return program;
+	}
+
+	private ShaderProgram compile(String key, String vertexSource, String fragmentSource) {
+		int vertexShader = mGL.compileShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+		if (vertexShader == 0)
+			return null;
+		int fragmentShader = mGL.compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+		if (fragmentShader == 0) {
+			mGL.deleteShader(vertexShader);
+			return null;
+		}
+
+		int handle = mGL.linkProgram(vertexShader, fragmentShader);
+		if (handle == 0) {
+			RajLog.d("-=-=-= VERTEX SHADER =-=-=-");
+			RajLog.d(vertexSource);
+			RajLog.d("-=-=-= FRAGMENT SHADER =-=-=-");
+			RajLog.d(fragmentSource);
+			mGL.deleteShader(vertexShader);
+			mGL.deleteShader(fragmentShader);
+			return null;
+		}
+		return new ShaderProgram(this, key, handle, vertexShader, fragmentShader);
+	}
+
+	int loadShader(int shaderType, String source) {
+		return mGL.compileShader(shaderType, source);
+	}
+
+	private void deleteProgram(ShaderProgram program) {
+		if (mCurrentProgram == program.mHandle)
+			mCurrentProgram = 0;
+		// -- programs loaded from a binary don't have shader objects
+		if (program.mVertexShaderHandle != 0)
+			mGL.deleteShader(program.mVertexShaderHandle);
+		if (program.mFragmentShaderHandle != 0)
+			mGL.deleteShader(program.mFragmentShaderHandle);
+		mGL.deleteProgram(program.mHandle);
+	}
+
+	public synchronized int getNumPrograms() {
+		return mPrograms.size();
+	}
+
+	/**
+	 * Returns the number of program variants that will be created by a warm up.
+	 *
+	 * @return
+	 */
+	public synchronized int getNumKnownPrograms() {
+		return mKnownSources.size();
+	}
+
+	/**
+	 * Returns the number of programs that were compiled and linked from source.
+	 *
+	 * @return
+	 */
+	public synchronized int getNumCompiles() {
+		return mNumCompiles;
+	}
+
+	/**
+	 * Returns the number of programs that were loaded from a stored binary.
+	 *
+	 * @return
+	 */
+	public synchronized int getNumBinaryLoads() {
+		return mNumBinaryLoads;
+	}
+
+	/**
+	 * Returns the number of stored binaries the driver rejected. These programs were compiled
+	 * from source instead.
+	 *
+	 * @return
+	 */
+	public synchronized int getNumBinaryFailures() {
+		return mNumBinaryFailures;
+	}
+
+	/**
+	 * Returns the time spent compiling and linking from source in milliseconds.
+	 *
+	 * @return
+	 */
+	public synchronized float getCompileTime() {
+		return mCompileTime / 1000000f;
+	}
+
+	/**
+	 * Returns the time spent loading binaries in milliseconds.
+	 *
+	 * @return
+	 */
+	public synchronized float getBinaryLoadTime() {
+		return mBinaryLoadTime / 1000000f;
+	}
+
+	/**
+	 * Returns the time spent in {@link #warmUp()} in milliseconds.
+	 *
+	 * @return
+	 */
+	public synchronized float getWarmUpTime() {
+		return mWarmUpTime / 1000000f;
+	}
+
+	/**
+	 * Returns the number of glUniform calls made through uniform slots in the last frame.
+	 *
+	 * @return
+	 */
+	public int getNumUniformUploads() {
+		return mLastFrameUniformUploads;
+	}
+
+	/**
+	 * Returns the number of glUniform calls that were skipped in the last frame because the
+	 * program already had the value.
+	 *
+	 * @return
+	 */
+	public int getNumUniformSkips() {
+		return mLastFrameUniformSkips;
+	}
+
+	/**
+	 * Returns the fraction of program requests that were served from the cache.
+	 *
+	 * @return
+	 */
+	public synchronized float getHitRate() {
+		return mNumLookups == 0 ? 0 : mNumHits / (float) mNumLookups;
+	}
+
+	public synchronized void resetStatistics() {
+		mNumCompiles = 0;
+		mNumBinaryLoads = 0;
+		mNumBinaryFailures = 0;
+		mNumLookups = 0;
+		mNumHits = 0;
+		mCompileTime = 0;
+		mBinaryLoadTime = 0;
+		mWarmUpTime = 0;
+	}
+
+	private static String getKey(String vertexSource, String fragmentSource) {
+		return vertexSource + "\u0000" + fragmentSource;
+	}
+}
@@ -1,7 +1,6 @@
 package rajawali.materials;
 
 import rajawali.lights.ALight;
-import android.opengl.GLES20;
 
 public class SphereMapMaterial extends AAdvancedMaterial {
 
@@ -85,6 +84,7 @@ public class SphereMapMaterial extends AAdvancedMaterial {
 		"}\n";
 	
 	private float mSphereMapStrength = .4f;
+	private int mSphereMapStrengthSlot = -1;
 	
 	public SphereMapMaterial() {
 		super(mVShader, mFShader);
@@ -93,9 +93,7 @@ public class SphereMapMaterial extends AAdvancedMaterial {
 	@Override
 	public void useProgram() {
 		super.useProgram();
-		int uni = getUniformHandle(UNI_SPHEREMAP_STRENGTH);
-		if (uni > -1)
-			GLES20.glUniform1f(uni, mSphereMapStrength);
+		setUniform1f(mSphereMapStrengthSlot, mSphereMapStrength);
 	}
 	
 	public void setShaders(String vertexShader, String fragmentShader) {
@@ -121,6 +119,7 @@ public class SphereMapMaterial extends AAdvancedMaterial {
 		super.setShaders(vertexShader.replace("%LIGHT_CODE%", vc.toString()), fragmentShader.replace("%LIGHT_CODE%", sb.toString()));
 
 		registerUniforms(UNI_SPHEREMAP_STRENGTH);
+		mSphereMapStrengthSlot = getUniformSlot(UNI_SPHEREMAP_STRENGTH);
 	}
 
 	public float getSphereMapStrength() {
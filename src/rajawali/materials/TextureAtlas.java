@@ -0,0 +1,374 @@
+package rajawali.materials;
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import rajawali.AGeometry3D;
+import rajawali.BaseObject3D;
+import rajawali.BufferInfo;
+import rajawali.materials.TextureManager.FilterType;
+import rajawali.materials.TextureManager.TextureType;
+import rajawali.materials.TextureManager.WrapType;
+import rajawali.util.MaxRectsPacker;
+import rajawali.util.RajLog;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+/**
+ * Packs many small images into one or more atlas pages so objects that used separate
+ * textures can share a single texture. This saves texture binds and lets these objects
+ * be sorted and batched together.
+ * <p>
+ * Every image is surrounded by a gutter that repeats its edge pixels, so linear filtering
+ * and the smaller mip levels don't bleed neighbouring images into each other. Image slots
+ * are aligned to 4 pixels. Textures that repeat (texture coordinates outside 0..1) can't be
+ * put in an atlas.
+ * <pre><code>
+ * TextureAtlas atlas = new TextureAtlas();
+ * atlas.add("crate", crateBitmap);
+ * atlas.add("barrel", barrelBitmap);
+ * atlas.build(mTextureManager);
+ * atlas.apply(crate, "crate");
+ * atlas.apply(barrel, "barrel");
+ * RajLog.i("Fill ratio: " + atlas.getFillRatio() + ", binds saved: " + atlas.getNumBindsSaved());
+ * </code></pre>
+ * The source bitmaps aren't recycled, the source textures aren't removed from the texture manager.
+ */
+public class TextureAtlas {
+	private static final int SLOT_ALIGNMENT = 4;
+
+	/**
+	 * The place of an image in the atlas.
+	 */
+	public static class Region {
+		private String mName;
+		private int mPage;
+		private int mX;
+		private int mY;
+		private int mWidth;
+		private int mHeight;
+		private float mU0, mV0, mU1, mV1;
+
+		public String getName() {
+			return mName;
+		}
+
+		public int getPage() {
+			return mPage;
+		}
+
+		public int getX() {
+			return mX;
+		}
+
+		public int getY() {
+			return mY;
+		}
+
+		public int getWidth() {
+			return mWidth;
+		}
+
+		public int getHeight() {
+			return mHeight;
+		}
+
+		/**
+		 * Maps a texture coordinate of the original image to the atlas page.
+		 */
+		public float mapU(float u) {
+			return mU0 + u * (mU1 - mU0);
+		}
+
+		public float mapV(float v) {
+			return mV0 + v * (mV1 - mV0);
+		}
+	}
+
+	private int mMaxPageSize;
+	private int mPadding;
+	private ArrayList<String> mNames;
+	private ArrayList<Bitmap> mBitmaps;
+	private HashMap<String, Region> mRegions;
+	private ArrayList<TextureInfo> mPages;
+	private long mImageArea;
+	private long mPageArea;
+	/**
+	 * Texture coordinate buffers that were remapped already. Cloned objects share their buffers.
+	 */
+	private IdentityHashMap<Buffer, Region> mRemappedBuffers;
+	private IdentityHashMap<TextureInfo, Boolean> mReplacedTextures;
+	private IdentityHashMap<TextureInfo, Boolean> mUsedPages;
+
+	public TextureAtlas() {
+		this(1024, 4);
+	}
+
+	/**
+	 * @param maxPageSize
+	 *            The maximum width and height of an atlas page. Should be a power of two and not
+	 *            exceed GL_MAX_TEXTURE_SIZE.
+	 * @param padding
+	 *            Gutter width around every image in pixels. For N mip levels that should stay
+	 *            clean a gutter of 2^N pixels is needed.
+	 */
+	public TextureAtlas(int maxPageSize, int padding) {
+		mMaxPageSize = maxPageSize;
+		mPadding = padding;
+		mNames = new ArrayList<String>();
+		mBitmaps = new ArrayList<Bitmap>();
+		mRegions = new HashMap<String, Region>();
+		mPages = new ArrayList<TextureInfo>();
+		mRemappedBuffers = new IdentityHashMap<Buffer, Region>();
+		mReplacedTextures = new IdentityHashMap<TextureInfo, Boolean>();
+		mUsedPages = new IdentityHashMap<TextureInfo, Boolean>();
+	}
+
+	/**
+	 * Adds an image. Must be called before build().
+	 *
+	 * @param name
+	 * @param bitmap
+	 */
+	public void add(String name, Bitmap bitmap) {
+		if (!mPages.isEmpty())
+			throw new IllegalStateException("The atlas has been built already");
+		if (mNames.contains(name))
+			throw new IllegalArgumentException("An image named " + name + " has been added already");
+		if (getSlotSize(bitmap.getWidth()) > mMaxPageSize || getSlotSize(bitmap.getHeight()) > mMaxPageSize)
+			throw new IllegalArgumentException("Image " + name + " doesn't fit in an atlas page of " + mMaxPageSize + "px");
+		mNames.add(name);
+		mBitmaps.add(bitmap);
+	}
+
+	/**
+	 * Packs all images and adds the atlas pages to the texture manager.
+	 *
+	 * @param textureManager
+	 */
+	public void build(TextureManager textureManager) {
+		if (!mPages.isEmpty())
+			throw new IllegalStateException("The atlas has been built already");
+
+		// -- big images first, that gives a much tighter packing
+		Integer[] order = new Integer[mBitmaps.size()];
+		for (int i = 0; i < order.length; ++i)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer lhs, Integer rhs) {
+				Bitmap a = mBitmaps.get(lhs);
+				Bitmap b = mBitmaps.get(rhs);
+				int sideA = Math.max(a.getWidth(), a.getHeight());
+				int sideB = Math.max(b.getWidth(), b.getHeight());
+				if (sideA != sideB)
+					return sideA > sideB ? -1 : 1;
+				return b.getWidth() * b.getHeight() - a.getWidth() * a.getHeight();
+			}
+		});
+
+		ArrayList<MaxRectsPacker> packers = new ArrayList<MaxRectsPacker>();
+		int[] position = new int[2];
+		for (int i = 0; i < order.length; ++i) {
+			Bitmap bitmap = mBitmaps.get(order[i]);
+			int slotWidth = getSlotSize(bitmap.getWidth());
+			int slotHeight = getSlotSize(bitmap.getHeight());
+
+			int page = 0;
+			while (page < packers.size() && !packers.get(page).insert(slotWidth, slotHeight, position))
+				page++;
+			if (page == packers.size()) {
+				MaxRectsPacker packer = new MaxRectsPacker(mMaxPageSize, mMaxPageSize);
+				packer.insert(slotWidth, slotHeight, position);
+				packers.add(packer);
+			}
+
+			Region region = new Region();
+			region.mName = mNames.get(order[i]);
+			region.mPage = page;
+			region.mX = position[0] + mPadding;
+			region.mY = position[1] + mPadding;
+			region.mWidth = bitmap.getWidth();
+			region.mHeight = bitmap.getHeight();
+			mRegions.put(region.mName, region);
+			mImageArea += (long) region.mWidth * region.mHeight;
+		}
+
+		for (int page = 0; page < packers.size(); ++page) {
+			MaxRectsPacker packer = packers.get(page);
+			// -- mipmaps need power of two textures
+			int pageWidth = Math.min(mMaxPageSize, nextPowerOfTwo(packer.getUsedWidth()));
+			int pageHeight = Math.min(mMaxPageSize, nextPowerOfTwo(packer.getUsedHeight()));
+			int[] pixels = new int[pageWidth * pageHeight];
+
+			for (int i = 0; i < mNames.size(); ++i) {
+				Region region = mRegions.get(mNames.get(i));
+				if (region.mPage != page)
+					continue;
+				Bitmap bitmap = mBitmaps.get(i);
+				bitmap.getPixels(pixels, region.mY * pageWidth + region.mX, pageWidth, 0, 0, region.mWidth, region.mHeight);
+				extrude(pixels, pageWidth, pageHeight, region);
+				region.mU0 = region.mX / (float) pageWidth;
+				region.mV0 = region.mY / (float) pageHeight;
+				region.mU1 = (region.mX + region.mWidth) / (float) pageWidth;
+				region.mV1 = (region.mY + region.mHeight) / (float) pageHeight;
+			}
+
+			Bitmap pageBitmap = Bitmap.createBitmap(pageWidth, pageHeight, Config.ARGB_8888);
+			pageBitmap.setPixels(pixels, 0, pageWidth, 0, 0, pageWidth, pageHeight);
+			mPages.add(textureManager.addTexture(pageBitmap, TextureType.DIFFUSE, true, false, WrapType.CLAMP, FilterType.LINEAR));
+			mPageArea += (long) pageWidth * pageHeight;
+		}
+
+		mBitmaps.clear();
+		RajLog.i("[" + getClass().getName() + "] Packed " + mRegions.size() + " images in " + mPages.size()
+				+ " page(s), fill ratio " + getFillRatio());
+	}
+
+	/**
+	 * Repeats the edge pixels of a region into its gutter.
+	 */
+	private void extrude(int[] pixels, int pageWidth, int pageHeight, Region region) {
+		int left = Math.max(0, region.mX - mPadding);
+		int top = Math.max(0, region.mY - mPadding);
+		int right = Math.min(pageWidth, region.mX - mPadding + getSlotSize(region.mWidth));
+		int bottom = Math.min(pageHeight, region.mY - mPadding + getSlotSize(region.mHeight));
+		int lastX = region.mX + region.mWidth - 1;
+		int lastY = region.mY + region.mHeight - 1;
+
+		for (int y = region.mY; y <= lastY; ++y) {
+			int row = y * pageWidth;
+			for (int x = left; x < region.mX; ++x)
+				pixels[row + x] = pixels[row + region.mX];
+			for (int x = lastX + 1; x < right; ++x)
+				pixels[row + x] = pixels[row + lastX];
+		}
+		for (int y = top; y < region.mY; ++y)
+			System.arraycopy(pixels, region.mY * pageWidth + left, pixels, y * pageWidth + left, right - left);
+		for (int y = lastY + 1; y < bottom; ++y)
+			System.arraycopy(pixels, lastY * pageWidth + left, pixels, y * pageWidth + left, right - left);
+	}
+
+	/**
+	 * Remaps the texture coordinates of an object to an image in the atlas and replaces its
+	 * diffuse textures with the atlas page. Objects that share their geometry, like clones,
+	 * are only remapped once.
+	 *
+	 * @param object
+	 * @param name
+	 *            The name the image was added with
+	 */
+	public void apply(BaseObject3D object, String name) {
+		Region region = mRegions.get(name);
+		if (region == null)
+			throw new IllegalArgumentException("No image named " + name + " in the atlas");
+
+		remapTextureCoords(object.getGeometry(), region);
+
+		TextureInfo page = mPages.get(region.mPage);
+		ArrayList<TextureInfo> textures = object.getMaterial().getTextureInfoList();
+		for (int i = textures.size() - 1; i >= 0; --i) {
+			TextureInfo textureInfo = textures.get(i);
+			if (textureInfo.getTextureType() != TextureType.DIFFUSE || textureInfo == page)
+				continue;
+			if (!mPages.contains(textureInfo))
+				mReplacedTextures.put(textureInfo, Boolean.TRUE);
+			object.removeTexture(textureInfo);
+		}
+		object.addTexture(page);
+		mUsedPages.put(page, Boolean.TRUE);
+	}
+
+	private void remapTextureCoords(AGeometry3D geometry, Region region) {
+		BufferInfo bufferInfo = null;
+		for (BufferInfo info : geometry.getVertexBufferInfos()) {
+			if (info != null && AMaterial.ATTR_TEXTURECOORD.equals(info.attributeName)) {
+				bufferInfo = info;
+				break;
+			}
+		}
+		if (bufferInfo == null || !(bufferInfo.buffer instanceof FloatBuffer)) {
+			RajLog.w("[" + getClass().getName() + "] Geometry has no texture coordinates, nothing to remap.");
+			return;
+		}
+
+		FloatBuffer coords = (FloatBuffer) bufferInfo.buffer;
+		Region remapped = mRemappedBuffers.get(coords);
+		if (remapped == region)
+			return;
+		if (remapped != null)
+			throw new IllegalStateException("Geometry has been mapped to " + remapped.mName + " already");
+
+		// -- interleaved geometries store the texture coordinates at an offset in every vertex
+		int offset = bufferInfo.vertexSize > 0 ? bufferInfo.attributeOffset / AGeometry3D.FLOAT_SIZE_BYTES : 0;
+		int stride = bufferInfo.vertexSize > 0 ? bufferInfo.vertexSize / AGeometry3D.FLOAT_SIZE_BYTES : bufferInfo.attributeSize;
+		if (stride <= 0)
+			stride = 2;
+
+		boolean repeats = false;
+		int limit = coords.limit();
+		for (int i = offset; i + 1 < limit; i += stride) {
+			float u = coords.get(i);
+			float v = coords.get(i + 1);
+			if (u < -0.001f || u > 1.001f || v < -0.001f || v > 1.001f)
+				repeats = true;
+			coords.put(i, region.mapU(u));
+			coords.put(i + 1, region.mapV(v));
+		}
+		if (repeats)
+			RajLog.w("[" + getClass().getName() + "] Texture coordinates of " + region.mName
+					+ " are outside 0..1, repeating textures don't work in an atlas.");
+		mRemappedBuffers.put(coords, region);
+
+		if (bufferInfo.bufferHandle > 0)
+			geometry.changeBufferData(bufferInfo, coords, 0);
+	}
+
+	public Region getRegion(String name) {
+		return mRegions.get(name);
+	}
+
+	public int getNumPages() {
+		return mPages.size();
+	}
+
+	public TextureInfo getPage(int page) {
+		return mPages.get(page);
+	}
+
+	/**
+	 * Returns the fraction of the atlas pages that is covered by images, gutters excluded.
+	 *
+	 * @return
+	 */
+	public float getFillRatio() {
+		return mPageArea == 0 ? 0 : (float) ((double) mImageArea / mPageArea);
+	}
+
+	/**
+	 * Returns the number of texture binds saved per frame when the objects the atlas was applied
+	 * to are drawn sorted by texture: the number of distinct textures that were replaced minus
+	 * the number of atlas pages that replaced them.
+	 *
+	 * @return
+	 */
+	public int getNumBindsSaved() {
+		return Math.max(0, mReplacedTextures.size() - mUsedPages.size());
+	}
+
+	private int getSlotSize(int size) {
+		int slot = size + mPadding * 2;
+		return (slot + SLOT_ALIGNMENT - 1) / SLOT_ALIGNMENT * SLOT_ALIGNMENT;
+	}
+
+	private static int nextPowerOfTwo(int value) {
+		int pot = 1;
+		while (pot < value)
+			pot <<= 1;
+		return pot;
+	}
+}
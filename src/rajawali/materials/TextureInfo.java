@@ -55,11 +55,61 @@ public class TextureInfo {
 	protected FilterType mFilterType;
 	
 	protected boolean isCubeMap = false;
+	/**
+	 * The resource this texture was decoded from. 0 when unknown.
+	 */
+	protected int mResourceId;
+	/**
+	 * The file this texture was decoded from. null when unknown.
+	 */
+	protected String mFilePath;
+	/**
+	 * Compressed texture data. null for bitmap textures.
+	 */
+	protected CompressedTexture mCompressedTexture;
 	
 	/**
 	 * OpenGL bitmap format
 	 */
 	protected int mBitmapFormat;
+	/**
+	 * Textures with a higher priority are uploaded first when uploads are budgeted.
+	 * 
+	 * @see TextureManager#setUploadBudget(long, long)
+	 */
+	protected int mUploadPriority;
+	/**
+	 * The frame this texture was last bound in. -1 if it was never bound.
+	 */
+	protected int mLastUsedFrame = -1;
+	/**
+	 * Set while the texture is waiting in the texture manager's upload queue.
+	 */
+	boolean mUploadQueued;
+	long mUploadSequence;
+	/**
+	 * Set when the texture was evicted to stay within the texture memory budget. It is
+	 * restored by the manager that evicted it when it's bound again.
+	 * 
+	 * @see TextureManager#setMemoryBudget(long)
+	 */
+	boolean mEvicted;
+	TextureManager mEvictedBy;
+	/**
+	 * The manager this texture was added to. Its frame number is used to track when the texture
+	 * was last used.
+	 */
+	TextureManager mManager;
+	/**
+	 * The registry that shares this texture, null if it isn't shared.
+	 */
+	TextureRegistry mRegistry;
+	/**
+	 * The uniform slot of the sampler, resolved from the texture name when it's first bound.
+	 * 
+	 * @see ShaderProgramCache#getUniformSlot(String)
+	 */
+	int mUniformSlot = -1;
 
 	public TextureInfo(TextureInfo other) {
 		setFrom(other);
@@ -85,6 +135,8 @@ public class TextureInfo {
 		mMipmap = other.isMipmap();
 		mBitmapConfig = other.getBitmapConfig();
 		mTextureName = other.getTextureName();
+		mUniformSlot = other.mUniformSlot;
+		mCompressedTexture = other.getCompressedTexture();
 	}
 	
 	public void setTextureId(int id) {
@@ -97,6 +149,7 @@ public class TextureInfo {
 	
 	public void setTextureName(String name) {
 		mTextureName = name;
+		mUniformSlot = -1;
 	}
 	
 	public String getTextureName() {
@@ -195,6 +248,72 @@ public class TextureInfo {
 		return mWrapType;
 	}
 	
+	public int getUploadPriority() {
+		return mUploadPriority;
+	}
+
+	public void setUploadPriority(int priority) {
+		mUploadPriority = priority;
+	}
+
+	public int getLastUsedFrame() {
+		return mLastUsedFrame;
+	}
+
+	/**
+	 * Marks this texture as used in the current frame. This is called when the texture
+	 * is bound for rendering.
+	 */
+	public void markUsed() {
+		if(mManager != null)
+			mLastUsedFrame = mManager.getFrameNumber();
+	}
+
+	public int getResourceId() {
+		return mResourceId;
+	}
+
+	public void setResourceId(int resourceId) {
+		mResourceId = resourceId;
+	}
+
+	public String getFilePath() {
+		return mFilePath;
+	}
+
+	public void setFilePath(String filePath) {
+		mFilePath = filePath;
+	}
+
+	/**
+	 * Indicates whether the texture can be decoded again from its original resource or file.
+	 * 
+	 * @return
+	 */
+	public boolean hasSource() {
+		return mResourceId != 0 || mFilePath != null;
+	}
+	
+	public CompressedTexture getCompressedTexture() {
+		return mCompressedTexture;
+	}
+
+	public void setCompressedTexture(CompressedTexture compressedTexture) {
+		mCompressedTexture = compressedTexture;
+	}
+
+	public boolean isCompressed() {
+		return mCompressedTexture != null;
+	}
+	
+	public TextureRegistry getRegistry() {
+		return mRegistry;
+	}
+	
+	public boolean isEvicted() {
+		return mEvicted;
+	}
+	
 	public boolean shouldRecycle() {
 		return mShouldRecycle;
 	}
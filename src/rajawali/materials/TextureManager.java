@@ -2,10 +2,16 @@ package rajawali.materials;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Stack;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import rajawali.renderer.AssetLoader;
+import rajawali.util.RajLog;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
 import android.opengl.GLUtils;
 
@@ -16,9 +22,60 @@ import android.opengl.GLUtils;
 public class TextureManager {
 	private boolean mShouldValidateTextures;
 	private TextureInfo mCurrentValidatingTexInfo;
-	private Stack<TextureInfo> mTexturesToUpdate;
-	private boolean mShouldUpdateTextures;
 	private static final int GL_TEXTURE_EXTERNAL_OES = 0x8D65;
+	/**
+	 * Textures that need to be created again or that have a pending bitmap update.
+	 * Each texture is queued at most once so repeated updates are merged into one upload.
+	 * Only used on the OpenGL thread.
+	 */
+	private ArrayList<TextureInfo> mUploadQueue;
+	/**
+	 * Bitmap updates from other threads. They are moved to the upload queue at the start of
+	 * the next frame.
+	 */
+	private final ConcurrentLinkedQueue<TextureInfo> mPendingUpdates = new ConcurrentLinkedQueue<TextureInfo>();
+	private long mUploadSequence;
+	/**
+	 * Per frame upload budgets. 0 means unlimited.
+	 */
+	private long mUploadBudgetBytes;
+	private long mUploadBudgetMillis;
+	private long mLastFrameUploadBytes;
+	private int mLastFrameUploadCount;
+	private long mTotalUploadBytes;
+	private long mTotalUploadNanos;
+	private int mFrameNumber;
+	/**
+	 * Texture memory budget in bytes. 0 means unlimited.
+	 */
+	private long mMemoryBudget;
+	private int mNumEvictions;
+	private int mNumRestores;
+	/**
+	 * Used to decode textures from their resource when they have to be restored.
+	 */
+	private Resources mResources;
+	private TextureRegistry mTextureRegistry;
+	/**
+	 * Textures that were used in the previous frame go first, then textures with a
+	 * higher priority, then the oldest request.
+	 */
+	private final Comparator<TextureInfo> mUploadComparator = new Comparator<TextureInfo>() {
+		public int compare(TextureInfo lhs, TextureInfo rhs) {
+			boolean lhsVisible = lhs.getLastUsedFrame() >= mFrameNumber - 1;
+			boolean rhsVisible = rhs.getLastUsedFrame() >= mFrameNumber - 1;
+			if(lhsVisible != rhsVisible)
+				return lhsVisible ? -1 : 1;
+			if(lhs.getUploadPriority() != rhs.getUploadPriority())
+				return lhs.getUploadPriority() > rhs.getUploadPriority() ? -1 : 1;
+			return lhs.mUploadSequence < rhs.mUploadSequence ? -1 : (lhs.mUploadSequence > rhs.mUploadSequence ? 1 : 0);
+		}
+	};
+	private final Comparator<TextureInfo> mLeastRecentlyUsedComparator = new Comparator<TextureInfo>() {
+		public int compare(TextureInfo lhs, TextureInfo rhs) {
+			return lhs.getLastUsedFrame() < rhs.getLastUsedFrame() ? -1 : (lhs.getLastUsedFrame() > rhs.getLastUsedFrame() ? 1 : 0);
+		}
+	};
 	/**
 	 * List containing texture information objects
 	 */
@@ -60,7 +117,32 @@ public class TextureManager {
 	
 	public TextureManager() {
 		mTextureInfoList = new ArrayList<TextureInfo>(); 
-		mTexturesToUpdate = new Stack<TextureInfo>();
+		mUploadQueue = new ArrayList<TextureInfo>();
+	}
+	
+	/**
+	 * @param resources
+	 *            Used to decode textures from their resource id when they are restored
+	 * @see #setMemoryBudget(long)
+	 */
+	public TextureManager(Resources resources) {
+		this();
+		mResources = resources;
+	}
+	
+	public void setResources(Resources resources) {
+		mResources = resources;
+	}
+	
+	/**
+	 * Returns the registry that shares textures between models.
+	 * 
+	 * @return
+	 */
+	public synchronized TextureRegistry getTextureRegistry() {
+		if(mTextureRegistry == null)
+			mTextureRegistry = new TextureRegistry(this);
+		return mTextureRegistry;
 	}
 	
 	public TextureInfo addTexture(Bitmap texture) {
@@ -87,6 +169,8 @@ public class TextureManager {
 		return this.addTexture(texture, textureType, mipmap, recycle, WrapType.REPEAT, FilterType.LINEAR);
 	}
 	public TextureInfo addTexture(Bitmap texture, TextureType textureType, boolean mipmap, boolean recycle, WrapType wrapType, FilterType filterType) {
+		if(AssetLoader.isLoaderThread())
+			return createDeferredTexture(texture, textureType, mipmap, recycle, wrapType, filterType);
 		TextureInfo tInfo = addTexture(null, texture, texture.getWidth(), texture.getHeight(), textureType, texture.getConfig(), mipmap, recycle, wrapType, filterType);
 		if(recycle && tInfo.getTextureId() > 0)
 			texture.recycle();
@@ -95,6 +179,89 @@ public class TextureManager {
 		return tInfo;
 	}
 	
+	/**
+	 * Creates a texture info object without uploading the bitmap. The bitmap is kept until
+	 * uploadDeferredTexture() is called on the OpenGL thread.
+	 */
+	private TextureInfo createDeferredTexture(Bitmap texture, TextureType textureType, boolean mipmap, boolean recycle, WrapType wrapType, FilterType filterType) {
+		TextureInfo textureInfo = new TextureInfo(0, textureType);
+		textureInfo.setWidth(texture.getWidth());
+		textureInfo.setHeight(texture.getHeight());
+		textureInfo.setBitmapConfig(texture.getConfig());
+		textureInfo.setMipmap(mipmap);
+		textureInfo.setWrapType(wrapType);
+		textureInfo.setFilterType(filterType);
+		textureInfo.shouldRecycle(recycle);
+		textureInfo.setTexture(texture);
+		return textureInfo;
+	}
+	
+	/**
+	 * Uploads a texture that was added on an asset loader thread and starts managing it.
+	 * Must be called on the OpenGL thread.
+	 * 
+	 * @param textureInfo
+	 * @see AssetLoader
+	 */
+	public void uploadDeferredTexture(TextureInfo textureInfo) {
+		// -- shared textures can be referenced by several loaded models
+		if(mTextureInfoList.contains(textureInfo))
+			return;
+		Bitmap texture = textureInfo.getTexture();
+		recreateTexture(textureInfo);
+		if(texture != null && textureInfo.shouldRecycle() && textureInfo.getTextureId() > 0) {
+			texture.recycle();
+			textureInfo.setTexture(null);
+		}
+		addTextureInfo(textureInfo);
+	}
+	
+	/**
+	 * Creates the OpenGL texture for an existing texture info object from its bitmap(s). The
+	 * texture info object keeps its identity and isn't added to the texture list.
+	 */
+	private void recreateTexture(TextureInfo textureInfo) {
+		if(textureInfo.isCompressed()) {
+			uploadCompressedTexture(textureInfo);
+			return;
+		}
+		// -- the bitmap was released, decode it again from its source
+		boolean decoded = false;
+		if(!textureInfo.isCubeMap() && textureInfo.getTexture() == null && textureInfo.hasSource()) {
+			Bitmap bitmap = decodeSource(textureInfo);
+			if(bitmap == null)
+				return;
+			textureInfo.setTexture(bitmap);
+			decoded = true;
+		}
+		mCurrentValidatingTexInfo = textureInfo;
+		if(textureInfo.getTextureType() == TextureType.CUBE_MAP)
+			addCubemapTextures(textureInfo.getTextures(), textureInfo.isMipmap(), textureInfo.shouldRecycle(), true);
+		else
+			addTexture(null, textureInfo.getTexture(), textureInfo.getWidth(), textureInfo.getHeight(), textureInfo.getTextureType(), textureInfo.getBitmapConfig(), textureInfo.isMipmap(), textureInfo.shouldRecycle(), true, textureInfo.getWrapType(), textureInfo.getFilterType());
+		mCurrentValidatingTexInfo = null;
+		if(decoded && textureInfo.getTextureId() > 0) {
+			textureInfo.getTexture().recycle();
+			textureInfo.setTexture(null);
+		}
+	}
+	
+	private Bitmap decodeSource(TextureInfo textureInfo) {
+		Bitmap bitmap = null;
+		if(textureInfo.getResourceId() != 0) {
+			if(mResources == null) {
+				RajLog.e("[" + getClass().getName() + "] Can't decode texture resource " + textureInfo.getResourceId() + ", no Resources were set.");
+				return null;
+			}
+			bitmap = BitmapFactory.decodeResource(mResources, textureInfo.getResourceId());
+		} else if(textureInfo.getFilePath() != null) {
+			bitmap = BitmapFactory.decodeFile(textureInfo.getFilePath());
+		}
+		if(bitmap == null)
+			RajLog.e("[" + getClass().getName() + "] Couldn't decode texture " + textureInfo);
+		return bitmap;
+	}
+	
 	public TextureInfo addTexture(ByteBuffer buffer, int width, int height) {
 		return addTexture(buffer, width, height, TextureType.DIFFUSE);
 	}
@@ -110,6 +277,10 @@ public class TextureManager {
 	public TextureInfo addTexture(TextureInfo textureInfo) {
 		TextureInfo newInfo;
 		GLES20.glDeleteTextures(1, new int[] { textureInfo.getTextureId() }, 0);
+		if(textureInfo.isCompressed() || (textureInfo.getTexture() == null && textureInfo.hasSource())) {
+			recreateTexture(textureInfo);
+			return textureInfo;
+		}
 		TextureInfo oldInfo = new TextureInfo(textureInfo);
 		if(textureInfo.getTextureType() == TextureType.CUBE_MAP) {
 			newInfo = addCubemapTextures(textureInfo.getTextures(), textureInfo.isMipmap(), textureInfo.shouldRecycle());
@@ -134,31 +305,7 @@ public class TextureManager {
 		int textureId = textures[0];
 		if(textureId > 0) {
 			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);        
-	        
-			if(mipmap){
-				if(filterType==FilterType.LINEAR)
-					GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
-				else
-					GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST_MIPMAP_NEAREST);				
-			}else{
-				if(filterType==FilterType.LINEAR)
-			       	GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-				else
-					GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-			}
-	
-			if(filterType==FilterType.LINEAR)
-				GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-			else
-				GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-			
-			if(wrapType==WrapType.REPEAT){
-				GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_REPEAT);
-	        	GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_REPEAT);
-			}else{
-				GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-	        	GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-			}
+			setTextureParameters(mipmap, wrapType, filterType);
 	        	
 	        if(texture == null)
 	        	GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, bitmapFormat, width, height, 0, bitmapFormat, GLES20.GL_UNSIGNED_BYTE, buffer);
@@ -190,13 +337,92 @@ public class TextureManager {
         	buffer = null;
         }
         if(!isExistingTexture && mCurrentValidatingTexInfo == null)
-        	mTextureInfoList.add(textureInfo);
+        	addTextureInfo(textureInfo);
         
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);  
         
         return textureInfo;
 	}
 	
+	private void setTextureParameters(boolean mipmap, WrapType wrapType, FilterType filterType) {
+		if(mipmap){
+			if(filterType==FilterType.LINEAR)
+				GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
+			else
+				GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST_MIPMAP_NEAREST);				
+		}else{
+			if(filterType==FilterType.LINEAR)
+		       	GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+			else
+				GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+		}
+
+		if(filterType==FilterType.LINEAR)
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+		else
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+		
+		if(wrapType==WrapType.REPEAT){
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_REPEAT);
+        	GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_REPEAT);
+		}else{
+			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        	GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+		}
+	}
+	
+	/**
+	 * Adds a texture from compressed data, for instance ETC1 data read by {@link CompressedTextureReader}.
+	 * The data is uploaded as-is with glCompressedTexImage2D, mipmaps can't be generated at runtime
+	 * so they are only used when the container has more than one level. The device has to support
+	 * the compressed format, ETC1 is supported by all OpenGL ES 2.0 devices.
+	 * <p>
+	 * The compressed data is kept so the texture can be recreated when the context is lost.
+	 * 
+	 * @param texture
+	 * @return
+	 */
+	public TextureInfo addCompressedTexture(CompressedTexture texture) {
+		return addCompressedTexture(texture, TextureType.DIFFUSE, WrapType.REPEAT, FilterType.LINEAR);
+	}
+	
+	public TextureInfo addCompressedTexture(CompressedTexture texture, TextureType textureType, WrapType wrapType, FilterType filterType) {
+		TextureInfo textureInfo = new TextureInfo(0, textureType);
+		textureInfo.setWidth(texture.getWidth());
+		textureInfo.setHeight(texture.getHeight());
+		textureInfo.setMipmap(texture.getNumLevels() > 1);
+		textureInfo.setWrapType(wrapType);
+		textureInfo.setFilterType(filterType);
+		textureInfo.setCompressedTexture(texture);
+		// -- uploaded later by the asset loader through uploadDeferredTexture()
+		if(AssetLoader.isLoaderThread())
+			return textureInfo;
+		uploadCompressedTexture(textureInfo);
+		addTextureInfo(textureInfo);
+		return textureInfo;
+	}
+	
+	private void uploadCompressedTexture(TextureInfo textureInfo) {
+		CompressedTexture texture = textureInfo.getCompressedTexture();
+		int[] textures = new int[1];
+		GLES20.glGenTextures(1, textures, 0);
+		int textureId = textures[0];
+		textureInfo.setTextureId(textureId);
+		if(textureId == 0) {
+			mShouldValidateTextures = true;
+			return;
+		}
+		
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+		setTextureParameters(textureInfo.isMipmap(), textureInfo.getWrapType(), textureInfo.getFilterType());
+		for(int i=0; i<texture.getNumLevels(); i++) {
+			ByteBuffer level = texture.getLevel(i);
+			level.position(0);
+			GLES20.glCompressedTexImage2D(GLES20.GL_TEXTURE_2D, i, texture.getInternalFormat(), texture.getLevelWidth(i), texture.getLevelHeight(i), 0, level.capacity(), level);
+		}
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+	}
+	
 	/**
 	 * This only works for API Level 15 and higher.
 	 * Thanks to Lubomir Panak (@drakh)
@@ -268,7 +494,7 @@ public class TextureManager {
 		int textureId = textureIds[0];
 		
 		TextureInfo textureInfo = mCurrentValidatingTexInfo == null ?  new TextureInfo(textureId) : mCurrentValidatingTexInfo;
-		if(!isExistingTexture && mCurrentValidatingTexInfo == null) mTextureInfoList.add(textureInfo);
+		if(!isExistingTexture && mCurrentValidatingTexInfo == null) addTextureInfo(textureInfo);
 		
 		if(mCurrentValidatingTexInfo == null) {
 			textureInfo.setWidth(textures[0].getWidth());
@@ -327,10 +553,37 @@ public class TextureManager {
 		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
 	}
 	
+	/**
+	 * Queues a bitmap update. This can be called from any thread, the upload happens on the
+	 * OpenGL thread at the start of a frame. Updating the same texture several times before
+	 * it is uploaded results in a single upload of the last bitmap.
+	 * 
+	 * @param textureInfo
+	 * @param texture
+	 */
 	public void updateTexture(TextureInfo textureInfo, Bitmap texture) {
 		textureInfo.setTexture(texture);
-		mShouldUpdateTextures = true;
-		mTexturesToUpdate.add(textureInfo);
+		mPendingUpdates.add(textureInfo);
+	}
+	
+	private void addTextureInfo(TextureInfo textureInfo) {
+		textureInfo.mManager = this;
+		mTextureInfoList.add(textureInfo);
+	}
+	
+	private void queueUpload(TextureInfo textureInfo) {
+		if(textureInfo.mUploadQueued)
+			return;
+		textureInfo.mUploadQueued = true;
+		textureInfo.mUploadSequence = mUploadSequence++;
+		mUploadQueue.add(textureInfo);
+	}
+	
+	private void dequeueUpload(TextureInfo textureInfo) {
+		if(!textureInfo.mUploadQueued)
+			return;
+		textureInfo.mUploadQueued = false;
+		mUploadQueue.remove(textureInfo);
 	}
 	
 	public void updateTexture(TextureInfo textureInfo) {
@@ -349,9 +602,21 @@ public class TextureManager {
 		
 		int len = getNumTextures(); 
 		
+		if(mUploadBudgetBytes > 0 || mUploadBudgetMillis > 0) {
+			// -- the old handles died with the context, recreate the textures within the budget
+			for(int i=0; i<len; i++) {
+				tInfo = mTextureInfoList.get(i);
+				tInfo.setTextureId(0);
+				if(!tInfo.mEvicted)
+					queueUpload(tInfo);
+			}
+			return;
+		}
+		
 		for(int i=0; i<len; i++) {
 			tInfo = mTextureInfoList.get(i);
-			tInfo.setFrom(addTexture(tInfo));
+			if(!tInfo.mEvicted)
+				tInfo.setFrom(addTexture(tInfo));
 		}
 	}
 	
@@ -368,10 +633,18 @@ public class TextureManager {
 		GLES20.glDeleteTextures(count, textures, 0);
 		
 		mTextureInfoList.clear();
+		if(mTextureRegistry != null)
+			mTextureRegistry.clear();
+		for(int i=0; i<mUploadQueue.size(); i++)
+			mUploadQueue.get(i).mUploadQueued = false;
+		mUploadQueue.clear();
+		mPendingUpdates.clear();
 	}
 	
 	public void removeTexture(TextureInfo textureInfo) {
 		mTextureInfoList.remove(textureInfo);
+		dequeueUpload(textureInfo);
+		mPendingUpdates.remove(textureInfo);
 		GLES20.glDeleteTextures(1, new int[] { textureInfo.getTextureId() }, 0);
 	}
 	
@@ -383,6 +656,8 @@ public class TextureManager {
 			Integer textureId = textureInfoList.get(i).getTextureId();
 			textures[i] = textureId.intValue();
 			mTextureInfoList.remove(textureInfoList.get(i));
+			dequeueUpload(textureInfoList.get(i));
+			mPendingUpdates.remove(textureInfoList.get(i));
 		}
 		textureInfoList.clear();
 		GLES20.glDeleteTextures(count, textures, 0);
@@ -392,24 +667,271 @@ public class TextureManager {
 		return mTextureInfoList;
 	}
 	
+	/**
+	 * Creates textures that couldn't be created before and uploads pending bitmap updates.
+	 * This is called once at the start of every frame. When an upload budget is set the
+	 * remaining uploads are postponed to the next frames.
+	 */
 	public void validateTextures() {
+		mFrameNumber++;
+		TextureInfo update;
+		while((update = mPendingUpdates.poll()) != null)
+			queueUpload(update);
 		if(mShouldValidateTextures) {
 			int num = mTextureInfoList.size();
 			for(int i=0; i<num; ++i) {
 				TextureInfo inf = mTextureInfoList.get(i);
-				if(inf.getTextureId() == 0) {
-					mCurrentValidatingTexInfo = inf;
-					addTexture(inf);
-					mCurrentValidatingTexInfo = null;
-				}
+				if(inf.getTextureId() == 0 && !inf.mEvicted)
+					queueUpload(inf);
 			}
 			mShouldValidateTextures = false;
 		}
-		if(mShouldUpdateTextures) {
-			while(!mTexturesToUpdate.isEmpty())
-				updateTexture(mTexturesToUpdate.pop());
-			mShouldUpdateTextures = false;
+		if(mMemoryBudget > 0)
+			enforceMemoryBudget();
+		
+		mLastFrameUploadBytes = 0;
+		mLastFrameUploadCount = 0;
+		int num = mUploadQueue.size();
+		if(num == 0)
+			return;
+		if(num > 1)
+			Collections.sort(mUploadQueue, mUploadComparator);
+		
+		long start = System.nanoTime();
+		int count = 0;
+		while(count < num) {
+			TextureInfo inf = mUploadQueue.get(count);
+			long size = getUploadSize(inf);
+			if(count > 0) {
+				if(mUploadBudgetBytes > 0 && mLastFrameUploadBytes + size > mUploadBudgetBytes)
+					break;
+				if(mUploadBudgetMillis > 0 && System.nanoTime() - start >= mUploadBudgetMillis * 1000000)
+					break;
+			}
+			
+			inf.mUploadQueued = false;
+			if(inf.getTextureId() == 0)
+				recreateTexture(inf);
+			else
+				updateTexture(inf);
+			mLastFrameUploadBytes += size;
+			count++;
+		}
+		mUploadQueue.subList(0, count).clear();
+		
+		mLastFrameUploadCount = count;
+		mTotalUploadBytes += mLastFrameUploadBytes;
+		mTotalUploadNanos += System.nanoTime() - start;
+	}
+	
+	/**
+	 * Evicts the least recently used textures until the resident textures fit in the memory
+	 * budget. Only textures that can be restored from their resource, file or compressed data
+	 * are evicted, textures that were used in the previous frame are never evicted. Bitmaps of
+	 * textures that can be decoded again are released.
+	 */
+	private void enforceMemoryBudget() {
+		long resident = 0;
+		ArrayList<TextureInfo> candidates = new ArrayList<TextureInfo>();
+		int num = mTextureInfoList.size();
+		for(int i=0; i<num; ++i) {
+			TextureInfo inf = mTextureInfoList.get(i);
+			if(inf.getTextureId() == 0)
+				continue;
+			resident += getUploadSize(inf);
+			if(!canEvict(inf))
+				continue;
+			if(!inf.isCompressed() && inf.getTexture() != null && !inf.mUploadQueued)
+				inf.setTexture(null);
+			// -- textures that were never bound get the same grace period as textures that were just used
+			if(inf.getLastUsedFrame() < 0)
+				inf.mLastUsedFrame = mFrameNumber;
+			if(inf.getLastUsedFrame() < mFrameNumber - 1)
+				candidates.add(inf);
+		}
+		if(resident <= mMemoryBudget || candidates.isEmpty())
+			return;
+		
+		Collections.sort(candidates, mLeastRecentlyUsedComparator);
+		for(int i=0; i<candidates.size() && resident > mMemoryBudget; ++i) {
+			TextureInfo inf = candidates.get(i);
+			resident -= getUploadSize(inf);
+			evictTexture(inf);
 		}
 	}
 	
+	private boolean canEvict(TextureInfo textureInfo) {
+		if(textureInfo.isCubeMap())
+			return false;
+		TextureType type = textureInfo.getTextureType();
+		if(type == TextureType.FRAME_BUFFER || type == TextureType.DEPTH_BUFFER || type == TextureType.VIDEO_TEXTURE)
+			return false;
+		return textureInfo.isCompressed() || textureInfo.hasSource();
+	}
+	
+	private void evictTexture(TextureInfo textureInfo) {
+		GLES20.glDeleteTextures(1, new int[] { textureInfo.getTextureId() }, 0);
+		textureInfo.setTextureId(0);
+		dequeueUpload(textureInfo);
+		if(!textureInfo.isCompressed())
+			textureInfo.setTexture(null);
+		textureInfo.mEvicted = true;
+		textureInfo.mEvictedBy = this;
+		mNumEvictions++;
+	}
+	
+	/**
+	 * Restores a texture that was evicted to stay within the memory budget. This is called when
+	 * an evicted texture is bound. When an upload budget is set the texture is queued and shows
+	 * up within the next frames, otherwise it is decoded and uploaded right away.
+	 * 
+	 * @param textureInfo
+	 */
+	public void restoreTexture(TextureInfo textureInfo) {
+		if(!textureInfo.mEvicted)
+			return;
+		textureInfo.mEvicted = false;
+		textureInfo.mEvictedBy = null;
+		mNumRestores++;
+		if(mUploadBudgetBytes > 0 || mUploadBudgetMillis > 0)
+			queueUpload(textureInfo);
+		else
+			recreateTexture(textureInfo);
+	}
+	
+	/**
+	 * Limits the amount of texture memory. When the resident textures exceed the budget the
+	 * least recently used textures are deleted from the GPU and restored from their source
+	 * when they are used again. This works for textures that have a resource id or file path
+	 * (see {@link TextureInfo#hasSource()}) and for compressed textures. The bitmaps of textures
+	 * with a source aren't kept in memory while a budget is set.
+	 * <p>
+	 * Textures with a resource id need the Resources passed to the constructor or setResources().
+	 * 
+	 * @param maxBytes
+	 *            Maximum texture memory in bytes, 0 for unlimited
+	 */
+	public void setMemoryBudget(long maxBytes) {
+		mMemoryBudget = maxBytes;
+	}
+	
+	public long getMemoryBudget() {
+		return mMemoryBudget;
+	}
+	
+	/**
+	 * Returns the estimated GPU memory used by the textures that are currently uploaded.
+	 * 
+	 * @return
+	 */
+	public long getResidentBytes() {
+		long size = 0;
+		int num = mTextureInfoList.size();
+		for(int i=0; i<num; ++i) {
+			TextureInfo inf = mTextureInfoList.get(i);
+			if(inf.getTextureId() != 0)
+				size += getUploadSize(inf);
+		}
+		return size;
+	}
+	
+	/**
+	 * Returns the size of the textures that are currently evicted.
+	 * 
+	 * @return
+	 */
+	public long getEvictedBytes() {
+		long size = 0;
+		int num = mTextureInfoList.size();
+		for(int i=0; i<num; ++i) {
+			TextureInfo inf = mTextureInfoList.get(i);
+			if(inf.mEvicted)
+				size += getUploadSize(inf);
+		}
+		return size;
+	}
+	
+	public int getNumEvictions() {
+		return mNumEvictions;
+	}
+	
+	public int getNumRestores() {
+		return mNumRestores;
+	}
+	
+	private long getUploadSize(TextureInfo textureInfo) {
+		if(textureInfo.isCompressed())
+			return textureInfo.getCompressedTexture().getTotalSize();
+		long size = (long) textureInfo.getWidth() * textureInfo.getHeight();
+		size *= textureInfo.getBitmapConfig() == Config.ARGB_8888 || textureInfo.getBitmapConfig() == null ? 4 : 2;
+		if(textureInfo.isCubeMap())
+			size *= 6;
+		return size;
+	}
+	
+	/**
+	 * Limits the amount of texture data that is uploaded per frame. At least one texture
+	 * is uploaded per frame so the queue always drains.
+	 * 
+	 * @param maxBytes
+	 *            Maximum number of bytes per frame, 0 for unlimited
+	 * @param maxMillis
+	 *            Maximum time per frame in milliseconds, 0 for unlimited
+	 */
+	public void setUploadBudget(long maxBytes, long maxMillis) {
+		mUploadBudgetBytes = maxBytes;
+		mUploadBudgetMillis = maxMillis;
+	}
+	
+	public long getUploadBudgetBytes() {
+		return mUploadBudgetBytes;
+	}
+	
+	public long getUploadBudgetMillis() {
+		return mUploadBudgetMillis;
+	}
+	
+	/**
+	 * Returns the number of textures waiting to be uploaded. Updates from other threads that
+	 * haven't been picked up yet aren't counted.
+	 * 
+	 * @return
+	 */
+	public int getNumPendingUploads() {
+		return mUploadQueue.size();
+	}
+	
+	public long getLastFrameUploadBytes() {
+		return mLastFrameUploadBytes;
+	}
+	
+	public int getLastFrameUploadCount() {
+		return mLastFrameUploadCount;
+	}
+	
+	public long getTotalUploadBytes() {
+		return mTotalUploadBytes;
+	}
+	
+	/**
+	 * Returns the average upload throughput in bytes per second, measured over the time
+	 * spent uploading.
+	 * 
+	 * @return
+	 */
+	public double getUploadThroughput() {
+		if(mTotalUploadNanos == 0)
+			return 0;
+		return mTotalUploadBytes * 1.0e9 / mTotalUploadNanos;
+	}
+	
+	/**
+	 * The number of the current frame. This is used to find out which textures are visible.
+	 * 
+	 * @return
+	 */
+	public int getFrameNumber() {
+		return mFrameNumber;
+	}
+	
 }
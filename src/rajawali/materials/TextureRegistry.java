@@ -0,0 +1,262 @@
+package rajawali.materials;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import rajawali.materials.TextureManager.TextureType;
+import rajawali.util.RajLog;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Shares textures between objects, materials and parsers. Textures are looked up by their
+ * source (resource id or file path) first, which skips decoding altogether. Textures that
+ * come from a different source are looked up by a SHA-1 digest of their decoded pixels, which
+ * skips the upload. Every texture is uploaded once no matter how many models use it.
+ * <p>
+ * Shared textures are reference counted by the materials that use them. When the last
+ * material removes a texture, or is destroyed, the texture is removed from the texture
+ * manager.
+ * <pre><code>
+ * TextureInfo textureInfo = mTextureManager.getTextureRegistry().load(getResources(), R.drawable.crate, TextureType.DIFFUSE);
+ * </code></pre>
+ * The registry can be used from asset loader threads.
+ *
+ * @see TextureManager#getTextureRegistry()
+ */
+public class TextureRegistry {
+	private static class Entry {
+		String mContentKey;
+		int mReferenceCount;
+	}
+
+	private TextureManager mTextureManager;
+	private HashMap<String, TextureInfo> mBySource;
+	private HashMap<String, TextureInfo> mByContent;
+	private IdentityHashMap<TextureInfo, Entry> mEntries;
+	private int mNumSourceHits;
+	private int mNumContentHits;
+	private long mSavedBytes;
+
+	public TextureRegistry(TextureManager textureManager) {
+		mTextureManager = textureManager;
+		mBySource = new HashMap<String, TextureInfo>();
+		mByContent = new HashMap<String, TextureInfo>();
+		mEntries = new IdentityHashMap<TextureInfo, Entry>();
+	}
+
+	/**
+	 * Returns the shared texture for a resource, decoding and adding it when it isn't
+	 * registered yet.
+	 *
+	 * @param resources
+	 * @param resourceId
+	 * @param textureType
+	 * @return The texture or null when the resource couldn't be decoded
+	 */
+	public TextureInfo load(Resources resources, int resourceId, TextureType textureType) {
+		String sourceKey = "res:" + resourceId + ":" + textureType;
+		synchronized (this) {
+			TextureInfo textureInfo = findBySource(sourceKey);
+			if (textureInfo != null)
+				return textureInfo;
+		}
+		Bitmap bitmap = BitmapFactory.decodeResource(resources, resourceId);
+		if (bitmap == null)
+			return null;
+		return register(sourceKey, bitmap, textureType, true, resourceId, null);
+	}
+
+	/**
+	 * Returns the shared texture for a file, decoding and adding it when it isn't
+	 * registered yet.
+	 *
+	 * @param filePath
+	 * @param textureType
+	 * @return The texture or null when the file couldn't be decoded
+	 */
+	public TextureInfo load(String filePath, TextureType textureType) {
+		String sourceKey = "file:" + getCanonicalPath(filePath) + ":" + textureType;
+		synchronized (this) {
+			TextureInfo textureInfo = findBySource(sourceKey);
+			if (textureInfo != null)
+				return textureInfo;
+		}
+		Bitmap bitmap = BitmapFactory.decodeFile(filePath);
+		if (bitmap == null)
+			return null;
+		return register(sourceKey, bitmap, textureType, true, 0, filePath);
+	}
+
+	/**
+	 * Returns the shared texture with the same pixels as the bitmap, adding the bitmap when no
+	 * such texture is registered yet. The bitmap isn't recycled.
+	 *
+	 * @param bitmap
+	 * @param textureType
+	 * @return
+	 */
+	public TextureInfo add(Bitmap bitmap, TextureType textureType) {
+		return register(null, bitmap, textureType, false, 0, null);
+	}
+
+	private TextureInfo register(String sourceKey, Bitmap bitmap, TextureType textureType, boolean ownsBitmap, int resourceId, String filePath) {
+		// -- hashing happens outside the lock so loader threads don't wait for each other
+		String contentKey = getContentKey(bitmap, textureType);
+		synchronized (this) {
+			TextureInfo textureInfo = mByContent.get(contentKey);
+			if (textureInfo != null) {
+				mNumContentHits++;
+				mSavedBytes += (long) bitmap.getRowBytes() * bitmap.getHeight();
+				if (ownsBitmap)
+					bitmap.recycle();
+				if (sourceKey != null)
+					mBySource.put(sourceKey, textureInfo);
+				return textureInfo;
+			}
+
+			textureInfo = mTextureManager.addTexture(bitmap, textureType);
+			textureInfo.setResourceId(resourceId);
+			textureInfo.setFilePath(filePath);
+			textureInfo.mRegistry = this;
+			Entry entry = new Entry();
+			entry.mContentKey = contentKey;
+			mEntries.put(textureInfo, entry);
+			mByContent.put(contentKey, textureInfo);
+			if (sourceKey != null)
+				mBySource.put(sourceKey, textureInfo);
+			return textureInfo;
+		}
+	}
+
+	private TextureInfo findBySource(String sourceKey) {
+		TextureInfo textureInfo = mBySource.get(sourceKey);
+		if (textureInfo != null) {
+			mNumSourceHits++;
+			mSavedBytes += (long) textureInfo.getWidth() * textureInfo.getHeight() * 4;
+		}
+		return textureInfo;
+	}
+
+	/**
+	 * Called by materials when they start using a shared texture.
+	 */
+	synchronized void retain(TextureInfo textureInfo) {
+		Entry entry = mEntries.get(textureInfo);
+		if (entry != null)
+			entry.mReferenceCount++;
+	}
+
+	/**
+	 * Called by materials when they stop using a shared texture. The texture is removed from
+	 * the texture manager when it isn't used anymore.
+	 */
+	synchronized void release(TextureInfo textureInfo) {
+		Entry entry = mEntries.get(textureInfo);
+		if (entry == null || --entry.mReferenceCount > 0)
+			return;
+
+		mEntries.remove(textureInfo);
+		mByContent.remove(entry.mContentKey);
+		// -- several sources can point to the same texture
+		mBySource.values().removeAll(Collections.singleton(textureInfo));
+		textureInfo.mRegistry = null;
+		mTextureManager.removeTexture(textureInfo);
+	}
+
+	public synchronized int getReferenceCount(TextureInfo textureInfo) {
+		Entry entry = mEntries.get(textureInfo);
+		return entry == null ? 0 : entry.mReferenceCount;
+	}
+
+	public synchronized int getNumTextures() {
+		return mEntries.size();
+	}
+
+	/**
+	 * Returns the number of lookups that were served by source, without decoding.
+	 *
+	 * @return
+	 */
+	public synchronized int getNumSourceHits() {
+		return mNumSourceHits;
+	}
+
+	/**
+	 * Returns the number of decoded textures that turned out to be identical to a
+	 * registered texture and weren't uploaded.
+	 *
+	 * @return
+	 */
+	public synchronized int getNumContentHits() {
+		return mNumContentHits;
+	}
+
+	/**
+	 * Returns the estimated texture memory that was saved by sharing.
+	 *
+	 * @return
+	 */
+	public synchronized long getSavedBytes() {
+		return mSavedBytes;
+	}
+
+	/**
+	 * Forgets all textures without removing them from the texture manager. Used when the
+	 * texture manager is reset.
+	 */
+	public synchronized void clear() {
+		for (TextureInfo textureInfo : mEntries.keySet())
+			textureInfo.mRegistry = null;
+		mEntries.clear();
+		mBySource.clear();
+		mByContent.clear();
+	}
+
+	private static String getContentKey(Bitmap bitmap, TextureType textureType) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available");
+		}
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		int[] row = new int[width];
+		byte[] rowBytes = new byte[width * 4];
+		// -- a collision resistant digest, textures that share a key are treated as identical
+		for (int y = 0; y < height; ++y) {
+			bitmap.getPixels(row, 0, width, 0, y, width, 1);
+			for (int x = 0, i = 0; x < width; ++x) {
+				int pixel = row[x];
+				rowBytes[i++] = (byte) (pixel >>> 24);
+				rowBytes[i++] = (byte) (pixel >>> 16);
+				rowBytes[i++] = (byte) (pixel >>> 8);
+				rowBytes[i++] = (byte) pixel;
+			}
+			digest.update(rowBytes);
+		}
+		byte[] hash = digest.digest();
+		StringBuffer sb = new StringBuffer(hash.length * 2);
+		for (int i = 0; i < hash.length; ++i) {
+			sb.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(hash[i] & 0xf, 16));
+		}
+		return width + "x" + height + ":" + bitmap.getConfig() + ":" + textureType + ":" + sb.toString();
+	}
+
+	private static String getCanonicalPath(String filePath) {
+		try {
+			return new File(filePath).getCanonicalPath();
+		} catch (IOException e) {
+			RajLog.w("[" + TextureRegistry.class.getName() + "] Couldn't resolve " + filePath);
+			return new File(filePath).getAbsolutePath();
+		}
+	}
+}
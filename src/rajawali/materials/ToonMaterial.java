@@ -1,7 +1,6 @@
 package rajawali.materials;
 
 import android.graphics.Color;
-import android.opengl.GLES20;
 
 public class ToonMaterial extends DiffuseMaterial {
 	
@@ -52,6 +51,10 @@ public class ToonMaterial extends DiffuseMaterial {
 			"}\n";
 	
 	protected float[] mToonColor0, mToonColor1, mToonColor2, mToonColor3;
+	private int mToonColor0Slot = -1;
+	private int mToonColor1Slot = -1;
+	private int mToonColor2Slot = -1;
+	private int mToonColor3Slot = -1;
 	
 	public ToonMaterial() {
 		this(false);
@@ -68,18 +71,10 @@ public class ToonMaterial extends DiffuseMaterial {
 	@Override
 	public void useProgram() {
 		super.useProgram();
-		int uni = getUniformHandle(UNI_TOON_COLOR0);
-		if (uni > -1)
-			GLES20.glUniform4fv(uni, 1, mToonColor0, 0);
-		uni = getUniformHandle(UNI_TOON_COLOR1);
-		if (uni > -1)
-			GLES20.glUniform4fv(uni, 1, mToonColor1, 0);
-		uni = getUniformHandle(UNI_TOON_COLOR2);
-		if (uni > -1)
-			GLES20.glUniform4fv(uni, 1, mToonColor2, 0);
-		uni = getUniformHandle(UNI_TOON_COLOR3);
-		if (uni > -1)
-			GLES20.glUniform4fv(uni, 1, mToonColor3, 0);
+		setUniform4fv(mToonColor0Slot, mToonColor0);
+		setUniform4fv(mToonColor1Slot, mToonColor1);
+		setUniform4fv(mToonColor2Slot, mToonColor2);
+		setUniform4fv(mToonColor3Slot, mToonColor3);
 	}
 	
 	@Override
@@ -87,6 +82,10 @@ public class ToonMaterial extends DiffuseMaterial {
 	{
 		super.setShaders(vertexShader, fragmentShader);
 		registerUniforms(UNI_TOON_COLOR0, UNI_TOON_COLOR1, UNI_TOON_COLOR2, UNI_TOON_COLOR3);
+		mToonColor0Slot = getUniformSlot(UNI_TOON_COLOR0);
+		mToonColor1Slot = getUniformSlot(UNI_TOON_COLOR1);
+		mToonColor2Slot = getUniformSlot(UNI_TOON_COLOR2);
+		mToonColor3Slot = getUniformSlot(UNI_TOON_COLOR3);
 	}
 	
 	public void setToonColors(int color0, int color1, int color2, int color3) {
@@ -369,26 +369,27 @@ public final class Quaternion {
 
 	public static void slerp(float fT, final Quaternion rkP, final Quaternion rkQ, boolean shortestPath, Quaternion result) {
 		float fCos = rkP.dot(rkQ);
-		Quaternion rkT = new Quaternion();
+		// -- the inputs are left alone and nothing is allocated, result may be one of them
+		float tw = rkQ.w, tx = rkQ.x, ty = rkQ.y, tz = rkQ.z;
 
 		if (fCos < 0.0f && shortestPath) {
 			fCos = -fCos;
-			rkT = rkQ.inverse();
-		} else {
-			rkT = rkQ;
+			float invNorm = 1.0f / rkQ.norm();
+			tw *= invNorm;
+			tx *= -invNorm;
+			ty *= -invNorm;
+			tz *= -invNorm;
 		}
 
+		float fCoeff0, fCoeff1;
+		boolean normalize = false;
 		if (Math.abs(fCos) < 1 - F_EPSILON) {
 			// Standard case (slerp)
 			float fSin = (float)Math.sqrt(1 - fCos * fCos);
 			float fAngle = (float) Math.atan2(fSin, fCos);
 			float fInvSin = 1.0f / fSin;
-			float fCoeff0 = (float)Math.sin((1.0f - fT) * fAngle) * fInvSin;
-			float fCoeff1 = (float)Math.sin(fT * fAngle) * fInvSin;
-			result.setAllFrom(rkP);
-			result.multiply(fCoeff0);
-			rkT.multiply(fCoeff1);
-			result.add(rkT);
+			fCoeff0 = (float)Math.sin((1.0f - fT) * fAngle) * fInvSin;
+			fCoeff1 = (float)Math.sin(fT * fAngle) * fInvSin;
 		} else {
 			// There are two situations:
 			// 1. "rkP" and "rkQ" are very close (fCos ~= +1), so we can do a
@@ -400,13 +401,15 @@ public final class Quaternion {
 			// haven't
 			// have method to fix this case, so just use linear interpolation
 			// here.
-			result.setAllFrom(rkP);
-			result.multiply(1.0f - fT);
-			rkT.multiply(fT);
-			result.add(rkT);
+			fCoeff0 = 1.0f - fT;
+			fCoeff1 = fT;
 			// taking the complement requires renormalisation
-			result.normalize();
+			normalize = true;
 		}
+		result.setAll(rkP.w * fCoeff0 + tw * fCoeff1, rkP.x * fCoeff0 + tx * fCoeff1, rkP.y * fCoeff0 + ty * fCoeff1,
+				rkP.z * fCoeff0 + tz * fCoeff1);
+		if (normalize)
+			result.normalize();
 	}
 
 	public Quaternion slerpExtraSpins(float fT, final Quaternion rkP, final Quaternion rkQ, int iExtraSpins) {
@@ -1,17 +1,33 @@
 package rajawali.parser;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
 import rajawali.BaseObject3D;
+import rajawali.materials.TextureInfo;
 import rajawali.materials.TextureManager;
+import rajawali.materials.TextureManager.TextureType;
 import rajawali.renderer.RajawaliRenderer;
+import rajawali.util.RajLog;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 
 public abstract class AMeshParser extends AParser implements IMeshParser {
 	protected TextureManager mTextureManager;
 	
 	protected BaseObject3D mRootObject;
+	protected ParseCache mParseCache;
+	protected String mParseCacheKey;
 
 	public AMeshParser(RajawaliRenderer renderer, String fileOnSDCard) {
 		super(renderer, fileOnSDCard);
+		mTextureManager = renderer.getTextureManager();
+		mRootObject = new BaseObject3D();
 	}
 	
 	public AMeshParser(Resources resources, TextureManager textureManager, int resourceId) {
@@ -29,6 +45,214 @@ public abstract class AMeshParser extends AParser implements IMeshParser {
 		return mRootObject;
 	}
 	
+	/**
+	 * Sets the cache that parse results are read from and written to. Parsers that support
+	 * caching skip parsing altogether when the cache holds a result for the same source data.
+	 * 
+	 * @param parseCache
+	 */
+	public void setParseCache(ParseCache parseCache) {
+		mParseCache = parseCache;
+	}
+	
+	public ParseCache getParseCache() {
+		return mParseCache;
+	}
+	
+	/**
+	 * The parser version is part of the cache key. Increase it whenever a parser change
+	 * alters the parse result so stale cache entries are no longer used.
+	 * 
+	 * @return
+	 */
+	protected int getParserVersion() {
+		return 1;
+	}
+	
+	/**
+	 * Options that influence the parse result. These are part of the cache key.
+	 * 
+	 * @return
+	 */
+	protected String getParseOptions() {
+		return null;
+	}
+	
+	/**
+	 * Opens the files the parse result depends on besides the source, like material libraries.
+	 * They are part of the cache key, so a cached result isn't used anymore when one of them
+	 * changes. Parsers of formats that refer to other files should override this.
+	 * 
+	 * @return The open streams, which are read to the end and closed, or null
+	 * @throws IOException
+	 */
+	protected InputStream[] openDependencies() throws IOException {
+		return null;
+	}
+	
+	protected InputStream openSource() throws IOException {
+		if(mFile != null)
+			return new FileInputStream(mFile);
+		return mResources.openRawResource(mResourceId);
+	}
+	
+	/**
+	 * Returns the whole source in a buffer, for parsers of binary formats. Files and resources
+	 * that are stored uncompressed are memory mapped, compressed resources are read into the
+	 * heap. The buffer is big endian, like every new buffer.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	protected ByteBuffer openSourceBuffer() throws IOException {
+		if(mFile != null)
+			return mapFile(mFile);
+		return openResourceBuffer(mResourceId);
+	}
+	
+	/**
+	 * Memory maps a whole file, like the source file or a file it refers to.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 * @see #openSourceBuffer()
+	 */
+	protected ByteBuffer mapFile(File file) throws IOException {
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			FileChannel channel = stream.getChannel();
+			return channel.map(MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			stream.close();
+		}
+	}
+	
+	/**
+	 * Returns a whole raw resource in a buffer, memory mapped when it is stored uncompressed.
+	 * 
+	 * @param resourceId
+	 * @return
+	 * @throws IOException
+	 * @see #openSourceBuffer()
+	 */
+	protected ByteBuffer openResourceBuffer(int resourceId) throws IOException {
+		AssetFileDescriptor fd = null;
+		try {
+			fd = mResources.openRawResourceFd(resourceId);
+		} catch(Resources.NotFoundException e) {
+			// -- compressed resources have no file descriptor
+		}
+		if(fd != null) {
+			FileInputStream fileStream = null;
+			try {
+				// -- the mapping stays valid when the stream and the descriptor are closed
+				fileStream = new FileInputStream(fd.getFileDescriptor());
+				FileChannel channel = fileStream.getChannel();
+				return channel.map(MapMode.READ_ONLY, fd.getStartOffset(), fd.getLength());
+			} finally {
+				if(fileStream != null)
+					fileStream.close();
+				fd.close();
+			}
+		}
+		
+		InputStream stream = mResources.openRawResource(resourceId);
+		try {
+			byte[] data = new byte[Math.max(8192, stream.available())];
+			int length = 0, count;
+			while((count = stream.read(data, length, data.length - length)) > 0) {
+				length += count;
+				if(length == data.length) {
+					byte[] larger = new byte[data.length * 2];
+					System.arraycopy(data, 0, larger, 0, length);
+					data = larger;
+				}
+			}
+			return ByteBuffer.wrap(data, 0, length).slice();
+		} finally {
+			stream.close();
+		}
+	}
+	
+	/**
+	 * Restores the parsed object from the parse cache. Should be called at the start of parse(),
+	 * after super.parse().
+	 * 
+	 * @return true when the parsed object was restored and parsing can be skipped
+	 */
+	protected boolean loadFromParseCache() {
+		mParseCacheKey = null;
+		if(mParseCache == null)
+			return false;
+		
+		try {
+			InputStream[] dependencies = openDependencies();
+			mParseCacheKey = ParseCache.createKey(openSource(), dependencies, getClass().getName(), getParserVersion(), getParseOptions());
+		} catch(IOException e) {
+			RajLog.e("[" +getClass().getCanonicalName()+ "] Could not create cache key: " + e.getMessage());
+			return false;
+		}
+		
+		byte[] data = mParseCache.get(mParseCacheKey);
+		if(data == null)
+			return false;
+		
+		BaseObject3D object = new MeshCacheSerializer(this, mResources).read(data);
+		if(object == null) {
+			RajLog.w("[" +getClass().getCanonicalName()+ "] Discarding cache entry that could not be restored.");
+			mParseCache.remove(mParseCacheKey);
+			return false;
+		}
+		
+		RajLog.d("[" +getClass().getCanonicalName()+ "] Restored from parse cache.");
+		mRootObject = object;
+		return true;
+	}
+	
+	/**
+	 * Stores the parsed object in the parse cache. Should be called at the end of parse().
+	 */
+	protected void saveToParseCache() {
+		if(mParseCache == null || mParseCacheKey == null || mRootObject == null)
+			return;
+		
+		byte[] data = new MeshCacheSerializer(this, mResources).write(mRootObject);
+		if(data == null) {
+			RajLog.d("[" +getClass().getCanonicalName()+ "] Parsed object can't be cached.");
+			return;
+		}
+		mParseCache.put(mParseCacheKey, data);
+	}
+	
+	/**
+	 * Returns the shared texture for a resource, it is only decoded and uploaded when no other
+	 * model uses it yet. The resource id is remembered so the texture can be restored from the
+	 * parse cache.
+	 * 
+	 * @param resourceId
+	 * @param textureType
+	 * @return
+	 * @see rajawali.materials.TextureRegistry
+	 */
+	protected TextureInfo loadTexture(int resourceId, TextureType textureType) {
+		return mTextureManager.getTextureRegistry().load(mResources, resourceId, textureType);
+	}
+	
+	/**
+	 * Returns the shared texture for a file, it is only decoded and uploaded when no other
+	 * model uses it yet. The path is remembered so the texture can be restored from the
+	 * parse cache.
+	 * 
+	 * @param filePath
+	 * @param textureType
+	 * @return
+	 * @see rajawali.materials.TextureRegistry
+	 */
+	protected TextureInfo loadTexture(String filePath, TextureType textureType) {
+		return mTextureManager.getTextureRegistry().load(filePath, textureType);
+	}
+	
 	protected class MaterialDef {
 		public String name;
 		public int ambientColor;
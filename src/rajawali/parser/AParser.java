@@ -3,6 +3,7 @@ package rajawali.parser;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Locale;
 
 import rajawali.renderer.RajawaliRenderer;
@@ -41,11 +42,26 @@ public abstract class AParser implements IParser {
 	}
 	
 	protected String readString(InputStream stream) throws IOException {
-        String result = new String();
-        byte inByte;
-        while ((inByte = (byte) stream.read()) != 0)
-                result += (char) inByte;
-        return result;
+		StringBuilder result = new StringBuilder();
+		int inByte;
+		while ((inByte = stream.read()) > 0)
+			result.append((char) inByte);
+		return result.toString();
+	}
+	
+	/**
+	 * Reads a zero terminated string at the position of the buffer and moves the position past
+	 * the terminator.
+	 * 
+	 * @param buffer
+	 * @return
+	 */
+	protected String readString(ByteBuffer buffer) {
+		StringBuilder result = new StringBuilder();
+		byte inByte;
+		while (buffer.hasRemaining() && (inByte = buffer.get()) != 0)
+			result.append((char) (inByte & 0xff));
+		return result.toString();
 	}
 	
 	protected int readInt(InputStream stream) throws IOException {
@@ -7,33 +7,39 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.Stack;
 
+import rajawali.Geometry3DSeparate;
 import rajawali.animation.mesh.AAnimationObject3D;
 import rajawali.animation.mesh.IAnimationFrame;
+import rajawali.animation.mesh.PackedVertexAnimation;
 import rajawali.animation.mesh.VertexAnimationFrame;
 import rajawali.animation.mesh.VertexAnimationObject3D;
 import rajawali.materials.AMaterial;
 import rajawali.materials.DiffuseMaterial;
+import rajawali.materials.TextureInfo;
 import rajawali.materials.TextureManager;
+import rajawali.materials.TextureManager.TextureType;
 import rajawali.renderer.RajawaliRenderer;
 import rajawali.util.LittleEndianDataInputStream;
+import rajawali.util.NormalGenerator;
 import rajawali.util.RajLog;
 import android.content.res.Resources;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 
 public class MD2Parser extends AMeshParser implements IAnimatedMeshParser {
 
 	private MD2Header mHeader;
 	private String mCurrentTextureName;
 	private Stack<IAnimationFrame> mFrames;
-	private Bitmap mTexture;
+	private TextureInfo mTexture;
 	private VertexAnimationObject3D mObject;
 	private float[][] mFrameVerts;
 	private int[] mIndices;
 	private float[] mTextureCoords;
+	private boolean mPackFrames;
+	private PackedVertexAnimation mPackedFrames;
 
 	public MD2Parser(RajawaliRenderer renderer, String fileOnSDCard) {
 		super(renderer, fileOnSDCard);
@@ -47,12 +53,34 @@ public class MD2Parser extends AMeshParser implements IAnimatedMeshParser {
 		super(resources, textureManager, resourceId);
 	}
 
+	/**
+	 * Packs all frames into a single quantized buffer instead of a vertex and normal buffer per
+	 * frame. The object gets a material with {@link AMaterial#PACKED_VERTEX_ANIMATION}, a
+	 * replacement material must support it as well. Off by default.
+	 * 
+	 * @param packFrames
+	 * @see PackedVertexAnimation
+	 */
+	public void setPackFrames(boolean packFrames) {
+		mPackFrames = packFrames;
+	}
+
+	public boolean isPackFrames() {
+		return mPackFrames;
+	}
+
+	protected String getParseOptions() {
+		return mPackFrames ? "packed" : null;
+	}
+
 	public AAnimationObject3D getParsedAnimationObject() {
 		return (AAnimationObject3D) mRootObject;
 	}
 
 	public MD2Parser parse() {
 		super.parse();
+		if (loadFromParseCache())
+			return this;
 		BufferedInputStream stream = null;
 		if (mFile == null) {
 			InputStream fileIn = mResources.openRawResource(mResourceId);
@@ -93,16 +121,23 @@ public class MD2Parser extends AMeshParser implements IAnimatedMeshParser {
 			mObject.getGeometry().copyFromGeometry3D(firstFrame.getGeometry());
 			mObject.setData(firstFrame.getGeometry().getBuffer(AMaterial.ATTR_POSITION), firstFrame.getGeometry()
 					.getBuffer(AMaterial.ATTR_NORMAL), mTextureCoords, 2, null, mIndices);
-			mObject.setMaterial(new DiffuseMaterial(true));
+			if (mPackedFrames != null) {
+				mObject.setPackedFrames(mPackedFrames);
+				mObject.setMaterial(new DiffuseMaterial(AMaterial.PACKED_VERTEX_ANIMATION));
+			} else {
+				mObject.setMaterial(new DiffuseMaterial(true));
+			}
 			mObject.setColor(0xffffffff);
 			if (mTexture != null)
-				mObject.addTexture(mTextureManager.addTexture(mTexture));
+				mObject.addTexture(mTexture);
 			stream.close();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 		mObject.isContainer(false);
 		mRootObject = mObject;
+		if (mTextureCoords != null)
+			saveToParseCache();
 
 		return this;
 	}
@@ -137,11 +172,11 @@ public class MD2Parser extends AMeshParser implements IAnimatedMeshParser {
 			}
 			int identifier = mResources.getIdentifier(mCurrentTextureName, "drawable",
 					mResources.getResourcePackageName(mResourceId));
-			mTexture = BitmapFactory.decodeResource(mResources, identifier);
+			mTexture = loadTexture(identifier, TextureType.DIFFUSE);
 		} else {
 			try {
 				String filePath = mFile.getParent() + File.separatorChar + mCurrentTextureName;
-				mTexture = BitmapFactory.decodeFile(filePath);
+				mTexture = loadTexture(filePath, TextureType.DIFFUSE);
 			} catch (Exception e) {
 				RajLog.e("[" + getClass().getCanonicalName() + "] Could not find file " + mCurrentTextureName);
 				e.printStackTrace();
@@ -229,34 +264,9 @@ public class MD2Parser extends AMeshParser implements IAnimatedMeshParser {
 		}
 		is.close();
 
-		short newVertexIndex = (short) mHeader.numVerts;
-		int numIndices = indices.length;
-		Stack<VertexIndices> changedIndices = new Stack<MD2Parser.VertexIndices>();
-
-		for (int i = 0; i < numIndices; i++) {
-			for (int j = i + 1; j < numIndices; j++)
-			{
-				if (indices[i] == indices[j] && uvIndices[i] != uvIndices[j])
-				{
-					changedIndices.add(new VertexIndices((short) j, indices[j], newVertexIndex));
-
-					for (int k = j + 1; k < numIndices; k++) {
-						if (indices[j] == indices[k] && uvIndices[j] == uvIndices[k]) {
-							indices[k] = newVertexIndex;
-						}
-					}
-
-					indices[j] = newVertexIndex;
-					newVertexIndex++;
-				}
-			}
-		}
+		int[] cIndices = splitSeams(indices, uvIndices);
 
-		int[] cIndices = new int[changedIndices.size()];
-		for (int j = 0; j < changedIndices.size(); j++)
-			cIndices[j] = changedIndices.get(j).oldVertexIndex;
-
-		float[] reorderedTexCoords = new float[(mHeader.numVerts + changedIndices.size()) * 2];
+		float[] reorderedTexCoords = new float[(mHeader.numVerts + cIndices.length) * 2];
 
 		for (int i = 0; i < indices.length; i++) {
 			int fid = indices[i];
@@ -269,13 +279,116 @@ public class MD2Parser extends AMeshParser implements IAnimatedMeshParser {
 		mTextureCoords = reorderedTexCoords;
 		mIndices = indices;
 
+		int numVertices = mHeader.numVerts + cIndices.length;
+		mPackedFrames = mPackFrames ? new PackedVertexAnimation(mHeader.numFrames, numVertices) : null;
+
+		float[][] frameNormals = new float[mHeader.numFrames][numVertices * 3];
+		for (int i = 0; i < mHeader.numFrames; ++i)
+			duplicateAndAppendVertices(i, cIndices);
+		// -- the frames share the indices, they are spread over the worker threads
+		new NormalGenerator(indices, numVertices).calculateNormals(mFrameVerts, frameNormals);
+
 		for (int i = 0; i < mHeader.numFrames; ++i) {
 			VertexAnimationFrame frame = (VertexAnimationFrame) mFrames.get(i);
-			duplicateAndAppendVertices(i, cIndices);
+			float[] normals = frameNormals[i];
+			frameNormals[i] = null;
+			for (int j = 0; j < normals.length; j += 3) {
+				normals[j] = -normals[j];
+				normals[j + 2] = -normals[j + 2];
+			}
 			frame.getGeometry().setVertices(mFrameVerts[i]);
-			frame.getGeometry().setNormals(frame.calculateNormals(indices));
+			if (mPackedFrames != null) {
+				mPackedFrames.setFrame(i, mFrameVerts[i], normals);
+				// -- only the first frame keeps float buffers, it is the object's geometry
+				if (i > 0) {
+					frame.setGeometry(new Geometry3DSeparate());
+					mFrameVerts[i] = null;
+					continue;
+				}
+			}
+			frame.getGeometry().setNormals(normals);
 			frame.getGeometry().createVertexAndNormalBuffersOnly();
 		}
+
+		if (mPackedFrames != null) {
+			int floatSize = numVertices * 6 * 4;
+			RajLog.i("[" + getClass().getCanonicalName() + "] Packed " + mHeader.numFrames + " frames: "
+					+ mHeader.numFrames * 2 + " buffers and " + mHeader.numFrames * floatSize + " bytes before, 3 buffers and "
+					+ (mPackedFrames.getSizeInBytes() + floatSize) + " bytes after.");
+		}
+	}
+
+	/**
+	 * Gives every vertex that is used with more than one texture coordinate a copy for each
+	 * extra texture coordinate and points the indices at the copies. The first texture
+	 * coordinate a vertex is used with keeps the original vertex.
+	 * <p>
+	 * Runs in a single pass over the indices: the texture coordinates of a vertex are looked up
+	 * in a chain of its copies, which is almost always short. The copies are numbered the way
+	 * the previous quadratic search numbered them, grouped by vertex in the order the vertices
+	 * are first used, so the result is the same.
+	 * 
+	 * @param indices
+	 * @param uvIndices
+	 * @return The original vertex of every copy, which is the remap table for all frames
+	 */
+	private int[] splitSeams(int[] indices, int[] uvIndices) {
+		int numVerts = mHeader.numVerts;
+		int numIndices = indices.length;
+		int[] firstUv = new int[numVerts];
+		int[] copyHead = new int[numVerts];
+		int[] copyTail = new int[numVerts];
+		Arrays.fill(firstUv, -1);
+		Arrays.fill(copyHead, -1);
+		int[] usedVertices = new int[numVerts];
+		int numUsedVertices = 0;
+		int[] copyUv = new int[numIndices];
+		int[] copyNext = new int[numIndices];
+		int[] copySource = new int[numIndices];
+		int numCopies = 0;
+
+		for (int i = 0; i < numIndices; ++i) {
+			int vertex = indices[i], uv = uvIndices[i];
+			if (firstUv[vertex] < 0) {
+				firstUv[vertex] = uv;
+				usedVertices[numUsedVertices++] = vertex;
+				continue;
+			}
+			if (firstUv[vertex] == uv)
+				continue;
+
+			int copy = copyHead[vertex];
+			while (copy >= 0 && copyUv[copy] != uv)
+				copy = copyNext[copy];
+			if (copy < 0) {
+				copy = numCopies++;
+				copyUv[copy] = uv;
+				copyNext[copy] = -1;
+				copySource[copy] = vertex;
+				if (copyHead[vertex] < 0)
+					copyHead[vertex] = copy;
+				else
+					copyNext[copyTail[vertex]] = copy;
+				copyTail[vertex] = copy;
+			}
+			indices[i] = numVerts + copy;
+		}
+
+		// -- renumber the copies per vertex, in the order the vertices were first used
+		int[] copyIndex = new int[numCopies];
+		int[] cIndices = new int[numCopies];
+		int index = 0;
+		for (int i = 0; i < numUsedVertices; ++i) {
+			for (int copy = copyHead[usedVertices[i]]; copy >= 0; copy = copyNext[copy]) {
+				copyIndex[copy] = index;
+				cIndices[index++] = copySource[copy];
+			}
+		}
+		for (int i = 0; i < numIndices; ++i) {
+			if (indices[i] >= numVerts)
+				indices[i] = numVerts + copyIndex[indices[i] - numVerts];
+		}
+		return cIndices;
 	}
 
 	public void duplicateAndAppendVertices(int frameNumber, int[] indices) {
@@ -295,21 +408,6 @@ public class MD2Parser extends AMeshParser implements IAnimatedMeshParser {
 		mFrameVerts[frameNumber] = newVerts;
 	}
 
-	private class VertexIndices {
-
-		@SuppressWarnings("unused")
-		public int index;
-		public int oldVertexIndex;
-		@SuppressWarnings("unused")
-		public int newVertexIndex;
-
-		public VertexIndices(int index, int oldVertexIndex, int newVertexIndex) {
-			this.index = index;
-			this.oldVertexIndex = oldVertexIndex;
-			this.newVertexIndex = newVertexIndex;
-		}
-	}
-
 	private class MD2Header {
 
 		public int id;
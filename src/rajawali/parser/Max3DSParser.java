@@ -1,18 +1,23 @@
 package rajawali.parser;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 
 import rajawali.BaseObject3D;
 import rajawali.materials.DiffuseMaterial;
-import rajawali.math.Number3D;
 import rajawali.renderer.RajawaliRenderer;
+import rajawali.util.NormalGenerator;
 import rajawali.util.RajLog;
 
 /**
  * 3DS object parser. This is a work in progress. Materials aren't parsed yet.
- * 
+ * <p>
+ * The file is read from a little endian buffer, memory mapped where possible. Chunks that
+ * don't hold geometry are skipped by their length without being read, vertex and texture
+ * coordinate blocks are copied in bulk.
+ *
  * @author dennis.ippel
  * @author lacasrac
  *
@@ -25,23 +30,24 @@ public class Max3DSParser extends AMeshParser {
 	private final int VERTICES = 0x4110;
 	private final int FACES = 0x4120;
 	private final int TEXCOORD = 0x4140;
-	private final int TEX_MAP = 0xA200;
-	private final int TRI_MATERIAL = 0x4130;
-	private final int TEX_NAME = 0xA000;
-	private final int TEX_FILENAME = 0xA300;
-	private final int MATERIAL = 0xAFFF;
+	/**
+	 * The chunk id and length
+	 */
+	private final int CHUNK_HEADER_SIZE = 6;
+
+	private class Mesh {
+		String mName;
+		float[] mVertices;
+		float[] mTexCoords;
+		int[] mIndices;
+	}
 
-	private ArrayList<ArrayList<Number3D>> mVertices = new ArrayList<ArrayList<Number3D>>();
-	private ArrayList<Number3D[]> mNormals = new ArrayList<Number3D[]>();
-	private ArrayList<ArrayList<Number3D>> mVertNormals = new ArrayList<ArrayList<Number3D>>();
-	private ArrayList<ArrayList<Number3D>> mTexCoords = new ArrayList<ArrayList<Number3D>>();
-	private ArrayList<ArrayList<Integer>> mIndices = new ArrayList<ArrayList<Integer>>();
-	private ArrayList<String> mObjNames = new ArrayList<String>();
+	private ArrayList<Mesh> mMeshes = new ArrayList<Mesh>();
+	private Mesh mCurrentMesh;
 
-	private int mChunkID;
-	private int mChunkEndOffset;
-	private boolean mEndReached = false;
-	private int mObjects = -1;
+	public Max3DSParser(RajawaliRenderer renderer, String fileOnSDCard) {
+		super(renderer, fileOnSDCard);
+	}
 
 	public Max3DSParser(RajawaliRenderer renderer, int resourceID) {
 		super(renderer.getContext().getResources(), renderer.getTextureManager(), resourceID);
@@ -49,331 +55,159 @@ public class Max3DSParser extends AMeshParser {
 
 	@Override
 	public Max3DSParser parse() {
+		super.parse();
 		RajLog.i("Start parsing 3DS");
-
-		InputStream stream = mResources.openRawResource(mResourceId);
+		if (loadFromParseCache())
+			return this;
 
 		try {
-			readHeader(stream);
-			if (mChunkID != IDENTIFIER_3DS) {
+			ByteBuffer buffer = openSourceBuffer().order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.remaining() < CHUNK_HEADER_SIZE || (buffer.getShort(0) & 0xffff) != IDENTIFIER_3DS) {
 				RajLog.e("Not a valid 3DS file");
 				return null;
 			}
 
-			while (!mEndReached) {
-				readChunk(stream);
-			}
-
+			readChunks(buffer, 0, buffer.limit());
 			build();
 			if (mRootObject.getNumChildren() == 1)
 				mRootObject = mRootObject.getChildAt(0);
+			clear();
 
-			stream.close();
+			saveToParseCache();
 
 			RajLog.i("End parsing 3DS");
 		} catch (IOException e) {
 			RajLog.e("Error parsing");
 			e.printStackTrace();
 		}
-		
+
 		return this;
 	}
 
-	void readChunk(InputStream stream) throws IOException {
-		readHeader(stream);
+	@Override
+	protected int getParserVersion() {
+		return 2;
+	}
 
-		switch (mChunkID) {
-		case MESH_BLOCK:
-			break;
-		case OBJECT_BLOCK:
-			mObjects++;
-			mObjNames.add(readString(stream));
-			break;
-		case TRIMESH:
-			break;
-		case VERTICES:
-			readVertices(stream);
-			break;
-		case FACES:
-			readFaces(stream);
-			break;
-		case TEXCOORD:
-			readTexCoords(stream);
-			break;
-		case TEX_NAME:
-//			mCurrentMaterialKey = readString(stream);
-			skipRead(stream);
-			break;
-		case TEX_FILENAME:
-//			String fileName = readString(stream);
-//			StringBuffer texture = new StringBuffer(packageID);
-//			texture.append(":drawable/");
-//
-//			StringBuffer textureName = new StringBuffer(fileName.toLowerCase());
-//			int dotIndex = textureName.lastIndexOf(".");
-//			if (dotIndex > -1)
-//				texture.append(textureName.substring(0, dotIndex));
-//			else
-//				texture.append(textureName);
-//
-//			textureAtlas.addBitmapAsset(new BitmapAsset(mCurrentMaterialKey, texture.toString()));
-			skipRead(stream);
-			break;
-		case TRI_MATERIAL:
-//			String materialName = readString(stream);
-//			int numFaces = readShort(stream);
-//
-//			for (int i = 0; i < numFaces; i++) {
-//				int faceIndex = readShort(stream);
-//				co.faces.get(faceIndex).materialKey = materialName;
-//			}
-			skipRead(stream);
-			break;
-		case MATERIAL:
-			break;
-		case TEX_MAP:
-			break;
-		default:
-			skipRead(stream);
+	/**
+	 * Reads the chunks between two offsets. Chunks that contain geometry are entered, all other
+	 * chunks are skipped.
+	 *
+	 * @param buffer
+	 * @param start
+	 * @param end
+	 */
+	protected void readChunks(ByteBuffer buffer, int start, int end) {
+		int offset = start;
+		while (offset + CHUNK_HEADER_SIZE <= end) {
+			int chunkID = buffer.getShort(offset) & 0xffff;
+			int chunkEnd = Math.min(end, offset + buffer.getInt(offset + 2));
+			if (chunkEnd < offset + CHUNK_HEADER_SIZE) {
+				RajLog.e("[" + getClass().getCanonicalName() + "] Invalid chunk length at " + offset);
+				return;
+			}
+			int data = offset + CHUNK_HEADER_SIZE;
+
+			switch (chunkID) {
+			case IDENTIFIER_3DS:
+			case MESH_BLOCK:
+			case TRIMESH:
+				readChunks(buffer, data, chunkEnd);
+				break;
+			case OBJECT_BLOCK:
+				buffer.position(data);
+				String name = readString(buffer);
+				mCurrentMesh = null;
+				readChunks(buffer, buffer.position(), chunkEnd);
+				// -- lights and cameras are objects as well, they have no geometry
+				if (mCurrentMesh != null && mCurrentMesh.mVertices != null && mCurrentMesh.mIndices != null) {
+					mCurrentMesh.mName = name;
+					mMeshes.add(mCurrentMesh);
+				}
+				mCurrentMesh = null;
+				break;
+			case VERTICES:
+				getCurrentMesh().mVertices = readFloats(buffer, data, 3);
+				break;
+			case TEXCOORD:
+				float[] texCoords = readFloats(buffer, data, 2);
+				for (int i = 1; i < texCoords.length; i += 2)
+					texCoords[i] = 1 - texCoords[i];
+				getCurrentMesh().mTexCoords = texCoords;
+				break;
+			case FACES:
+				getCurrentMesh().mIndices = readFaces(buffer, data);
+				// -- the material and smoothing group chunks after the faces are skipped
+				break;
+			}
+			offset = chunkEnd;
 		}
 	}
 
+	private Mesh getCurrentMesh() {
+		if (mCurrentMesh == null)
+			mCurrentMesh = new Mesh();
+		return mCurrentMesh;
+	}
+
 	public void build() {
-		int num = mVertices.size();
-		for(int j=0; j<num; ++j) {
-			ArrayList<Integer> indices = mIndices.get(j);
-			ArrayList<Number3D> vertices = mVertices.get(j);
-			ArrayList<Number3D> texCoords = null;
-			ArrayList<Number3D> vertNormals = mVertNormals.get(j);
-			
-			if(mTexCoords.size() > 0)
-				texCoords = mTexCoords.get(j);
-			
-			int len = indices.size();
-			float[] aVertices = new float[len * 3];
-			float[] aNormals = new float[len * 3];
-			float[] aTexCoords = new float[len * 2];
-			int[] aIndices = new int[len];
-	
-			int ic = 0;
-			int itn = 0;
-			int itc = 0;
-			int ivi = 0;
-	
-			Number3D coord;
-			Number3D texcoord;
-			Number3D normal;
-			
-			for (int i = 0; i < len; i += 3) {
-				int v1 = indices.get(i);
-				int v2 = indices.get(i + 1);
-				int v3 = indices.get(i + 2);
-	
-				coord = vertices.get(v1);
-				
-				aVertices[ic++] = coord.x;
-				aVertices[ic++] = coord.y;
-				aVertices[ic++] = coord.z;
-	
-				aIndices[ivi] = ivi++;
-	
-				coord = vertices.get(v2);
-				aVertices[ic++] = coord.x;
-				aVertices[ic++] = coord.y;
-				aVertices[ic++] = coord.z;
-	
-				aIndices[ivi] = ivi++;
-	
-				coord = vertices.get(v3);
-				aVertices[ic++] = coord.x;
-				aVertices[ic++] = coord.y;
-				aVertices[ic++] = coord.z;
-	
-				aIndices[ivi] = ivi++;
-				
-				if(texCoords != null && texCoords.size() > 0) {
-					texcoord = texCoords.get(v1);
-		
-					aTexCoords[itc++] = texcoord.x;
-					aTexCoords[itc++] = texcoord.y;
-		
-					texcoord = texCoords.get(v2);
-		
-					aTexCoords[itc++] = texcoord.x;
-					aTexCoords[itc++] = texcoord.y;
-		
-					texcoord = texCoords.get(v3);
-		
-					aTexCoords[itc++] = texcoord.x;
-					aTexCoords[itc++] = texcoord.y;
-				}
-	
-				normal = vertNormals.get(v1);
-				aNormals[itn++] = normal.x;
-				aNormals[itn++] = normal.y;
-				aNormals[itn++] = normal.z;
-				normal = vertNormals.get(v2);
-	
-				aNormals[itn++] = normal.x;
-				aNormals[itn++] = normal.y;
-				aNormals[itn++] = normal.z;
-	
-				normal = vertNormals.get(v3);
-	
-				aNormals[itn++] = normal.x;
-				aNormals[itn++] = normal.y;
-				aNormals[itn++] = normal.z;
-			}
-			
-			BaseObject3D targetObj = new BaseObject3D(mObjNames.get(j));
-			targetObj.setData(aVertices, aNormals, aTexCoords, null, aIndices);
+		for (int j = 0; j < mMeshes.size(); ++j) {
+			Mesh mesh = mMeshes.get(j);
+			int numVertices = mesh.mVertices.length / 3;
+
+			float[] normals = new float[numVertices * 3];
+			new NormalGenerator(mesh.mIndices, numVertices).calculateNormals(mesh.mVertices, normals);
+			// -- the same orientation as before, the face normals were calculated with the last two vertices swapped
+			for (int i = 0; i < normals.length; i++)
+				normals[i] = -normals[i];
+
+			float[] texCoords = mesh.mTexCoords;
+			if (texCoords == null || texCoords.length != numVertices * 2)
+				texCoords = new float[numVertices * 2];
+
+			BaseObject3D targetObj = new BaseObject3D(mesh.mName);
+			targetObj.setData(mesh.mVertices, normals, texCoords, null, mesh.mIndices);
 			// -- diffuse material with random color. for now.
 			DiffuseMaterial material = new DiffuseMaterial();
 			material.setUseColor(true);
 			targetObj.setMaterial(material);
-			targetObj.setColor(0xff000000 + (int)(Math.random() * 0xffffff));
+			targetObj.setColor(0xff000000 + (int) (Math.random() * 0xffffff));
 			mRootObject.addChild(targetObj);
 		}
 	}
 
 	public void clear() {
-		for(int i=0; i<mObjects; ++i) {
-			mIndices.get(i).clear();
-			mVertNormals.get(i).clear();
-			mVertices.get(i).clear();
-			mTexCoords.get(i).clear();
-		}
-		mIndices.clear();
-		mVertNormals.clear();
-		mVertices.clear();
-		mTexCoords.clear();
-	}
-
-	protected void skipRead(InputStream stream) throws IOException {
-		for (int i = 0; (i < mChunkEndOffset - 6) && !mEndReached; i++) {
-			mEndReached = stream.read() < 0;
-		}
-	}
-
-	protected void readVertices(InputStream buffer) throws IOException {
-		float x, y, z;
-		int numVertices = readShort(buffer);
-		ArrayList<Number3D> vertices = new ArrayList<Number3D>();
-
-		for (int i = 0; i < numVertices; i++) {
-			x = readFloat(buffer);
-			y = readFloat(buffer);
-			z = readFloat(buffer);
-
-			vertices.add(new Number3D(x, y, z));
-		}
-		
-		mVertices.add(vertices);
+		mMeshes.clear();
+		mCurrentMesh = null;
 	}
 
-	protected void readTexCoords(InputStream buffer) throws IOException {
-	    int numVertices = readShort(buffer);
-	    ArrayList<Number3D> texCoords = new ArrayList<Number3D>();
-	
-	    for (int i = 0; i < numVertices; i++) {
-	        float x = readFloat(buffer);
-	        float y = 1-readFloat(buffer);
-	
-	        texCoords.add(new Number3D(x, y, 0));
-	    }
-	
-	    mTexCoords.add(texCoords);
+	/**
+	 * Reads a block that starts with the number of elements, as unsigned short, followed by the
+	 * floats.
+	 */
+	private float[] readFloats(ByteBuffer buffer, int offset, int floatsPerElement) {
+		int count = (buffer.getShort(offset) & 0xffff) * floatsPerElement;
+		float[] floats = new float[count];
+		buffer.position(offset + 2);
+		buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(floats);
+		return floats;
 	}
 
-	protected void readFaces(InputStream buffer) throws IOException {
-		int triangles = readShort(buffer);
-		Number3D[] normals = new Number3D[triangles];		
-		ArrayList<Integer> indices = new ArrayList<Integer>();
-
-		for (int i = 0; i < triangles; i++) {
-			int[] vertexIDs = new int[3];
-			vertexIDs[0] = readShort(buffer);
-			vertexIDs[1] = readShort(buffer);
-			vertexIDs[2] = readShort(buffer);
-			readShort(buffer);
-
-			indices.add(vertexIDs[0]);
-			indices.add(vertexIDs[1]);
-			indices.add(vertexIDs[2]);
-
-			Number3D normal = calculateFaceNormal(vertexIDs);
-			normals[i] = normal;
+	/**
+	 * Reads the face block: the number of faces followed by three indices and flags per face.
+	 */
+	private int[] readFaces(ByteBuffer buffer, int offset) {
+		int numFaces = buffer.getShort(offset) & 0xffff;
+		short[] faces = new short[numFaces * 4];
+		buffer.position(offset + 2);
+		buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(faces);
+
+		int[] indices = new int[numFaces * 3];
+		for (int i = 0, f = 0; i < indices.length; i += 3, f += 4) {
+			indices[i] = faces[f] & 0xffff;
+			indices[i + 1] = faces[f + 1] & 0xffff;
+			indices[i + 2] = faces[f + 2] & 0xffff;
 		}
-		
-		mNormals.add(new Number3D[triangles]);
-		mIndices.add(indices);
-		
-		int numVertices = mVertices.get(mObjects).size();
-		int numIndices = indices.size();
-		
-		ArrayList<Number3D> vertNormals = new ArrayList<Number3D>();
-
-		for (int i = 0; i < numVertices; i++) {
-
-			Number3D vertexNormal = new Number3D();
-
-			for (int j = 0; j < numIndices; j += 3) {
-				int id1 = indices.get(j);
-				int id2 = indices.get(j + 1);
-				int id3 = indices.get(j + 2);
-
-				if (id1 == i || id2 == i || id3 == i) {
-					vertexNormal.add(normals[j / 3]);
-				}
-			}
-			vertexNormal.normalize();
-			vertNormals.add(vertexNormal);
-		}
-		
-		mVertNormals.add(vertNormals);
+		return indices;
 	}
-
-	private Number3D calculateFaceNormal(int[] vertexIDs) {
-		ArrayList<Number3D> vertices = mVertices.get(mObjects);
-		Number3D v1 = vertices.get(vertexIDs[0]);
-		Number3D v2 = vertices.get(vertexIDs[2]);
-		Number3D v3 = vertices.get(vertexIDs[1]);
-
-		Number3D vector1 = Number3D.tmp();
-		Number3D.subtract(v2, v1, vector1);
-		Number3D vector2 = Number3D.tmp2();
-		Number3D.subtract(v3, v1, vector2);
-
-		Number3D normal = new Number3D();
-		Number3D.cross(vector1, vector2, normal);
-		normal.normalize();
-		return normal;
-	}
-
-	protected void readHeader(InputStream stream) throws IOException {
-		mChunkID = readShort(stream);
-		mChunkEndOffset = readInt(stream);
-		mEndReached = mChunkID < 0;
-	}
-
-	protected String readString(InputStream stream) throws IOException {
-		String result = new String();
-		byte inByte;
-		while ((inByte = (byte) stream.read()) != 0)
-			result += (char) inByte;
-		return result;
-	}
-
-	protected int readInt(InputStream stream) throws IOException {
-		return stream.read() | (stream.read() << 8) | (stream.read() << 16) | (stream.read() << 24);
-	}
-
-	protected int readShort(InputStream stream) throws IOException {
-		return (stream.read() | (stream.read() << 8));
-	}
-
-	protected float readFloat(InputStream stream) throws IOException {
-		return Float.intBitsToFloat(readInt(stream));
-	}
-
 }
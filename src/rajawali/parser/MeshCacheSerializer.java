@@ -0,0 +1,462 @@
+package rajawali.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Stack;
+
+import rajawali.AGeometry3D;
+import rajawali.BaseObject3D;
+import rajawali.BufferInfo;
+import rajawali.Geometry3DSeparate;
+import rajawali.animation.mesh.AAnimationObject3D;
+import rajawali.animation.mesh.IAnimationFrame;
+import rajawali.animation.mesh.VertexAnimationFrame;
+import rajawali.animation.mesh.VertexAnimationObject3D;
+import rajawali.materials.AMaterial;
+import rajawali.materials.BumpmapMaterial;
+import rajawali.materials.DiffuseMaterial;
+import rajawali.materials.PhongMaterial;
+import rajawali.materials.SimpleMaterial;
+import rajawali.materials.TextureInfo;
+import rajawali.materials.TextureManager.TextureType;
+import rajawali.math.Number3D;
+import android.content.res.Resources;
+
+/**
+ * Converts parsed object hierarchies to and from the compact binary format that is stored
+ * in a {@link ParseCache}. Geometry is written as raw float and int arrays, materials are
+ * written as a type tag plus the few properties the parsers set and textures are written
+ * as references to their source resource or file.
+ * <p>
+ * Objects that can't be restored faithfully (interleaved geometry, skeletal animation,
+ * packed frames, custom materials, textures without a known source) aren't written at all.
+ *
+ * @see ParseCache
+ */
+class MeshCacheSerializer {
+	private static final int NODE_OBJECT = 0;
+	private static final int NODE_VERTEX_ANIMATION = 1;
+
+	private static final int MATERIAL_SIMPLE = 0;
+	private static final int MATERIAL_DIFFUSE = 1;
+	private static final int MATERIAL_PHONG = 2;
+	private static final int MATERIAL_BUMPMAP = 3;
+
+	private static final int TEXTURE_SOURCE_RESOURCE = 0;
+	private static final int TEXTURE_SOURCE_FILE = 1;
+
+	private final AMeshParser mParser;
+	private final Resources mResources;
+
+	public MeshCacheSerializer(AMeshParser parser, Resources resources) {
+		mParser = parser;
+		mResources = resources;
+	}
+
+	/**
+	 * Writes the object and all of its children.
+	 *
+	 * @param object
+	 * @return The serialized data or null when the object can't be cached
+	 */
+	public byte[] write(BaseObject3D object) {
+		if (!canCache(object))
+			return null;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			writeNode(out, object);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Whether the object and all of its children can be written and restored faithfully.
+	 *
+	 * @param object
+	 * @return
+	 */
+	public boolean canCache(BaseObject3D object) {
+		boolean isVertexAnimation = object instanceof VertexAnimationObject3D;
+		if (!isVertexAnimation && (object instanceof AAnimationObject3D || object.getClass() != BaseObject3D.class))
+			return false;
+		// -- packed frames only keep the quantized data
+		if (isVertexAnimation && ((VertexAnimationObject3D) object).getPackedFrames() != null)
+			return false;
+
+		if (!object.isContainer()) {
+			if (!(object.getGeometry() instanceof Geometry3DSeparate))
+				return false;
+			AMaterial material = object.getMaterial();
+			if (material != null && !canCache(material))
+				return false;
+		}
+
+		for (int i = 0; i < object.getNumChildren(); ++i) {
+			if (!canCache(object.getChildAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	private boolean canCache(AMaterial material) {
+		int type = getMaterialType(material);
+		if (type < 0 || (type == MATERIAL_SIMPLE && material.isVertexAnimationEnabled()))
+			return false;
+
+		ArrayList<TextureInfo> textures = material.getTextureInfoList();
+		for (int i = 0; i < textures.size(); ++i) {
+			TextureInfo textureInfo = textures.get(i);
+			if (textureInfo.getResourceId() != 0) {
+				try {
+					mResources.getResourceName(textureInfo.getResourceId());
+				} catch (Resources.NotFoundException e) {
+					return false;
+				}
+			} else if (textureInfo.getFilePath() == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the type tag of the built-in materials the parsers create, -1 for any other class.
+	 */
+	private static int getMaterialType(AMaterial material) {
+		Class<?> materialClass = material.getClass();
+		if (materialClass == SimpleMaterial.class)
+			return MATERIAL_SIMPLE;
+		if (materialClass == DiffuseMaterial.class)
+			return MATERIAL_DIFFUSE;
+		if (materialClass == PhongMaterial.class)
+			return MATERIAL_PHONG;
+		if (materialClass == BumpmapMaterial.class)
+			return MATERIAL_BUMPMAP;
+		return -1;
+	}
+
+	/**
+	 * Recreates the object hierarchy. Buffers are created and textures are decoded
+	 * so this has to be called on the OpenGL thread, just like parse().
+	 *
+	 * @param data
+	 * @return The restored object or null when the data can't be restored
+	 */
+	public BaseObject3D read(byte[] data) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			return readNode(in);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a texture type by name. Entries written by a version with other texture types are
+	 * treated like any other entry that can't be restored.
+	 */
+	private static TextureType readTextureType(DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		try {
+			return TextureType.valueOf(name);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unknown texture type " + name);
+		}
+	}
+
+	private void writeNode(DataOutputStream out, BaseObject3D object) throws IOException {
+		boolean isVertexAnimation = object instanceof VertexAnimationObject3D;
+		out.writeByte(isVertexAnimation ? NODE_VERTEX_ANIMATION : NODE_OBJECT);
+		writeString(out, object.getName());
+		writeNumber3D(out, object.getPosition());
+		writeNumber3D(out, object.getRotation());
+		writeNumber3D(out, object.getScale());
+		out.writeBoolean(object.isContainer());
+
+		if (!object.isContainer()) {
+			AGeometry3D geometry = object.getGeometry();
+			if (!isVertexAnimation) {
+				writeBuffer(out, geometry.getBuffer(AMaterial.ATTR_POSITION));
+				writeBuffer(out, geometry.getBuffer(AMaterial.ATTR_NORMAL));
+			}
+			BufferInfo texCoords = geometry.getBuffer(AMaterial.ATTR_TEXTURECOORD);
+			out.writeInt(texCoords != null ? texCoords.attributeSize : 2);
+			writeBuffer(out, texCoords);
+			writeBuffer(out, geometry.getBuffer(AMaterial.ATTR_COLOR));
+			writeIndices(out, geometry.getIndices());
+
+			if (isVertexAnimation) {
+				VertexAnimationObject3D animObject = (VertexAnimationObject3D) object;
+				int numFrames = animObject.getNumFrames();
+				out.writeInt(animObject.getFps());
+				out.writeInt(numFrames);
+				for (int i = 0; i < numFrames; ++i) {
+					VertexAnimationFrame frame = (VertexAnimationFrame) animObject.getFrame(i);
+					writeString(out, frame.getName());
+					writeFloats(out, frame.getGeometry().getVertices());
+					writeFloats(out, frame.getGeometry().getNormals());
+				}
+			}
+
+			writeMaterial(out, object.getMaterial());
+		}
+
+		int numChildren = object.getNumChildren();
+		out.writeInt(numChildren);
+		for (int i = 0; i < numChildren; ++i)
+			writeNode(out, object.getChildAt(i));
+	}
+
+	private BaseObject3D readNode(DataInputStream in) throws IOException {
+		int type = in.readByte();
+		if (type != NODE_OBJECT && type != NODE_VERTEX_ANIMATION)
+			throw new IOException("Unknown node type " + type);
+
+		String name = readString(in);
+		Number3D position = readNumber3D(in);
+		Number3D rotation = readNumber3D(in);
+		Number3D scale = readNumber3D(in);
+		boolean isContainer = in.readBoolean();
+
+		BaseObject3D object;
+
+		if (isContainer) {
+			object = new BaseObject3D();
+		} else if (type == NODE_OBJECT) {
+			float[] vertices = readFloats(in);
+			float[] normals = readFloats(in);
+			int sizeTexCoords = in.readInt();
+			float[] texCoords = readFloats(in);
+			float[] colors = readFloats(in);
+			int[] indices = readInts(in);
+
+			object = new BaseObject3D();
+			object.setData(vertices, normals, texCoords, sizeTexCoords, colors, indices);
+			readMaterial(in, object);
+		} else {
+			int sizeTexCoords = in.readInt();
+			float[] texCoords = readFloats(in);
+			float[] colors = readFloats(in);
+			int[] indices = readInts(in);
+			int fps = in.readInt();
+			int numFrames = in.readInt();
+			if (numFrames == 0)
+				throw new IOException("Vertex animation without frames");
+
+			Stack<IAnimationFrame> frames = new Stack<IAnimationFrame>();
+			for (int i = 0; i < numFrames; ++i) {
+				VertexAnimationFrame frame = new VertexAnimationFrame();
+				frame.setName(readString(in));
+				frame.getGeometry().setVertices(readFloats(in));
+				frame.getGeometry().setNormals(readFloats(in));
+				frame.getGeometry().createVertexAndNormalBuffersOnly();
+				frames.add(frame);
+			}
+
+			VertexAnimationObject3D animObject = new VertexAnimationObject3D();
+			animObject.setFps(fps);
+			animObject.setFrames(frames);
+			AGeometry3D firstFrame = frames.get(0).getGeometry();
+			animObject.setData(firstFrame.getBuffer(AMaterial.ATTR_POSITION),
+					firstFrame.getBuffer(AMaterial.ATTR_NORMAL), texCoords, sizeTexCoords, colors, indices);
+			object = animObject;
+			readMaterial(in, object);
+		}
+
+		object.setName(name);
+		object.setPosition(position);
+		object.setRotation(rotation);
+		object.setScale(scale);
+		object.isContainer(isContainer);
+
+		int numChildren = in.readInt();
+		for (int i = 0; i < numChildren; ++i)
+			object.addChild(readNode(in));
+
+		return object;
+	}
+
+	private void writeMaterial(DataOutputStream out, AMaterial material) throws IOException {
+		out.writeBoolean(material != null);
+		if (material == null)
+			return;
+
+		int type = getMaterialType(material);
+		out.writeByte(type);
+		out.writeBoolean(material.isVertexAnimationEnabled());
+		out.writeBoolean(material.getUseColor());
+
+		if (type == MATERIAL_PHONG) {
+			PhongMaterial phong = (PhongMaterial) material;
+			float[] specular = phong.getSpecularColor();
+			for (int i = 0; i < 4; ++i)
+				out.writeFloat(specular[i]);
+			out.writeFloat(phong.getShininess());
+		}
+
+		ArrayList<TextureInfo> textures = material.getTextureInfoList();
+		int numTextures = textures.size();
+		out.writeInt(numTextures);
+		for (int i = 0; i < numTextures; ++i) {
+			TextureInfo textureInfo = textures.get(i);
+			out.writeUTF(textureInfo.getTextureType().name());
+			if (textureInfo.getResourceId() != 0) {
+				out.writeByte(TEXTURE_SOURCE_RESOURCE);
+				out.writeUTF(mResources.getResourceName(textureInfo.getResourceId()));
+			} else {
+				out.writeByte(TEXTURE_SOURCE_FILE);
+				out.writeUTF(textureInfo.getFilePath());
+			}
+		}
+	}
+
+	private void readMaterial(DataInputStream in, BaseObject3D object) throws IOException {
+		if (!in.readBoolean())
+			return;
+
+		int type = in.readByte();
+		boolean vertexAnimation = in.readBoolean();
+		boolean useColor = in.readBoolean();
+
+		AMaterial material;
+		switch (type) {
+		case MATERIAL_SIMPLE:
+			material = new SimpleMaterial();
+			break;
+		case MATERIAL_DIFFUSE:
+			material = new DiffuseMaterial(vertexAnimation);
+			break;
+		case MATERIAL_PHONG:
+			material = new PhongMaterial(vertexAnimation);
+			break;
+		case MATERIAL_BUMPMAP:
+			material = new BumpmapMaterial(vertexAnimation);
+			break;
+		default:
+			throw new IOException("Unknown material type " + type);
+		}
+
+		if (type == MATERIAL_PHONG) {
+			PhongMaterial phong = (PhongMaterial) material;
+			phong.setSpecularColor(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+			phong.setShininess(in.readFloat());
+		}
+
+		material.setUseColor(useColor);
+		object.setMaterial(material);
+
+		int numTextures = in.readInt();
+		for (int i = 0; i < numTextures; ++i) {
+			TextureType textureType = readTextureType(in);
+			int source = in.readByte();
+			String location = in.readUTF();
+			TextureInfo textureInfo;
+			if (source == TEXTURE_SOURCE_RESOURCE) {
+				int identifier = mResources.getIdentifier(location, null, null);
+				if (identifier == 0)
+					throw new IOException("Texture resource " + location + " doesn't exist anymore");
+				textureInfo = mParser.loadTexture(identifier, textureType);
+			} else {
+				textureInfo = mParser.loadTexture(location, textureType);
+			}
+			if (textureInfo == null)
+				throw new IOException("Could not load texture " + location);
+			object.addTexture(textureInfo);
+		}
+	}
+
+	private void writeBuffer(DataOutputStream out, BufferInfo bufferInfo) throws IOException {
+		writeFloats(out, bufferInfo != null ? (FloatBuffer) bufferInfo.buffer : null);
+	}
+
+	private void writeFloats(DataOutputStream out, FloatBuffer buffer) throws IOException {
+		if (buffer == null) {
+			out.writeInt(-1);
+			return;
+		}
+		FloatBuffer source = buffer.duplicate();
+		source.clear();
+		int count = source.remaining();
+		ByteBuffer bytes = ByteBuffer.allocate(count * 4);
+		bytes.asFloatBuffer().put(source);
+		out.writeInt(count);
+		out.write(bytes.array());
+	}
+
+	private float[] readFloats(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0)
+			return null;
+		byte[] bytes = new byte[count * 4];
+		in.readFully(bytes);
+		float[] values = new float[count];
+		ByteBuffer.wrap(bytes).asFloatBuffer().get(values);
+		return values;
+	}
+
+	private void writeIndices(DataOutputStream out, Buffer indices) throws IOException {
+		if (indices == null) {
+			out.writeInt(-1);
+			return;
+		}
+		int count = indices.capacity();
+		ByteBuffer bytes = ByteBuffer.allocate(count * 4);
+		IntBuffer target = bytes.asIntBuffer();
+		if (indices instanceof IntBuffer) {
+			IntBuffer source = ((IntBuffer) indices).duplicate();
+			source.clear();
+			target.put(source);
+		} else {
+			ShortBuffer source = ((ShortBuffer) indices).duplicate();
+			source.clear();
+			for (int i = 0; i < count; ++i)
+				target.put(source.get(i) & 0xffff);
+		}
+		out.writeInt(count);
+		out.write(bytes.array());
+	}
+
+	private int[] readInts(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0)
+			return null;
+		byte[] bytes = new byte[count * 4];
+		in.readFully(bytes);
+		int[] values = new int[count];
+		ByteBuffer.wrap(bytes).asIntBuffer().get(values);
+		return values;
+	}
+
+	private void writeNumber3D(DataOutputStream out, Number3D value) throws IOException {
+		out.writeFloat(value.x);
+		out.writeFloat(value.y);
+		out.writeFloat(value.z);
+	}
+
+	private Number3D readNumber3D(DataInputStream in) throws IOException {
+		return new Number3D(in.readFloat(), in.readFloat(), in.readFloat());
+	}
+
+	private void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeUTF(value);
+	}
+
+	private String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -2,6 +2,7 @@ package rajawali.parser;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
@@ -22,7 +23,6 @@ import rajawali.renderer.RajawaliRenderer;
 import rajawali.util.RajLog;
 import rajawali.wallpaper.Wallpaper;
 import android.content.res.Resources;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.util.Log;
 
@@ -84,9 +84,60 @@ public class ObjParser extends AMeshParser {
 		super(resources, textureManager, resourceId);
 	}
 	
+	/**
+	 * The material libraries hold the materials and texture names, so they are part of the
+	 * parse cache key.
+	 */
+	@Override
+	protected InputStream[] openDependencies() throws IOException {
+		ArrayList<InputStream> materialLibs = new ArrayList<InputStream>();
+		BufferedReader buffer = new BufferedReader(new InputStreamReader(openSource()));
+		try {
+			String line;
+			while((line = buffer.readLine()) != null) {
+				StringTokenizer parts = new StringTokenizer(line, " ");
+				if(parts.countTokens() < 2 || !parts.nextToken().equals(MATERIAL_LIB))
+					continue;
+				String materialLibPath = parts.nextToken().replace(".", "_");
+				try {
+					if(mFile != null)
+						materialLibs.add(openMaterialLib(materialLibPath, null, null));
+					else
+						materialLibs.add(openMaterialLib(materialLibPath, mResources.getResourceTypeName(mResourceId), mResources.getResourcePackageName(mResourceId)));
+				} catch(IOException e) {
+					// -- a missing library is reported by parse()
+				}
+			}
+		} catch(IOException e) {
+			for(int i=0; i<materialLibs.size(); ++i)
+				materialLibs.get(i).close();
+			throw e;
+		} finally {
+			buffer.close();
+		}
+		return materialLibs.toArray(new InputStream[materialLibs.size()]);
+	}
+	
+	/**
+	 * Opens a material library next to the source file, or as a raw resource of the given
+	 * type and package.
+	 */
+	protected InputStream openMaterialLib(String materialLibPath, String resourceType, String resourcePackage) throws IOException {
+		if(mFile != null)
+			return new FileInputStream(new File(mFile.getParent() + File.separatorChar + materialLibPath));
+		int identifier = mResources.getIdentifier(materialLibPath, resourceType, resourcePackage);
+		try {
+			return mResources.openRawResource(identifier);
+		} catch(Resources.NotFoundException e) {
+			throw new FileNotFoundException(materialLibPath);
+		}
+	}
+	
 	@Override
 	public ObjParser parse() {
 		super.parse();
+		if(loadFromParseCache())
+			return this;
 		BufferedReader buffer = null;
 		if(mFile == null) {
 			InputStream fileIn = mResources.openRawResource(mResourceId);
@@ -280,6 +331,7 @@ public class ObjParser extends AMeshParser {
 		if(mRootObject.getNumChildren() == 1)
 			mRootObject = mRootObject.getChildAt(0);
 		
+		saveToParseCache();
 		return this;
 	}
 	
@@ -329,9 +381,8 @@ public class ObjParser extends AMeshParser {
 			BufferedReader buffer = null;
 			if(mFile == null) {
 				mResourcePackage = resourcePackage;
-				int identifier = mResources.getIdentifier(materialLibPath, resourceType, resourcePackage);
 				try {
-					InputStream fileIn = mResources.openRawResource(identifier);
+					InputStream fileIn = openMaterialLib(materialLibPath, resourceType, resourcePackage);
 					buffer = new BufferedReader(new InputStreamReader(fileIn));
 				} catch(Exception e) {
 					RajLog.e("["+getClass().getCanonicalName()+"] Could not find material library file (.mtl).");
@@ -339,8 +390,7 @@ public class ObjParser extends AMeshParser {
 				}
 			} else {
 				try {
-					File materialFile = new File(mFile.getParent() + File.separatorChar + materialLibPath);
-					buffer = new BufferedReader(new FileReader(materialFile));
+					buffer = new BufferedReader(new InputStreamReader(openMaterialLib(materialLibPath, null, null)));
 				} catch (Exception e) {
 					RajLog.e("["+getClass().getCanonicalName()+"] Could not find file.");
 					e.printStackTrace();
@@ -434,11 +484,11 @@ public class ObjParser extends AMeshParser {
 			if(hasTexture) {
 				if(mFile == null) {
 					int identifier = mResources.getIdentifier(getFileNameWithoutExtension(matDef.diffuseTexture), "drawable", mResourcePackage);
-					object.addTexture(mTextureManager.addTexture(BitmapFactory.decodeResource(mResources, identifier)));
+					object.addTexture(loadTexture(identifier, TextureType.DIFFUSE));
 				} else {
 					try {
 						String filePath = mFile.getParent() + File.separatorChar + getOnlyFileName(matDef.diffuseTexture);
-						object.addTexture(mTextureManager.addTexture(BitmapFactory.decodeFile(filePath), TextureType.BUMP));
+						object.addTexture(loadTexture(filePath, TextureType.BUMP));
 					} catch (Exception e) {
 						RajLog.e("["+getClass().getCanonicalName()+"] Could not find file " + matDef.diffuseTexture);
 						e.printStackTrace();
@@ -449,11 +499,11 @@ public class ObjParser extends AMeshParser {
 			if(hasBump) {
 				if(mFile == null) {
 					int identifier = mResources.getIdentifier(getFileNameWithoutExtension(matDef.bumpTexture), "drawable", mResourcePackage);
-					object.addTexture(mTextureManager.addTexture(BitmapFactory.decodeResource(mResources, identifier), TextureType.BUMP));
+					object.addTexture(loadTexture(identifier, TextureType.BUMP));
 				} else {
 					try {
 						String filePath = mFile.getParent() + File.separatorChar + getOnlyFileName(matDef.bumpTexture);
-						object.addTexture(mTextureManager.addTexture(BitmapFactory.decodeFile(filePath), TextureType.BUMP));
+						object.addTexture(loadTexture(filePath, TextureType.BUMP));
 					} catch (Exception e) {
 						RajLog.e("["+getClass().getCanonicalName()+"] Could not find file " + matDef.bumpTexture);
 						e.printStackTrace();
@@ -0,0 +1,377 @@
+package rajawali.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent, size bounded cache for parse results. Entries are keyed by a hash of the
+ * source data, the parser that produced them, the parser version and the parse options,
+ * so a changed model file or a parser upgrade automatically results in a miss.
+ * <p>
+ * The cache only deals with plain directories and byte arrays, it doesn't depend on any
+ * Android classes. Each entry is written to a temporary file first and then renamed so
+ * a crash can never leave a half-written entry behind. Entries carry a length and a CRC32
+ * checksum; entries that don't validate are deleted and reported as a miss.
+ * <p>
+ * When the total size exceeds the maximum size the least recently used entries are removed.
+ * <pre><code>
+ * ParseCache cache = new ParseCache(new File(getContext().getCacheDir(), "meshes"), 16 * 1024 * 1024);
+ * ObjParser parser = new ObjParser(getContext().getResources(), mTextureManager, R.raw.mymodel_obj);
+ * parser.setParseCache(cache);
+ * parser.parse();
+ * </code></pre>
+ *
+ * @see AMeshParser#setParseCache(ParseCache)
+ */
+public class ParseCache {
+	private static final int MAGIC = 0x524A5043; // RJPC
+	private static final int FORMAT_VERSION = 2;
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+	private static final String ENTRY_EXTENSION = ".bin";
+	private static final String TEMP_EXTENSION = ".tmp";
+
+	private final File mDirectory;
+	private long mMaxSize;
+	private int mHitCount;
+	private int mMissCount;
+	private int mCorruptCount;
+
+	/**
+	 * @param directory
+	 *            The directory the entries are stored in. It will be created if it doesn't exist.
+	 * @param maxSize
+	 *            The maximum total size of all entries in bytes
+	 */
+	public ParseCache(File directory, long maxSize) {
+		mDirectory = directory;
+		mMaxSize = maxSize;
+		if (!mDirectory.exists())
+			mDirectory.mkdirs();
+		deleteTemporaryFiles();
+	}
+
+	/**
+	 * Creates a cache key from the source data and everything else that influences the parse result.
+	 * The source stream is read to the end and closed.
+	 *
+	 * @param source
+	 *            The raw model data
+	 * @param parserName
+	 *            Unique name of the parser, typically the class name
+	 * @param parserVersion
+	 *            Version of the parser. Increase it whenever the parse result changes.
+	 * @param options
+	 *            Parser options, can be null
+	 * @return A hexadecimal SHA-1 string
+	 * @throws IOException
+	 */
+	public static String createKey(InputStream source, String parserName, int parserVersion, String options)
+			throws IOException {
+		return createKey(source, null, parserName, parserVersion, options);
+	}
+
+	/**
+	 * Creates a cache key from the source data, the files it refers to and everything else that
+	 * influences the parse result. All streams are read to the end and closed.
+	 *
+	 * @param source
+	 *            The raw model data
+	 * @param dependencies
+	 *            The files the model refers to, like material libraries, can be null
+	 * @param parserName
+	 *            Unique name of the parser, typically the class name
+	 * @param parserVersion
+	 *            Version of the parser. Increase it whenever the parse result changes.
+	 * @param options
+	 *            Parser options, can be null
+	 * @return A hexadecimal SHA-1 string
+	 * @throws IOException
+	 */
+	public static String createKey(InputStream source, InputStream[] dependencies, String parserName,
+			int parserVersion, String options) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			closeAll(source, dependencies);
+			throw new IOException("SHA-1 is not available");
+		}
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(header);
+		dos.writeUTF(parserName);
+		dos.writeInt(parserVersion);
+		dos.writeUTF(options == null ? "" : options);
+		dos.close();
+		digest.update(header.toByteArray());
+
+		byte[] buffer = new byte[8192];
+		try {
+			update(digest, source, buffer);
+			int numDependencies = dependencies == null ? 0 : dependencies.length;
+			for (int i = 0; i < numDependencies; ++i) {
+				// -- the length keeps the boundaries between the files apart
+				long length = update(digest, dependencies[i], buffer);
+				for (int shift = 56; shift >= 0; shift -= 8)
+					digest.update((byte) (length >>> shift));
+			}
+		} finally {
+			closeAll(source, dependencies);
+		}
+
+		byte[] hash = digest.digest();
+		StringBuffer sb = new StringBuffer(hash.length * 2);
+		for (int i = 0; i < hash.length; ++i) {
+			sb.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(hash[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	private static long update(MessageDigest digest, InputStream stream, byte[] buffer) throws IOException {
+		long length = 0;
+		int read;
+		while ((read = stream.read(buffer)) != -1) {
+			digest.update(buffer, 0, read);
+			length += read;
+		}
+		return length;
+	}
+
+	private static void closeAll(InputStream source, InputStream[] dependencies) {
+		close(source);
+		if (dependencies != null)
+			for (int i = 0; i < dependencies.length; ++i)
+				close(dependencies[i]);
+	}
+
+	/**
+	 * Returns the data stored for this key or null when there is no valid entry.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public synchronized byte[] get(String key) {
+		File file = getEntryFile(key);
+		if (!file.exists()) {
+			mMissCount++;
+			return null;
+		}
+
+		DataInputStream dis = null;
+		byte[] data = null;
+		try {
+			long fileLength = file.length();
+			dis = new DataInputStream(new FileInputStream(file));
+			if (fileLength >= HEADER_SIZE && dis.readInt() == MAGIC && dis.readInt() == FORMAT_VERSION) {
+				int length = dis.readInt();
+				long checksum = dis.readLong();
+				if (length >= 0 && length == fileLength - HEADER_SIZE) {
+					byte[] payload = new byte[length];
+					dis.readFully(payload);
+					CRC32 crc = new CRC32();
+					crc.update(payload);
+					if (crc.getValue() == checksum)
+						data = payload;
+				}
+			}
+		} catch (IOException e) {
+			data = null;
+		} finally {
+			close(dis);
+		}
+
+		if (data == null) {
+			mCorruptCount++;
+			mMissCount++;
+			file.delete();
+			return null;
+		}
+
+		mHitCount++;
+		file.setLastModified(System.currentTimeMillis());
+		return data;
+	}
+
+	/**
+	 * Stores the data for this key. The entry only becomes visible once it has been
+	 * written completely.
+	 *
+	 * @param key
+	 * @param data
+	 * @return true if the entry was stored
+	 */
+	public synchronized boolean put(String key, byte[] data) {
+		if (HEADER_SIZE + data.length > mMaxSize)
+			return false;
+
+		File temp = null;
+		FileOutputStream fos = null;
+		try {
+			temp = File.createTempFile(key, TEMP_EXTENSION, mDirectory);
+			fos = new FileOutputStream(temp);
+			DataOutputStream dos = new DataOutputStream(fos);
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			dos.writeInt(MAGIC);
+			dos.writeInt(FORMAT_VERSION);
+			dos.writeInt(data.length);
+			dos.writeLong(crc.getValue());
+			dos.write(data);
+			dos.flush();
+			fos.getFD().sync();
+			fos.close();
+			fos = null;
+
+			File file = getEntryFile(key);
+			if (file.exists())
+				file.delete();
+			if (!temp.renameTo(file)) {
+				temp.delete();
+				return false;
+			}
+		} catch (IOException e) {
+			close(fos);
+			if (temp != null)
+				temp.delete();
+			return false;
+		}
+
+		trimToSize(mMaxSize);
+		return true;
+	}
+
+	/**
+	 * Removes the entry for this key.
+	 *
+	 * @param key
+	 */
+	public synchronized void remove(String key) {
+		getEntryFile(key).delete();
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public synchronized void clear() {
+		File[] entries = listEntries();
+		for (int i = 0; i < entries.length; ++i)
+			entries[i].delete();
+	}
+
+	/**
+	 * Removes the least recently used entries until the total size is below the given size.
+	 *
+	 * @param maxSize
+	 */
+	public synchronized void trimToSize(long maxSize) {
+		File[] entries = listEntries();
+		long size = 0;
+		for (int i = 0; i < entries.length; ++i)
+			size += entries[i].length();
+		if (size <= maxSize)
+			return;
+
+		Arrays.sort(entries, new Comparator<File>() {
+			public int compare(File lhs, File rhs) {
+				long l = lhs.lastModified();
+				long r = rhs.lastModified();
+				return l < r ? -1 : (l > r ? 1 : 0);
+			}
+		});
+
+		for (int i = 0; i < entries.length && size > maxSize; ++i) {
+			long length = entries[i].length();
+			if (entries[i].delete())
+				size -= length;
+		}
+	}
+
+	/**
+	 * Returns the total size of all entries in bytes.
+	 *
+	 * @return
+	 */
+	public synchronized long getSize() {
+		File[] entries = listEntries();
+		long size = 0;
+		for (int i = 0; i < entries.length; ++i)
+			size += entries[i].length();
+		return size;
+	}
+
+	public synchronized long getMaxSize() {
+		return mMaxSize;
+	}
+
+	public synchronized void setMaxSize(long maxSize) {
+		mMaxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	/**
+	 * Returns the number of entries that were discarded because they were truncated or corrupted.
+	 *
+	 * @return
+	 */
+	public synchronized int getCorruptCount() {
+		return mCorruptCount;
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	private File getEntryFile(String key) {
+		return new File(mDirectory, key + ENTRY_EXTENSION);
+	}
+
+	private File[] listEntries() {
+		File[] files = mDirectory.listFiles();
+		if (files == null)
+			return new File[0];
+		int count = 0;
+		for (int i = 0; i < files.length; ++i)
+			if (files[i].getName().endsWith(ENTRY_EXTENSION))
+				files[count++] = files[i];
+		return Arrays.copyOf(files, count);
+	}
+
+	private void deleteTemporaryFiles() {
+		File[] files = mDirectory.listFiles();
+		if (files == null)
+			return;
+		for (int i = 0; i < files.length; ++i)
+			if (files[i].getName().endsWith(TEMP_EXTENSION))
+				files[i].delete();
+	}
+
+	private static void close(Closeable closeable) {
+		if (closeable == null)
+			return;
+		try {
+			closeable.close();
+		} catch (IOException e) {
+		}
+	}
+}
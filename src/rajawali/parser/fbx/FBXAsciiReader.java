@@ -0,0 +1,336 @@
+package rajawali.parser.fbx;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Reads an ASCII FBX file into a tree of {@link FBXNode}s. The buffer is scanned once, without
+ * regular expressions or a string per line: numbers are parsed in place into scratch arrays,
+ * which are copied into a single float or int array once a list of numbers ends. Lists may be
+ * continued on the next line, with or without a trailing comma.
+ */
+class FBXAsciiReader {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final double[] POWERS_OF_TEN = new double[23];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; ++i)
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+	}
+
+	private ByteBuffer mBuffer;
+	private int mPosition;
+	private int mLimit;
+	private byte[] mBytes = new byte[256];
+
+	/**
+	 * Whether each property of the current node is a number
+	 */
+	private boolean[] mIsNumber = new boolean[64];
+	private double[] mNumbers = new double[1024];
+	private long[] mIntegers = new long[1024];
+	private boolean[] mIsInteger = new boolean[1024];
+	private final ArrayList<Object> mObjects = new ArrayList<Object>();
+	private int mNumProperties;
+	private int mNumNumbers;
+	private boolean mAllIntegers;
+
+	/**
+	 * Reads all nodes from the position of the buffer to its limit.
+	 *
+	 * @param buffer
+	 * @return The root node, which holds the top level nodes as children
+	 */
+	FBXNode read(ByteBuffer buffer) {
+		mBuffer = buffer;
+		mPosition = buffer.position();
+		mLimit = buffer.limit();
+		FBXNode root = new FBXNode("");
+		readNodes(root);
+		mBuffer = null;
+		return root;
+	}
+
+	private void readNodes(FBXNode parent) {
+		while (true) {
+			skipWhitespace();
+			if (mPosition >= mLimit)
+				return;
+			if (peek() == '}') {
+				mPosition++;
+				return;
+			}
+
+			int start = mPosition;
+			while (mPosition < mLimit && peek() != ':' && peek() != '\n' && peek() != '{' && peek() != '}')
+				mPosition++;
+			if (mPosition >= mLimit || peek() != ':') {
+				// -- not a node, skip to the next line
+				if (mPosition < mLimit && peek() == '{')
+					readNodes(new FBXNode(""));
+				continue;
+			}
+			FBXNode node = new FBXNode(readAscii(start, mPosition).trim());
+			mPosition++;
+
+			readProperties(node);
+			skipSpaces();
+			if (mPosition < mLimit && peek() == '{') {
+				mPosition++;
+				readNodes(node);
+			}
+			parent.addChild(node);
+		}
+	}
+
+	private void readProperties(FBXNode node) {
+		mNumProperties = 0;
+		mNumNumbers = 0;
+		mAllIntegers = true;
+		mObjects.clear();
+
+		skipSpaces();
+		while (mPosition < mLimit) {
+			byte c = peek();
+			if (c == '{' || c == '}' || c == '\n' || c == '\r' || c == ';')
+				break;
+			readValue();
+			skipSpaces();
+			if (mPosition >= mLimit)
+				break;
+			c = peek();
+			if (c == ',') {
+				mPosition++;
+				skipWhitespace();
+				continue;
+			}
+			if (c != '\n' && c != '\r')
+				break;
+			// -- lists of numbers continue on lines that start with a comma
+			int end = mPosition;
+			skipWhitespace();
+			if (mPosition < mLimit && peek() == ',') {
+				mPosition++;
+				skipWhitespace();
+				continue;
+			}
+			mPosition = end;
+			break;
+		}
+
+		if (mObjects.isEmpty() && mNumNumbers > 1) {
+			if (mAllIntegers) {
+				int[] ints = new int[mNumNumbers];
+				for (int i = 0; i < ints.length; ++i) {
+					ints[i] = (int) mIntegers[i];
+					// -- times and ids don't fit in an int
+					if (ints[i] != mIntegers[i]) {
+						long[] longs = new long[mNumNumbers];
+						System.arraycopy(mIntegers, 0, longs, 0, longs.length);
+						node.mProperties.add(longs);
+						return;
+					}
+				}
+				node.mProperties.add(ints);
+			} else {
+				float[] floats = new float[mNumNumbers];
+				for (int i = 0; i < floats.length; ++i)
+					floats[i] = (float) mNumbers[i];
+				node.mProperties.add(floats);
+			}
+			return;
+		}
+
+		for (int i = 0, number = 0, object = 0; i < mNumProperties; ++i) {
+			if (!mIsNumber[i]) {
+				node.mProperties.add(mObjects.get(object++));
+			} else if (mIsInteger[number]) {
+				node.mProperties.add(Long.valueOf(mIntegers[number++]));
+			} else {
+				node.mProperties.add(Double.valueOf(mNumbers[number++]));
+			}
+		}
+	}
+
+	private void readValue() {
+		byte c = peek();
+		if (c == '*') {
+			// -- the length of a version 7 array, the numbers follow in a child node
+			mPosition++;
+			while (mPosition < mLimit && isDigit(peek()))
+				mPosition++;
+			return;
+		}
+
+		if (c == '"') {
+			int start = ++mPosition;
+			while (mPosition < mLimit && peek() != '"')
+				mPosition++;
+			addObject(readUtf8(start, mPosition));
+			mPosition++;
+		} else if (isDigit(c) || c == '-' || c == '+' || c == '.') {
+			readNumber();
+		} else {
+			int start = mPosition;
+			while (mPosition < mLimit && !isDelimiter(peek()))
+				mPosition++;
+			addObject(readAscii(start, mPosition));
+		}
+	}
+
+	/**
+	 * Parses a decimal number without creating a string. Digits beyond the precision of a long
+	 * only move the exponent.
+	 */
+	private void readNumber() {
+		boolean negative = false;
+		byte c = peek();
+		if (c == '-' || c == '+') {
+			negative = c == '-';
+			mPosition++;
+		}
+
+		long mantissa = 0;
+		int exponent = 0;
+		int digits = 0;
+		boolean integer = true;
+		boolean fraction = false;
+		while (mPosition < mLimit) {
+			c = peek();
+			if (isDigit(c)) {
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (mantissa != 0)
+						digits++;
+					if (fraction)
+						exponent--;
+				} else if (!fraction) {
+					exponent++;
+				}
+			} else if (c == '.' && !fraction) {
+				fraction = true;
+				integer = false;
+			} else {
+				break;
+			}
+			mPosition++;
+		}
+
+		if (mPosition < mLimit && (c == 'e' || c == 'E')) {
+			integer = false;
+			mPosition++;
+			boolean negativeExponent = false;
+			c = mPosition < mLimit ? peek() : 0;
+			if (c == '-' || c == '+') {
+				negativeExponent = c == '-';
+				mPosition++;
+			}
+			int value = 0;
+			while (mPosition < mLimit && isDigit(peek()))
+				value = value * 10 + (mBuffer.get(mPosition++) - '0');
+			exponent += negativeExponent ? -value : value;
+		}
+		// -- skip what isn't a number, like the rest of 1.#INF
+		while (mPosition < mLimit && !isDelimiter(peek())) {
+			mPosition++;
+			integer = false;
+		}
+
+		double value = mantissa;
+		if (exponent > 0)
+			value *= exponent < POWERS_OF_TEN.length ? POWERS_OF_TEN[exponent] : Math.pow(10, exponent);
+		else if (exponent < 0)
+			value /= -exponent < POWERS_OF_TEN.length ? POWERS_OF_TEN[-exponent] : Math.pow(10, -exponent);
+		if (negative) {
+			value = -value;
+			mantissa = -mantissa;
+		}
+		addNumber(value, integer ? mantissa : (long) value, integer && exponent == 0);
+	}
+
+	private void addNumber(double value, long integer, boolean isInteger) {
+		if (mNumNumbers == mNumbers.length) {
+			double[] numbers = new double[mNumbers.length * 2];
+			System.arraycopy(mNumbers, 0, numbers, 0, mNumNumbers);
+			mNumbers = numbers;
+			long[] integers = new long[mIntegers.length * 2];
+			System.arraycopy(mIntegers, 0, integers, 0, mNumNumbers);
+			mIntegers = integers;
+			boolean[] isIntegers = new boolean[mIsInteger.length * 2];
+			System.arraycopy(mIsInteger, 0, isIntegers, 0, mNumNumbers);
+			mIsInteger = isIntegers;
+		}
+		if (!isInteger || integer < Integer.MIN_VALUE || integer > Integer.MAX_VALUE)
+			mAllIntegers = false;
+		mNumbers[mNumNumbers] = value;
+		mIntegers[mNumNumbers] = integer;
+		mIsInteger[mNumNumbers++] = isInteger;
+		addProperty(true);
+	}
+
+	private void addObject(Object object) {
+		mObjects.add(object);
+		addProperty(false);
+	}
+
+	private void addProperty(boolean isNumber) {
+		if (mNumProperties == mIsNumber.length) {
+			boolean[] isNumbers = new boolean[mIsNumber.length * 2];
+			System.arraycopy(mIsNumber, 0, isNumbers, 0, mNumProperties);
+			mIsNumber = isNumbers;
+		}
+		mIsNumber[mNumProperties++] = isNumber;
+	}
+
+	private byte peek() {
+		return mBuffer.get(mPosition);
+	}
+
+	/**
+	 * Skips spaces, line breaks and comments.
+	 */
+	private void skipWhitespace() {
+		while (mPosition < mLimit) {
+			byte c = peek();
+			if (c == ';') {
+				while (mPosition < mLimit && peek() != '\n')
+					mPosition++;
+			} else if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+				return;
+			} else {
+				mPosition++;
+			}
+		}
+	}
+
+	private void skipSpaces() {
+		while (mPosition < mLimit && (peek() == ' ' || peek() == '\t'))
+			mPosition++;
+	}
+
+	private String readAscii(int start, int end) {
+		char[] chars = new char[end - start];
+		for (int i = 0; i < chars.length; ++i)
+			chars[i] = (char) (mBuffer.get(start + i) & 0xff);
+		return new String(chars);
+	}
+
+	private String readUtf8(int start, int end) {
+		int length = end - start;
+		if (mBytes.length < length)
+			mBytes = new byte[length];
+		for (int i = 0; i < length; ++i)
+			mBytes[i] = mBuffer.get(start + i);
+		return new String(mBytes, 0, length, UTF_8);
+	}
+
+	private static boolean isDigit(byte c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isDelimiter(byte c) {
+		return c == ',' || c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '{' || c == '}';
+	}
+}
@@ -0,0 +1,208 @@
+package rajawali.parser.fbx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import rajawali.util.RajLog;
+
+/**
+ * Reads a binary FBX file into a tree of {@link FBXNode}s. Files from version 7.5 on use 64 bit
+ * offsets, older files 32 bit ones.
+ * <p>
+ * Arrays are copied in bulk into primitive arrays, double precision values are narrowed to
+ * floats. Compressed arrays are inflated into a scratch buffer that is reused for every array.
+ * Names of objects are stored as "Name\0\1Class" and are turned into the "Class::Name" form
+ * of ASCII files.
+ */
+class FBXBinaryReader {
+	private static final String MAGIC = "Kaydara FBX Binary  ";
+	private static final int HEADER_SIZE = 27;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private ByteBuffer mBuffer;
+	private boolean mWideOffsets;
+	private final Inflater mInflater = new Inflater();
+	private byte[] mCompressed = new byte[0];
+	private byte[] mInflated = new byte[0];
+	private byte[] mBytes = new byte[256];
+
+	/**
+	 * Returns whether the buffer starts with the header of a binary FBX file.
+	 *
+	 * @param buffer
+	 * @return
+	 */
+	static boolean isBinary(ByteBuffer buffer) {
+		if (buffer.limit() < HEADER_SIZE)
+			return false;
+		for (int i = 0; i < MAGIC.length(); ++i)
+			if (buffer.get(i) != MAGIC.charAt(i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Reads all nodes of the file.
+	 *
+	 * @param buffer
+	 * @return The root node, which holds the top level nodes as children
+	 */
+	FBXNode read(ByteBuffer buffer) {
+		mBuffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+		int version = buffer.getInt(23);
+		mWideOffsets = version >= 7500;
+		buffer.position(HEADER_SIZE);
+
+		FBXNode root = new FBXNode("");
+		try {
+			FBXNode node;
+			while (buffer.remaining() > 0 && (node = readNode()) != null)
+				root.addChild(node);
+		} catch (DataFormatException e) {
+			RajLog.e("[" + getClass().getCanonicalName() + "] Could not inflate array: " + e.getMessage());
+		} finally {
+			mInflater.end();
+			mBuffer = null;
+		}
+		return root;
+	}
+
+	/**
+	 * Reads a node and its children. Returns null for the empty record that ends a list of nodes.
+	 */
+	private FBXNode readNode() throws DataFormatException {
+		ByteBuffer buffer = mBuffer;
+		long endOffset = mWideOffsets ? buffer.getLong() : buffer.getInt() & 0xffffffffL;
+		long numProperties = mWideOffsets ? buffer.getLong() : buffer.getInt() & 0xffffffffL;
+		if (mWideOffsets)
+			buffer.getLong();
+		else
+			buffer.getInt();
+		int nameLength = buffer.get() & 0xff;
+		if (endOffset == 0)
+			return null;
+
+		FBXNode node = new FBXNode(readString(nameLength));
+		for (long i = 0; i < numProperties; ++i)
+			node.mProperties.add(readProperty());
+
+		while (buffer.position() < endOffset) {
+			FBXNode child = readNode();
+			if (child == null)
+				break;
+			node.addChild(child);
+		}
+		buffer.position((int) endOffset);
+		return node;
+	}
+
+	private Object readProperty() throws DataFormatException {
+		ByteBuffer buffer = mBuffer;
+		char type = (char) buffer.get();
+		switch (type) {
+		case 'Y':
+			return Integer.valueOf(buffer.getShort());
+		case 'C':
+			return Boolean.valueOf(buffer.get() != 0);
+		case 'I':
+			return Integer.valueOf(buffer.getInt());
+		case 'F':
+			return Float.valueOf(buffer.getFloat());
+		case 'D':
+			return Double.valueOf(buffer.getDouble());
+		case 'L':
+			return Long.valueOf(buffer.getLong());
+		case 'S':
+			return toObjectName(readString(buffer.getInt()));
+		case 'R':
+			byte[] raw = new byte[buffer.getInt()];
+			buffer.get(raw);
+			return raw;
+		case 'f':
+		case 'd':
+		case 'l':
+		case 'i':
+		case 'b':
+			return readArray(type);
+		default:
+			throw new IllegalStateException("Unknown property type " + type);
+		}
+	}
+
+	private Object readArray(char type) throws DataFormatException {
+		ByteBuffer buffer = mBuffer;
+		int length = buffer.getInt();
+		int encoding = buffer.getInt();
+		int compressedLength = buffer.getInt();
+		int elementSize = type == 'd' || type == 'l' ? 8 : type == 'b' ? 1 : 4;
+
+		ByteBuffer data;
+		if (encoding == 0) {
+			data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+			buffer.position(buffer.position() + compressedLength);
+		} else {
+			if (mCompressed.length < compressedLength)
+				mCompressed = new byte[compressedLength];
+			if (mInflated.length < length * elementSize)
+				mInflated = new byte[length * elementSize];
+			buffer.get(mCompressed, 0, compressedLength);
+			mInflater.reset();
+			mInflater.setInput(mCompressed, 0, compressedLength);
+			int inflated = 0;
+			while (inflated < length * elementSize && !mInflater.finished()) {
+				int count = mInflater.inflate(mInflated, inflated, length * elementSize - inflated);
+				if (count == 0 && (mInflater.needsInput() || mInflater.needsDictionary()))
+					throw new DataFormatException("Truncated array");
+				inflated += count;
+			}
+			data = ByteBuffer.wrap(mInflated, 0, length * elementSize).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		switch (type) {
+		case 'f': {
+			float[] floats = new float[length];
+			data.asFloatBuffer().get(floats);
+			return floats;
+		}
+		case 'd': {
+			float[] floats = new float[length];
+			for (int i = 0; i < length; ++i)
+				floats[i] = (float) data.getDouble(i * 8);
+			return floats;
+		}
+		case 'i': {
+			int[] ints = new int[length];
+			data.asIntBuffer().get(ints);
+			return ints;
+		}
+		case 'l': {
+			long[] longs = new long[length];
+			data.asLongBuffer().get(longs);
+			return longs;
+		}
+		default: {
+			int[] ints = new int[length];
+			for (int i = 0; i < length; ++i)
+				ints[i] = data.get(i);
+			return ints;
+		}
+		}
+	}
+
+	private String readString(int length) {
+		if (mBytes.length < length)
+			mBytes = new byte[length];
+		mBuffer.get(mBytes, 0, length);
+		return new String(mBytes, 0, length, UTF_8);
+	}
+
+	private static String toObjectName(String name) {
+		int separator = name.indexOf("\u0000\u0001");
+		if (separator < 0)
+			return name;
+		return name.substring(separator + 2) + "::" + name.substring(0, separator);
+	}
+}
@@ -0,0 +1,200 @@
+package rajawali.parser.fbx;
+
+import java.util.ArrayList;
+
+import rajawali.math.Number3D;
+
+/**
+ * A node of an FBX file. ASCII and binary files are both read into a tree of nodes, each with a
+ * name, a list of properties and its child nodes.
+ * <p>
+ * Properties are strings, booleans, boxed numbers or primitive arrays. Arrays are never boxed:
+ * the binary format stores them as array properties and the ASCII reader stores a node with
+ * only numbers as a single float, int or long array. The number accessors index both the same
+ * way. 64 bit arrays, like key times, stay long arrays, see {@link #getLongs()}.
+ */
+class FBXNode {
+	private static final ArrayList<FBXNode> NO_CHILDREN = new ArrayList<FBXNode>(0);
+
+	final String mName;
+	final ArrayList<Object> mProperties = new ArrayList<Object>(4);
+	private ArrayList<FBXNode> mChildren;
+
+	FBXNode(String name) {
+		mName = name;
+	}
+
+	void addChild(FBXNode child) {
+		if (mChildren == null)
+			mChildren = new ArrayList<FBXNode>();
+		mChildren.add(child);
+	}
+
+	ArrayList<FBXNode> getChildren() {
+		return mChildren == null ? NO_CHILDREN : mChildren;
+	}
+
+	FBXNode getChild(String name) {
+		if (mChildren == null)
+			return null;
+		for (int i = 0; i < mChildren.size(); ++i)
+			if (mChildren.get(i).mName.equals(name))
+				return mChildren.get(i);
+		return null;
+	}
+
+	int getNumProperties() {
+		return mProperties.size();
+	}
+
+	Object getProperty(int index) {
+		return index < mProperties.size() ? mProperties.get(index) : null;
+	}
+
+	String getString(int index) {
+		Object property = getProperty(index);
+		return property instanceof String ? (String) property : null;
+	}
+
+	boolean isNumber(int index) {
+		return getProperty(index) instanceof Number;
+	}
+
+	long getLong(int index) {
+		if (mProperties.size() == 1 && mProperties.get(0) instanceof long[])
+			return ((long[]) mProperties.get(0))[index];
+		Object property = getProperty(index);
+		if (property instanceof Number)
+			return ((Number) property).longValue();
+		return getInt(index);
+	}
+
+	/**
+	 * Returns a number. When the only property is an array, the index is into the array.
+	 *
+	 * @param index
+	 * @return
+	 */
+	float getFloat(int index) {
+		if (mProperties.size() == 1) {
+			Object array = mProperties.get(0);
+			if (array instanceof float[])
+				return ((float[]) array)[index];
+			if (array instanceof int[])
+				return ((int[]) array)[index];
+			if (array instanceof long[])
+				return ((long[]) array)[index];
+		}
+		Object property = getProperty(index);
+		if (property instanceof Number)
+			return ((Number) property).floatValue();
+		if (property instanceof Boolean)
+			return ((Boolean) property) ? 1 : 0;
+		return 0;
+	}
+
+	int getInt(int index) {
+		if (mProperties.size() == 1 && mProperties.get(0) instanceof int[])
+			return ((int[]) mProperties.get(0))[index];
+		if (mProperties.size() == 1 && mProperties.get(0) instanceof long[])
+			return (int) ((long[]) mProperties.get(0))[index];
+		Object property = getProperty(index);
+		if (property instanceof Number)
+			return ((Number) property).intValue();
+		return (int) getFloat(index);
+	}
+
+	Number3D getNumber3D(int index) {
+		return new Number3D(getFloat(index), getFloat(index + 1), getFloat(index + 2));
+	}
+
+	/**
+	 * Returns the numbers of an array node. ASCII files of version 7 keep the numbers in a
+	 * child node called "a".
+	 *
+	 * @return
+	 */
+	float[] getFloats() {
+		FBXNode array = getChild("a");
+		if (array != null)
+			return array.getFloats();
+		if (mProperties.size() == 1) {
+			Object property = mProperties.get(0);
+			if (property instanceof float[])
+				return (float[]) property;
+			if (property instanceof int[]) {
+				int[] ints = (int[]) property;
+				float[] floats = new float[ints.length];
+				for (int i = 0; i < ints.length; ++i)
+					floats[i] = ints[i];
+				return floats;
+			}
+			if (property instanceof long[]) {
+				long[] longs = (long[]) property;
+				float[] floats = new float[longs.length];
+				for (int i = 0; i < longs.length; ++i)
+					floats[i] = longs[i];
+				return floats;
+			}
+		}
+		float[] floats = new float[mProperties.size()];
+		for (int i = 0; i < floats.length; ++i)
+			floats[i] = getFloat(i);
+		return floats;
+	}
+
+	int[] getInts() {
+		FBXNode array = getChild("a");
+		if (array != null)
+			return array.getInts();
+		if (mProperties.size() == 1) {
+			Object property = mProperties.get(0);
+			if (property instanceof int[])
+				return (int[]) property;
+			if (property instanceof float[]) {
+				float[] floats = (float[]) property;
+				int[] ints = new int[floats.length];
+				for (int i = 0; i < floats.length; ++i)
+					ints[i] = (int) floats[i];
+				return ints;
+			}
+			if (property instanceof long[]) {
+				long[] longs = (long[]) property;
+				int[] ints = new int[longs.length];
+				for (int i = 0; i < longs.length; ++i)
+					ints[i] = (int) longs[i];
+				return ints;
+			}
+		}
+		int[] ints = new int[mProperties.size()];
+		for (int i = 0; i < ints.length; ++i)
+			ints[i] = getInt(i);
+		return ints;
+	}
+
+	/**
+	 * Returns the numbers of an array node without narrowing 64 bit values, like the key times
+	 * of animation curves.
+	 *
+	 * @return
+	 */
+	long[] getLongs() {
+		FBXNode array = getChild("a");
+		if (array != null)
+			return array.getLongs();
+		if (mProperties.size() == 1 && mProperties.get(0) instanceof long[])
+			return (long[]) mProperties.get(0);
+		long[] longs = new long[mProperties.size() == 1 ? getArrayLength(mProperties.get(0)) : mProperties.size()];
+		for (int i = 0; i < longs.length; ++i)
+			longs[i] = getLong(i);
+		return longs;
+	}
+
+	private static int getArrayLength(Object property) {
+		if (property instanceof int[])
+			return ((int[]) property).length;
+		if (property instanceof float[])
+			return ((float[]) property).length;
+		return 1;
+	}
+}
@@ -1,15 +1,10 @@
 package rajawali.parser.fbx;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Stack;
 
@@ -21,331 +16,730 @@ import rajawali.materials.AMaterial;
 import rajawali.materials.DiffuseMaterial;
 import rajawali.materials.PhongMaterial;
 import rajawali.materials.SimpleMaterial;
+import rajawali.materials.TextureInfo;
+import rajawali.materials.TextureManager.TextureType;
 import rajawali.math.Number3D;
-import rajawali.math.Vector2D;
 import rajawali.parser.AMeshParser;
 import rajawali.parser.fbx.FBXValues.Connections.Connect;
 import rajawali.parser.fbx.FBXValues.FBXColor4;
 import rajawali.parser.fbx.FBXValues.FBXFloatBuffer;
 import rajawali.parser.fbx.FBXValues.FBXIntBuffer;
-import rajawali.parser.fbx.FBXValues.FBXMatrix;
 import rajawali.parser.fbx.FBXValues.Objects.Material;
 import rajawali.parser.fbx.FBXValues.Objects.Model;
+import rajawali.parser.fbx.FBXValues.Objects.Model.LayerElement;
 import rajawali.parser.fbx.FBXValues.Objects.Texture;
 import rajawali.parser.fbx.FBXValues.Version5.FogOptions;
 import rajawali.renderer.RajawaliRenderer;
 import rajawali.util.RajLog;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 
+/**
+ * Parses ASCII and binary FBX files. The file is first read into a tree of nodes, which is then
+ * mapped onto {@link FBXValues} through tables of the properties that are used. Files of version
+ * 6 keep the meshes in their models and connect objects by name, files of version 7 keep them in
+ * separate geometry objects and connect objects by id. Both end up in the same values.
+ */
 public class FBXParser extends AMeshParser {
-	private static final char COMMENT = ';';
-	private static final String OBJECT_TYPE = "ObjectType:";
-	private static final String MODEL = "Model:";
-	private static final String PROPERTIES = "Properties";
-	private static final String LAYER_ELEMENT = "LayerElement";
-	private static final String LAYER = "Layer:";
-	private static final String PROPERTY = "Property:";
-	private static final String TYPE_VECTOR3D = "Vector3D";
-	private static final String TYPE_VECTOR = "Vector";
-	private static final String TYPE_COLOR = "Color";
-	private static final String TYPE_COLOR_RGB = "ColorRGB";
-	private static final String TYPE_LCL_TRANSLATION = "LclTranslation";
-	private static final String TYPE_LCL_ROTATION = "LclRotation";
-	private static final String TYPE_LCL_SCALING = "LclScaling";
-	private static final String MATERIAL = "Material:";
-	private static final String POSE = "Pose:";
-	private static final String POSE_NODE = "PoseNode:";
-	private static final String CONNECT = "Connect:";
-	private static final String TEXTURE = "Texture:";
-	private static final String FBX_U = "FBX";
-	private static final String FBX_L = FBX_U.toLowerCase();
-	
-	private static final String REGEX_CLEAN = "\\s|\\t|\\n";
-	private static final String REGEX_NO_SPACE_NO_QUOTE = "\\\"|\\s";
-	private static final String REGEX_NO_QUOTE = "\\\"";
-	private static final String REGEX_NO_FUNNY_CHARS = "\\W";
-	private static final String REPLACE_EMPTY = "";
-	
+	private static final String OBJECTS = "Objects";
+	private static final String CONNECTIONS = "Connections";
+	private static final String VERSION5 = "Version5";
+	private static final String MODEL = "Model";
+	private static final String GEOMETRY = "Geometry";
+	private static final String NODE_ATTRIBUTE = "NodeAttribute";
+	private static final String MATERIAL = "Material";
+	private static final String TEXTURE = "Texture";
+	private static final String PROPERTY = "Property";
+	private static final String P = "P";
+	private static final String CONNECT = "Connect";
+	private static final String C = "C";
+	private static final String BY_POLYGON_VERTEX = "ByPolygonVertex";
+	private static final String INDEX_TO_DIRECT = "IndexToDirect";
+	private static final String SCENE = "Model::Scene";
+
+	private static final int LCL_TRANSLATION = 0;
+	private static final int LCL_ROTATION = 1;
+	private static final int LCL_SCALING = 2;
+	private static final int COLOR = 3;
+	private static final int INTENSITY = 4;
+	private static final int FIELD_OF_VIEW = 5;
+	private static final int FOCAL_LENGTH = 6;
+	private static final int NEAR_PLANE = 7;
+	private static final int FAR_PLANE = 8;
+	private static final int VISIBILITY = 9;
+	private static final int POSITION = 10;
+	private static final int UP = 11;
+	private static final int LOOK_AT = 12;
+	private static final int VERTICES = 13;
+	private static final int POLYGON_VERTEX_INDEX = 14;
+	private static final int LAYER_ELEMENT_NORMAL = 15;
+	private static final int LAYER_ELEMENT_UV = 16;
+	private static final int HIDDEN = 17;
+	private static final int CULLING = 18;
+	private static final int TYPE_FLAGS = 19;
+
+	private static final int AMBIENT_COLOR = 0;
+	private static final int AMBIENT_FACTOR = 1;
+	private static final int DIFFUSE_COLOR = 2;
+	private static final int DIFFUSE_FACTOR = 3;
+	private static final int SPECULAR_COLOR = 4;
+	private static final int SPECULAR_FACTOR = 5;
+	private static final int EMISSIVE_COLOR = 6;
+	private static final int EMISSIVE_FACTOR = 7;
+	private static final int SHININESS = 8;
+	private static final int SHININESS_EXPONENT = 9;
+	private static final int OPACITY = 10;
+	private static final int TRANSPARENCY_FACTOR = 11;
+	private static final int REFLECTIVITY = 12;
+	private static final int SHADING_MODEL = 13;
+
+	/**
+	 * Properties and nodes of models, geometry and node attributes
+	 */
+	private static final HashMap<String, Integer> MODEL_VALUES = new HashMap<String, Integer>();
+	private static final HashMap<String, Integer> MATERIAL_VALUES = new HashMap<String, Integer>();
+
+	static {
+		MODEL_VALUES.put("Lcl Translation", LCL_TRANSLATION);
+		MODEL_VALUES.put("Lcl Rotation", LCL_ROTATION);
+		MODEL_VALUES.put("Lcl Scaling", LCL_SCALING);
+		MODEL_VALUES.put("Color", COLOR);
+		MODEL_VALUES.put("Intensity", INTENSITY);
+		MODEL_VALUES.put("FieldOfView", FIELD_OF_VIEW);
+		MODEL_VALUES.put("FocalLength", FOCAL_LENGTH);
+		MODEL_VALUES.put("NearPlane", NEAR_PLANE);
+		MODEL_VALUES.put("FarPlane", FAR_PLANE);
+		MODEL_VALUES.put("Visibility", VISIBILITY);
+		MODEL_VALUES.put("Position", POSITION);
+		MODEL_VALUES.put("Up", UP);
+		MODEL_VALUES.put("UpVector", UP);
+		MODEL_VALUES.put("LookAt", LOOK_AT);
+		MODEL_VALUES.put("InterestPosition", LOOK_AT);
+		MODEL_VALUES.put("Vertices", VERTICES);
+		MODEL_VALUES.put("PolygonVertexIndex", POLYGON_VERTEX_INDEX);
+		MODEL_VALUES.put("LayerElementNormal", LAYER_ELEMENT_NORMAL);
+		MODEL_VALUES.put("LayerElementUV", LAYER_ELEMENT_UV);
+		MODEL_VALUES.put("Hidden", HIDDEN);
+		MODEL_VALUES.put("Culling", CULLING);
+		MODEL_VALUES.put("TypeFlags", TYPE_FLAGS);
+
+		MATERIAL_VALUES.put("AmbientColor", AMBIENT_COLOR);
+		MATERIAL_VALUES.put("AmbientFactor", AMBIENT_FACTOR);
+		MATERIAL_VALUES.put("DiffuseColor", DIFFUSE_COLOR);
+		MATERIAL_VALUES.put("DiffuseFactor", DIFFUSE_FACTOR);
+		MATERIAL_VALUES.put("SpecularColor", SPECULAR_COLOR);
+		MATERIAL_VALUES.put("SpecularFactor", SPECULAR_FACTOR);
+		MATERIAL_VALUES.put("EmissiveColor", EMISSIVE_COLOR);
+		MATERIAL_VALUES.put("EmissiveFactor", EMISSIVE_FACTOR);
+		MATERIAL_VALUES.put("Shininess", SHININESS);
+		MATERIAL_VALUES.put("ShininessExponent", SHININESS_EXPONENT);
+		MATERIAL_VALUES.put("Opacity", OPACITY);
+		MATERIAL_VALUES.put("TransparencyFactor", TRANSPARENCY_FACTOR);
+		MATERIAL_VALUES.put("Reflectivity", REFLECTIVITY);
+		MATERIAL_VALUES.put("ShadingModel", SHADING_MODEL);
+	}
+
 	private FBXValues mFbx;
-	private Stack<Object> mObjStack;
 	private RajawaliRenderer mRenderer;
-	
+	/**
+	 * Objects of version 7 files by id
+	 */
+	private HashMap<Long, Object> mObjectsById;
+	private HashMap<Long, Model> mGeometries;
+	private HashMap<Long, Model> mNodeAttributes;
+
 	public FBXParser(RajawaliRenderer renderer, String fileOnSDCard) {
 		super(renderer, fileOnSDCard);
 		mRenderer = renderer;
-		mObjStack = new Stack<Object>();
 		mFbx = new FBXValues();
-		mObjStack.add(mFbx);
 	}
-	
+
 	public FBXParser(RajawaliRenderer renderer, int resourceId) {
 		super(renderer.getContext().getResources(), renderer.getTextureManager(), resourceId);
 		mRenderer = renderer;
-		mObjStack = new Stack<Object>();
 		mFbx = new FBXValues();
-		mObjStack.add(mFbx);
 	}
-	
+
 	@Override
 	public FBXParser parse() {
 		super.parse();
-		BufferedReader buffer = null;
-		if(mFile == null) {
-			InputStream fileIn = mResources.openRawResource(mResourceId);
-			buffer = new BufferedReader(new InputStreamReader(fileIn));
-		} else {
-			try {
-				buffer = new BufferedReader(new FileReader(mFile));
-			} catch (FileNotFoundException e) {
-				RajLog.e("["+getClass().getCanonicalName()+"] Could not find file.");
-				e.printStackTrace();
-			}
-		}
-		String line;
 		try {
-			while((line = buffer.readLine()) != null) {
-				String repl = line.replaceAll(REGEX_CLEAN, REPLACE_EMPTY);
-				if(repl.length() == 0 || repl.charAt(0) == COMMENT)
-					continue;
-				
-				readLine(buffer, line);
-			}
-			buffer.close();
-		} catch(Exception e) {
+			ByteBuffer buffer = openSourceBuffer();
+			FBXNode root = FBXBinaryReader.isBinary(buffer) ? new FBXBinaryReader().read(buffer)
+					: new FBXAsciiReader().read(buffer);
+			readValues(root);
+		} catch (IOException e) {
+			RajLog.e("[" + getClass().getCanonicalName() + "] Could not read file.");
 			e.printStackTrace();
+			return this;
 		}
-		
+
 		// -- get lights
-		
+
 		Stack<Model> lights = mFbx.objects.getModelsByType(FBXValues.MODELTYPE_LIGHT);
 		int numLights = lights.size();
-		
+
 		RajawaliRenderer.setMaxLights(numLights == 0 ? 1 : numLights);
 		Stack<ALight> sceneLights = new Stack<ALight>();
-		
-		for(int i=0; i<numLights; ++i) {
+
+		for (int i = 0; i < numLights; ++i) {
 			Model l = lights.get(i);
 			// -- really need to add more light types
 			ALight light = new DirectionalLight();
-			light.setPosition(l.properties.lclTranslation);
-			light.setX(light.getX() * -1);
-			light.setRotation(l.properties.lclRotation);
-			light.setPower(l.properties.intensity / 100f);
-			light.setColor(l.properties.color);
+			if (l.properties.lclTranslation != null) {
+				light.setPosition(l.properties.lclTranslation);
+				light.setX(light.getX() * -1);
+			}
+			if (l.properties.lclRotation != null)
+				light.setRotation(l.properties.lclRotation);
+			if (l.properties.intensity != null)
+				light.setPower(l.properties.intensity / 100f);
+			if (l.properties.color != null)
+				light.setColor(l.properties.color);
 			sceneLights.add(light);
 		}
-		
-		if(numLights == 0)
+
+		if (numLights == 0)
 		{
 			ALight light = new DirectionalLight();
 			light.setPosition(2, 0, -5);
 			light.setPower(1);
 			sceneLights.add(light);
 		}
-		
+
 		// -- check fog
-		
-		if(mFbx.version5.fogOptions.fogEnable != null && mFbx.version5.fogOptions.fogEnable == 1) {
+
+		if (mFbx.version5.fogOptions.fogEnable != null && mFbx.version5.fogOptions.fogEnable == 1) {
 			FogOptions fogOptions = mFbx.version5.fogOptions;
 			mRenderer.setFogEnabled(true);
 			Camera cam = mRenderer.getCamera();
 			cam.setFogEnabled(true);
-			cam.setFogNear(fogOptions.fogStart);
-			cam.setFogColor(fogOptions.fogColor.color);
-			mRenderer.setBackgroundColor(fogOptions.fogColor.color);
+			if (fogOptions.fogStart != null)
+				cam.setFogNear(fogOptions.fogStart);
+			if (fogOptions.fogColor != null) {
+				cam.setFogColor(fogOptions.fogColor.color);
+				mRenderer.setBackgroundColor(fogOptions.fogColor.color);
+			}
 		}
-	
+
 		// -- get meshes
-		
+
 		Stack<Model> models = mFbx.objects.getModelsByType(FBXValues.MODELTYPE_MESH);
-		
-		for(int i=0; i<models.size(); ++i) {
+
+		for (int i = 0; i < models.size(); ++i) {
 			buildMesh(models.get(i), sceneLights);
 		}
-		
+
 		// -- get cameras
-		
+
 		Stack<Model> cameras = mFbx.objects.getModelsByType(FBXValues.MODELTYPE_CAMERA);
 		Model camera = null;
 
-		for(int i=0; i<cameras.size(); ++i) {
-			if(cameras.get(i).hidden == null || !cameras.get(i).hidden.equals("True"))
+		for (int i = 0; i < cameras.size(); ++i) {
+			if (cameras.get(i).hidden == null || !cameras.get(i).hidden.equals("True"))
 			{
 				camera = cameras.get(i);
 				break;
 			}
 		}
 
-		if(camera != null) {
+		if (camera != null && camera.position != null) {
 			Camera cam = mRenderer.getCamera();
 			cam.setPosition(camera.position);
 			cam.setX(mRenderer.getCamera().getX() * -1);
-			Number3D lookAt = camera.lookAt;
-			lookAt.x = -lookAt.x;
-			cam.setLookAt(lookAt);
-			cam.setNearPlane(camera.properties.nearPlane);
-			cam.setFarPlane(camera.properties.farPlane);
-			cam.setFieldOfView(camera.properties.fieldOfView);
+			if (camera.lookAt != null) {
+				Number3D lookAt = camera.lookAt;
+				lookAt.x = -lookAt.x;
+				cam.setLookAt(lookAt);
+			}
+			if (camera.properties.nearPlane != null)
+				cam.setNearPlane(camera.properties.nearPlane);
+			if (camera.properties.farPlane != null)
+				cam.setFarPlane(camera.properties.farPlane);
+			if (camera.properties.fieldOfView != null)
+				cam.setFieldOfView(camera.properties.fieldOfView);
 		}
-		
+
 		return this;
 	}
-	
+
+	public FBXValues getValues() {
+		return mFbx;
+	}
+
+	/**
+	 * Maps the nodes that are used onto the values, all other nodes are ignored.
+	 *
+	 * @param root
+	 */
+	void readValues(FBXNode root) {
+		mObjectsById = new HashMap<Long, Object>();
+		mGeometries = new HashMap<Long, Model>();
+		mNodeAttributes = new HashMap<Long, Model>();
+
+		ArrayList<FBXNode> sections = root.getChildren();
+		for (int i = 0; i < sections.size(); ++i) {
+			FBXNode section = sections.get(i);
+			if (section.mName.equals(OBJECTS))
+				readObjects(section);
+			else if (section.mName.equals(CONNECTIONS))
+				readConnections(section);
+			else if (section.mName.equals(VERSION5))
+				readVersion5(section);
+		}
+
+		mObjectsById = null;
+		mGeometries = null;
+		mNodeAttributes = null;
+	}
+
+	private void readObjects(FBXNode objects) {
+		ArrayList<FBXNode> nodes = objects.getChildren();
+		for (int i = 0; i < nodes.size(); ++i) {
+			FBXNode node = nodes.get(i);
+			// -- objects of version 7 start with their id
+			boolean hasId = node.isNumber(0);
+			int nameIndex = hasId ? 1 : 0;
+			String name = node.getString(nameIndex);
+			String type = node.getString(nameIndex + 1);
+			if (name == null)
+				continue;
+			Object object = null;
+
+			if (node.mName.equals(MODEL)) {
+				// TODO add model object for Take
+				if (type == null)
+					continue;
+				Model model = mFbx.objects.addModel(name, type);
+				readModel(model, node);
+				object = model;
+			} else if (node.mName.equals(GEOMETRY) || node.mName.equals(NODE_ATTRIBUTE)) {
+				Model holder = mFbx.objects.new Model(name, type);
+				readModel(holder, node);
+				if (hasId)
+					(node.mName.equals(GEOMETRY) ? mGeometries : mNodeAttributes).put(node.getLong(0), holder);
+			} else if (node.mName.equals(MATERIAL)) {
+				Material material = mFbx.objects.addMaterial(name);
+				readMaterial(material, node);
+				object = material;
+			} else if (node.mName.equals(TEXTURE)) {
+				Texture texture = mFbx.objects.addTexture(name, type);
+				readTexture(texture, node);
+				object = texture;
+			}
+
+			if (hasId && object != null)
+				mObjectsById.put(node.getLong(0), object);
+		}
+	}
+
+	private void readModel(Model model, FBXNode node) {
+		ArrayList<FBXNode> children = node.getChildren();
+		for (int i = 0; i < children.size(); ++i) {
+			FBXNode child = children.get(i);
+			if (child.mName.startsWith("Properties")) {
+				ArrayList<FBXNode> properties = child.getChildren();
+				for (int j = 0; j < properties.size(); ++j) {
+					FBXNode property = properties.get(j);
+					setModelValue(model, MODEL_VALUES.get(property.getString(0)), property, getFirstValue(property));
+				}
+			} else {
+				setModelValue(model, MODEL_VALUES.get(child.mName), child, 0);
+			}
+		}
+	}
+
+	private void setModelValue(Model model, Integer value, FBXNode node, int first) {
+		if (value == null || first >= node.getNumProperties() && node.getChildren().isEmpty())
+			return;
+		switch (value) {
+		case LCL_TRANSLATION:
+			model.properties.lclTranslation = node.getNumber3D(first);
+			break;
+		case LCL_ROTATION:
+			model.properties.lclRotation = node.getNumber3D(first);
+			break;
+		case LCL_SCALING:
+			model.properties.lclScaling = node.getNumber3D(first);
+			break;
+		case COLOR:
+			model.properties.color = node.getNumber3D(first);
+			break;
+		case INTENSITY:
+			model.properties.intensity = node.getFloat(first);
+			break;
+		case FIELD_OF_VIEW:
+			model.properties.fieldOfView = node.getFloat(first);
+			break;
+		case FOCAL_LENGTH:
+			model.properties.focalLength = node.getFloat(first);
+			break;
+		case NEAR_PLANE:
+			model.properties.nearPlane = node.getFloat(first);
+			break;
+		case FAR_PLANE:
+			model.properties.farPlane = node.getFloat(first);
+			break;
+		case VISIBILITY:
+			model.properties.visibility = node.getInt(first);
+			break;
+		case POSITION:
+			model.position = node.getNumber3D(first);
+			break;
+		case UP:
+			model.up = node.getNumber3D(first);
+			break;
+		case LOOK_AT:
+			model.lookAt = node.getNumber3D(first);
+			break;
+		case VERTICES:
+			model.vertices = new FBXFloatBuffer(node.getFloats());
+			break;
+		case POLYGON_VERTEX_INDEX:
+			model.polygonVertexIndex = new FBXIntBuffer(node.getInts());
+			break;
+		case LAYER_ELEMENT_NORMAL:
+			readLayerElement(model.layerElementNormal, node);
+			model.layerElementNormal.normals = readFloats(node, "Normals");
+			model.layerElementNormal.normalsIndex = readInts(node, "NormalsIndex");
+			break;
+		case LAYER_ELEMENT_UV:
+			readLayerElement(model.layerElementUV, node);
+			model.layerElementUV.uV = readFloats(node, "UV");
+			model.layerElementUV.uVIndex = readInts(node, "UVIndex");
+			break;
+		case HIDDEN:
+			model.hidden = node.getString(first);
+			break;
+		case CULLING:
+			model.culling = node.getString(first);
+			break;
+		case TYPE_FLAGS:
+			model.typeFlags = node.getString(first);
+			break;
+		}
+	}
+
+	private void readLayerElement(LayerElement element, FBXNode node) {
+		FBXNode child = node.getChild("MappingInformationType");
+		if (child != null)
+			element.mappingInformationType = child.getString(0);
+		child = node.getChild("ReferenceInformationType");
+		if (child != null)
+			element.referenceInformationType = child.getString(0);
+		child = node.getChild("Name");
+		if (child != null)
+			element.name = child.getString(0);
+	}
+
+	private void readMaterial(Material material, FBXNode node) {
+		ArrayList<FBXNode> children = node.getChildren();
+		for (int i = 0; i < children.size(); ++i) {
+			FBXNode child = children.get(i);
+			if (child.mName.startsWith("Properties")) {
+				ArrayList<FBXNode> properties = child.getChildren();
+				for (int j = 0; j < properties.size(); ++j) {
+					FBXNode property = properties.get(j);
+					setMaterialValue(material, MATERIAL_VALUES.get(property.getString(0)), property,
+							getFirstValue(property));
+				}
+			} else if (child.mName.equals("ShadingModel")) {
+				material.shadingModel = child.getString(0);
+			}
+		}
+	}
+
+	private void setMaterialValue(Material material, Integer value, FBXNode node, int first) {
+		if (value == null || first >= node.getNumProperties())
+			return;
+		switch (value) {
+		case AMBIENT_COLOR:
+			material.properties.ambientColor = node.getNumber3D(first);
+			break;
+		case AMBIENT_FACTOR:
+			material.properties.ambientFactor = node.getFloat(first);
+			break;
+		case DIFFUSE_COLOR:
+			material.properties.diffuseColor = node.getNumber3D(first);
+			break;
+		case DIFFUSE_FACTOR:
+			material.properties.diffuseFactor = node.getFloat(first);
+			break;
+		case SPECULAR_COLOR:
+			material.properties.specularColor = node.getNumber3D(first);
+			break;
+		case SPECULAR_FACTOR:
+			material.properties.specularFactor = node.getFloat(first);
+			break;
+		case EMISSIVE_COLOR:
+			material.properties.emissiveColor = node.getNumber3D(first);
+			break;
+		case EMISSIVE_FACTOR:
+			material.properties.emissiveFactor = node.getFloat(first);
+			break;
+		case SHININESS:
+			material.properties.shininess = node.getFloat(first);
+			break;
+		case SHININESS_EXPONENT:
+			material.properties.shininessExponent = node.getFloat(first);
+			break;
+		case OPACITY:
+			material.properties.opacity = node.getFloat(first);
+			break;
+		case TRANSPARENCY_FACTOR:
+			material.properties.transparencyFactor = node.getFloat(first);
+			break;
+		case REFLECTIVITY:
+			material.properties.reflectivity = node.getFloat(first);
+			break;
+		case SHADING_MODEL:
+			material.properties.shadingModel = node.getString(first);
+			break;
+		}
+	}
+
+	private void readTexture(Texture texture, FBXNode node) {
+		FBXNode child = node.getChild("FileName");
+		if (child != null)
+			texture.fileName = child.getString(0);
+		child = node.getChild("RelativeFilename");
+		if (child != null)
+			texture.relativeFilename = child.getString(0);
+		child = node.getChild("Media");
+		if (child != null)
+			texture.media = child.getString(0);
+	}
+
+	private void readVersion5(FBXNode version5) {
+		FBXNode fog = version5.getChild("FogOptions");
+		if (fog == null)
+			return;
+		FogOptions fogOptions = mFbx.version5.fogOptions;
+		FBXNode child = fog.getChild("FogEnable");
+		if (child != null)
+			fogOptions.fogEnable = child.getInt(0);
+		child = fog.getChild("FogMode");
+		if (child != null)
+			fogOptions.fogMode = child.getInt(0);
+		child = fog.getChild("FogDensity");
+		if (child != null)
+			fogOptions.fogDensity = child.getFloat(0);
+		child = fog.getChild("FogStart");
+		if (child != null)
+			fogOptions.fogStart = child.getFloat(0);
+		child = fog.getChild("FogEnd");
+		if (child != null)
+			fogOptions.fogEnd = child.getFloat(0);
+		child = fog.getChild("FogColor");
+		if (child != null)
+			fogOptions.fogColor = new FBXColor4(child.getFloat(0), child.getFloat(1), child.getFloat(2),
+					child.getFloat(3));
+	}
+
+	/**
+	 * Reads the connections. Version 7 connections are turned into connections by name, geometry
+	 * and node attributes are merged into their models and textures are connected to the models
+	 * of their materials.
+	 */
+	private void readConnections(FBXNode connections) {
+		ArrayList<FBXNode> nodes = connections.getChildren();
+		ArrayList<String[]> textureMaterials = new ArrayList<String[]>();
+
+		for (int i = 0; i < nodes.size(); ++i) {
+			FBXNode node = nodes.get(i);
+			if (node.mName.equals(CONNECT)) {
+				mFbx.connections.addConnection(node.getString(0), node.getString(1), node.getString(2));
+				continue;
+			} else if (!node.mName.equals(C)) {
+				continue;
+			}
+
+			long childId = node.getLong(1);
+			long parentId = node.getLong(2);
+			Object parent = mObjectsById.get(parentId);
+			Object child = mObjectsById.get(childId);
+			String parentName = parentId == 0 ? SCENE : getName(parent);
+
+			if (parent instanceof Model) {
+				Model geometry = mGeometries.get(childId);
+				if (geometry != null) {
+					mergeGeometry(geometry, (Model) parent);
+					continue;
+				}
+				Model attribute = mNodeAttributes.get(childId);
+				if (attribute != null) {
+					mergeAttribute(attribute, (Model) parent);
+					continue;
+				}
+			}
+			String childName = getName(child);
+			if (childName == null || parentName == null)
+				continue;
+			if (child instanceof Texture && parent instanceof Material)
+				textureMaterials.add(new String[] { childName, parentName });
+			else
+				mFbx.connections.addConnection(node.getString(0), childName, parentName);
+		}
+
+		Stack<Connect> connects = mFbx.connections.connections;
+		int numConnects = connects.size();
+		for (int i = 0; i < textureMaterials.size(); ++i) {
+			String[] textureMaterial = textureMaterials.get(i);
+			for (int j = 0; j < numConnects; ++j) {
+				if (connects.get(j).object1.equals(textureMaterial[1]))
+					mFbx.connections.addConnection("OO", textureMaterial[0], connects.get(j).object2);
+			}
+		}
+	}
+
+	private void mergeGeometry(Model geometry, Model model) {
+		model.vertices = geometry.vertices;
+		model.polygonVertexIndex = geometry.polygonVertexIndex;
+		model.layerElementNormal = geometry.layerElementNormal;
+		model.layerElementUV = geometry.layerElementUV;
+	}
+
+	private void mergeAttribute(Model attribute, Model model) {
+		if (attribute.properties.color != null)
+			model.properties.color = attribute.properties.color;
+		if (attribute.properties.intensity != null)
+			model.properties.intensity = attribute.properties.intensity;
+		if (attribute.properties.fieldOfView != null)
+			model.properties.fieldOfView = attribute.properties.fieldOfView;
+		if (attribute.properties.focalLength != null)
+			model.properties.focalLength = attribute.properties.focalLength;
+		if (attribute.properties.nearPlane != null)
+			model.properties.nearPlane = attribute.properties.nearPlane;
+		if (attribute.properties.farPlane != null)
+			model.properties.farPlane = attribute.properties.farPlane;
+		if (attribute.position != null)
+			model.position = attribute.position;
+		if (attribute.up != null)
+			model.up = attribute.up;
+		if (attribute.lookAt != null)
+			model.lookAt = attribute.lookAt;
+	}
+
+	private static String getName(Object object) {
+		if (object instanceof Model)
+			return ((Model) object).name;
+		if (object instanceof Material)
+			return ((Material) object).name;
+		if (object instanceof Texture)
+			return ((Texture) object).textureName;
+		return null;
+	}
+
+	/**
+	 * Returns the index of the first value of a property. Version 6 properties have a name, a
+	 * type and flags, version 7 properties have an extra label.
+	 */
+	private static int getFirstValue(FBXNode property) {
+		return property.mName.equals(P) ? 4 : property.mName.equals(PROPERTY) ? 3 : 0;
+	}
+
+	private static FBXFloatBuffer readFloats(FBXNode node, String name) {
+		FBXNode child = node.getChild(name);
+		return child == null ? null : new FBXFloatBuffer(child.getFloats());
+	}
+
+	private static FBXIntBuffer readInts(FBXNode node, String name) {
+		FBXNode child = node.getChild(name);
+		return child == null ? null : new FBXIntBuffer(child.getInts());
+	}
+
 	private void buildMesh(Model model, Stack<ALight> lights) {
+		if (model.vertices == null || model.polygonVertexIndex == null)
+			return;
 		BaseObject3D o = new BaseObject3D(model.name);
-		boolean hasUVs = model.layerElementUV.uVIndex != null;
-		
-		int[] vidx 					= model.polygonVertexIndex.data;
-		int[] uvidx 				= null;
-		float[] modelVerts 			= model.vertices.data;
-		float[] modelNorm			= model.layerElementNormal.normals.data;
-		float[] modelUv		 		= null;
-
-		ArrayList<Integer> indices 	= new ArrayList<Integer>();
-		ArrayList<Float> vertices 	= new ArrayList<Float>();
-		ArrayList<Float> normals	= new ArrayList<Float>();
-		ArrayList<Float> uvs 		= null;
-		
-		if(hasUVs) {
-			uvs = new ArrayList<Float>();
-			uvidx = model.layerElementUV.uVIndex.data;
-			modelUv = model.layerElementUV.uV.data;
-		}
-		
-		int count = 0;
-		int indexCount = 0;
-		int[] triIds = new int[3];
-		int[] quadIds = new int[6];
-		int i = 0, j = 0, k = 0;
+
+		int[] vidx = model.polygonVertexIndex.data;
+		float[] modelVerts = model.vertices.data;
+		LayerElement normalElement = model.layerElementNormal;
+		float[] modelNorm = model.layerElementNormal.normals != null ? model.layerElementNormal.normals.data : null;
+		int[] normidx = model.layerElementNormal.normalsIndex != null ? model.layerElementNormal.normalsIndex.data : null;
+		LayerElement uvElement = model.layerElementUV;
+		float[] modelUv = model.layerElementUV.uV != null ? model.layerElementUV.uV.data : null;
+		int[] uvidx = model.layerElementUV.uVIndex != null ? model.layerElementUV.uVIndex.data : null;
+		boolean hasUVs = modelUv != null;
 		int vidxLen = vidx.length;
-		
-		for(i=0; i<vidxLen; ++i) {
+
+		// -- count the triangles first, polygons are split into fans
+		int numTriangles = 0;
+		for (int i = 0, count = 0; i < vidxLen; ++i) {
 			count++;
-			
-			if(vidx[i] < 0) {
-				if(count==3) {
-					int index1 = vidx[i-2],
-						index2 = vidx[i-1],
-						index3 = (vidx[i] * -1) - 1;
-
-					indices.add(indexCount++);
-					indices.add(indexCount++);
-					indices.add(indexCount++);
-
-					triIds[0] = index1 * 3;
-					triIds[1] = index2 * 3;
-					triIds[2] = index3 * 3;
-					
-					for(j=0; j<3; ++j)
-					{
-						int cid = triIds[j];
-						for(k=0; k<3; ++k) {
-							vertices.add(modelVerts[cid+k]);
-							int dir = i==0 ? -1 : 1; 
-							normals.add(modelNorm[cid+k] * dir);
-						}
-					}
-					
-					if(hasUVs) {
-						int uvIndex3 = uvidx[i] * 2;
-						int uvIndex2 = uvidx[i-1] * 2;
-						int uvIndex1 = uvidx[i-2] * 2;
-
-						uvs.add(modelUv[uvIndex1+0]);
-						uvs.add(1f-modelUv[uvIndex1+1]);
-						
-						uvs.add(modelUv[uvIndex2+0]);
-						uvs.add(1f-modelUv[uvIndex2+1]);
-						
-						uvs.add(modelUv[uvIndex3+0]);
-						uvs.add(1f-modelUv[uvIndex3+1]);
+			if (vidx[i] < 0) {
+				numTriangles += Math.max(0, count - 2);
+				count = 0;
+			}
+		}
+
+		float[] vertices = new float[numTriangles * 9];
+		float[] normals = new float[numTriangles * 9];
+		float[] uvs = hasUVs ? new float[numTriangles * 6] : null;
+		int[] indices = new int[numTriangles * 3];
+		for (int i = 0; i < indices.length; ++i)
+			indices[i] = i;
+
+		int corner = 0;
+		for (int i = 0, polygonStart = 0; i < vidxLen; ++i) {
+			if (vidx[i] >= 0)
+				continue;
+			for (int j = polygonStart + 1; j < i; ++j) {
+				int[] polygonVertices = { polygonStart, j, j + 1 };
+				for (int k = 0; k < 3; ++k) {
+					int polygonVertex = polygonVertices[k];
+					int controlPoint = vidx[polygonVertex] < 0 ? -vidx[polygonVertex] - 1 : vidx[polygonVertex];
+					System.arraycopy(modelVerts, controlPoint * 3, vertices, corner * 3, 3);
+					if (modelNorm != null) {
+						int n = getLayerIndex(normalElement, normidx, polygonVertex, controlPoint, false) * 3;
+						System.arraycopy(modelNorm, n, normals, corner * 3, 3);
 					}
-				} else {
-					int index1 = vidx[i-3];
-					int index2 = vidx[i-2];
-					int index3 = vidx[i-1];
-					int index4 = (vidx[i] * -1)-1;
-					
-					indices.add(indexCount++);
-					indices.add(indexCount++);
-					indices.add(indexCount++);
-					indices.add(indexCount++);
-					indices.add(indexCount++);
-					indices.add(indexCount++);
-					
-					quadIds[0] = index1 * 3;
-					quadIds[1] = index2 * 3;
-					quadIds[2] = index3 * 3;
-					quadIds[3] = index4 * 3;
-					quadIds[4] = index1 * 3;
-					quadIds[5] = index3 * 3;
-					
-					for(j=0; j<6; ++j)
-					{
-						int cid = quadIds[j];
-						for(k=0; k<3; ++k) {
-							vertices.add(modelVerts[cid+k]);
-							normals.add(modelNorm[cid+k]);
-						}
-					}					
-					
-					if(hasUVs) {
-						int uvIndex1 = uvidx[i-3] * 2;
-						int uvIndex2 = uvidx[i-2] * 2;
-						int uvIndex3 = uvidx[i-1] * 2;
-						int uvIndex4 = uvidx[i] * 2;
-						
-						quadIds[0] = uvIndex1;
-						quadIds[1] = uvIndex2;
-						quadIds[2] = uvIndex3;
-						quadIds[3] = uvIndex4;
-						quadIds[4] = uvIndex1;
-						quadIds[5] = uvIndex3;
-						
-						for(j=0; j<6; ++j) {
-							int cid = quadIds[j];
-							for(k=0; k<2; ++k) {
-								if(k==0)
-									uvs.add(modelUv[cid + k]);
-								else
-									uvs.add(1f-modelUv[cid + k]);
-							}
-						}
-						
+					if (hasUVs) {
+						int uv = getLayerIndex(uvElement, uvidx, polygonVertex, controlPoint, true) * 2;
+						uvs[corner * 2] = modelUv[uv];
+						uvs[corner * 2 + 1] = 1f - modelUv[uv + 1];
 					}
+					corner++;
 				}
-				count = 0;
 			}
+			polygonStart = i + 1;
 		}
-		
-		o.setData(convertFloats(vertices), convertFloats(normals), hasUVs ? convertFloats(uvs) : null, null, convertIntegers(indices));
-		
-		vertices.clear();
-		vertices = null;
-		normals.clear();
-		normals = null;
-		if(hasUVs) {
-			uvs.clear();
-			uvs = null;
-		}
-		indices.clear();
-		indices = null;
-		
+
+		o.setData(vertices, normals, uvs, null, indices);
+
 		o.setMaterial(getMaterialForMesh(o, model.name));
 		o.getMaterial().setUseColor(true);
 		o.setLights(lights);
 		setMeshTextures(o, model.name);
-		
-		o.setPosition(model.properties.lclTranslation);
-		o.setX(o.getX() * -1);
-		o.setScale(model.properties.lclScaling);
-		o.setRotation(model.properties.lclRotation);
-		o.setRotZ(-o.getRotZ());
-		
+
+		if (model.properties.lclTranslation != null) {
+			o.setPosition(model.properties.lclTranslation);
+			o.setX(o.getX() * -1);
+		}
+		if (model.properties.lclScaling != null)
+			o.setScale(model.properties.lclScaling);
+		if (model.properties.lclRotation != null) {
+			o.setRotation(model.properties.lclRotation);
+			o.setRotZ(-o.getRotZ());
+		}
+
 		mRootObject.addChild(o);
 	}
-	
+
+	/**
+	 * Returns the index of a normal or texture coordinate. Without mapping information normals
+	 * are per control point and texture coordinates per polygon vertex, like the files this parser
+	 * was first written for.
+	 */
+	private static int getLayerIndex(LayerElement element, int[] index, int polygonVertex, int controlPoint,
+			boolean byPolygonVertex) {
+		if (element.mappingInformationType != null)
+			byPolygonVertex = element.mappingInformationType.equals(BY_POLYGON_VERTEX);
+		int i = byPolygonVertex ? polygonVertex : controlPoint;
+		if (index != null && (element.referenceInformationType == null || element.referenceInformationType.equals(INDEX_TO_DIRECT)))
+			return index[i];
+		return i;
+	}
+
 	public static int[] convertIntegers(List<Integer> integers)
 	{
 	    int[] ret = new int[integers.size()];
@@ -356,7 +750,7 @@ public class FBXParser extends AMeshParser {
 	    }
 	    return ret;
 	}
-	
+
 	public static float[] convertFloats(List<Float> floats)
 	{
 	    float[] ret = new float[floats.size()];
@@ -367,7 +761,7 @@ public class FBXParser extends AMeshParser {
 	    }
 	    return ret;
 	}
-	
+
 	private void setMeshTextures(BaseObject3D o, String name) {
 		Stack<Texture> textures = mFbx.objects.textures;
 		Stack<Connect> connections = mFbx.connections.connections;
@@ -384,21 +778,21 @@ public class FBXParser extends AMeshParser {
 					// -- one texture for now
 					String textureName = tex.fileName;
 					try {
-						Bitmap texture = null;
+						TextureInfo texture = null;
 						if(mFile == null) {
 							int identifier = mResources.getIdentifier(getFileNameWithoutExtension(textureName).toLowerCase(), "drawable", mResources.getResourcePackageName(mResourceId));
-							texture = BitmapFactory.decodeResource(mResources, identifier);
+							texture = loadTexture(identifier, TextureType.DIFFUSE);
 						} else {
 							try {
 								String filePath = mFile.getParent() + File.separatorChar + getOnlyFileName(textureName);
-								texture = BitmapFactory.decodeFile(filePath);
+								texture = loadTexture(filePath, TextureType.DIFFUSE);
 							} catch (Exception e) {
 								RajLog.e("["+getClass().getCanonicalName()+"] Could not find file " + getOnlyFileName(textureName));
 								e.printStackTrace();
 								return;
 							}
 						}
-						o.addTexture(mTextureManager.addTexture(texture));
+						o.addTexture(texture);
 					} catch(Exception e) {
 						RajLog.e("Could not load texture [" + textureName + "]: " + e.getMessage() );	
 					}
@@ -412,33 +806,33 @@ public class FBXParser extends AMeshParser {
 		AMaterial mat = new SimpleMaterial();
 		Material material = null;
 		Stack<Connect> conns = mFbx.connections.connections;
+		Stack<Material> materials = mFbx.objects.materials;
 		int num = conns.size();
-		String materialName = null;
+		int numMaterials = materials.size();
 		
-		for(int i=0; i<num; ++i) {
+		// -- textures are connected to the model as well, only look at the materials
+		for(int i=0; i<num && material == null; ++i) {
 			if(conns.get(i).object2.equals(name)) {
-				materialName = conns.get(i).object1;
-				break;
-			}
-		}
-		
-		if(materialName != null) {
-			Stack<Material> materials = mFbx.objects.materials;
-			num = materials.size();
-			for(int i=0; i<num; ++i) {
-				if(materials.get(i).name.equals(materialName)) {
-					material = materials.get(i);
-					break;
+				String materialName = conns.get(i).object1;
+				for(int j=0; j<numMaterials; ++j) {
+					if(materials.get(j).name.equals(materialName)) {
+						material = materials.get(j);
+						break;
+					}
 				}
 			}
 		}
 		
 		if(material != null) {
-			if(material.shadingModel.equals("lambert") || material.shadingModel.equals("phong")) {
+			String shadingModel = material.shadingModel != null ? material.shadingModel : material.properties.shadingModel;
+			if("lambert".equalsIgnoreCase(shadingModel) || "phong".equalsIgnoreCase(shadingModel)) {
 				PhongMaterial phong = new PhongMaterial();
-				o.setColor(material.properties.diffuseColor);
-				phong.setAmbientColor(material.properties.ambientColor);
-				phong.setAmbientIntensity(material.properties.ambientFactor);
+				if(material.properties.diffuseColor != null)
+					o.setColor(material.properties.diffuseColor);
+				if(material.properties.ambientColor != null)
+					phong.setAmbientColor(material.properties.ambientColor);
+				if(material.properties.ambientFactor != null)
+					phong.setAmbientIntensity(material.properties.ambientFactor);
 				if(material.properties.specularColor != null)
 					phong.setSpecularColor(material.properties.specularColor);
 				if(material.properties.shininess != null)
@@ -446,210 +840,16 @@ public class FBXParser extends AMeshParser {
 				mat = phong;
 			} else {
 				DiffuseMaterial diffuse = new DiffuseMaterial();
-				o.setColor(material.properties.diffuseColor);
-				diffuse.setAmbientColor(material.properties.ambientColor);
-				diffuse.setAmbientIntensity(material.properties.ambientFactor);
+				if(material.properties.diffuseColor != null)
+					o.setColor(material.properties.diffuseColor);
+				if(material.properties.ambientColor != null)
+					diffuse.setAmbientColor(material.properties.ambientColor);
+				if(material.properties.ambientFactor != null)
+					diffuse.setAmbientIntensity(material.properties.ambientFactor);
 				mat = diffuse;
 			}
 		}
 		
 		return mat;
 	}
-	
-	private void readLine(BufferedReader buffer, String line) throws IllegalArgumentException, SecurityException, IllegalAccessException, InvocationTargetException, NoSuchMethodException, IOException {
-		if(line.replaceAll(REGEX_CLEAN, REPLACE_EMPTY).length() == 0) return;
-		if(line.contains("{")) {
-			
-			// -- found new object
-			
-			Object last = mObjStack.peek();
-
-			if(line.contains(":")) {
-				if(line.contains(OBJECT_TYPE)) {
-					String val = line.split(":")[1].replaceAll(REGEX_NO_FUNNY_CHARS, REPLACE_EMPTY);
-					Object ot = last.getClass().getDeclaredMethod("addObjectType", String.class).invoke(last, val);
-					mObjStack.push(ot);
-					return;
-				} else if(line.contains(MODEL)) {
-					String[] vals = line.split(",");
-					if(vals.length < 2) {
-						// TODO add model object for Take
-						mObjStack.push(new Object());
-						return;
-					}
-					vals[0] = vals[0].split(": ")[1].replaceAll(REGEX_NO_QUOTE, REPLACE_EMPTY);
-					vals[1] = vals[1].replaceAll(REGEX_NO_FUNNY_CHARS, REPLACE_EMPTY);
-					
-					Object mo = last.getClass().getDeclaredMethod("addModel", String.class, String.class).invoke(last, vals[0], vals[1]);
-					mObjStack.push(mo);
-					return;
-				} else if(line.contains(MATERIAL) && !line.contains(LAYER_ELEMENT)) {
-					String[] vals = line.split(": ")[1].split(",");
-					vals[0] = vals[0].replaceAll(REGEX_NO_SPACE_NO_QUOTE, REPLACE_EMPTY);
-					
-					Object ma = last.getClass().getDeclaredMethod("addMaterial", String.class).invoke(last, vals[0]);
-					mObjStack.push(ma);
-					return;
-				} else if(line.contains(POSE_NODE)) {
-					Object pn = last.getClass().getDeclaredMethod("addPoseNode").invoke(last);
-					mObjStack.push(pn);
-					return;
-				} else if(line.contains(PROPERTIES)) {
-					line = "Properties";
-				} else if(line.contains(LAYER_ELEMENT)) {
-					line = line.replaceAll("\\W|\\d", REPLACE_EMPTY);
-				} else if(line.contains(LAYER)) {
-					line = LAYER;
-				} else if(line.contains(POSE)) {
-					String val = line.split(":")[1];
-					String[] vals = val.split(",");
-					last.getClass().getDeclaredMethod("setPoseName", String.class).invoke(last, vals[0].replaceAll(REGEX_NO_FUNNY_CHARS, REPLACE_EMPTY));
-					line = POSE;
-				} else if(line.contains(TEXTURE)) {
-					String val = line.split(": ")[1];
-					String[] vals = val.split(",");
-					Object te = last.getClass().getDeclaredMethod("addTexture", String.class, String.class).invoke(last, vals[0].replaceAll(REGEX_NO_QUOTE, REPLACE_EMPTY), vals[1].replace(REGEX_NO_QUOTE, REPLACE_EMPTY));
-					mObjStack.push(te);					
-					return;
-				}
-			}
-			
-			line = line.replaceAll(REGEX_NO_FUNNY_CHARS, REPLACE_EMPTY);
-			line = line.replaceAll(FBX_U, FBX_L);
-			line = line.substring(0,1).toLowerCase() + line.substring(1);
-			
-			try {
-				Field field = last.getClass().getField(line);
-				mObjStack.push(field.get(last));
-			} catch(NoSuchFieldException e) {
-				// -- create a generic object
-				mObjStack.push(new Object());
-				return;
-			}
-		} else if(line.contains("}")) {
-			
-			// -- end of object
-			
-			mObjStack.pop();
-		} else {
-
-			// -- found property
-			
-			Object last = mObjStack.peek();			
-			String[] spl = line.split(": ");
-			if(spl.length == 0) return;
-			String prop = spl[0].replaceAll(REGEX_NO_FUNNY_CHARS, REPLACE_EMPTY);
-			prop = prop.replaceAll(FBX_U, FBX_L);
-			prop = prop.substring(0,1).toLowerCase() + prop.substring(1);
-			boolean processNextLine = false;
-			
-			Object obj = mObjStack.peek();
-			try {
-				if(spl.length < 2) return;
-				String val = spl[1];
-				
-				if(line.contains(PROPERTY)) {
-					String[] vals = val.split(",");
-					prop = vals[0].replaceAll(REGEX_NO_FUNNY_CHARS, REPLACE_EMPTY);
-					prop = prop.substring(0,1).toLowerCase() + prop.substring(1);
-					String type = vals[1].replaceAll(REGEX_NO_FUNNY_CHARS, REPLACE_EMPTY);
-				
-					if(type.equals(TYPE_VECTOR3D) || type.equals(TYPE_COLOR) || type.equals(TYPE_COLOR_RGB) || type.equals(TYPE_LCL_ROTATION) 
-							|| type.equals(TYPE_LCL_SCALING) || type.equals(TYPE_LCL_TRANSLATION) || type.equals(TYPE_VECTOR)) {
-						val = vals[3] +","+vals[4]+","+vals[5];
-					} else {
-						if(vals.length < 4)
-							return;
-						val = vals[3].replaceAll(REGEX_NO_QUOTE, REPLACE_EMPTY);
-					}
-				} else if(line.contains(CONNECT)) {
-					String[] vals = line.substring(line.indexOf(':')).split(",");
-					
-					last.getClass().getDeclaredMethod("addConnection", String.class, String.class, String.class)
-					.invoke(last, vals[0].replaceAll(REGEX_NO_SPACE_NO_QUOTE, REPLACE_EMPTY), vals[1].replaceAll(REGEX_NO_SPACE_NO_QUOTE, REPLACE_EMPTY), vals[2].replaceAll(REGEX_NO_SPACE_NO_QUOTE, REPLACE_EMPTY));
-					return;
-				}
-
-				Field field = obj.getClass().getField(prop);
-				Class<?> clazz = field.getType();
-				
-				if(clazz.equals(Integer.class))
-				{
-					// TODO investigate why there are multiple values in TextureId sometimes
-					if(val.split(",").length > 0) val = val.split(",")[0];
-					field.set(obj, Integer.valueOf(val.replaceAll(REGEX_NO_SPACE_NO_QUOTE, REPLACE_EMPTY)));
-				}
-				else if(clazz.equals(String.class))
-					field.set(obj, val.replaceAll(REGEX_NO_QUOTE, REPLACE_EMPTY));
-				else if(clazz.equals(Long.class))
-					field.set(obj, Long.valueOf(val.replaceAll(REGEX_NO_SPACE_NO_QUOTE, REPLACE_EMPTY)));		
-				else if(clazz.equals(Float.class))
-					field.set(obj, Float.valueOf(val.replaceAll(REGEX_NO_SPACE_NO_QUOTE, REPLACE_EMPTY)));		
-				else if(clazz.equals(Number3D.class)) {
-					field.set(obj, new Number3D(val.split(",")));
-				}
-				else if(clazz.equals(FBXFloatBuffer.class))
-				{
-					StringBuffer sb = new StringBuffer(val);
-					String noSpace;
-					while((line = buffer.readLine()) != null) {
-						noSpace = line.replaceAll("\\s", REPLACE_EMPTY);
-						if(noSpace.length() > 0 && noSpace.charAt(0) == ',')
-							sb.append(noSpace);
-						else
-						{
-							processNextLine = true;
-							break;
-						}							
-					}
-					field.set(obj, new FBXFloatBuffer(sb.toString()));
-				}
-				else if(clazz.equals(FBXIntBuffer.class))
-				{
-					StringBuffer sb = new StringBuffer(val);
-					String noSpace;
-					while((line = buffer.readLine()) != null) {
-						noSpace = line.replaceAll("\\s", REPLACE_EMPTY);
-						if(noSpace.length() > 0 && noSpace.charAt(0) == ',')
-							sb.append(noSpace);
-						else
-						{
-							processNextLine = true;
-							break;
-						}							
-					}
-					field.set(obj, new FBXIntBuffer(sb.toString()));
-				}
-				else if(clazz.equals(FBXMatrix.class))
-				{
-					StringBuffer sb = new StringBuffer(val);
-					String noSpace;
-					while((line = buffer.readLine()) != null) {
-						noSpace = line.replaceAll(REGEX_CLEAN, REPLACE_EMPTY);
-						if(noSpace.length() > 0 && noSpace.charAt(0) == ',')
-							sb.append(noSpace);
-						else
-						{
-							processNextLine = true;
-							break;
-						}							
-					}
-					field.set(obj, new FBXMatrix(sb.toString()));
-				}
-				else if(clazz.equals(FBXColor4.class))
-				{
-					field.set(obj, new FBXColor4(val));
-				}
-				else if(clazz.equals(Vector2D.class))
-				{
-					field.set(obj, new Vector2D(val.replaceAll("\\s", REPLACE_EMPTY).split(",")));
-				}
-				
-				if(processNextLine && line.replaceAll(REGEX_CLEAN, REPLACE_EMPTY).length() > 0)
-					readLine(buffer, line);
-			} catch(NoSuchFieldException e) {
-				return;
-			}
-		}
-	}
 }
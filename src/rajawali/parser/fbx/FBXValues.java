@@ -383,6 +383,7 @@ public class FBXValues {
 			
 			protected class LayerElementNormal extends LayerElement {
 				public FBXFloatBuffer normals;
+				public FBXIntBuffer normalsIndex;
 			}
 			
 			protected class LayerElementUV extends LayerElement {
@@ -405,6 +406,10 @@ public class FBXValues {
 	public static class FBXMatrix {
 		public float[] data;
 		
+		public FBXMatrix(float[] data) {
+			this.data = data;
+		}
+		
 		public FBXMatrix(String vals) {
 			String[] values = vals.split(",");
 			int num = values.length;
@@ -418,6 +423,10 @@ public class FBXValues {
 	public static class FBXFloatBuffer {
 		public float[] data;
 		
+		public FBXFloatBuffer(float[] data) {
+			this.data = data;
+		}
+		
 		public FBXFloatBuffer(String floats) {
 			String[] values = floats.split(",");
 			int num = values.length;
@@ -431,6 +440,10 @@ public class FBXValues {
 	public static class FBXIntBuffer {
 		public int[] data;
 		
+		public FBXIntBuffer(int[] data) {
+			this.data = data;
+		}
+		
 		public FBXIntBuffer(String ints) {
 			String[] values = ints.split(",");
 			int num = values.length;
@@ -444,6 +457,10 @@ public class FBXValues {
 	public static class FBXColor4 {
 		public int color;
 		
+		public FBXColor4(float r, float g, float b, float a) {
+			color = Color.argb((int)(a * 255f), (int)(r * 255f), (int)(g * 255f), (int)(b * 255f));
+		}
+		
 		public FBXColor4(String vals) {
 			String[] values = vals.split(",");
 			color = Color.argb((int)(Float.parseFloat(values[3]) * 255f), (int)(Float.parseFloat(values[0]) * 255f), (int)(Float.parseFloat(values[1]) * 255f), (int)(Float.parseFloat(values[2]) * 255f));
@@ -0,0 +1,244 @@
+package rajawali.parser.gltf;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A typed view into a glTF buffer. Tightly packed float and index data is handed out as views
+ * into the buffer, without copying, and so are buffer views of interleaved float attributes.
+ * Everything else, like normalized integers, is converted into new buffers or arrays.
+ */
+class GLTFAccessor {
+	static final int BYTE = 5120;
+	static final int UNSIGNED_BYTE = 5121;
+	static final int SHORT = 5122;
+	static final int UNSIGNED_SHORT = 5123;
+	static final int UNSIGNED_INT = 5125;
+	static final int FLOAT = 5126;
+
+	/**
+	 * Views can only be handed to OpenGL when the device reads little endian data natively,
+	 * which every Android device does.
+	 */
+	private static final boolean ZERO_COPY = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+	final int mCount;
+	final int mComponentType;
+	final int mNumComponents;
+	final boolean mNormalized;
+	/**
+	 * The index of the buffer view, -1 when all elements are zero
+	 */
+	final int mBufferView;
+	/**
+	 * The offset of the first element in the buffer view
+	 */
+	final int mByteOffset;
+	/**
+	 * The distance between two elements, 0 when they are tightly packed
+	 */
+	final int mByteStride;
+	/**
+	 * The data of the buffer view, little endian
+	 */
+	private final ByteBuffer mData;
+
+	GLTFAccessor(int count, int componentType, int numComponents, boolean normalized, int bufferView, int byteOffset,
+			int byteStride, ByteBuffer data) {
+		mCount = count;
+		mComponentType = componentType;
+		mNumComponents = numComponents;
+		mNormalized = normalized;
+		mBufferView = bufferView;
+		mByteOffset = byteOffset;
+		mByteStride = byteStride;
+		mData = data;
+	}
+
+	static int getComponentSize(int componentType) {
+		switch (componentType) {
+		case BYTE:
+		case UNSIGNED_BYTE:
+			return 1;
+		case SHORT:
+		case UNSIGNED_SHORT:
+			return 2;
+		default:
+			return 4;
+		}
+	}
+
+	static int getNumComponents(String type) {
+		if ("SCALAR".equals(type))
+			return 1;
+		if ("VEC2".equals(type))
+			return 2;
+		if ("VEC3".equals(type))
+			return 3;
+		if ("VEC4".equals(type) || "MAT2".equals(type))
+			return 4;
+		if ("MAT3".equals(type))
+			return 9;
+		if ("MAT4".equals(type))
+			return 16;
+		return 0;
+	}
+
+	int getElementSize() {
+		return mNumComponents * getComponentSize(mComponentType);
+	}
+
+	boolean isTightlyPacked() {
+		return mByteStride == 0 || mByteStride == getElementSize();
+	}
+
+	/**
+	 * Whether the data can be handed out as a view into the buffer.
+	 */
+	private boolean isViewable(int componentType) {
+		return ZERO_COPY && mData != null && mData.isDirect() && mComponentType == componentType && isTightlyPacked()
+				&& (mByteOffset & (getComponentSize(componentType) - 1)) == 0;
+	}
+
+	private ByteBuffer slice(int length) {
+		ByteBuffer data = mData.duplicate();
+		data.limit(mByteOffset + length).position(mByteOffset);
+		return data.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Returns the elements as floats, as a view into the buffer when they are tightly packed
+	 * floats with the requested number of components. Missing components are filled in with 0,
+	 * the fourth with 1.
+	 *
+	 * @param numComponents
+	 * @return A direct buffer in native byte order
+	 */
+	FloatBuffer getFloatBuffer(int numComponents) {
+		if (numComponents == mNumComponents && isViewable(FLOAT))
+			return slice(mCount * getElementSize()).asFloatBuffer();
+
+		FloatBuffer floats = ByteBuffer.allocateDirect(mCount * numComponents * 4).order(ByteOrder.nativeOrder())
+				.asFloatBuffer();
+		for (int i = 0, n = 0; i < mCount; ++i)
+			for (int c = 0; c < numComponents; ++c)
+				floats.put(n++, c < mNumComponents ? getFloat(i, c) : c == 3 ? 1 : 0);
+		return floats;
+	}
+
+	/**
+	 * Returns the whole buffer view as floats, for attributes that are interleaved with others.
+	 * The byte offset of the accessor is the offset of the attribute in every vertex.
+	 *
+	 * @return A view into the buffer, or null when the data can't be used as it is
+	 */
+	FloatBuffer getInterleavedBuffer() {
+		if (!ZERO_COPY || mData == null || !mData.isDirect() || mComponentType != FLOAT || (mByteStride & 3) != 0
+				|| (mByteOffset & 3) != 0)
+			return null;
+		ByteBuffer data = mData.duplicate();
+		data.clear();
+		return data.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+	}
+
+	/**
+	 * Returns the elements as floats, one array entry per component.
+	 *
+	 * @return
+	 */
+	float[] getFloats() {
+		float[] floats = new float[mCount * mNumComponents];
+		if (mData == null)
+			return floats;
+		if (mComponentType == FLOAT && isTightlyPacked()) {
+			slice(floats.length * 4).asFloatBuffer().get(floats);
+			return floats;
+		}
+		for (int i = 0, n = 0; i < mCount; ++i)
+			for (int c = 0; c < mNumComponents; ++c)
+				floats[n++] = getFloat(i, c);
+		return floats;
+	}
+
+	/**
+	 * Returns the elements as integers, one array entry per component.
+	 *
+	 * @return
+	 */
+	int[] getInts() {
+		int[] ints = new int[mCount * mNumComponents];
+		if (mData == null)
+			return ints;
+		for (int i = 0, n = 0; i < mCount; ++i)
+			for (int c = 0; c < mNumComponents; ++c)
+				ints[n++] = getInt(i, c);
+		return ints;
+	}
+
+	/**
+	 * Returns indices for a geometry. Unsigned short and int indices are views into the buffer,
+	 * byte indices are widened.
+	 *
+	 * @return A ShortBuffer or an IntBuffer
+	 * @see rajawali.AGeometry3D#setIndices(Buffer)
+	 */
+	Buffer getIndexBuffer() {
+		if (isViewable(UNSIGNED_SHORT))
+			return slice(mCount * 2).asShortBuffer();
+		if (isViewable(UNSIGNED_INT))
+			return slice(mCount * 4).asIntBuffer();
+
+		IntBuffer indices = ByteBuffer.allocateDirect(mCount * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+		for (int i = 0; i < mCount; ++i)
+			indices.put(i, getInt(i, 0));
+		return indices;
+	}
+
+	float getFloat(int element, int component) {
+		if (mData == null)
+			return 0;
+		int offset = getOffset(element, component);
+		switch (mComponentType) {
+		case FLOAT:
+			return mData.getFloat(offset);
+		case UNSIGNED_BYTE:
+			return mNormalized ? (mData.get(offset) & 0xff) / 255f : mData.get(offset) & 0xff;
+		case BYTE:
+			return mNormalized ? Math.max(mData.get(offset) / 127f, -1) : mData.get(offset);
+		case UNSIGNED_SHORT:
+			return mNormalized ? (mData.getShort(offset) & 0xffff) / 65535f : mData.getShort(offset) & 0xffff;
+		case SHORT:
+			return mNormalized ? Math.max(mData.getShort(offset) / 32767f, -1) : mData.getShort(offset);
+		default:
+			return mData.getInt(offset) & 0xffffffffL;
+		}
+	}
+
+	int getInt(int element, int component) {
+		if (mData == null)
+			return 0;
+		int offset = getOffset(element, component);
+		switch (mComponentType) {
+		case FLOAT:
+			return (int) mData.getFloat(offset);
+		case UNSIGNED_BYTE:
+			return mData.get(offset) & 0xff;
+		case BYTE:
+			return mData.get(offset);
+		case UNSIGNED_SHORT:
+			return mData.getShort(offset) & 0xffff;
+		case SHORT:
+			return mData.getShort(offset);
+		default:
+			return mData.getInt(offset);
+		}
+	}
+
+	private int getOffset(int element, int component) {
+		int stride = mByteStride > 0 ? mByteStride : getElementSize();
+		return mByteOffset + element * stride + component * getComponentSize(mComponentType);
+	}
+}
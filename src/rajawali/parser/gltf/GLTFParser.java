@@ -0,0 +1,726 @@
+package rajawali.parser.gltf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import rajawali.AGeometry3D;
+import rajawali.AGeometry3D.BufferType;
+import rajawali.BaseObject3D;
+import rajawali.BufferInfo;
+import rajawali.Geometry3DInterleaved;
+import rajawali.Geometry3DSeparate;
+import rajawali.animation.mesh.AAnimationObject3D;
+import rajawali.animation.mesh.BoneAnimationObject3D;
+import rajawali.animation.mesh.BoneAnimationSequence;
+import rajawali.animation.mesh.SkeletonJoint;
+import rajawali.animation.mesh.SkinningPalette;
+import rajawali.animation.mesh.SkinningPalette.Partition;
+import rajawali.materials.AMaterial;
+import rajawali.materials.DiffuseMaterial;
+import rajawali.materials.TextureInfo;
+import rajawali.materials.TextureManager;
+import rajawali.materials.TextureManager.TextureType;
+import rajawali.parser.AMeshParser;
+import rajawali.parser.IAnimatedMeshParser;
+import rajawali.renderer.RajawaliRenderer;
+import rajawali.util.NormalGenerator;
+import rajawali.util.RajLog;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.opengl.GLES20;
+import android.util.Base64;
+
+/**
+ * glTF 2.0 parser for .gltf and binary .glb files.
+ * <p>
+ * The binary data isn't copied: the file is memory mapped where possible and tightly packed
+ * vertex attributes and indices are handed to the geometries as views into the binary chunk.
+ * Primitives whose attributes are interleaved in one buffer view use a
+ * {@link Geometry3DInterleaved} over that buffer view. Data that OpenGL can't use as it is,
+ * like normalized integers, is converted.
+ * <p>
+ * Nodes become containers with the node's transform, every primitive of a mesh a child object.
+ * Skinned meshes are skinned on the GPU, their joints form one skeleton for all skins.
+ * Translation, rotation and scale animations of the joints are sampled into
+ * {@link BoneAnimationSequence}s at {@link #FRAME_RATE} frames per second, the first one is set
+ * on the parsed object. Morph targets, sparse accessors and animations of nodes that aren't
+ * joints are not supported.
+ * <p>
+ * Textures in separate files are looked up like the ones of other parsers: as drawable resources
+ * when parsing a resource and next to the file when parsing a file. External buffers are looked
+ * up as raw resources or files the same way.
+ */
+public class GLTFParser extends AMeshParser implements IAnimatedMeshParser {
+	public static final int FRAME_RATE = 30;
+
+	private static final int GLB_MAGIC = 0x46546C67;
+	private static final int CHUNK_JSON = 0x4E4F534A;
+	private static final int CHUNK_BIN = 0x004E4942;
+	private static final int GLB_HEADER_SIZE = 12;
+	private static final int CHUNK_HEADER_SIZE = 8;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	/**
+	 * glTF primitive modes are the values of the matching OpenGL drawing modes
+	 */
+	private static final int MODE_TRIANGLES = 4;
+	private static final int MODE_TRIANGLE_FAN = 6;
+
+	private JSONObject mJson;
+	private ByteBuffer[] mBuffers;
+	private ByteBuffer[] mBufferViews;
+	private int[] mByteStrides;
+	private GLTFAccessor[] mAccessors;
+	private TextureInfo[] mTextures;
+	private GLTFSkeleton mSkeleton;
+	/**
+	 * The skeleton joint of every joint of every skin
+	 */
+	private int[][] mSkinJoints;
+	private float[][] mInverseBindPoses;
+	private SkeletonJoint[] mBindPose;
+	private boolean[] mIsVisited;
+	private final ArrayList<BoneAnimationSequence> mSequences = new ArrayList<BoneAnimationSequence>();
+
+	public GLTFParser(RajawaliRenderer renderer, String fileOnSDCard) {
+		super(renderer, fileOnSDCard);
+	}
+
+	public GLTFParser(RajawaliRenderer renderer, int resourceId) {
+		this(renderer.getContext().getResources(), renderer.getTextureManager(), resourceId);
+	}
+
+	public GLTFParser(Resources resources, TextureManager textureManager, int resourceId) {
+		super(resources, textureManager, resourceId);
+	}
+
+	@Override
+	public GLTFParser parse() {
+		super.parse();
+		RajLog.i("Start parsing glTF");
+
+		try {
+			ByteBuffer source = openSourceBuffer().order(ByteOrder.LITTLE_ENDIAN);
+			String json = null;
+			ByteBuffer binary = null;
+			if (source.limit() >= GLB_HEADER_SIZE && source.getInt(0) == GLB_MAGIC) {
+				int length = Math.min(source.getInt(8), source.limit());
+				int offset = GLB_HEADER_SIZE;
+				while (offset + CHUNK_HEADER_SIZE <= length) {
+					int chunkLength = source.getInt(offset);
+					int chunkType = source.getInt(offset + 4);
+					int data = offset + CHUNK_HEADER_SIZE;
+					if (chunkLength < 0 || data + chunkLength > length)
+						break;
+					if (chunkType == CHUNK_JSON && json == null)
+						json = readString(source, data, chunkLength);
+					else if (chunkType == CHUNK_BIN && binary == null)
+						binary = slice(source, data, chunkLength);
+					offset = data + ((chunkLength + 3) & ~3);
+				}
+			} else {
+				json = readString(source, 0, source.limit());
+			}
+			if (json == null) {
+				RajLog.e("[" + getClass().getCanonicalName() + "] No JSON chunk found");
+				return this;
+			}
+
+			mJson = new JSONObject(json);
+			JSONObject asset = mJson.optJSONObject("asset");
+			if (asset != null && !asset.optString("version", "2.0").startsWith("2"))
+				RajLog.w("[" + getClass().getCanonicalName() + "] Only glTF 2.0 is supported, found version " + asset.optString("version"));
+
+			readBuffers(binary);
+			mSkeleton = new GLTFSkeleton(mJson.optJSONArray("nodes"));
+			readSkins();
+			readScene();
+			readAnimations();
+
+			RajLog.i("End parsing glTF");
+		} catch (IOException e) {
+			RajLog.e("Error parsing");
+			e.printStackTrace();
+		} catch (JSONException e) {
+			RajLog.e("[" + getClass().getCanonicalName() + "] Invalid glTF file: " + e.getMessage());
+		}
+
+		return this;
+	}
+
+	/**
+	 * Returns the parsed object when the file has skins, null otherwise.
+	 */
+	public AAnimationObject3D getParsedAnimationObject() {
+		return mRootObject instanceof AAnimationObject3D ? (AAnimationObject3D) mRootObject : null;
+	}
+
+	/**
+	 * Returns a sequence for every animation in the file, in the file's order.
+	 *
+	 * @return
+	 */
+	public ArrayList<BoneAnimationSequence> getAnimationSequences() {
+		return mSequences;
+	}
+
+	private static String readString(ByteBuffer buffer, int offset, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer data = buffer.duplicate();
+		data.position(offset);
+		data.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer data = buffer.duplicate();
+		data.limit(offset + length).position(offset);
+		return data.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Reads the buffers and cuts the buffer views out of them. Buffers that aren't direct, like
+	 * compressed resources, are copied into a direct buffer once so views can be uploaded.
+	 */
+	private void readBuffers(ByteBuffer binary) throws IOException, JSONException {
+		JSONArray buffers = mJson.optJSONArray("buffers");
+		int numBuffers = buffers != null ? buffers.length() : 0;
+		mBuffers = new ByteBuffer[numBuffers];
+		for (int i = 0; i < numBuffers; ++i) {
+			JSONObject buffer = buffers.getJSONObject(i);
+			String uri = buffer.optString("uri", null);
+			ByteBuffer data;
+			if (uri == null) {
+				data = binary;
+			} else if (uri.startsWith("data:")) {
+				byte[] bytes = Base64.decode(uri.substring(uri.indexOf(',') + 1), Base64.DEFAULT);
+				data = ByteBuffer.allocateDirect(bytes.length);
+				data.put(bytes).position(0);
+			} else if (mFile != null) {
+				data = mapFile(new File(mFile.getParentFile(), decodeUri(uri)));
+			} else {
+				int identifier = mResources.getIdentifier(getFileNameWithoutExtension(uri), "raw",
+						mResources.getResourcePackageName(mResourceId));
+				data = identifier != 0 ? openResourceBuffer(identifier) : null;
+			}
+			if (data == null) {
+				RajLog.e("[" + getClass().getCanonicalName() + "] Could not load buffer " + i);
+				continue;
+			}
+			if (!data.isDirect()) {
+				ByteBuffer direct = ByteBuffer.allocateDirect(data.remaining());
+				direct.put(data.duplicate()).position(0);
+				data = direct;
+			}
+			mBuffers[i] = data.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		JSONArray bufferViews = mJson.optJSONArray("bufferViews");
+		int numBufferViews = bufferViews != null ? bufferViews.length() : 0;
+		mBufferViews = new ByteBuffer[numBufferViews];
+		mByteStrides = new int[numBufferViews];
+		for (int i = 0; i < numBufferViews; ++i) {
+			JSONObject bufferView = bufferViews.getJSONObject(i);
+			int buffer = bufferView.getInt("buffer");
+			if (buffer < 0 || buffer >= numBuffers || mBuffers[buffer] == null)
+				continue;
+			int offset = bufferView.optInt("byteOffset", 0);
+			int length = bufferView.getInt("byteLength");
+			if (offset + length > mBuffers[buffer].limit()) {
+				RajLog.e("[" + getClass().getCanonicalName() + "] Buffer view " + i + " is out of bounds");
+				continue;
+			}
+			mBufferViews[i] = slice(mBuffers[buffer], offset, length);
+			mByteStrides[i] = bufferView.optInt("byteStride", 0);
+		}
+
+		JSONArray accessors = mJson.optJSONArray("accessors");
+		mAccessors = new GLTFAccessor[accessors != null ? accessors.length() : 0];
+	}
+
+	private static String decodeUri(String uri) {
+		try {
+			return URLDecoder.decode(uri.replace("+", "%2B"), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return uri;
+		}
+	}
+
+	/**
+	 * Returns an accessor, they are created when they are first used.
+	 *
+	 * @param index
+	 * @return The accessor, or null when it doesn't exist
+	 */
+	GLTFAccessor getAccessor(int index) throws JSONException {
+		if (index < 0 || index >= mAccessors.length)
+			return null;
+		if (mAccessors[index] != null)
+			return mAccessors[index];
+
+		JSONObject accessor = mJson.getJSONArray("accessors").getJSONObject(index);
+		if (accessor.has("sparse"))
+			RajLog.w("[" + getClass().getCanonicalName() + "] Sparse accessors are not supported");
+		int bufferView = accessor.optInt("bufferView", -1);
+		ByteBuffer data = null;
+		int byteStride = 0;
+		if (bufferView >= 0 && bufferView < mBufferViews.length) {
+			data = mBufferViews[bufferView];
+			byteStride = mByteStrides[bufferView];
+		}
+		GLTFAccessor result = new GLTFAccessor(accessor.getInt("count"), accessor.getInt("componentType"),
+				GLTFAccessor.getNumComponents(accessor.optString("type")), accessor.optBoolean("normalized", false),
+				data != null ? bufferView : -1, accessor.optInt("byteOffset", 0), byteStride, data);
+
+		int end = result.mByteOffset + (result.mCount > 0 ? (result.mCount - 1) * (byteStride > 0 ? byteStride : result.getElementSize()) + result.getElementSize() : 0);
+		if (data != null && end > data.limit()) {
+			RajLog.e("[" + getClass().getCanonicalName() + "] Accessor " + index + " is out of bounds");
+			return null;
+		}
+		mAccessors[index] = result;
+		return result;
+	}
+
+	private GLTFAccessor getAttribute(JSONObject attributes, String name) throws JSONException {
+		return attributes.has(name) ? getAccessor(attributes.getInt(name)) : null;
+	}
+
+	/**
+	 * Adds the joints of all skins to the skeleton. The root object becomes a
+	 * {@link BoneAnimationObject3D} when there are skins.
+	 */
+	private void readSkins() throws JSONException {
+		JSONArray skins = mJson.optJSONArray("skins");
+		int numSkins = skins != null ? skins.length() : 0;
+		mSkinJoints = new int[numSkins][];
+		mInverseBindPoses = new float[numSkins][];
+		if (numSkins == 0)
+			return;
+
+		JSONArray nodes = mJson.optJSONArray("nodes");
+		int numNodes = nodes != null ? nodes.length() : 0;
+		for (int i = 0; i < numSkins; ++i) {
+			JSONArray joints = skins.getJSONObject(i).optJSONArray("joints");
+			int[] jointNodes = new int[joints != null ? joints.length() : 0];
+			for (int j = 0; j < jointNodes.length; ++j) {
+				jointNodes[j] = joints.getInt(j);
+				if (jointNodes[j] < 0 || jointNodes[j] >= numNodes)
+					throw new JSONException("Invalid joint " + jointNodes[j] + " in skin " + i);
+			}
+			mSkinJoints[i] = mSkeleton.addSkin(jointNodes);
+		}
+
+		// -- the skeleton is complete, every inverse bind pose covers all of its joints
+		for (int i = 0; i < numSkins; ++i) {
+			JSONObject skin = skins.getJSONObject(i);
+			GLTFAccessor inverseBindMatrices = skin.has("inverseBindMatrices") ? getAccessor(skin.getInt("inverseBindMatrices")) : null;
+			mInverseBindPoses[i] = mSkeleton.createInverseBindPose(mSkinJoints[i],
+					inverseBindMatrices != null ? inverseBindMatrices.getFloats() : null);
+		}
+		mBindPose = mSkeleton.createBindPose();
+		mRootObject = new BoneAnimationObject3D();
+	}
+
+	private void readScene() throws JSONException, IOException {
+		JSONArray nodes = mJson.optJSONArray("nodes");
+		int numNodes = nodes != null ? nodes.length() : 0;
+		mIsVisited = new boolean[numNodes];
+		JSONArray textures = mJson.optJSONArray("textures");
+		mTextures = new TextureInfo[textures != null ? textures.length() : 0];
+
+		JSONArray scenes = mJson.optJSONArray("scenes");
+		JSONObject scene = scenes != null ? scenes.optJSONObject(mJson.optInt("scene", 0)) : null;
+		if (scene != null) {
+			JSONArray roots = scene.optJSONArray("nodes");
+			for (int i = 0; roots != null && i < roots.length(); ++i)
+				addNode(roots.getInt(i), mRootObject);
+		} else {
+			// -- without scenes, every node that isn't a child is a root
+			for (int i = 0; i < numNodes; ++i)
+				if (mSkeleton.mParents[i] < 0)
+					addNode(i, mRootObject);
+		}
+	}
+
+	private void addNode(int index, BaseObject3D parent) throws JSONException, IOException {
+		if (index < 0 || index >= mIsVisited.length || mIsVisited[index])
+			return;
+		mIsVisited[index] = true;
+
+		JSONObject node = mJson.getJSONArray("nodes").getJSONObject(index);
+		BaseObject3D o = new BaseObject3D(mSkeleton.mNames[index]);
+		float[] t = mSkeleton.mTranslations, s = mSkeleton.mScales;
+		o.setPosition(t[index * 3], t[index * 3 + 1], t[index * 3 + 2]);
+		o.setOrientation(GLTFSkeleton.toQuaternion(mSkeleton.mRotations, index * 4));
+		o.setScale(s[index * 3], s[index * 3 + 1], s[index * 3 + 2]);
+		parent.addChild(o);
+
+		int mesh = node.optInt("mesh", -1);
+		if (mesh >= 0)
+			addMesh(mesh, node.optInt("skin", -1), o);
+
+		JSONArray children = node.optJSONArray("children");
+		for (int i = 0; children != null && i < children.length(); ++i)
+			addNode(children.getInt(i), o);
+	}
+
+	private void addMesh(int index, int skin, BaseObject3D parent) throws JSONException, IOException {
+		JSONObject mesh = mJson.getJSONArray("meshes").getJSONObject(index);
+		String name = mesh.optString("name", "Mesh_" + index);
+		JSONArray primitives = mesh.getJSONArray("primitives");
+		for (int i = 0; i < primitives.length(); ++i) {
+			JSONObject primitive = primitives.getJSONObject(i);
+			JSONObject attributes = primitive.getJSONObject("attributes");
+			GLTFAccessor positions = getAttribute(attributes, "POSITION");
+			if (positions == null || positions.mCount == 0)
+				continue;
+			String objectName = primitives.length() == 1 ? name : name + "_" + i;
+
+			GLTFAccessor joints = getAttribute(attributes, "JOINTS_0");
+			GLTFAccessor weights = getAttribute(attributes, "WEIGHTS_0");
+			boolean isSkinned = skin >= 0 && skin < mSkinJoints.length && joints != null && weights != null;
+			if (isSkinned && mSkinJoints[skin].length > AMaterial.MAX_PALETTE_JOINTS
+					&& primitive.optInt("mode", MODE_TRIANGLES) != MODE_TRIANGLES) {
+				RajLog.w("[" + getClass().getCanonicalName() + "] Only triangles can be split for the joint palette, " + objectName + " isn't skinned");
+				isSkinned = false;
+			}
+			if (isSkinned) {
+				// -- the transform of a skinned mesh's node is ignored, the joints place it
+				addSkinnedPrimitive(objectName, primitive, attributes, joints, weights, skin);
+				continue;
+			}
+
+			BaseObject3D o = createObject(objectName, primitive, attributes, new BaseObject3D(objectName), false);
+			if (o != null)
+				parent.addChild(o);
+		}
+	}
+
+	/**
+	 * Creates the geometry of a primitive without copying its data where possible.
+	 */
+	private BaseObject3D createObject(String name, JSONObject primitive, JSONObject attributes, BaseObject3D o, boolean isSkinned)
+			throws JSONException, IOException {
+		GLTFAccessor positions = getAttribute(attributes, "POSITION");
+		GLTFAccessor normals = getAttribute(attributes, "NORMAL");
+		GLTFAccessor texCoords = getAttribute(attributes, "TEXCOORD_0");
+		GLTFAccessor colors = getAttribute(attributes, "COLOR_0");
+		GLTFAccessor indices = primitive.has("indices") ? getAccessor(primitive.getInt("indices")) : null;
+		int mode = primitive.optInt("mode", MODE_TRIANGLES);
+		JSONObject material = getMaterial(primitive);
+		TextureInfo texture = getBaseColorTexture(material);
+
+		Buffer indexBuffer = indices != null ? indices.getIndexBuffer() : null;
+		FloatBuffer interleaved = !isSkinned ? getInterleavedBuffer(positions, normals, texCoords, colors) : null;
+		if (interleaved != null) {
+			ArrayList<BufferInfo> bufferInfos = new ArrayList<BufferInfo>(4);
+			bufferInfos.add(createAttribute(AMaterial.ATTR_POSITION, 3, positions));
+			bufferInfos.add(createAttribute(AMaterial.ATTR_NORMAL, 3, normals));
+			if (texCoords != null)
+				bufferInfos.add(createAttribute(AMaterial.ATTR_TEXTURECOORD, 2, texCoords));
+			if (colors != null) {
+				bufferInfos.add(createAttribute(AMaterial.ATTR_COLOR, colors.mNumComponents, colors));
+			} else if (texture == null) {
+				// -- interleaved geometries can't change their colors, the base color gets a buffer of its own
+				FloatBuffer baseColors = ByteBuffer.allocateDirect(positions.mCount * 4 * AGeometry3D.FLOAT_SIZE_BYTES)
+						.order(ByteOrder.nativeOrder()).asFloatBuffer();
+				float[] baseColor = getBaseColor(material);
+				for (int i = 0; i < positions.mCount; ++i)
+					baseColors.put(baseColor);
+				baseColors.position(0);
+				bufferInfos.add(createBufferInfo(AMaterial.ATTR_COLOR, 4, baseColors));
+			}
+			Geometry3DInterleaved geometry = new Geometry3DInterleaved();
+			geometry.setData(interleaved, positions.mByteStride, indexBuffer, bufferInfos.toArray(new BufferInfo[bufferInfos.size()]));
+			o.setData(geometry);
+		} else {
+			FloatBuffer normalBuffer = normals != null ? normals.getFloatBuffer(3) : calculateNormals(positions, indices, mode);
+			Geometry3DSeparate geometry = new Geometry3DSeparate();
+			geometry.setData(positions.getFloatBuffer(3), normalBuffer, texCoords != null ? texCoords.getFloatBuffer(2) : null, 2,
+					colors != null ? colors.getFloatBuffer(4) : null, indexBuffer);
+			o.setData(geometry);
+		}
+		o.setName(name);
+		o.setDrawingMode(mode);
+
+		DiffuseMaterial diffuse = isSkinned ? new DiffuseMaterial(AMaterial.SKELETAL_ANIMATION) : new DiffuseMaterial();
+		o.setMaterial(diffuse);
+		setMaterial(o, diffuse, material, texture, colors != null || interleaved != null);
+		return o;
+	}
+
+	/**
+	 * Returns the buffer view that all attributes of a primitive are interleaved in, or null
+	 * when they aren't or can't be used as they are.
+	 */
+	private FloatBuffer getInterleavedBuffer(GLTFAccessor positions, GLTFAccessor normals, GLTFAccessor texCoords, GLTFAccessor colors) {
+		if (normals == null || positions.isTightlyPacked() || !isInterleavedWith(positions, normals)
+				|| (texCoords != null && !isInterleavedWith(positions, texCoords))
+				|| (colors != null && !isInterleavedWith(positions, colors)))
+			return null;
+		return positions.getInterleavedBuffer();
+	}
+
+	private static boolean isInterleavedWith(GLTFAccessor positions, GLTFAccessor attribute) {
+		return attribute.mBufferView == positions.mBufferView && attribute.mComponentType == GLTFAccessor.FLOAT
+				&& attribute.mCount == positions.mCount && (attribute.mByteOffset & 3) == 0;
+	}
+
+	private static BufferInfo createAttribute(String attributeName, int attributeSize, GLTFAccessor accessor) {
+		BufferInfo bufferInfo = new BufferInfo(attributeName, attributeSize);
+		bufferInfo.attributeOffset = accessor.mByteOffset;
+		return bufferInfo;
+	}
+
+	private static BufferInfo createBufferInfo(String attributeName, int attributeSize, FloatBuffer buffer) {
+		BufferInfo bufferInfo = new BufferInfo(attributeName, attributeSize);
+		bufferInfo.bufferType = BufferType.FLOAT_BUFFER;
+		bufferInfo.target = GLES20.GL_ARRAY_BUFFER;
+		bufferInfo.buffer = buffer;
+		return bufferInfo;
+	}
+
+	private FloatBuffer calculateNormals(GLTFAccessor positions, GLTFAccessor indices, int mode) {
+		FloatBuffer normals = ByteBuffer.allocateDirect(positions.mCount * 3 * AGeometry3D.FLOAT_SIZE_BYTES)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		if (mode < MODE_TRIANGLES)
+			return normals;
+		new NormalGenerator(getTriangles(positions, indices, mode), positions.mCount).calculateNormals(positions.getFloats(), normals);
+		return normals;
+	}
+
+	/**
+	 * Returns the triangles of a primitive as a list, strips and fans are unrolled.
+	 */
+	private static int[] getTriangles(GLTFAccessor positions, GLTFAccessor indices, int mode) {
+		int[] vertices;
+		if (indices != null) {
+			vertices = indices.getInts();
+		} else {
+			vertices = new int[positions.mCount];
+			for (int i = 0; i < vertices.length; ++i)
+				vertices[i] = i;
+		}
+		if (mode == MODE_TRIANGLES || vertices.length < 3)
+			return vertices;
+
+		int[] triangles = new int[(vertices.length - 2) * 3];
+		for (int i = 0; i < vertices.length - 2; ++i) {
+			int t = i * 3;
+			if (mode == MODE_TRIANGLE_FAN) {
+				triangles[t] = vertices[0];
+				triangles[t + 1] = vertices[i + 1];
+				triangles[t + 2] = vertices[i + 2];
+			} else {
+				// -- every other triangle of a strip is flipped to keep the winding
+				triangles[t] = vertices[i];
+				triangles[t + 1] = vertices[(i & 1) == 0 ? i + 1 : i + 2];
+				triangles[t + 2] = vertices[(i & 1) == 0 ? i + 2 : i + 1];
+			}
+		}
+		return triangles;
+	}
+
+	/**
+	 * Creates the skinned objects of a primitive. Primitives that are influenced by few enough
+	 * joints for one palette keep their data in the buffer, larger ones are split into
+	 * partitions.
+	 */
+	private void addSkinnedPrimitive(String name, JSONObject primitive, JSONObject attributes, GLTFAccessor joints,
+			GLTFAccessor weights, int skin) throws JSONException, IOException {
+		int[] skinJoints = mSkinJoints[skin];
+		int numJoints = mSkeleton.getNumJoints();
+		int mode = primitive.optInt("mode", MODE_TRIANGLES);
+
+		if (skinJoints.length <= AMaterial.MAX_PALETTE_JOINTS) {
+			BoneAnimationObject3D o = new BoneAnimationObject3D();
+			createObject(name, primitive, attributes, o, true);
+			// -- the joint indices of the primitive are indices into the skin's joints, the palette
+			o.getGeometry().addBuffer(createBufferInfo(AMaterial.ATTR_JOINT_INDEX, SkinningPalette.MAX_INFLUENCES, joints.getFloatBuffer(4)));
+			o.getGeometry().addBuffer(createBufferInfo(AMaterial.ATTR_JOINT_WEIGHT, SkinningPalette.MAX_INFLUENCES, weights.getFloatBuffer(4)));
+			o.setJointPalette(skinJoints, mInverseBindPoses[skin]);
+			addSkinnedObject(o, numJoints);
+			return;
+		}
+
+		GLTFAccessor positions = getAttribute(attributes, "POSITION");
+		GLTFAccessor normals = getAttribute(attributes, "NORMAL");
+		GLTFAccessor texCoords = getAttribute(attributes, "TEXCOORD_0");
+		GLTFAccessor indices = primitive.has("indices") ? getAccessor(primitive.getInt("indices")) : null;
+		int numVertices = positions.mCount;
+		float[] vertices = positions.getFloats();
+		int[] triangles = getTriangles(positions, indices, mode);
+		float[] vertexNormals;
+		if (normals != null) {
+			vertexNormals = normals.getFloats();
+		} else {
+			vertexNormals = new float[numVertices * 3];
+			new NormalGenerator(triangles, numVertices).calculateNormals(vertices, vertexNormals);
+		}
+		float[] vertexTexCoords = texCoords != null ? texCoords.getFloats() : new float[numVertices * 2];
+
+		int[] vertexJoints = joints.getInts();
+		for (int i = 0; i < vertexJoints.length; ++i)
+			vertexJoints[i] = vertexJoints[i] < skinJoints.length ? skinJoints[vertexJoints[i]] : 0;
+		float[] vertexWeights = weights.getFloats();
+
+		JSONObject material = getMaterial(primitive);
+		TextureInfo texture = getBaseColorTexture(material);
+		ArrayList<Partition> partitions = SkinningPalette.partition(triangles, numVertices, vertexJoints, vertexWeights,
+				AMaterial.MAX_PALETTE_JOINTS);
+		for (int p = 0; p < partitions.size(); ++p) {
+			Partition partition = partitions.get(p);
+			int numPartitionVertices = partition.vertices.length;
+			float[] partitionVertices = new float[numPartitionVertices * 3];
+			float[] partitionNormals = new float[numPartitionVertices * 3];
+			float[] partitionTexCoords = new float[numPartitionVertices * 2];
+			for (int j = 0; j < numPartitionVertices; ++j) {
+				int vertex = partition.vertices[j];
+				System.arraycopy(vertices, vertex * 3, partitionVertices, j * 3, 3);
+				System.arraycopy(vertexNormals, vertex * 3, partitionNormals, j * 3, 3);
+				System.arraycopy(vertexTexCoords, vertex * 2, partitionTexCoords, j * 2, 2);
+			}
+
+			BoneAnimationObject3D o = new BoneAnimationObject3D();
+			o.setData(partitionVertices, partitionNormals, partitionTexCoords, null, partition.indices);
+			o.getGeometry().addBuffer(createBufferInfo(AMaterial.ATTR_JOINT_INDEX, SkinningPalette.MAX_INFLUENCES,
+					toFloatBuffer(partition.jointIndices)));
+			o.getGeometry().addBuffer(createBufferInfo(AMaterial.ATTR_JOINT_WEIGHT, SkinningPalette.MAX_INFLUENCES,
+					toFloatBuffer(partition.jointWeights)));
+			o.setJointPalette(partition.joints, mInverseBindPoses[skin]);
+			o.setName(name + "_" + p);
+			DiffuseMaterial diffuse = new DiffuseMaterial(AMaterial.SKELETAL_ANIMATION);
+			o.setMaterial(diffuse);
+			setMaterial(o, diffuse, material, texture, false);
+			addSkinnedObject(o, numJoints);
+		}
+	}
+
+	private void addSkinnedObject(BoneAnimationObject3D o, int numJoints) {
+		o.setNumJoints(numJoints);
+		o.setJoints(mBindPose);
+		o.setFps(FRAME_RATE);
+		mRootObject.addChild(o);
+	}
+
+	private static FloatBuffer toFloatBuffer(float[] values) {
+		FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * AGeometry3D.FLOAT_SIZE_BYTES)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		buffer.put(values).position(0);
+		return buffer;
+	}
+
+	private JSONObject getMaterial(JSONObject primitive) throws JSONException {
+		JSONArray materials = mJson.optJSONArray("materials");
+		int material = primitive.optInt("material", -1);
+		return materials != null && material >= 0 && material < materials.length() ? materials.getJSONObject(material) : null;
+	}
+
+	private static float[] getBaseColor(JSONObject material) throws JSONException {
+		float[] color = new float[] { 1, 1, 1, 1 };
+		JSONObject pbr = material != null ? material.optJSONObject("pbrMetallicRoughness") : null;
+		JSONArray factor = pbr != null ? pbr.optJSONArray("baseColorFactor") : null;
+		for (int i = 0; factor != null && i < 4 && i < factor.length(); ++i)
+			color[i] = (float) factor.getDouble(i);
+		return color;
+	}
+
+	/**
+	 * Applies the base color or the base color texture of a material.
+	 *
+	 * @param hasColors
+	 *            Whether the geometry has a color for every vertex already
+	 */
+	private void setMaterial(BaseObject3D o, DiffuseMaterial diffuse, JSONObject material, TextureInfo texture, boolean hasColors)
+			throws JSONException {
+		if (texture != null) {
+			o.addTexture(texture);
+		} else if (hasColors) {
+			diffuse.setUseColor(true);
+		} else {
+			float[] color = getBaseColor(material);
+			o.setColor(Color.argb((int) (color[3] * 255), (int) (color[0] * 255), (int) (color[1] * 255), (int) (color[2] * 255)));
+		}
+		if (material != null && "BLEND".equals(material.optString("alphaMode")))
+			o.setTransparent(true);
+		if (material != null && material.optBoolean("doubleSided", false))
+			o.setDoubleSided(true);
+	}
+
+	private TextureInfo getBaseColorTexture(JSONObject material) throws JSONException, IOException {
+		JSONObject pbr = material != null ? material.optJSONObject("pbrMetallicRoughness") : null;
+		JSONObject baseColorTexture = pbr != null ? pbr.optJSONObject("baseColorTexture") : null;
+		if (baseColorTexture == null)
+			return null;
+		int index = baseColorTexture.optInt("index", -1);
+		if (index < 0 || index >= mTextures.length)
+			return null;
+		if (mTextures[index] == null)
+			mTextures[index] = loadImage(mJson.getJSONArray("textures").getJSONObject(index).optInt("source", -1));
+		return mTextures[index];
+	}
+
+	/**
+	 * Loads an image from a buffer view, a data URI, a drawable resource or a file.
+	 */
+	private TextureInfo loadImage(int index) throws JSONException {
+		JSONArray images = mJson.optJSONArray("images");
+		if (images == null || index < 0 || index >= images.length())
+			return null;
+		JSONObject image = images.getJSONObject(index);
+		String uri = image.optString("uri", null);
+
+		byte[] bytes = null;
+		if (image.has("bufferView")) {
+			int bufferView = image.getInt("bufferView");
+			if (bufferView >= 0 && bufferView < mBufferViews.length && mBufferViews[bufferView] != null) {
+				ByteBuffer data = mBufferViews[bufferView].duplicate();
+				data.clear();
+				bytes = new byte[data.remaining()];
+				data.get(bytes);
+			}
+		} else if (uri != null && uri.startsWith("data:")) {
+			bytes = Base64.decode(uri.substring(uri.indexOf(',') + 1), Base64.DEFAULT);
+		} else if (uri != null && mFile != null) {
+			return loadTexture(new File(mFile.getParentFile(), decodeUri(uri)).getPath(), TextureType.DIFFUSE);
+		} else if (uri != null) {
+			int identifier = mResources.getIdentifier(getFileNameWithoutExtension(uri), "drawable",
+					mResources.getResourcePackageName(mResourceId));
+			if (identifier != 0)
+				return loadTexture(identifier, TextureType.DIFFUSE);
+		}
+
+		Bitmap bitmap = bytes != null ? BitmapFactory.decodeByteArray(bytes, 0, bytes.length) : null;
+		if (bitmap == null) {
+			RajLog.e("[" + getClass().getCanonicalName() + "] Could not load image " + index);
+			return null;
+		}
+		return mTextureManager.addTexture(bitmap, TextureType.DIFFUSE);
+	}
+
+	private void readAnimations() throws JSONException {
+		if (!(mRootObject instanceof BoneAnimationObject3D))
+			return;
+		JSONArray animations = mJson.optJSONArray("animations");
+		for (int i = 0; animations != null && i < animations.length(); ++i) {
+			BoneAnimationSequence sequence = mSkeleton.createSequence(animations.getJSONObject(i), this, FRAME_RATE);
+			if (sequence != null)
+				mSequences.add(sequence);
+		}
+		if (!mSequences.isEmpty())
+			((BoneAnimationObject3D) mRootObject).setAnimationSequence(mSequences.get(0));
+	}
+}
@@ -0,0 +1,484 @@
+package rajawali.parser.gltf;
+
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import rajawali.animation.mesh.BoneAnimationFrame;
+import rajawali.animation.mesh.BoneAnimationSequence;
+import rajawali.animation.mesh.SkeletonJoint;
+import rajawali.math.Quaternion;
+import rajawali.util.RajLog;
+
+/**
+ * The node hierarchy of a glTF file and the skeleton that the joints of all skins form.
+ * <p>
+ * Transforms are kept in glTF's convention: rotations are quaternions (x, y, z, w) that rotate
+ * vectors the standard way. Rajawali's quaternions rotate the other way, {@link #toQuaternion}
+ * converts. The joints of the skeleton are in model space, like the joints of MD5 animations.
+ * Their scale can't be part of the skinning palette, it is folded into the inverse bind pose
+ * instead, so it is taken from the rest pose and can't be animated.
+ */
+class GLTFSkeleton {
+	private static final int TRANSLATION = 0;
+	private static final int ROTATION = 1;
+	private static final int SCALE = 2;
+
+	private static final int LINEAR = 0;
+	private static final int STEP = 1;
+	private static final int CUBICSPLINE = 2;
+
+	private final int mNumNodes;
+	final String[] mNames;
+	final int[] mParents;
+	/**
+	 * The rest pose of every node: three floats translation, four floats rotation and three
+	 * floats scale per node
+	 */
+	final float[] mTranslations;
+	final float[] mRotations;
+	final float[] mScales;
+
+	/**
+	 * The node of every skeleton joint
+	 */
+	private int[] mJointNodes = new int[16];
+	private int mNumJoints;
+	/**
+	 * The skeleton joint of every node, -1 for nodes that aren't joints
+	 */
+	private final int[] mNodeJoints;
+	/**
+	 * The joints and their ancestors, parents before their children
+	 */
+	private final int[] mOrder;
+	private int mOrderLength;
+	private final boolean[] mIsOrdered;
+
+	// -- the world transform of every node, evaluated in place
+	private final float[] mWorldTranslations;
+	private final float[] mWorldRotations;
+	private final float[] mWorldScales;
+
+	private class Channel {
+		int mNode;
+		int mPath;
+		int mInterpolation;
+		float[] mTimes;
+		float[] mValues;
+		int mKey;
+	}
+
+	GLTFSkeleton(JSONArray nodes) throws JSONException {
+		mNumNodes = nodes != null ? nodes.length() : 0;
+		mNames = new String[mNumNodes];
+		mParents = new int[mNumNodes];
+		mNodeJoints = new int[mNumNodes];
+		mTranslations = new float[mNumNodes * 3];
+		mRotations = new float[mNumNodes * 4];
+		mScales = new float[mNumNodes * 3];
+		mWorldTranslations = new float[mNumNodes * 3];
+		mWorldRotations = new float[mNumNodes * 4];
+		mWorldScales = new float[mNumNodes * 3];
+		mOrder = new int[mNumNodes];
+		mIsOrdered = new boolean[mNumNodes];
+
+		for (int i = 0; i < mNumNodes; ++i) {
+			mParents[i] = -1;
+			mNodeJoints[i] = -1;
+		}
+		for (int i = 0; i < mNumNodes; ++i) {
+			JSONObject node = nodes.getJSONObject(i);
+			mNames[i] = node.optString("name", "Node_" + i);
+			readTransform(node, i);
+			JSONArray children = node.optJSONArray("children");
+			if (children == null)
+				continue;
+			for (int c = 0; c < children.length(); ++c) {
+				int child = children.getInt(c);
+				if (child >= 0 && child < mNumNodes && child != i)
+					mParents[child] = i;
+			}
+		}
+	}
+
+	private void readTransform(JSONObject node, int index) throws JSONException {
+		float[] t = mTranslations, r = mRotations, s = mScales;
+		int o3 = index * 3, o4 = index * 4;
+		r[o4 + 3] = 1;
+		s[o3] = s[o3 + 1] = s[o3 + 2] = 1;
+
+		JSONArray matrix = node.optJSONArray("matrix");
+		if (matrix != null && matrix.length() == 16) {
+			float[] m = new float[16];
+			for (int i = 0; i < 16; ++i)
+				m[i] = (float) matrix.getDouble(i);
+			t[o3] = m[12];
+			t[o3 + 1] = m[13];
+			t[o3 + 2] = m[14];
+			// -- the scale is the length of the columns, the rotation what remains
+			for (int c = 0; c < 3; ++c) {
+				float length = (float) Math.sqrt(m[c * 4] * m[c * 4] + m[c * 4 + 1] * m[c * 4 + 1] + m[c * 4 + 2] * m[c * 4 + 2]);
+				s[o3 + c] = length;
+				if (length > 0)
+					for (int row = 0; row < 3; ++row)
+						m[c * 4 + row] /= length;
+			}
+			Quaternion q = new Quaternion();
+			q.fromRotationMatrix(m);
+			setRotation(r, o4, -q.x, -q.y, -q.z, q.w);
+			return;
+		}
+
+		readFloats(node.optJSONArray("translation"), t, o3, 3);
+		readFloats(node.optJSONArray("rotation"), r, o4, 4);
+		readFloats(node.optJSONArray("scale"), s, o3, 3);
+	}
+
+	private static void readFloats(JSONArray array, float[] values, int offset, int count) throws JSONException {
+		if (array == null || array.length() < count)
+			return;
+		for (int i = 0; i < count; ++i)
+			values[offset + i] = (float) array.getDouble(i);
+	}
+
+	/**
+	 * Converts a rotation from glTF's convention to a Rajawali quaternion.
+	 *
+	 * @param rotations
+	 * @param offset
+	 * @return
+	 */
+	static Quaternion toQuaternion(float[] rotations, int offset) {
+		return new Quaternion(rotations[offset + 3], -rotations[offset], -rotations[offset + 1], -rotations[offset + 2]);
+	}
+
+	/**
+	 * Adds the joints of a skin to the skeleton. Skins that share joints share them in the
+	 * skeleton as well.
+	 *
+	 * @param nodes
+	 *            The node of every joint of the skin
+	 * @return The skeleton joint of every joint of the skin
+	 */
+	int[] addSkin(int[] nodes) {
+		int[] joints = new int[nodes.length];
+		for (int i = 0; i < nodes.length; ++i) {
+			int node = nodes[i];
+			if (mNodeJoints[node] < 0) {
+				if (mNumJoints == mJointNodes.length) {
+					int[] jointNodes = new int[mNumJoints * 2];
+					System.arraycopy(mJointNodes, 0, jointNodes, 0, mNumJoints);
+					mJointNodes = jointNodes;
+				}
+				mJointNodes[mNumJoints] = node;
+				mNodeJoints[node] = mNumJoints++;
+				addToOrder(node);
+			}
+			joints[i] = mNodeJoints[node];
+		}
+		return joints;
+	}
+
+	private void addToOrder(int node) {
+		if (mIsOrdered[node])
+			return;
+		mIsOrdered[node] = true;
+		if (mParents[node] >= 0)
+			addToOrder(mParents[node]);
+		mOrder[mOrderLength++] = node;
+	}
+
+	int getNumJoints() {
+		return mNumJoints;
+	}
+
+	/**
+	 * Returns the joints of the skeleton in the rest pose of the nodes.
+	 *
+	 * @return
+	 */
+	SkeletonJoint[] createBindPose() {
+		evaluate(mTranslations, mRotations, mScales);
+		return createJoints();
+	}
+
+	/**
+	 * Returns the inverse bind pose of a skin in the layout of
+	 * {@link rajawali.animation.mesh.SkinningPalette}, for every joint of the skeleton. Only
+	 * the entries of the skin's joints are filled in.
+	 *
+	 * @param joints
+	 *            The skeleton joint of every joint of the skin
+	 * @param inverseBindMatrices
+	 *            Column major 4x4 matrices, or null for identity matrices
+	 * @return
+	 */
+	float[] createInverseBindPose(int[] joints, float[] inverseBindMatrices) {
+		evaluate(mTranslations, mRotations, mScales);
+		float[] inverseBindPose = new float[mNumJoints * 12];
+		for (int i = 0; i < joints.length; ++i) {
+			int o = joints[i] * 12;
+			int node = mJointNodes[joints[i]];
+			for (int row = 0; row < 3; ++row) {
+				// -- the palette only rotates and translates, the joint's scale is applied first
+				float scale = mWorldScales[node * 3 + row];
+				for (int column = 0; column < 4; ++column) {
+					float value;
+					if (inverseBindMatrices != null && inverseBindMatrices.length >= (i + 1) * 16)
+						value = inverseBindMatrices[i * 16 + column * 4 + row];
+					else
+						value = row == column ? 1 : 0;
+					inverseBindPose[o + row * 4 + column] = scale * value;
+				}
+			}
+		}
+		return inverseBindPose;
+	}
+
+	/**
+	 * Samples an animation into frames of model space joints.
+	 *
+	 * @param animation
+	 * @param parser
+	 * @param frameRate
+	 * @return The sequence, or null when the animation doesn't move any joints
+	 * @throws JSONException
+	 */
+	BoneAnimationSequence createSequence(JSONObject animation, GLTFParser parser, int frameRate) throws JSONException {
+		JSONArray channels = animation.optJSONArray("channels");
+		JSONArray samplers = animation.optJSONArray("samplers");
+		if (channels == null || samplers == null || mNumJoints == 0)
+			return null;
+
+		ArrayList<Channel> sampledChannels = new ArrayList<Channel>();
+		float start = Float.MAX_VALUE, end = 0;
+		for (int i = 0; i < channels.length(); ++i) {
+			JSONObject channel = channels.getJSONObject(i);
+			JSONObject target = channel.optJSONObject("target");
+			if (target == null)
+				continue;
+			int node = target.optInt("node", -1);
+			String path = target.optString("path");
+			if (node < 0 || node >= mNumNodes || !mIsOrdered[node]) {
+				RajLog.w("[" + getClass().getCanonicalName() + "] Skipping an animation channel that doesn't move a joint.");
+				continue;
+			}
+
+			Channel sampled = new Channel();
+			sampled.mNode = node;
+			if ("translation".equals(path))
+				sampled.mPath = TRANSLATION;
+			else if ("rotation".equals(path))
+				sampled.mPath = ROTATION;
+			else if ("scale".equals(path))
+				sampled.mPath = SCALE;
+			else
+				continue;
+
+			JSONObject sampler = samplers.getJSONObject(channel.getInt("sampler"));
+			String interpolation = sampler.optString("interpolation", "LINEAR");
+			sampled.mInterpolation = "STEP".equals(interpolation) ? STEP : "CUBICSPLINE".equals(interpolation) ? CUBICSPLINE : LINEAR;
+			GLTFAccessor input = parser.getAccessor(sampler.getInt("input"));
+			GLTFAccessor output = parser.getAccessor(sampler.getInt("output"));
+			if (input == null || output == null || input.mCount == 0)
+				continue;
+			sampled.mTimes = input.getFloats();
+			sampled.mValues = output.getFloats();
+			int numComponents = sampled.mPath == ROTATION ? 4 : 3;
+			int valuesPerKey = sampled.mInterpolation == CUBICSPLINE ? numComponents * 3 : numComponents;
+			if (sampled.mValues.length < sampled.mTimes.length * valuesPerKey)
+				continue;
+			start = Math.min(start, sampled.mTimes[0]);
+			end = Math.max(end, sampled.mTimes[sampled.mTimes.length - 1]);
+			sampledChannels.add(sampled);
+		}
+		if (sampledChannels.isEmpty())
+			return null;
+
+		// -- the last frame blends into the first when the animation loops
+		int numFrames = Math.max(1, Math.round((end - start) * frameRate));
+		float[] translations = new float[mTranslations.length];
+		float[] rotations = new float[mRotations.length];
+		float[] scales = new float[mScales.length];
+		BoneAnimationFrame[] frames = new BoneAnimationFrame[numFrames];
+		for (int f = 0; f < numFrames; ++f) {
+			float time = start + (float) f / frameRate;
+			System.arraycopy(mTranslations, 0, translations, 0, translations.length);
+			System.arraycopy(mRotations, 0, rotations, 0, rotations.length);
+			System.arraycopy(mScales, 0, scales, 0, scales.length);
+			for (int c = 0; c < sampledChannels.size(); ++c) {
+				Channel channel = sampledChannels.get(c);
+				if (channel.mPath == TRANSLATION)
+					sample(channel, time, 3, translations, channel.mNode * 3);
+				else if (channel.mPath == ROTATION)
+					sample(channel, time, 4, rotations, channel.mNode * 4);
+				else
+					sample(channel, time, 3, scales, channel.mNode * 3);
+			}
+
+			evaluate(translations, rotations, scales);
+			BoneAnimationFrame frame = new BoneAnimationFrame();
+			frame.setFrameIndex(f);
+			frame.getSkeleton().setJoints(createJoints());
+			frames[f] = frame;
+		}
+
+		BoneAnimationSequence sequence = new BoneAnimationSequence(animation.optString("name", "Animation"));
+		sequence.setFrames(frames);
+		sequence.setNumFrames(numFrames);
+		sequence.setFrameRate(frameRate);
+		return sequence;
+	}
+
+	/**
+	 * Evaluates a channel at a point in time. Times only increase from one call to the next, the
+	 * channel remembers the last key.
+	 */
+	private void sample(Channel channel, float time, int numComponents, float[] values, int offset) {
+		float[] times = channel.mTimes;
+		int last = times.length - 1;
+		if (time <= times[0] || last == 0) {
+			getKey(channel, 0, numComponents, values, offset);
+			return;
+		}
+		if (time >= times[last]) {
+			getKey(channel, last, numComponents, values, offset);
+			return;
+		}
+		int key = channel.mKey;
+		if (times[key] > time)
+			key = 0;
+		while (key < last - 1 && times[key + 1] <= time)
+			key++;
+		channel.mKey = key;
+
+		float duration = times[key + 1] - times[key];
+		float t = duration > 0 ? (time - times[key]) / duration : 0;
+		float[] keys = channel.mValues;
+		switch (channel.mInterpolation) {
+		case STEP:
+			getKey(channel, key, numComponents, values, offset);
+			return;
+		case CUBICSPLINE: {
+			// -- in tangent, value and out tangent per key
+			int stride = numComponents * 3;
+			int k0 = key * stride, k1 = (key + 1) * stride;
+			float t2 = t * t, t3 = t2 * t;
+			float h00 = 2 * t3 - 3 * t2 + 1, h10 = t3 - 2 * t2 + t, h01 = -2 * t3 + 3 * t2, h11 = t3 - t2;
+			for (int c = 0; c < numComponents; ++c)
+				values[offset + c] = h00 * keys[k0 + numComponents + c] + h10 * duration * keys[k0 + 2 * numComponents + c]
+						+ h01 * keys[k1 + numComponents + c] + h11 * duration * keys[k1 + c];
+			if (numComponents == 4)
+				normalize(values, offset);
+			return;
+		}
+		default:
+			int k0 = key * numComponents, k1 = k0 + numComponents;
+			if (numComponents == 4) {
+				slerp(keys, k0, keys, k1, t, values, offset);
+			} else {
+				for (int c = 0; c < numComponents; ++c)
+					values[offset + c] = keys[k0 + c] + t * (keys[k1 + c] - keys[k0 + c]);
+			}
+		}
+	}
+
+	private static void getKey(Channel channel, int key, int numComponents, float[] values, int offset) {
+		int start = channel.mInterpolation == CUBICSPLINE ? key * numComponents * 3 + numComponents : key * numComponents;
+		System.arraycopy(channel.mValues, start, values, offset, numComponents);
+	}
+
+	private static void slerp(float[] a, int ao, float[] b, int bo, float t, float[] result, int ro) {
+		float dot = a[ao] * b[bo] + a[ao + 1] * b[bo + 1] + a[ao + 2] * b[bo + 2] + a[ao + 3] * b[bo + 3];
+		float sign = 1;
+		if (dot < 0) {
+			dot = -dot;
+			sign = -1;
+		}
+		float wa = 1 - t, wb = t;
+		if (dot < 0.9995f) {
+			float angle = (float) Math.acos(dot);
+			float sin = (float) Math.sin(angle);
+			wa = (float) Math.sin(wa * angle) / sin;
+			wb = (float) Math.sin(wb * angle) / sin;
+		}
+		wb *= sign;
+		for (int c = 0; c < 4; ++c)
+			result[ro + c] = wa * a[ao + c] + wb * b[bo + c];
+		normalize(result, ro);
+	}
+
+	private static void normalize(float[] q, int o) {
+		float length = (float) Math.sqrt(q[o] * q[o] + q[o + 1] * q[o + 1] + q[o + 2] * q[o + 2] + q[o + 3] * q[o + 3]);
+		if (length > 0)
+			for (int c = 0; c < 4; ++c)
+				q[o + c] /= length;
+	}
+
+	private static void setRotation(float[] r, int o, float x, float y, float z, float w) {
+		r[o] = x;
+		r[o + 1] = y;
+		r[o + 2] = z;
+		r[o + 3] = w;
+	}
+
+	/**
+	 * Evaluates the world transforms of the joints and their ancestors.
+	 */
+	private void evaluate(float[] translations, float[] rotations, float[] scales) {
+		float[] wt = mWorldTranslations, wr = mWorldRotations, ws = mWorldScales;
+		for (int i = 0; i < mOrderLength; ++i) {
+			int node = mOrder[i];
+			int o3 = node * 3, o4 = node * 4;
+			int parent = mParents[node];
+			if (parent < 0) {
+				System.arraycopy(translations, o3, wt, o3, 3);
+				System.arraycopy(rotations, o4, wr, o4, 4);
+				System.arraycopy(scales, o3, ws, o3, 3);
+				continue;
+			}
+
+			int p3 = parent * 3, p4 = parent * 4;
+			// -- the translation is scaled and rotated by the parent
+			float vx = ws[p3] * translations[o3], vy = ws[p3 + 1] * translations[o3 + 1], vz = ws[p3 + 2] * translations[o3 + 2];
+			float qx = wr[p4], qy = wr[p4 + 1], qz = wr[p4 + 2], qw = wr[p4 + 3];
+			float tx = 2 * (qy * vz - qz * vy), ty = 2 * (qz * vx - qx * vz), tz = 2 * (qx * vy - qy * vx);
+			wt[o3] = wt[p3] + vx + qw * tx + qy * tz - qz * ty;
+			wt[o3 + 1] = wt[p3 + 1] + vy + qw * ty + qz * tx - qx * tz;
+			wt[o3 + 2] = wt[p3 + 2] + vz + qw * tz + qx * ty - qy * tx;
+
+			float rx = rotations[o4], ry = rotations[o4 + 1], rz = rotations[o4 + 2], rw = rotations[o4 + 3];
+			setRotation(wr, o4,
+					qw * rx + qx * rw + qy * rz - qz * ry,
+					qw * ry - qx * rz + qy * rw + qz * rx,
+					qw * rz + qx * ry - qy * rx + qz * rw,
+					qw * rw - qx * rx - qy * ry - qz * rz);
+			normalize(wr, o4);
+
+			ws[o3] = ws[p3] * scales[o3];
+			ws[o3 + 1] = ws[p3 + 1] * scales[o3 + 1];
+			ws[o3 + 2] = ws[p3 + 2] * scales[o3 + 2];
+		}
+	}
+
+	private SkeletonJoint[] createJoints() {
+		SkeletonJoint[] joints = new SkeletonJoint[mNumJoints];
+		for (int i = 0; i < mNumJoints; ++i) {
+			int node = mJointNodes[i];
+			int o3 = node * 3, o4 = node * 4;
+			SkeletonJoint joint = new SkeletonJoint();
+			joint.setName(mNames[node]);
+			int parent = mParents[node];
+			while (parent >= 0 && mNodeJoints[parent] < 0)
+				parent = mParents[parent];
+			joint.setParentIndex(parent >= 0 ? mNodeJoints[parent] : -1);
+			joint.setPosition(mWorldTranslations[o3], mWorldTranslations[o3 + 1], mWorldTranslations[o3 + 2]);
+			joint.setOrientation(mWorldRotations[o4 + 3], -mWorldRotations[o4], -mWorldRotations[o4 + 1], -mWorldRotations[o4 + 2]);
+			joints[i] = joint;
+		}
+		return joints;
+	}
+}
@@ -6,20 +6,29 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.StringTokenizer;
 
+import rajawali.AGeometry3D;
+import rajawali.AGeometry3D.BufferType;
+import rajawali.BufferInfo;
 import rajawali.animation.mesh.AAnimationObject3D;
 import rajawali.animation.mesh.BoneAnimationObject3D;
 import rajawali.animation.mesh.SkeletonJoint;
+import rajawali.animation.mesh.SkinningPalette;
+import rajawali.animation.mesh.SkinningPalette.Partition;
+import rajawali.materials.AMaterial;
 import rajawali.materials.DiffuseMaterial;
 import rajawali.materials.TextureManager;
+import rajawali.materials.TextureManager.TextureType;
 import rajawali.math.Number3D;
 import rajawali.parser.AMeshParser;
 import rajawali.parser.IAnimatedMeshParser;
 import rajawali.renderer.RajawaliRenderer;
 import rajawali.util.RajLog;
 import android.content.res.Resources;
-import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
 
@@ -50,6 +59,8 @@ public class MD5MeshParser extends AMeshParser implements IAnimatedMeshParser {
 	public float[][] mBindPoseMatrix;
 	public float[][] mInverseBindPoseMatrix;
 	
+	private boolean mGPUSkinning;
+	
 	public MD5MeshParser(RajawaliRenderer renderer, String fileOnSDCard) {
 		super(renderer, fileOnSDCard);
 	}
@@ -66,6 +77,23 @@ public class MD5MeshParser extends AMeshParser implements IAnimatedMeshParser {
 		return (AAnimationObject3D)mRootObject;
 	}
 	
+	/**
+	 * Skins the meshes on the GPU instead of updating the vertex buffers every frame. Meshes
+	 * that are influenced by more than {@link AMaterial#MAX_PALETTE_JOINTS} joints are split
+	 * into several objects. The materials are created with
+	 * {@link AMaterial#SKELETAL_ANIMATION}, a material that replaces them must support it too.
+	 * Must be called before {@link #parse()}.
+	 * 
+	 * @param gpuSkinning
+	 */
+	public void setGPUSkinning(boolean gpuSkinning) {
+		mGPUSkinning = gpuSkinning;
+	}
+	
+	public boolean isGPUSkinning() {
+		return mGPUSkinning;
+	}
+	
 	@Override
 	public MD5MeshParser parse() {
 		super.parse();
@@ -384,8 +412,15 @@ public class MD5MeshParser extends AMeshParser implements IAnimatedMeshParser {
 	private void createObjects() {
 		mRootObject = new BoneAnimationObject3D();
 		
+		// -- the joints are animated in place, the bind pose has to be taken first
+		float[] inverseBindPose = mGPUSkinning ? SkinningPalette.createInverseBindPose(mJoints) : null;
+		
 		for(int i=0; i<mNumMeshes; ++i) {
 			MD5Mesh mesh = mMeshes[i];
+			if(mGPUSkinning) {
+				createSkinnedObjects(i, mesh, inverseBindPose);
+				continue;
+			}
 			BoneAnimationObject3D o = new BoneAnimationObject3D();
 			o.setNumJoints(mNumJoints);
 			o.setData(
@@ -398,23 +433,92 @@ public class MD5MeshParser extends AMeshParser implements IAnimatedMeshParser {
 			o.setJoints(mJoints);
 			o.setMD5Mesh(mesh);
 			o.setName("MD5Mesh_" + i);
+			o.setMaterial(new DiffuseMaterial());
+			setMeshTexture(o, mesh);
 			
-			boolean hasTexture = mesh.shader != null && mesh.shader.length() > 0;
-			
-			DiffuseMaterial mat = new DiffuseMaterial();
-			o.setMaterial(mat);
-			if(!hasTexture) {
-				mat.setUseColor(!hasTexture);
-				o.setColor(0xff000000 + (int)(Math.random() * 0xffffff));
-			} else {
-				int identifier = mResources.getIdentifier(mesh.shader, "drawable", mResources.getResourcePackageName(mResourceId));
-				o.addTexture(mTextureManager.addTexture(BitmapFactory.decodeResource(mResources, identifier)));
+			mRootObject.addChild(o);
+		}
+	}
+	
+	private void createSkinnedObjects(int meshIndex, MD5Mesh mesh, float[] inverseBindPose) {
+		// -- the four strongest weights of every vertex
+		int[] vertexJoints = new int[mesh.numVerts * SkinningPalette.MAX_INFLUENCES];
+		float[] vertexWeights = new float[mesh.numVerts * SkinningPalette.MAX_INFLUENCES];
+		for(int j=0; j<mesh.numVerts; ++j) {
+			MD5Vert vert = mesh.verts[j];
+			int offset = j * SkinningPalette.MAX_INFLUENCES;
+			for(int k=0; k<vert.weightElem; ++k) {
+				MD5Weight weight = mesh.weights[vert.weightIndex + k];
+				int slot = -1;
+				for(int n=0; n<SkinningPalette.MAX_INFLUENCES; ++n) {
+					if(weight.weightValue > vertexWeights[offset + n] && (slot == -1 || vertexWeights[offset + n] < vertexWeights[offset + slot]))
+						slot = n;
+				}
+				if(slot == -1)
+					continue;
+				vertexJoints[offset + slot] = weight.jointIndex;
+				vertexWeights[offset + slot] = weight.weightValue;
+			}
+			float total = 0;
+			for(int n=0; n<SkinningPalette.MAX_INFLUENCES; ++n)
+				total += vertexWeights[offset + n];
+			if(total > 0) {
+				for(int n=0; n<SkinningPalette.MAX_INFLUENCES; ++n)
+					vertexWeights[offset + n] /= total;
 			}
+		}
+		
+		ArrayList<Partition> partitions = SkinningPalette.partition(mesh.indices, mesh.numVerts, vertexJoints, vertexWeights, AMaterial.MAX_PALETTE_JOINTS);
+		for(int p=0; p<partitions.size(); ++p) {
+			Partition partition = partitions.get(p);
+			int numVerts = partition.vertices.length;
+			float[] vertices = new float[numVerts * 3];
+			float[] normals = new float[numVerts * 3];
+			float[] texCoords = new float[numVerts * 2];
+			for(int j=0; j<numVerts; ++j) {
+				int vertex = partition.vertices[j];
+				System.arraycopy(mesh.vertices, vertex * 3, vertices, j * 3, 3);
+				System.arraycopy(mesh.normals, vertex * 3, normals, j * 3, 3);
+				System.arraycopy(mesh.texCoords, vertex * 2, texCoords, j * 2, 2);
+			}
+			
+			BoneAnimationObject3D o = new BoneAnimationObject3D();
+			o.setNumJoints(mNumJoints);
+			o.setData(vertices, normals, texCoords, null, partition.indices);
+			o.getGeometry().addBuffer(createJointBuffer(AMaterial.ATTR_JOINT_INDEX, partition.jointIndices));
+			o.getGeometry().addBuffer(createJointBuffer(AMaterial.ATTR_JOINT_WEIGHT, partition.jointWeights));
+			o.setJoints(mJoints);
+			o.setMD5Mesh(mesh);
+			o.setJointPalette(partition.joints, inverseBindPose);
+			o.setName(partitions.size() == 1 ? "MD5Mesh_" + meshIndex : "MD5Mesh_" + meshIndex + "_" + p);
+			o.setMaterial(new DiffuseMaterial(AMaterial.SKELETAL_ANIMATION));
+			setMeshTexture(o, mesh);
 			
 			mRootObject.addChild(o);
 		}
 	}
 	
+	private BufferInfo createJointBuffer(String attributeName, float[] values) {
+		BufferInfo bufferInfo = new BufferInfo(attributeName, SkinningPalette.MAX_INFLUENCES);
+		bufferInfo.bufferType = BufferType.FLOAT_BUFFER;
+		bufferInfo.target = GLES20.GL_ARRAY_BUFFER;
+		bufferInfo.buffer = ByteBuffer.allocateDirect(values.length * AGeometry3D.FLOAT_SIZE_BYTES)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer().put(values).position(0);
+		return bufferInfo;
+	}
+	
+	private void setMeshTexture(BoneAnimationObject3D o, MD5Mesh mesh) {
+		boolean hasTexture = mesh.shader != null && mesh.shader.length() > 0;
+		
+		if(!hasTexture) {
+			o.getMaterial().setUseColor(!hasTexture);
+			o.setColor(0xff000000 + (int)(Math.random() * 0xffffff));
+		} else {
+			int identifier = mResources.getIdentifier(mesh.shader, "drawable", mResources.getResourcePackageName(mResourceId));
+			o.addTexture(loadTexture(identifier, TextureType.DIFFUSE));
+		}
+	}
+	
 	public class MD5Mesh {
 		public String shader;
 		public int numVerts;
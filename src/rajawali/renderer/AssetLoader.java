@@ -0,0 +1,548 @@
+package rajawali.renderer;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import rajawali.AGeometry3D;
+import rajawali.BaseObject3D;
+import rajawali.animation.mesh.VertexAnimationObject3D;
+import rajawali.materials.AMaterial;
+import rajawali.materials.TextureInfo;
+import rajawali.materials.TextureManager;
+import rajawali.parser.IMeshParser;
+import rajawali.util.RajLog;
+
+/**
+ * Loads meshes in the background. Parsing, bitmap decoding and bounds computation run on a pool
+ * of worker threads. Everything that needs the OpenGL context (buffer creation and texture uploads)
+ * is deferred and drained on the OpenGL thread within a per frame time and byte budget so loading
+ * a big scene doesn't cause a visible hitch.
+ * <p>
+ * While a parser runs on a loader thread, geometries, textures and materials don't make any OpenGL
+ * calls. Buffers and textures are created with a handle of 0 and uploaded later by
+ * {@link #processPendingUploads()}, which the renderer calls once per frame.
+ * <pre><code>
+ * protected void initScene() {
+ * 	ObjParser parser = new ObjParser(mContext.getResources(), mTextureManager, R.raw.city_obj);
+ * 	getAssetLoader().load(parser, new AssetLoaderListener() {
+ * 		public void onAssetLoaded(LoadRequest request) {
+ * 			addChild(request.getObject());
+ * 		}
+ * 		public void onAssetLoadFailed(LoadRequest request, Throwable error) {
+ * 		}
+ * 	});
+ * }
+ * </code></pre>
+ *
+ * @see RajawaliRenderer#getAssetLoader()
+ */
+public class AssetLoader {
+	/**
+	 * Default time budget per frame in milliseconds.
+	 */
+	public static final long DEFAULT_FRAME_BUDGET_MS = 4;
+	/**
+	 * Default upload budget per frame in bytes.
+	 */
+	public static final long DEFAULT_FRAME_BUDGET_BYTES = 2 * 1024 * 1024;
+
+	private static final ThreadLocal<Boolean> sLoaderThread = new ThreadLocal<Boolean>() {
+		protected Boolean initialValue() {
+			return Boolean.FALSE;
+		}
+	};
+
+	public enum State {
+		QUEUED,
+		PARSING,
+		UPLOADING,
+		DONE,
+		FAILED,
+		CANCELLED
+	};
+
+	/**
+	 * Receives load results. Both methods are called on the OpenGL thread.
+	 */
+	public interface AssetLoaderListener {
+		void onAssetLoaded(LoadRequest request);
+		void onAssetLoadFailed(LoadRequest request, Throwable error);
+	}
+
+	private final IAssetUploadGL mGL;
+	private final ExecutorService mExecutor;
+	private final ConcurrentLinkedQueue<LoadRequest> mUploadQueue;
+	private final ConcurrentLinkedQueue<LoadRequest> mReleasedRequests;
+	private final ConcurrentLinkedQueue<LoadRequest> mFailedRequests;
+	private LoadRequest mCurrentUpload;
+	private long mFrameBudgetMs = DEFAULT_FRAME_BUDGET_MS;
+	private long mFrameBudgetBytes = DEFAULT_FRAME_BUDGET_BYTES;
+
+	/**
+	 * @param textureManager
+	 *            The texture manager that deferred textures are uploaded with
+	 * @param numThreads
+	 *            The number of worker threads
+	 */
+	public AssetLoader(TextureManager textureManager, int numThreads) {
+		this(new GLES20AssetUploadGL(textureManager), numThreads);
+	}
+
+	/**
+	 * @param gl
+	 *            Uploads and frees the deferred textures and buffers
+	 * @param numThreads
+	 *            The number of worker threads
+	 */
+	public AssetLoader(IAssetUploadGL gl, int numThreads) {
+		mGL = gl;
+		mUploadQueue = new ConcurrentLinkedQueue<LoadRequest>();
+		mReleasedRequests = new ConcurrentLinkedQueue<LoadRequest>();
+		mFailedRequests = new ConcurrentLinkedQueue<LoadRequest>();
+		mExecutor = Executors.newFixedThreadPool(Math.max(1, numThreads), new ThreadFactory() {
+			private int mCount;
+
+			public synchronized Thread newThread(final Runnable r) {
+				Thread thread = new Thread(new Runnable() {
+					public void run() {
+						sLoaderThread.set(Boolean.TRUE);
+						r.run();
+					}
+				}, "AssetLoader-" + (++mCount));
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Indicates whether the calling thread is an asset loader thread. OpenGL objects
+	 * that are created on such a thread are only uploaded later on.
+	 *
+	 * @return
+	 */
+	public static boolean isLoaderThread() {
+		return sLoaderThread.get().booleanValue();
+	}
+
+	/**
+	 * Queues a parser. The returned request is a Future that completes once all data
+	 * has been uploaded. Don't block on it from the OpenGL thread, uploads happen there.
+	 *
+	 * @param parser
+	 * @return
+	 */
+	public LoadRequest load(IMeshParser parser) {
+		return load(parser, null);
+	}
+
+	public LoadRequest load(IMeshParser parser, AssetLoaderListener listener) {
+		LoadRequest request = new LoadRequest(parser, listener);
+		mExecutor.execute(new ParseTask(request));
+		return request;
+	}
+
+	/**
+	 * Uploads pending data until the frame budget has been used up. At least one upload
+	 * step is performed per call so loading always progresses. Must be called on the OpenGL thread.
+	 */
+	public void processPendingUploads() {
+		LoadRequest request;
+		while ((request = mReleasedRequests.poll()) != null)
+			request.releaseUploads();
+		while ((request = mFailedRequests.poll()) != null)
+			request.mListener.onAssetLoadFailed(request, request.mError);
+
+		long start = System.nanoTime();
+		long budgetNs = mFrameBudgetMs * 1000000;
+		long bytes = 0;
+		boolean first = true;
+
+		while (true) {
+			if (mCurrentUpload == null) {
+				mCurrentUpload = mUploadQueue.poll();
+				if (mCurrentUpload == null)
+					return;
+			}
+			if (mCurrentUpload.getState() != State.UPLOADING) {
+				mCurrentUpload = null;
+				continue;
+			}
+
+			UploadStep step = mCurrentUpload.peekStep();
+			if (step == null) {
+				mCurrentUpload.finish();
+				mCurrentUpload = null;
+				continue;
+			}
+
+			if (!first && (bytes + step.getByteSize() > mFrameBudgetBytes || System.nanoTime() - start > budgetNs))
+				return;
+
+			try {
+				step.upload();
+			} catch (RuntimeException e) {
+				mCurrentUpload.fail(e);
+				mCurrentUpload = null;
+				continue;
+			}
+			bytes += step.getByteSize();
+			mCurrentUpload.stepDone();
+			first = false;
+		}
+	}
+
+	public void setFrameBudget(long maxMillis, long maxBytes) {
+		mFrameBudgetMs = maxMillis;
+		mFrameBudgetBytes = maxBytes;
+	}
+
+	public long getFrameBudgetMillis() {
+		return mFrameBudgetMs;
+	}
+
+	public long getFrameBudgetBytes() {
+		return mFrameBudgetBytes;
+	}
+
+	/**
+	 * Returns the number of requests that are waiting for their data to be uploaded.
+	 *
+	 * @return
+	 */
+	public int getNumPendingUploads() {
+		return mUploadQueue.size() + (mCurrentUpload != null ? 1 : 0);
+	}
+
+	/**
+	 * Stops the worker threads. Requests that haven't been parsed yet are cancelled.
+	 */
+	public void shutdown() {
+		List<Runnable> notStarted = mExecutor.shutdownNow();
+		for (int i = 0; i < notStarted.size(); ++i)
+			((ParseTask) notStarted.get(i)).mRequest.cancel(false);
+		LoadRequest request;
+		while ((request = mUploadQueue.poll()) != null)
+			request.cancel(false);
+	}
+
+	private static class ParseTask implements Runnable {
+		private final LoadRequest mRequest;
+
+		ParseTask(LoadRequest request) {
+			mRequest = request;
+		}
+
+		public void run() {
+			mRequest.runParser();
+		}
+	}
+
+	/**
+	 * A single unit of OpenGL work.
+	 */
+	private static abstract class UploadStep {
+		abstract int getByteSize();
+
+		abstract void upload();
+	}
+
+	private class TextureUploadStep extends UploadStep {
+		private final TextureInfo mTextureInfo;
+		private final int mByteSize;
+
+		TextureUploadStep(TextureInfo textureInfo) {
+			mTextureInfo = textureInfo;
+			mByteSize = mGL.getUploadSize(textureInfo);
+		}
+
+		int getByteSize() {
+			return mByteSize;
+		}
+
+		void upload() {
+			mGL.upload(mTextureInfo);
+		}
+	}
+
+	private class GeometryUploadStep extends UploadStep {
+		private final AGeometry3D mGeometry;
+		private final int mByteSize;
+
+		GeometryUploadStep(AGeometry3D geometry) {
+			mGeometry = geometry;
+			mByteSize = mGL.getUploadSize(geometry);
+		}
+
+		int getByteSize() {
+			return mByteSize;
+		}
+
+		void upload() {
+			mGL.upload(mGeometry);
+		}
+	}
+
+	/**
+	 * A queued load. Progress covers the upload phase: it is 0 while parsing and
+	 * reaches 1 when all data has been uploaded.
+	 */
+	public class LoadRequest implements Future<BaseObject3D> {
+		private final IMeshParser mParser;
+		private final AssetLoaderListener mListener;
+		private final CountDownLatch mDoneSignal;
+		private final LinkedList<UploadStep> mSteps;
+		private final ArrayList<TextureInfo> mUploadedTextures;
+		private volatile State mState;
+		private volatile int mNumSteps;
+		private volatile int mNumStepsDone;
+		private volatile Thread mParserThread;
+		private BaseObject3D mObject;
+		private Throwable mError;
+
+		LoadRequest(IMeshParser parser, AssetLoaderListener listener) {
+			mParser = parser;
+			mListener = listener;
+			mDoneSignal = new CountDownLatch(1);
+			mSteps = new LinkedList<UploadStep>();
+			mUploadedTextures = new ArrayList<TextureInfo>();
+			mState = State.QUEUED;
+		}
+
+		void runParser() {
+			synchronized (this) {
+				if (mState != State.QUEUED)
+					return;
+				mState = State.PARSING;
+				mParserThread = Thread.currentThread();
+			}
+
+			BaseObject3D object = null;
+			Throwable error = null;
+			try {
+				if (mParser.parse() != null)
+					object = mParser.getParsedObject();
+				if (object == null)
+					error = new RuntimeException("Parser " + mParser.getClass().getSimpleName() + " didn't produce an object");
+				else
+					collectUploads(object);
+			} catch (Throwable t) {
+				error = t;
+			}
+
+			boolean cancelled;
+			synchronized (this) {
+				mParserThread = null;
+				Thread.interrupted();
+				// -- a cancelled or failed parse still holds shared textures, they are freed on the GL thread
+				mObject = object;
+				cancelled = mState != State.PARSING;
+				if (!cancelled && error != null) {
+					mError = error;
+					mState = State.FAILED;
+				} else if (!cancelled) {
+					mNumSteps = mSteps.size();
+					mState = State.UPLOADING;
+				}
+			}
+
+			if (cancelled) {
+				mReleasedRequests.add(this);
+			} else if (error != null) {
+				RajLog.e("[" + getClass().getCanonicalName() + "] Loading failed: " + error.getMessage());
+				mReleasedRequests.add(this);
+				mDoneSignal.countDown();
+				if (mListener != null)
+					mFailedRequests.add(this);
+			} else {
+				mUploadQueue.add(this);
+			}
+		}
+
+		/**
+		 * Computes the bounds and gathers the data that still needs to be uploaded. Shader programs
+		 * aren't compiled here, materials still create them on first use because adding lights
+		 * after loading would recompile them anyway.
+		 */
+		private void collectUploads(BaseObject3D root) {
+			IdentityHashMap<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+			LinkedList<UploadStep> textures = new LinkedList<UploadStep>();
+			LinkedList<UploadStep> geometries = new LinkedList<UploadStep>();
+			LinkedList<BaseObject3D> stack = new LinkedList<BaseObject3D>();
+			stack.add(root);
+
+			while (!stack.isEmpty()) {
+				BaseObject3D object = stack.removeLast();
+				for (int i = 0; i < object.getNumChildren(); ++i)
+					stack.add(object.getChildAt(i));
+
+				if (object instanceof VertexAnimationObject3D) {
+					VertexAnimationObject3D animObject = (VertexAnimationObject3D) object;
+					for (int i = 0; i < animObject.getNumFrames(); ++i)
+						addGeometry(geometries, seen, animObject.getFrame(i).getGeometry());
+				}
+
+				AGeometry3D geometry = object.getGeometry();
+				if (!object.isContainer() && geometry != null) {
+					if (geometry.getVertices() != null)
+						geometry.getBoundingBox();
+					addGeometry(geometries, seen, geometry);
+				}
+
+				AMaterial material = object.getMaterial();
+				if (material == null || seen.put(material, Boolean.TRUE) != null)
+					continue;
+
+				ArrayList<TextureInfo> textureInfos = material.getTextureInfoList();
+				for (int i = 0; i < textureInfos.size(); ++i) {
+					TextureInfo textureInfo = textureInfos.get(i);
+					if (textureInfo.getTextureId() == 0 && seen.put(textureInfo, Boolean.TRUE) == null)
+						textures.add(new TextureUploadStep(textureInfo));
+				}
+			}
+
+			mSteps.addAll(textures);
+			mSteps.addAll(geometries);
+		}
+
+		private void addGeometry(LinkedList<UploadStep> steps, IdentityHashMap<Object, Boolean> seen, AGeometry3D geometry) {
+			if (geometry != null && seen.put(geometry, Boolean.TRUE) == null)
+				steps.add(new GeometryUploadStep(geometry));
+		}
+
+		UploadStep peekStep() {
+			return mSteps.peek();
+		}
+
+		void stepDone() {
+			UploadStep step = mSteps.removeFirst();
+			if (step instanceof TextureUploadStep)
+				mUploadedTextures.add(((TextureUploadStep) step).mTextureInfo);
+			mNumStepsDone++;
+		}
+
+		void finish() {
+			synchronized (this) {
+				if (mState != State.UPLOADING)
+					return;
+				mState = State.DONE;
+			}
+			mUploadedTextures.clear();
+			mDoneSignal.countDown();
+			if (mListener != null)
+				mListener.onAssetLoaded(this);
+		}
+
+		void fail(Throwable error) {
+			synchronized (this) {
+				if (mState != State.UPLOADING)
+					return;
+				mError = error;
+				mState = State.FAILED;
+			}
+			RajLog.e("[" + getClass().getCanonicalName() + "] Upload failed: " + error.getMessage());
+			releaseUploads();
+			mDoneSignal.countDown();
+			if (mListener != null)
+				mListener.onAssetLoadFailed(this, error);
+		}
+
+		/**
+		 * Frees everything that was created for this request, in whatever state it was
+		 * cancelled or failed. Called on the OpenGL thread.
+		 */
+		void releaseUploads() {
+			mSteps.clear();
+			for (int i = 0; i < mUploadedTextures.size(); ++i)
+				if (mUploadedTextures.get(i).getRegistry() == null)
+					mGL.delete(mUploadedTextures.get(i));
+			mUploadedTextures.clear();
+			// -- the materials release the shared textures, which removes those nobody else uses
+			if (mObject != null)
+				mGL.destroy(mObject);
+			mObject = null;
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			State previous;
+			synchronized (this) {
+				previous = mState;
+				if (previous == State.DONE || previous == State.FAILED || previous == State.CANCELLED)
+					return false;
+				mState = State.CANCELLED;
+				if (mayInterruptIfRunning && mParserThread != null)
+					mParserThread.interrupt();
+			}
+			if (previous == State.UPLOADING)
+				mReleasedRequests.add(this);
+			mDoneSignal.countDown();
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return mState == State.CANCELLED;
+		}
+
+		public boolean isDone() {
+			return mDoneSignal.getCount() == 0;
+		}
+
+		public BaseObject3D get() throws InterruptedException, ExecutionException {
+			mDoneSignal.await();
+			return getResult();
+		}
+
+		public BaseObject3D get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+				TimeoutException {
+			if (!mDoneSignal.await(timeout, unit))
+				throw new TimeoutException();
+			return getResult();
+		}
+
+		private BaseObject3D getResult() throws ExecutionException {
+			if (mState == State.CANCELLED)
+				throw new CancellationException();
+			if (mState == State.FAILED)
+				throw new ExecutionException(mError);
+			return mObject;
+		}
+
+		public State getState() {
+			return mState;
+		}
+
+		/**
+		 * Returns the loaded object or null if it hasn't been loaded (yet).
+		 *
+		 * @return
+		 */
+		public BaseObject3D getObject() {
+			return mState == State.DONE ? mObject : null;
+		}
+
+		public IMeshParser getParser() {
+			return mParser;
+		}
+
+		public float getProgress() {
+			State state = mState;
+			if (state == State.DONE)
+				return 1;
+			if (state != State.UPLOADING || mNumSteps == 0)
+				return 0;
+			return (float) mNumStepsDone / mNumSteps;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package rajawali.renderer;
+
+import rajawali.AGeometry3D;
+import rajawali.BaseObject3D;
+import rajawali.materials.TextureInfo;
+import rajawali.materials.TextureManager;
+
+/**
+ * Uploads deferred textures through the texture manager and deferred buffers through their
+ * geometries. This is what the asset loader uses on a device.
+ */
+public class GLES20AssetUploadGL implements IAssetUploadGL {
+	private final TextureManager mTextureManager;
+
+	public GLES20AssetUploadGL(TextureManager textureManager) {
+		mTextureManager = textureManager;
+	}
+
+	public int getUploadSize(TextureInfo textureInfo) {
+		return textureInfo.getWidth() * textureInfo.getHeight() * 4;
+	}
+
+	public int getUploadSize(AGeometry3D geometry) {
+		return geometry.getPendingUploadSize();
+	}
+
+	public void upload(TextureInfo textureInfo) {
+		mTextureManager.uploadDeferredTexture(textureInfo);
+	}
+
+	public void upload(AGeometry3D geometry) {
+		geometry.uploadPendingBuffers();
+	}
+
+	public void delete(TextureInfo textureInfo) {
+		mTextureManager.removeTexture(textureInfo);
+	}
+
+	public void destroy(BaseObject3D object) {
+		object.destroy();
+	}
+}
@@ -0,0 +1,54 @@
+package rajawali.renderer;
+
+import rajawali.AGeometry3D;
+import rajawali.BaseObject3D;
+import rajawali.materials.TextureInfo;
+
+/**
+ * The OpenGL work the asset loader defers to the OpenGL thread: uploading the textures and
+ * buffers of a parsed object and freeing them again when a request is cancelled or fails. The
+ * loader only talks to OpenGL through this interface, so a stand-in that doesn't need a GL
+ * context can be plugged in, for instance to test the loader on a plain JVM.
+ *
+ * @see AssetLoader#AssetLoader(IAssetUploadGL, int)
+ */
+public interface IAssetUploadGL {
+	/**
+	 * Returns the number of bytes an upload counts against the frame budget.
+	 *
+	 * @param textureInfo
+	 * @return
+	 */
+	public int getUploadSize(TextureInfo textureInfo);
+
+	public int getUploadSize(AGeometry3D geometry);
+
+	/**
+	 * Uploads a texture that was created on a loader thread.
+	 *
+	 * @param textureInfo
+	 */
+	public void upload(TextureInfo textureInfo);
+
+	/**
+	 * Creates the buffers of a geometry that was created on a loader thread.
+	 *
+	 * @param geometry
+	 */
+	public void upload(AGeometry3D geometry);
+
+	/**
+	 * Deletes a texture that was uploaded for a request and isn't shared through the texture
+	 * registry.
+	 *
+	 * @param textureInfo
+	 */
+	public void delete(TextureInfo textureInfo);
+
+	/**
+	 * Destroys a parsed object. Its materials release the shared textures they hold.
+	 *
+	 * @param object
+	 */
+	public void destroy(BaseObject3D object);
+}
@@ -12,9 +12,13 @@ import javax.microedition.khronos.opengles.GL10;
 import rajawali.BaseObject3D;
 import rajawali.BufferInfo;
 import rajawali.Camera;
+import rajawali.VertexArrayCache;
 import rajawali.animation.TimerManager;
+import rajawali.animation.mesh.AnimationUpdateStats;
+import rajawali.animation.mesh.PoseCache;
 import rajawali.filters.IPostProcessingFilter;
 import rajawali.materials.AMaterial;
+import rajawali.materials.ShaderProgramCache;
 import rajawali.materials.SimpleMaterial;
 import rajawali.materials.SkyboxMaterial;
 import rajawali.materials.TextureInfo;
@@ -64,7 +68,12 @@ public class RajawaliRenderer implements GLSurfaceView.Renderer, INode {
 	protected boolean mEnableDepthBuffer = true;
 
 	protected TextureManager mTextureManager;
+	protected AnimationUpdateStats mAnimationStats = new AnimationUpdateStats();
+	protected ShaderProgramCache mShaderProgramCache = new ShaderProgramCache();
+	protected VertexArrayCache mVertexArrayCache = new VertexArrayCache();
+	protected PoseCache mPoseCache = new PoseCache();
 	protected PostProcessingRenderer mPostProcessingRenderer;
+	protected AssetLoader mAssetLoader;
 
 	protected RayPickInfo mRayPickInfo = new RayPickInfo();
 	private boolean doPickRay = false;
@@ -89,6 +98,10 @@ public class RajawaliRenderer implements GLSurfaceView.Renderer, INode {
 	protected boolean mUsesCoverageAa;
 	
 	public static boolean supportsUIntBuffers = false;
+	/**
+	 * Whether vertex attributes can be half floats, see {@link rajawali.BufferInfo#GL_HALF_FLOAT_OES}
+	 */
+	public static boolean supportsHalfFloatVertices = false;
 	
 	protected boolean mSceneInitialized;
 	/**
@@ -124,6 +137,12 @@ public class RajawaliRenderer implements GLSurfaceView.Renderer, INode {
 	}
 
 	public void onDrawFrame(GL10 glUnused) {
+		mShaderProgramCache.makeCurrent();
+		mShaderProgramCache.nextFrame();
+		mVertexArrayCache.makeCurrent();
+		mVertexArrayCache.nextFrame();
+		mPoseCache.nextFrame();
+		mAnimationStats.nextFrame();
 		render();
 		++mFrameCount;
 	    if (mFrameCount % 50 == 0) {
@@ -146,6 +165,8 @@ public class RajawaliRenderer implements GLSurfaceView.Renderer, INode {
 
 		ColorPickerInfo pickerInfo = mPickerInfo;
 		mTextureManager.validateTextures();
+		if (mAssetLoader != null)
+			mAssetLoader.processPendingUploads();
 		
 		if (pickerInfo != null) {
 			if(mReloadPickerInfo) pickerInfo.getPicker().reload();
@@ -238,13 +259,21 @@ public class RajawaliRenderer implements GLSurfaceView.Renderer, INode {
 	 * 
 	 */
 	public void onSurfaceCreated(GL10 gl, EGLConfig config) {		
-		supportsUIntBuffers = gl.glGetString(GL10.GL_EXTENSIONS).indexOf("GL_OES_element_index_uint") > -1;
+		// -- the programs of the previous context are gone, create all known variants up front
+		mShaderProgramCache.makeCurrent();
+		mShaderProgramCache.clear();
+		mShaderProgramCache.warmUp();
+		mVertexArrayCache.makeCurrent();
+		mVertexArrayCache.clear();
+		String extensions = gl.glGetString(GL10.GL_EXTENSIONS);
+		supportsUIntBuffers = extensions.indexOf("GL_OES_element_index_uint") > -1;
+		supportsHalfFloatVertices = extensions.indexOf("GL_OES_vertex_half_float") > -1;
 		
 		GLES20.glFrontFace(GLES20.GL_CCW);
 		GLES20.glCullFace(GLES20.GL_BACK);
 
 		if (!mSceneInitialized) {
-			mTextureManager = new TextureManager();
+			mTextureManager = new TextureManager(mContext.getResources());
 			initScene();
 		}
 
@@ -324,6 +353,10 @@ public class RajawaliRenderer implements GLSurfaceView.Renderer, INode {
 	public void onSurfaceDestroyed() {
 		stopRendering();
 		TimerManager.getInstance().clear();
+		if (mAssetLoader != null) {
+			mAssetLoader.shutdown();
+			mAssetLoader = null;
+		}
 		if (mTextureManager != null)
 			mTextureManager.reset();
 		destroyScene();
@@ -447,6 +480,55 @@ public class RajawaliRenderer implements GLSurfaceView.Renderer, INode {
 		return mTextureManager;
 	}
 
+	/**
+	 * Returns the shader programs of this renderer's context.
+	 * 
+	 * @return
+	 */
+	public ShaderProgramCache getShaderProgramCache() {
+		return mShaderProgramCache;
+	}
+
+	/**
+	 * Returns the vertex arrays of this renderer's context.
+	 * 
+	 * @return
+	 */
+	public VertexArrayCache getVertexArrayCache() {
+		return mVertexArrayCache;
+	}
+
+	/**
+	 * Returns the poses shared by the skeletons of this renderer.
+	 * 
+	 * @return
+	 */
+	public PoseCache getPoseCache() {
+		return mPoseCache;
+	}
+
+	/**
+	 * Returns the number of animation updates, throttled and culled updates of this renderer.
+	 * 
+	 * @return
+	 */
+	public AnimationUpdateStats getAnimationUpdateStats() {
+		return mAnimationStats;
+	}
+	
+	/**
+	 * Returns the asset loader for this renderer. It is created on first use with
+	 * one worker thread per available processor. Call this from initScene() or later,
+	 * the texture manager doesn't exist before that.
+	 * 
+	 * @return
+	 */
+	public AssetLoader getAssetLoader() {
+		if (mAssetLoader == null)
+			mAssetLoader = new AssetLoader(mTextureManager, Runtime.getRuntime().availableProcessors());
+		return mAssetLoader;
+	}
+
 	public void addChild(BaseObject3D child) {
 		synchronized (mChildren) {
 			mChildren.add(child);
@@ -463,6 +545,7 @@ public class RajawaliRenderer implements GLSurfaceView.Renderer, INode {
 		mSkybox = new Cube(700, true, false);
 		mSkybox.setDoubleSided(true);
 		TextureInfo tInfo = mTextureManager.addTexture(BitmapFactory.decodeResource(mContext.getResources(), resourceId));
+		tInfo.setResourceId(resourceId);
 		SimpleMaterial material = new SimpleMaterial();
 		material.addTexture(tInfo);
 		mSkybox.setMaterial(material);
@@ -0,0 +1,154 @@
+package rajawali.util;
+
+import java.util.ArrayList;
+
+import rajawali.AGeometry3D;
+import rajawali.BaseObject3D;
+import rajawali.BufferInfo;
+import rajawali.Geometry3DInterleaved;
+import rajawali.Geometry3DSeparate;
+import rajawali.VertexArrayCache;
+import rajawali.materials.AMaterial;
+import rajawali.renderer.AssetLoader;
+import android.opengl.GLES20;
+
+/**
+ * Converts separate geometries into interleaved ones, so every vertex is fetched from one place
+ * and a draw binds a single vertex buffer instead of one for every attribute.
+ * <p>
+ * Only the attributes the object's material reads are kept. The position comes first so passes
+ * that only read the position, like color picking, use the start of every vertex. It is
+ * followed by the normal, texture coordinates, color and the skinning attributes.
+ * <p>
+ * Objects should be optimized after their material is set and before they are cloned. Attributes
+ * that were left out can't come back when the material changes later on, and an interleaved
+ * geometry ignores {@link BaseObject3D#setColor(int)}. Vertex animation swaps the buffers of
+ * its frames, so objects with vertex animation are left as they are.
+ * <p>
+ * Attributes can be quantized on the way, see {@link Geometry3DSeparate#interleave(int, String...)}.
+ * Positions of skinned objects stay floats, because skinning moves them in model space before
+ * the quantization could be undone.
+ */
+public class GeometryOptimizer {
+	private static final String[] ATTRIBUTE_ORDER = { AMaterial.ATTR_POSITION, AMaterial.ATTR_NORMAL,
+			AMaterial.ATTR_TEXTURECOORD, AMaterial.ATTR_COLOR, AMaterial.ATTR_JOINT_INDEX, AMaterial.ATTR_JOINT_WEIGHT };
+
+	/**
+	 * Interleaves the geometry of an object and optionally those of its children.
+	 *
+	 * @param object
+	 * @param recursive
+	 * @return The number of geometries that were interleaved
+	 */
+	public static int interleave(BaseObject3D object, boolean recursive) {
+		return interleave(object, recursive, 0);
+	}
+
+	/**
+	 * Interleaves and quantizes the geometry of an object and optionally those of its children.
+	 *
+	 * @param object
+	 * @param recursive
+	 * @param quantization
+	 *            A combination of the Geometry3DSeparate.QUANTIZE_* flags
+	 * @return The number of geometries that were interleaved
+	 */
+	public static int interleave(BaseObject3D object, boolean recursive, int quantization) {
+		int numInterleaved = interleave(object, quantization) ? 1 : 0;
+		if (recursive) {
+			for (int i = 0; i < object.getNumChildren(); ++i)
+				numInterleaved += interleave(object.getChildAt(i), true, quantization);
+		}
+		return numInterleaved;
+	}
+
+	/**
+	 * Interleaves the geometry of an object. The buffers of the separate geometry are deleted.
+	 *
+	 * @param object
+	 * @return false when the object has no separate geometry that can be interleaved
+	 */
+	public static boolean interleave(BaseObject3D object) {
+		return interleave(object, 0);
+	}
+
+	/**
+	 * Interleaves and quantizes the geometry of an object. The buffers of the separate geometry
+	 * are deleted.
+	 *
+	 * @param object
+	 * @param quantization
+	 *            A combination of the Geometry3DSeparate.QUANTIZE_* flags
+	 * @return false when the object has no separate geometry that can be interleaved
+	 */
+	public static boolean interleave(BaseObject3D object, int quantization) {
+		AGeometry3D geometry = object.getGeometry();
+		AMaterial material = object.getMaterial();
+		if (object.isContainer() || !(geometry instanceof Geometry3DSeparate) || material == null
+				|| material.isVertexAnimationEnabled())
+			return false;
+
+		if (material.isSkeletalAnimationEnabled())
+			quantization &= ~Geometry3DSeparate.QUANTIZE_POSITIONS;
+		Geometry3DInterleaved interleaved = ((Geometry3DSeparate) geometry).interleave(quantization,
+				getAttributeOrder(geometry, material));
+		if (interleaved == null) {
+			RajLog.w("[" + GeometryOptimizer.class.getName() + "] Can't interleave the geometry of " + object.getName());
+			return false;
+		}
+		object.setData(interleaved);
+		release(geometry);
+		return true;
+	}
+
+	/**
+	 * Returns the attributes of a geometry that a material reads, in the order they are
+	 * interleaved. The position is always kept.
+	 *
+	 * @param geometry
+	 * @param material
+	 * @return
+	 */
+	public static String[] getAttributeOrder(AGeometry3D geometry, AMaterial material) {
+		ArrayList<String> names = new ArrayList<String>();
+		for (String name : ATTRIBUTE_ORDER) {
+			if (geometry.getBuffer(name) != null && (name == AMaterial.ATTR_POSITION || material.usesAttribute(name)))
+				names.add(name);
+		}
+		// -- attributes of custom materials go last
+		for (String name : geometry.getVertexBufferNames().keySet()) {
+			if (name != null && !names.contains(name) && !isKnownAttribute(name) && material.usesAttribute(name))
+				names.add(name);
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	private static boolean isKnownAttribute(String name) {
+		for (String knownName : ATTRIBUTE_ORDER) {
+			if (knownName.equals(name))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Deletes the buffers of a geometry that was replaced, without touching its data. Nothing was
+	 * uploaded for geometries that were created on a loader thread.
+	 */
+	private static void release(AGeometry3D geometry) {
+		if (AssetLoader.isLoaderThread())
+			return;
+		VertexArrayCache.getInstance().release(geometry);
+		int[] handles = new int[geometry.getVertexBufferInfos().size() + 1];
+		int numHandles = 0;
+		for (BufferInfo bufferInfo : geometry.getVertexBufferInfos()) {
+			if (bufferInfo != null && bufferInfo.bufferHandle > 0)
+				handles[numHandles++] = bufferInfo.bufferHandle;
+		}
+		BufferInfo indexBufferInfo = geometry.getIndexBufferInfo();
+		if (indexBufferInfo != null && indexBufferInfo.bufferHandle > 0)
+			handles[numHandles++] = indexBufferInfo.bufferHandle;
+		if (numHandles > 0)
+			GLES20.glDeleteBuffers(numHandles, handles, 0);
+	}
+}
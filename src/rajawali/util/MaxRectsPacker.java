@@ -0,0 +1,147 @@
+package rajawali.util;
+
+import java.util.ArrayList;
+
+/**
+ * Packs rectangles into a fixed size area using the MaxRects algorithm with the
+ * best short side fit heuristic. All maximal free rectangles are tracked, each new
+ * rectangle goes into the free rectangle where it leaves the smallest leftover on its
+ * shortest side. Rectangles aren't rotated.
+ * <p>
+ * This class doesn't depend on any Android or OpenGL classes.
+ */
+public class MaxRectsPacker {
+	private final int mWidth;
+	private final int mHeight;
+	/**
+	 * Free rectangles stored as x, y, width, height
+	 */
+	private ArrayList<int[]> mFreeRects;
+	private long mUsedArea;
+	private int mUsedWidth;
+	private int mUsedHeight;
+
+	public MaxRectsPacker(int width, int height) {
+		mWidth = width;
+		mHeight = height;
+		mFreeRects = new ArrayList<int[]>();
+		mFreeRects.add(new int[] { 0, 0, width, height });
+	}
+
+	/**
+	 * Finds a place for a rectangle and marks it as used.
+	 *
+	 * @param width
+	 * @param height
+	 * @param position
+	 *            Receives the x and y position of the rectangle
+	 * @return false when the rectangle doesn't fit
+	 */
+	public boolean insert(int width, int height, int[] position) {
+		int bestShortSide = Integer.MAX_VALUE;
+		int bestLongSide = Integer.MAX_VALUE;
+		int bestX = -1, bestY = -1;
+
+		int num = mFreeRects.size();
+		for (int i = 0; i < num; ++i) {
+			int[] free = mFreeRects.get(i);
+			if (free[2] < width || free[3] < height)
+				continue;
+			int leftoverX = free[2] - width;
+			int leftoverY = free[3] - height;
+			int shortSide = Math.min(leftoverX, leftoverY);
+			int longSide = Math.max(leftoverX, leftoverY);
+			if (shortSide < bestShortSide || (shortSide == bestShortSide && longSide < bestLongSide)) {
+				bestShortSide = shortSide;
+				bestLongSide = longSide;
+				bestX = free[0];
+				bestY = free[1];
+			}
+		}
+		if (bestX < 0)
+			return false;
+
+		place(bestX, bestY, width, height);
+		position[0] = bestX;
+		position[1] = bestY;
+		return true;
+	}
+
+	private void place(int x, int y, int width, int height) {
+		// -- split every free rectangle that overlaps the new one into up to four maximal rectangles
+		ArrayList<int[]> split = new ArrayList<int[]>();
+		for (int i = mFreeRects.size() - 1; i >= 0; --i) {
+			int[] free = mFreeRects.get(i);
+			if (x >= free[0] + free[2] || x + width <= free[0] || y >= free[1] + free[3] || y + height <= free[1])
+				continue;
+			mFreeRects.remove(i);
+			if (x > free[0])
+				split.add(new int[] { free[0], free[1], x - free[0], free[3] });
+			if (x + width < free[0] + free[2])
+				split.add(new int[] { x + width, free[1], free[0] + free[2] - x - width, free[3] });
+			if (y > free[1])
+				split.add(new int[] { free[0], free[1], free[2], y - free[1] });
+			if (y + height < free[1] + free[3])
+				split.add(new int[] { free[0], y + height, free[2], free[1] + free[3] - y - height });
+		}
+		mFreeRects.addAll(split);
+		prune();
+
+		mUsedArea += (long) width * height;
+		mUsedWidth = Math.max(mUsedWidth, x + width);
+		mUsedHeight = Math.max(mUsedHeight, y + height);
+	}
+
+	/**
+	 * Removes free rectangles that are contained in another free rectangle.
+	 */
+	private void prune() {
+		for (int i = 0; i < mFreeRects.size(); ++i) {
+			int[] a = mFreeRects.get(i);
+			for (int j = i + 1; j < mFreeRects.size(); ++j) {
+				int[] b = mFreeRects.get(j);
+				if (contains(b, a)) {
+					mFreeRects.remove(i--);
+					break;
+				}
+				if (contains(a, b))
+					mFreeRects.remove(j--);
+			}
+		}
+	}
+
+	private static boolean contains(int[] outer, int[] inner) {
+		return inner[0] >= outer[0] && inner[1] >= outer[1] && inner[0] + inner[2] <= outer[0] + outer[2]
+				&& inner[1] + inner[3] <= outer[1] + outer[3];
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * Returns the right most edge of all placed rectangles.
+	 *
+	 * @return
+	 */
+	public int getUsedWidth() {
+		return mUsedWidth;
+	}
+
+	/**
+	 * Returns the bottom most edge of all placed rectangles.
+	 *
+	 * @return
+	 */
+	public int getUsedHeight() {
+		return mUsedHeight;
+	}
+
+	public long getUsedArea() {
+		return mUsedArea;
+	}
+}
@@ -0,0 +1,379 @@
+package rajawali.util;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Generates smooth vertex normals and tangents from flat vertex and index arrays.
+ * <p>
+ * The faces around every vertex are collected once, when the generator is created. Every call
+ * first computes a weighted normal for each face corner and then sums the corners of each
+ * vertex, so both passes are linear and write to separate elements. Large meshes are split into
+ * chunks and multiple frames are spread over the shared {@link WorkerPool}. The scratch arrays
+ * are kept between calls, so generating the normals of another frame doesn't allocate.
+ * <p>
+ * A generator can be used by one thread at a time.
+ */
+public class NormalGenerator {
+	/**
+	 * Meshes with fewer faces are done on the calling thread only
+	 */
+	public static final int MIN_PARALLEL_FACES = 4096;
+
+	/**
+	 * How the faces around a vertex contribute to its normal
+	 */
+	public enum Weighting {
+		/**
+		 * Every face counts the same
+		 */
+		FACE,
+		/**
+		 * Faces count by their area
+		 */
+		AREA,
+		/**
+		 * Faces count by their angle at the vertex, which doesn't depend on how the surface is
+		 * triangulated
+		 */
+		ANGLE
+	}
+
+	private final int[] mIndices;
+	private final int mNumFaces;
+	private final int mNumVertices;
+	/**
+	 * The first corner of every vertex in mCorners, the last entry is the number of corners
+	 */
+	private final int[] mCornerStart;
+	/**
+	 * Positions in the index array, grouped by vertex
+	 */
+	private final int[] mCorners;
+	private Weighting mWeighting = Weighting.FACE;
+
+	private final ChunkTask[] mChunkTasks;
+	private FrameTask[] mFrameTasks;
+	private float[] mCornerNormals;
+	private float[] mFaceTangents;
+
+	private class ChunkTask implements Runnable {
+		int mFaceStart, mFaceEnd, mVertexStart, mVertexEnd;
+		boolean mGather;
+		float[] mVertices, mNormals;
+		FloatBuffer mNormalBuffer;
+
+		public void run() {
+			if (mGather)
+				gatherNormals(mCornerNormals, mVertexStart, mVertexEnd, mNormals, mNormalBuffer);
+			else
+				computeCornerNormals(mVertices, mCornerNormals, mFaceStart, mFaceEnd);
+		}
+	}
+
+	private class FrameTask implements Runnable {
+		int mFirst, mStep;
+		float[][] mVertices, mNormals;
+		float[] mScratch;
+
+		public void run() {
+			if (mScratch == null)
+				mScratch = new float[mIndices.length * 3];
+			for (int i = mFirst; i < mVertices.length; i += mStep) {
+				computeCornerNormals(mVertices[i], mScratch, 0, mNumFaces);
+				gatherNormals(mScratch, 0, mNumVertices, mNormals[i], null);
+			}
+		}
+	}
+
+	/**
+	 * @param indices
+	 *            Three indices per triangle
+	 * @param numVertices
+	 */
+	public NormalGenerator(int[] indices, int numVertices) {
+		mIndices = indices;
+		mNumFaces = indices.length / 3;
+		mNumVertices = numVertices;
+
+		// -- counting sort of the corners by vertex
+		mCornerStart = new int[numVertices + 1];
+		mCorners = new int[mNumFaces * 3];
+		for (int i = 0; i < mCorners.length; ++i)
+			mCornerStart[indices[i] + 1]++;
+		for (int i = 0; i < numVertices; ++i)
+			mCornerStart[i + 1] += mCornerStart[i];
+		int[] next = new int[numVertices];
+		System.arraycopy(mCornerStart, 0, next, 0, numVertices);
+		for (int i = 0; i < mCorners.length; ++i)
+			mCorners[next[indices[i]]++] = i;
+
+		int numTasks = mNumFaces >= MIN_PARALLEL_FACES ? WorkerPool.getNumWorkers() + 1 : 1;
+		mChunkTasks = new ChunkTask[numTasks];
+		for (int i = 0; i < numTasks; ++i)
+			mChunkTasks[i] = new ChunkTask();
+	}
+
+	public void setWeighting(Weighting weighting) {
+		mWeighting = weighting;
+	}
+
+	public Weighting getWeighting() {
+		return mWeighting;
+	}
+
+	public int getNumVertices() {
+		return mNumVertices;
+	}
+
+	/**
+	 * Calculates the normals of a mesh.
+	 *
+	 * @param vertices
+	 *            Three floats per vertex
+	 * @param normals
+	 *            Receives three floats per vertex
+	 */
+	public void calculateNormals(float[] vertices, float[] normals) {
+		calculateNormals(vertices, normals, null);
+	}
+
+	/**
+	 * Calculates the normals of a mesh straight into a buffer, with absolute puts. The position
+	 * of the buffer doesn't change.
+	 *
+	 * @param vertices
+	 *            Three floats per vertex
+	 * @param normals
+	 *            Receives three floats per vertex
+	 */
+	public void calculateNormals(float[] vertices, FloatBuffer normals) {
+		calculateNormals(vertices, null, normals);
+	}
+
+	/**
+	 * Calculates the normals of several frames that share the indices, the frames are spread
+	 * over the worker threads.
+	 *
+	 * @param vertices
+	 *            The vertices of every frame, three floats per vertex
+	 * @param normals
+	 *            Receives the normals of every frame, three floats per vertex
+	 */
+	public void calculateNormals(float[][] vertices, float[][] normals) {
+		int numTasks = Math.min(vertices.length, WorkerPool.getNumWorkers() + 1);
+		if (mFrameTasks == null || mFrameTasks.length < numTasks) {
+			mFrameTasks = new FrameTask[numTasks];
+			for (int i = 0; i < numTasks; ++i)
+				mFrameTasks[i] = new FrameTask();
+		}
+		for (int i = 0; i < numTasks; ++i) {
+			FrameTask task = mFrameTasks[i];
+			task.mFirst = i;
+			task.mStep = numTasks;
+			task.mVertices = vertices;
+			task.mNormals = normals;
+		}
+		WorkerPool.run(mFrameTasks, numTasks);
+		for (int i = 0; i < numTasks; ++i) {
+			mFrameTasks[i].mVertices = null;
+			mFrameTasks[i].mNormals = null;
+		}
+	}
+
+	/**
+	 * Calculates tangents from the texture coordinates, orthogonal to the normals. The fourth
+	 * float of a tangent is 1 or -1, the handedness of the texture space: the bitangent is
+	 * cross(normal, tangent) * w.
+	 *
+	 * @param vertices
+	 *            Three floats per vertex
+	 * @param normals
+	 *            Three floats per vertex, unit length
+	 * @param texCoords
+	 *            Two floats per vertex
+	 * @param tangents
+	 *            Receives four floats per vertex
+	 */
+	public void calculateTangents(float[] vertices, float[] normals, float[] texCoords, float[] tangents) {
+		if (mFaceTangents == null)
+			mFaceTangents = new float[mNumFaces * 6];
+		final float[] faceTangents = mFaceTangents;
+		final int[] indices = mIndices;
+
+		for (int f = 0; f < mNumFaces; ++f) {
+			int a = indices[f * 3], b = indices[f * 3 + 1], c = indices[f * 3 + 2];
+			float e1x = vertices[b * 3] - vertices[a * 3];
+			float e1y = vertices[b * 3 + 1] - vertices[a * 3 + 1];
+			float e1z = vertices[b * 3 + 2] - vertices[a * 3 + 2];
+			float e2x = vertices[c * 3] - vertices[a * 3];
+			float e2y = vertices[c * 3 + 1] - vertices[a * 3 + 1];
+			float e2z = vertices[c * 3 + 2] - vertices[a * 3 + 2];
+			float s1 = texCoords[b * 2] - texCoords[a * 2], t1 = texCoords[b * 2 + 1] - texCoords[a * 2 + 1];
+			float s2 = texCoords[c * 2] - texCoords[a * 2], t2 = texCoords[c * 2 + 1] - texCoords[a * 2 + 1];
+			float det = s1 * t2 - s2 * t1;
+			float r = det == 0 ? 0 : 1 / det;
+			int o = f * 6;
+			faceTangents[o] = (t2 * e1x - t1 * e2x) * r;
+			faceTangents[o + 1] = (t2 * e1y - t1 * e2y) * r;
+			faceTangents[o + 2] = (t2 * e1z - t1 * e2z) * r;
+			faceTangents[o + 3] = (s1 * e2x - s2 * e1x) * r;
+			faceTangents[o + 4] = (s1 * e2y - s2 * e1y) * r;
+			faceTangents[o + 5] = (s1 * e2z - s2 * e1z) * r;
+		}
+
+		final int[] cornerStart = mCornerStart;
+		final int[] corners = mCorners;
+		for (int v = 0; v < mNumVertices; ++v) {
+			float tx = 0, ty = 0, tz = 0, bx = 0, by = 0, bz = 0;
+			for (int c = cornerStart[v], last = cornerStart[v + 1]; c < last; ++c) {
+				int o = corners[c] / 3 * 6;
+				tx += faceTangents[o];
+				ty += faceTangents[o + 1];
+				tz += faceTangents[o + 2];
+				bx += faceTangents[o + 3];
+				by += faceTangents[o + 4];
+				bz += faceTangents[o + 5];
+			}
+			float nx = normals[v * 3], ny = normals[v * 3 + 1], nz = normals[v * 3 + 2];
+			// -- Gram-Schmidt, then the handedness from the summed bitangent
+			float dot = nx * tx + ny * ty + nz * tz;
+			tx -= nx * dot;
+			ty -= ny * dot;
+			tz -= nz * dot;
+			float length = (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+			float invLength = length == 0 ? 0 : 1 / length;
+			float w = (ny * tz - nz * ty) * bx + (nz * tx - nx * tz) * by + (nx * ty - ny * tx) * bz;
+			tangents[v * 4] = tx * invLength;
+			tangents[v * 4 + 1] = ty * invLength;
+			tangents[v * 4 + 2] = tz * invLength;
+			tangents[v * 4 + 3] = w < 0 ? -1 : 1;
+		}
+	}
+
+	private void calculateNormals(float[] vertices, float[] normals, FloatBuffer normalBuffer) {
+		if (mCornerNormals == null)
+			mCornerNormals = new float[mIndices.length * 3];
+
+		int numTasks = mChunkTasks.length;
+		if (numTasks == 1) {
+			computeCornerNormals(vertices, mCornerNormals, 0, mNumFaces);
+			gatherNormals(mCornerNormals, 0, mNumVertices, normals, normalBuffer);
+			return;
+		}
+
+		int faceChunk = (mNumFaces + numTasks - 1) / numTasks;
+		int vertexChunk = (mNumVertices + numTasks - 1) / numTasks;
+		for (int i = 0; i < numTasks; ++i) {
+			ChunkTask task = mChunkTasks[i];
+			task.mFaceStart = Math.min(mNumFaces, i * faceChunk);
+			task.mFaceEnd = Math.min(mNumFaces, task.mFaceStart + faceChunk);
+			task.mVertexStart = Math.min(mNumVertices, i * vertexChunk);
+			task.mVertexEnd = Math.min(mNumVertices, task.mVertexStart + vertexChunk);
+			task.mVertices = vertices;
+			task.mNormals = normals;
+			task.mNormalBuffer = normalBuffer;
+			task.mGather = false;
+		}
+		WorkerPool.run(mChunkTasks, numTasks);
+		// -- all corners are done, the vertices can be summed
+		for (int i = 0; i < numTasks; ++i)
+			mChunkTasks[i].mGather = true;
+		WorkerPool.run(mChunkTasks, numTasks);
+		for (int i = 0; i < numTasks; ++i) {
+			ChunkTask task = mChunkTasks[i];
+			task.mVertices = null;
+			task.mNormals = null;
+			task.mNormalBuffer = null;
+		}
+	}
+
+	/**
+	 * Writes the weighted face normal of every corner of the faces.
+	 */
+	private void computeCornerNormals(float[] vertices, float[] cornerNormals, int faceStart, int faceEnd) {
+		final int[] indices = mIndices;
+		final Weighting weighting = mWeighting;
+
+		for (int f = faceStart; f < faceEnd; ++f) {
+			int i = f * 3;
+			int a = indices[i] * 3, b = indices[i + 1] * 3, c = indices[i + 2] * 3;
+			float abx = vertices[b] - vertices[a], aby = vertices[b + 1] - vertices[a + 1], abz = vertices[b + 2] - vertices[a + 2];
+			float acx = vertices[c] - vertices[a], acy = vertices[c + 1] - vertices[a + 1], acz = vertices[c + 2] - vertices[a + 2];
+			// -- the cross product is as long as twice the area
+			float nx = aby * acz - abz * acy;
+			float ny = abz * acx - abx * acz;
+			float nz = abx * acy - aby * acx;
+
+			float wa = 1, wb = 1, wc = 1;
+			if (weighting != Weighting.AREA) {
+				float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+				if (length > 0) {
+					nx /= length;
+					ny /= length;
+					nz /= length;
+				}
+				if (weighting == Weighting.ANGLE) {
+					float bcx = vertices[c] - vertices[b], bcy = vertices[c + 1] - vertices[b + 1], bcz = vertices[c + 2] - vertices[b + 2];
+					float ab = (float) Math.sqrt(abx * abx + aby * aby + abz * abz);
+					float ac = (float) Math.sqrt(acx * acx + acy * acy + acz * acz);
+					float bc = (float) Math.sqrt(bcx * bcx + bcy * bcy + bcz * bcz);
+					wa = angle(abx * acx + aby * acy + abz * acz, ab * ac);
+					wb = angle(-(abx * bcx + aby * bcy + abz * bcz), ab * bc);
+					wc = (float) Math.PI - wa - wb;
+				}
+			}
+
+			int o = i * 3;
+			cornerNormals[o] = nx * wa;
+			cornerNormals[o + 1] = ny * wa;
+			cornerNormals[o + 2] = nz * wa;
+			cornerNormals[o + 3] = nx * wb;
+			cornerNormals[o + 4] = ny * wb;
+			cornerNormals[o + 5] = nz * wb;
+			cornerNormals[o + 6] = nx * wc;
+			cornerNormals[o + 7] = ny * wc;
+			cornerNormals[o + 8] = nz * wc;
+		}
+	}
+
+	/**
+	 * Sums and normalizes the corner normals of the vertices. Exactly one of the outputs is set.
+	 */
+	private void gatherNormals(float[] cornerNormals, int vertexStart, int vertexEnd, float[] normals,
+			FloatBuffer normalBuffer) {
+		final int[] cornerStart = mCornerStart;
+		final int[] corners = mCorners;
+
+		for (int v = vertexStart; v < vertexEnd; ++v) {
+			float x = 0, y = 0, z = 0;
+			for (int c = cornerStart[v], last = cornerStart[v + 1]; c < last; ++c) {
+				int o = corners[c] * 3;
+				x += cornerNormals[o];
+				y += cornerNormals[o + 1];
+				z += cornerNormals[o + 2];
+			}
+			float length = (float) Math.sqrt(x * x + y * y + z * z);
+			if (length > 0) {
+				x /= length;
+				y /= length;
+				z /= length;
+			}
+			int o = v * 3;
+			if (normals != null) {
+				normals[o] = x;
+				normals[o + 1] = y;
+				normals[o + 2] = z;
+			} else {
+				normalBuffer.put(o, x);
+				normalBuffer.put(o + 1, y);
+				normalBuffer.put(o + 2, z);
+			}
+		}
+	}
+
+	private static float angle(float dot, float lengths) {
+		if (lengths == 0)
+			return 0;
+		return (float) Math.acos(Math.max(-1, Math.min(1, dot / lengths)));
+	}
+}
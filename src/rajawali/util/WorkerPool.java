@@ -0,0 +1,96 @@
+package rajawali.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A pool of daemon threads shared by the CPU heavy parts of the engine, like skinning and
+ * normal generation. There is one worker less than there are cores, at most three, so the
+ * calling thread can work on a part as well. Devices with a single core get no workers.
+ */
+public class WorkerPool {
+	private static final int MAX_WORKERS = 3;
+
+	private static ExecutorService sPool;
+	private static int sNumWorkers = -1;
+
+	/**
+	 * Returns the number of worker threads, which can be 0.
+	 *
+	 * @return
+	 */
+	public static synchronized int getNumWorkers() {
+		if (sNumWorkers < 0) {
+			sNumWorkers = Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors() - 1);
+			if (sNumWorkers > 0) {
+				sPool = Executors.newFixedThreadPool(sNumWorkers, new ThreadFactory() {
+					private int mCount;
+
+					public synchronized Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Rajawali-worker-" + (++mCount));
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+		}
+		return Math.max(0, sNumWorkers);
+	}
+
+	/**
+	 * Runs a task on a worker thread. Must only be called when there are workers.
+	 *
+	 * @param task
+	 */
+	public static void execute(Runnable task) {
+		if (getNumWorkers() == 0)
+			throw new IllegalStateException("There are no worker threads.");
+		sPool.execute(task);
+	}
+
+	/**
+	 * Runs tasks in parallel and waits for all of them. The last task runs on the calling thread.
+	 *
+	 * @param tasks
+	 * @param numTasks
+	 *            The number of tasks to run from the start of the array
+	 */
+	public static void run(final Runnable[] tasks, int numTasks) {
+		if (numTasks == 0)
+			return;
+		final int numPooled = getNumWorkers() == 0 ? 0 : numTasks - 1;
+		final int[] pending = { numPooled };
+
+		for (int i = 0; i < numPooled; ++i) {
+			final Runnable task = tasks[i];
+			sPool.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} catch (Throwable t) {
+						RajLog.e("[" + WorkerPool.class.getName() + "] Task failed: " + t.getMessage());
+					} finally {
+						synchronized (pending) {
+							if (--pending[0] == 0)
+								pending.notifyAll();
+						}
+					}
+				}
+			});
+		}
+		for (int i = numPooled; i < numTasks; ++i)
+			tasks[i].run();
+
+		synchronized (pending) {
+			while (pending[0] > 0) {
+				try {
+					pending.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package rajawali.materials;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import rajawali.materials.ShaderProgramCache.ShaderProgram;
+
+public class ShaderProgramCacheTest extends TestCase {
+	private static final String VERTEX = "attribute vec4 aPosition;\nvoid main() { gl_Position = aPosition; }";
+	private static final String FRAGMENT = "void main() { gl_FragColor = vec4(1.0); }";
+
+	/**
+	 * Hands out increasing handles and records every call.
+	 */
+	static class RecordingGL implements IShaderProgramGL {
+		final ArrayList<String> mCalls = new ArrayList<String>();
+		int mNextHandle = 1;
+		boolean mFailCompile;
+
+		public int compileShader(int shaderType, String source) {
+			mCalls.add("compileShader");
+			return mFailCompile ? 0 : mNextHandle++;
+		}
+
+		public int linkProgram(int vertexShader, int fragmentShader) {
+			mCalls.add("linkProgram");
+			return mNextHandle++;
+		}
+
+		public void deleteShader(int shader) {
+			mCalls.add("deleteShader " + shader);
+		}
+
+		public void deleteProgram(int program) {
+			mCalls.add("deleteProgram " + program);
+		}
+
+		public int getUniformLocation(int program, String name) {
+			mCalls.add("getUniformLocation " + name);
+			return 0;
+		}
+
+		public int getAttributeLocation(int program, String name) {
+			mCalls.add("getAttributeLocation " + name);
+			return 0;
+		}
+
+		public void useProgram(int program) {
+			mCalls.add("useProgram " + program);
+		}
+
+		int count(String prefix) {
+			int count = 0;
+			for (String call : mCalls)
+				if (call.startsWith(prefix))
+					count++;
+			return count;
+		}
+	}
+
+	private RecordingGL mGL;
+	private ShaderProgramCache mCache;
+
+	@Override
+	protected void setUp() {
+		mGL = new RecordingGL();
+		mCache = new ShaderProgramCache(mGL);
+	}
+
+	public void testSameSourceIsCompiledOnce() {
+		ShaderProgram first = mCache.acquire(VERTEX, FRAGMENT);
+		ShaderProgram second = mCache.acquire(VERTEX, FRAGMENT);
+
+		assertSame(first, second);
+		assertEquals(1, mCache.getNumCompiles());
+		assertEquals(1, mGL.count("linkProgram"));
+		assertEquals(2, first.getReferenceCount());
+		assertEquals(0.5f, mCache.getHitRate());
+	}
+
+	public void testDifferentSourceIsCompiledSeparately() {
+		ShaderProgram first = mCache.acquire(VERTEX, FRAGMENT);
+		ShaderProgram second = mCache.acquire("#define TEXTURED\n" + VERTEX, FRAGMENT);
+
+		assertNotSame(first, second);
+		assertEquals(2, mCache.getNumCompiles());
+		assertEquals(2, mCache.getNumPrograms());
+	}
+
+	public void testProgramIsDeletedWithLastReference() {
+		ShaderProgram first = mCache.acquire(VERTEX, FRAGMENT);
+		mCache.acquire(VERTEX, FRAGMENT);
+
+		mCache.release(first);
+		assertEquals(0, mGL.count("deleteProgram"));
+		assertEquals(1, mCache.getNumPrograms());
+
+		mCache.release(first);
+		assertEquals(1, mGL.count("deleteProgram " + first.getHandle()));
+		assertEquals(2, mGL.count("deleteShader"));
+		assertEquals(0, mCache.getNumPrograms());
+
+		mCache.acquire(VERTEX, FRAGMENT);
+		assertEquals(2, mCache.getNumCompiles());
+	}
+
+	public void testFailedCompileIsNotCached() {
+		mGL.mFailCompile = true;
+		assertNull(mCache.acquire(VERTEX, FRAGMENT));
+		assertEquals(0, mCache.getNumCompiles());
+		assertEquals(0, mCache.getNumPrograms());
+	}
+
+	public void testLocationsAreLookedUpOnce() {
+		ShaderProgram program = mCache.acquire(VERTEX, FRAGMENT);
+		program.getAttributeLocation("aPosition");
+		program.getAttributeLocation("aPosition");
+		program.getUniformLocation("uMVPMatrix");
+		program.getUniformLocation("uMVPMatrix");
+
+		assertEquals(1, mGL.count("getAttributeLocation"));
+		assertEquals(1, mGL.count("getUniformLocation"));
+	}
+
+	public void testBoundProgramIsNotBoundAgain() {
+		mCache.useProgram(3);
+		mCache.useProgram(3);
+		mCache.useProgram(4);
+
+		assertEquals(2, mGL.count("useProgram"));
+	}
+
+	public void testClearForgetsProgramsOfTheOldContext() {
+		ShaderProgram old = mCache.acquire(VERTEX, FRAGMENT);
+		mCache.useProgram(old.getHandle());
+		mCache.clear();
+
+		ShaderProgram program = mCache.acquire(VERTEX, FRAGMENT);
+		assertNotSame(old, program);
+		assertEquals(2, mCache.getNumCompiles());
+		// -- releasing a program of the old context doesn't touch the new one
+		mCache.release(old);
+		assertEquals(0, mGL.count("deleteProgram"));
+		mCache.useProgram(old.getHandle());
+		assertEquals(2, mGL.count("useProgram"));
+	}
+
+	public void testCachesDontShareProgramsOrBindings() {
+		RecordingGL otherGL = new RecordingGL();
+		ShaderProgramCache other = new ShaderProgramCache(otherGL);
+
+		ShaderProgram program = mCache.acquire(VERTEX, FRAGMENT);
+		ShaderProgram otherProgram = other.acquire(VERTEX, FRAGMENT);
+		assertNotSame(program, otherProgram);
+		assertSame(other, otherProgram.getCache());
+		assertEquals(1, other.getNumCompiles());
+
+		mCache.useProgram(program.getHandle());
+		other.useProgram(otherProgram.getHandle());
+		assertEquals(1, otherGL.count("useProgram"));
+	}
+
+	public void testInstanceIsPerThread() throws InterruptedException {
+		mCache.makeCurrent();
+		assertSame(mCache, ShaderProgramCache.getInstance());
+
+		final ShaderProgramCache[] fromOtherThread = new ShaderProgramCache[1];
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				fromOtherThread[0] = ShaderProgramCache.getInstance();
+			}
+		});
+		thread.start();
+		thread.join();
+		assertNotSame(mCache, fromOtherThread[0]);
+	}
+}
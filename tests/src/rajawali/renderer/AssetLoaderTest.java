@@ -0,0 +1,237 @@
+package rajawali.renderer;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+import rajawali.AGeometry3D;
+import rajawali.BaseObject3D;
+import rajawali.Geometry3DSeparate;
+import rajawali.materials.TextureInfo;
+import rajawali.parser.IMeshParser;
+import rajawali.parser.IParser;
+import rajawali.renderer.AssetLoader.AssetLoaderListener;
+import rajawali.renderer.AssetLoader.LoadRequest;
+import rajawali.renderer.AssetLoader.State;
+
+public class AssetLoaderTest extends TestCase {
+	private static final int MESH_SIZE = 100;
+	private static final long TIMEOUT_MS = 5000;
+
+	/**
+	 * Counts every geometry as MESH_SIZE bytes and records uploads and releases.
+	 */
+	static class RecordingUploadGL implements IAssetUploadGL {
+		final ArrayList<Object> mUploaded = new ArrayList<Object>();
+		final ArrayList<Object> mDestroyed = new ArrayList<Object>();
+
+		public int getUploadSize(TextureInfo textureInfo) {
+			return textureInfo.getWidth() * textureInfo.getHeight() * 4;
+		}
+
+		public int getUploadSize(AGeometry3D geometry) {
+			return MESH_SIZE;
+		}
+
+		public synchronized void upload(TextureInfo textureInfo) {
+			mUploaded.add(textureInfo);
+		}
+
+		public synchronized void upload(AGeometry3D geometry) {
+			mUploaded.add(geometry);
+		}
+
+		public synchronized void delete(TextureInfo textureInfo) {
+		}
+
+		public synchronized void destroy(BaseObject3D object) {
+			mDestroyed.add(object);
+		}
+	}
+
+	static class Mesh extends BaseObject3D {
+		Mesh() {
+			mGeometry = new Geometry3DSeparate();
+			isContainer(false);
+		}
+	}
+
+	/**
+	 * Returns a prepared object, optionally after the test lets it continue.
+	 */
+	static class TestParser implements IMeshParser {
+		final BaseObject3D mObject;
+		final CountDownLatch mProceed = new CountDownLatch(1);
+
+		TestParser(int numMeshes) {
+			mObject = new BaseObject3D();
+			for (int i = 0; i < numMeshes; ++i)
+				mObject.addChild(new Mesh());
+		}
+
+		public IParser parse() {
+			try {
+				mProceed.await();
+			} catch (InterruptedException e) {
+				return null;
+			}
+			return this;
+		}
+
+		public BaseObject3D getParsedObject() {
+			return mObject;
+		}
+	}
+
+	static class RecordingListener implements AssetLoaderListener {
+		int mNumLoaded;
+		int mNumFailed;
+
+		public void onAssetLoaded(LoadRequest request) {
+			mNumLoaded++;
+		}
+
+		public void onAssetLoadFailed(LoadRequest request, Throwable error) {
+			mNumFailed++;
+		}
+	}
+
+	private RecordingUploadGL mGL;
+	private AssetLoader mLoader;
+
+	@Override
+	protected void setUp() {
+		mGL = new RecordingUploadGL();
+		mLoader = new AssetLoader(mGL, 1);
+		mLoader.setFrameBudget(TIMEOUT_MS, 1024 * 1024);
+	}
+
+	@Override
+	protected void tearDown() {
+		mLoader.shutdown();
+	}
+
+	private LoadRequest loadParsed(TestParser parser, AssetLoaderListener listener) throws InterruptedException {
+		LoadRequest request = mLoader.load(parser, listener);
+		parser.mProceed.countDown();
+		waitForUploads(request);
+		return request;
+	}
+
+	private void waitForState(LoadRequest request, State state) throws InterruptedException {
+		long end = System.currentTimeMillis() + TIMEOUT_MS;
+		while (request.getState() != state) {
+			assertTrue("Request didn't reach " + state, System.currentTimeMillis() < end);
+			Thread.sleep(5);
+		}
+	}
+
+	/**
+	 * The parser thread queues the request right after switching it to UPLOADING.
+	 */
+	private void waitForUploads(LoadRequest request) throws InterruptedException {
+		waitForState(request, State.UPLOADING);
+		long end = System.currentTimeMillis() + TIMEOUT_MS;
+		while (mLoader.getNumPendingUploads() == 0) {
+			assertTrue("Request wasn't queued", System.currentTimeMillis() < end);
+			Thread.sleep(5);
+		}
+	}
+
+	private void waitForRelease(BaseObject3D object) throws InterruptedException {
+		long end = System.currentTimeMillis() + TIMEOUT_MS;
+		while (!mGL.mDestroyed.contains(object)) {
+			assertTrue("Object wasn't released", System.currentTimeMillis() < end);
+			mLoader.processPendingUploads();
+			Thread.sleep(5);
+		}
+	}
+
+	public void testByteBudgetSpreadsUploadsOverFrames() throws InterruptedException {
+		mLoader.setFrameBudget(TIMEOUT_MS, 2 * MESH_SIZE + MESH_SIZE / 2);
+		RecordingListener listener = new RecordingListener();
+		LoadRequest request = loadParsed(new TestParser(4), listener);
+
+		mLoader.processPendingUploads();
+		assertEquals(2, mGL.mUploaded.size());
+		assertEquals(State.UPLOADING, request.getState());
+
+		mLoader.processPendingUploads();
+		assertEquals(4, mGL.mUploaded.size());
+		assertEquals(State.DONE, request.getState());
+		assertEquals(1, listener.mNumLoaded);
+		assertEquals(0, mLoader.getNumPendingUploads());
+	}
+
+	public void testOneUploadPerFrameWhenStepsExceedBudget() throws InterruptedException {
+		mLoader.setFrameBudget(TIMEOUT_MS, MESH_SIZE / 2);
+		loadParsed(new TestParser(3), null);
+
+		for (int i = 1; i <= 3; ++i) {
+			mLoader.processPendingUploads();
+			assertEquals(i, mGL.mUploaded.size());
+		}
+	}
+
+	public void testProgressCountsUploadSteps() throws InterruptedException {
+		mLoader.setFrameBudget(TIMEOUT_MS, MESH_SIZE);
+		TestParser parser = new TestParser(4);
+		LoadRequest request = mLoader.load(parser, null);
+		assertEquals(0f, request.getProgress());
+
+		parser.mProceed.countDown();
+		waitForUploads(request);
+		assertEquals(0f, request.getProgress());
+
+		mLoader.processPendingUploads();
+		assertEquals(0.25f, request.getProgress());
+		mLoader.processPendingUploads();
+		assertEquals(0.5f, request.getProgress());
+		mLoader.processPendingUploads();
+		mLoader.processPendingUploads();
+		mLoader.processPendingUploads();
+		assertEquals(1f, request.getProgress());
+		assertSame(parser.mObject, request.getObject());
+	}
+
+	public void testCancelWhileParsingReleasesObject() throws InterruptedException {
+		TestParser parser = new TestParser(2);
+		LoadRequest request = mLoader.load(parser, null);
+		waitForState(request, State.PARSING);
+
+		assertTrue(request.cancel(false));
+		parser.mProceed.countDown();
+		waitForRelease(parser.mObject);
+
+		assertTrue(request.isCancelled());
+		assertEquals(0, mGL.mUploaded.size());
+		assertEquals(0, mLoader.getNumPendingUploads());
+	}
+
+	public void testCancelBeforeFirstUploadReleasesObject() throws InterruptedException {
+		TestParser parser = new TestParser(2);
+		LoadRequest request = loadParsed(parser, null);
+
+		assertTrue(request.cancel(false));
+		mLoader.processPendingUploads();
+
+		assertEquals(1, mGL.mDestroyed.size());
+		assertEquals(0, mGL.mUploaded.size());
+		assertNull(request.getObject());
+	}
+
+	public void testCancelAfterUploadsReleasesObject() throws InterruptedException {
+		mLoader.setFrameBudget(TIMEOUT_MS, MESH_SIZE);
+		TestParser parser = new TestParser(3);
+		LoadRequest request = loadParsed(parser, null);
+		mLoader.processPendingUploads();
+
+		assertTrue(request.cancel(false));
+		mLoader.processPendingUploads();
+
+		assertEquals(1, mGL.mUploaded.size());
+		assertEquals(1, mGL.mDestroyed.size());
+		assertEquals(0, mLoader.getNumPendingUploads());
+		assertFalse(request.cancel(false));
+	}
+}
@@ -0,0 +1,159 @@
+package rajawali.tools;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import javax.imageio.ImageIO;
+
+import rajawali.materials.CompressedTexture;
+import rajawali.materials.CompressedTextureReader;
+import rajawali.materials.CompressedTextureWriter;
+import rajawali.materials.ETC1Codec;
+
+/**
+ * Offline tool that converts PNG (or any other image format ImageIO can read) to ETC1
+ * compressed PKM or KTX files. Put the output files in res/raw and load them with
+ * {@link CompressedTextureReader}.
+ * <p>
+ * This runs on a desktop JVM, not on Android. Compile it together with CompressedTexture,
+ * CompressedTextureReader, CompressedTextureWriter and ETC1Codec:
+ * <pre><code>
+ * javac -d bin tools/src/rajawali/tools/TextureCompressor.java src/rajawali/materials/CompressedTexture*.java src/rajawali/materials/ETC1Codec.java
+ * java -cp bin rajawali.tools.TextureCompressor -format ktx -mipmaps rock.png res/raw/rock_ktx.ktx
+ * </code></pre>
+ * ETC1 doesn't store alpha, the alpha channel of the input is dropped.
+ */
+public class TextureCompressor {
+	private static final String USAGE = "Usage: TextureCompressor [-format pkm|ktx] [-mipmaps] input output";
+
+	public static void main(String[] args) {
+		String format = null;
+		boolean mipmaps = false;
+		String input = null;
+		String output = null;
+
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("-format") && i + 1 < args.length) {
+				format = args[++i].toLowerCase();
+			} else if (args[i].equals("-mipmaps")) {
+				mipmaps = true;
+			} else if (input == null) {
+				input = args[i];
+			} else if (output == null) {
+				output = args[i];
+			} else {
+				exit(USAGE);
+			}
+		}
+		if (input == null || output == null)
+			exit(USAGE);
+		if (format == null)
+			format = output.toLowerCase().endsWith(".pkm") ? "pkm" : "ktx";
+		if (!format.equals("pkm") && !format.equals("ktx"))
+			exit("Unknown format " + format);
+		if (mipmaps && format.equals("pkm"))
+			exit("PKM files can't contain mipmaps, use -format ktx");
+
+		try {
+			compress(new File(input), new File(output), format, mipmaps);
+		} catch (IOException e) {
+			exit(e.getMessage());
+		}
+	}
+
+	private static void compress(File input, File output, String format, boolean mipmaps) throws IOException {
+		BufferedImage image = ImageIO.read(input);
+		if (image == null)
+			throw new IOException("Can't read image " + input);
+		if (image.getColorModel().hasAlpha())
+			System.err.println("Warning: ETC1 doesn't support alpha, the alpha channel of " + input + " is dropped");
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+
+		ArrayList<byte[]> levels = new ArrayList<byte[]>();
+		levels.add(ETC1Codec.encode(pixels, width, height));
+		if (mipmaps) {
+			int levelWidth = width;
+			int levelHeight = height;
+			while (levelWidth > 1 || levelHeight > 1) {
+				int nextWidth = Math.max(1, levelWidth >> 1);
+				int nextHeight = Math.max(1, levelHeight >> 1);
+				pixels = downsample(pixels, levelWidth, levelHeight, nextWidth, nextHeight);
+				levelWidth = nextWidth;
+				levelHeight = nextHeight;
+				levels.add(ETC1Codec.encode(pixels, levelWidth, levelHeight));
+			}
+		}
+
+		OutputStream stream = new BufferedOutputStream(new FileOutputStream(output));
+		try {
+			if (format.equals("pkm"))
+				CompressedTextureWriter.writePKM(stream, levels.get(0), width, height);
+			else
+				CompressedTextureWriter.writeKTX(stream, levels.toArray(new byte[levels.size()][]), width, height);
+		} finally {
+			stream.close();
+		}
+
+		// -- read the file back and report the error of the first level
+		CompressedTexture texture = CompressedTextureReader.read(new FileInputStream(output));
+		byte[] data = new byte[texture.getLevel(0).capacity()];
+		texture.getLevel(0).get(data).position(0);
+		int[] original = image.getRGB(0, 0, width, height, null, 0, width);
+		int[] decoded = ETC1Codec.decode(data, width, height);
+		System.out.println(String.format("%s: %dx%d, %d level(s), %d bytes, PSNR %.2f dB", output, width, height,
+				texture.getNumLevels(), output.length(), psnr(original, decoded)));
+	}
+
+	/**
+	 * 2x2 box filter. Odd dimensions repeat the last row or column.
+	 */
+	private static int[] downsample(int[] pixels, int width, int height, int newWidth, int newHeight) {
+		int[] result = new int[newWidth * newHeight];
+		for (int y = 0; y < newHeight; ++y) {
+			int y0 = Math.min(y * 2, height - 1);
+			int y1 = Math.min(y * 2 + 1, height - 1);
+			for (int x = 0; x < newWidth; ++x) {
+				int x0 = Math.min(x * 2, width - 1);
+				int x1 = Math.min(x * 2 + 1, width - 1);
+				int p0 = pixels[y0 * width + x0];
+				int p1 = pixels[y0 * width + x1];
+				int p2 = pixels[y1 * width + x0];
+				int p3 = pixels[y1 * width + x1];
+				int color = 0;
+				for (int shift = 0; shift < 32; shift += 8) {
+					int sum = ((p0 >>> shift) & 0xff) + ((p1 >>> shift) & 0xff) + ((p2 >>> shift) & 0xff)
+							+ ((p3 >>> shift) & 0xff);
+					color |= ((sum + 2) / 4) << shift;
+				}
+				result[y * newWidth + x] = color;
+			}
+		}
+		return result;
+	}
+
+	private static double psnr(int[] original, int[] decoded) {
+		double error = 0;
+		for (int i = 0; i < original.length; ++i) {
+			for (int shift = 0; shift < 24; shift += 8) {
+				int d = ((original[i] >> shift) & 0xff) - ((decoded[i] >> shift) & 0xff);
+				error += d * d;
+			}
+		}
+		double mse = error / (original.length * 3);
+		return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / mse);
+	}
+
+	private static void exit(String message) {
+		System.err.println(message);
+		System.exit(1);
+	}
+}